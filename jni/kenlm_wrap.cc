@@ -20,7 +20,7 @@
 #include "lm/left.hh"
 #include "lm/state.hh"
 #include "util/murmur_hash.hh"
-#include "util/pool.hh"
+#include <new>
 
 #include <iostream>
 
@@ -31,6 +31,7 @@
 
 // Grr.  Everybody's compiler is slightly different and I'm trying to not depend on boost.
 #include <unordered_map>
+#include <vector>
 
 // Verify that jint and lm::ngram::WordIndex are the same size. If this breaks
 // for you, there's a need to revise probString.
@@ -49,26 +50,45 @@ typedef std::unordered_multimap<uint64_t, lm::ngram::ChartState*> PoolHash;
 
 /**
  * A Chart bundles together a unordered_multimap that maps ChartState signatures to a single
- * object instantiated using a pool. This allows duplicate states to avoid allocating separate
+ * object allocated from the chart's blocks. This allows duplicate states to avoid allocating separate
  * state objects at multiple places throughout a sentence, and also allows state to be shared
  * across KenLMs for the same sentence.  Multimap is used to avoid hash collisions which can
  * return incorrect results, and cause out-of-bounds lookups when multiple KenLMs are in use.
+ *
+ * Charts are recycled between sentences: Reset() forgets all states but keeps the blocks (and the
+ * hash buckets) allocated, so that the next sentence does not have to allocate them again.
  */
 struct Chart {
+  // Number of states allocated at a time
+  static const std::size_t kBlockStates = 4096;
+
   // A cache for allocated chart objects
   PoolHash* poolHash;
-  // Pool used to allocate new ones
-  util::Pool* pool;
+  // Blocks of kBlockStates states used to allocate new ones
+  std::vector<lm::ngram::ChartState*> blocks;
+  // Number of states handed out from the blocks
+  std::size_t used;
 
-  Chart() {
+  Chart() : used(0) {
     poolHash = new PoolHash();
-    pool = new util::Pool();
   }
 
   ~Chart() {
     delete poolHash;
-    pool->FreeAll();
-    delete pool;
+    for (lm::ngram::ChartState* block : blocks)
+      free(block);
+  }
+
+  void Reset() {
+    poolHash->clear();
+    used = 0;
+  }
+
+  // Approximate number of bytes held by the chart
+  std::size_t MemoryUsage() const {
+    return blocks.size() * kBlockStates * sizeof(lm::ngram::ChartState)
+        + poolHash->bucket_count() * sizeof(void*)
+        + poolHash->size() * (sizeof(PoolHash::value_type) + 2 * sizeof(void*));
   }
 
   lm::ngram::ChartState* put(const lm::ngram::ChartState& state) {
@@ -76,7 +96,7 @@ struct Chart {
     uint64_t hashValue = lm::ngram::hash_value(state);
     auto state_it = poolHash->find(hashValue);
 
-    // Try to retrieve a matching ChartState pointer from our Pool
+    // Try to retrieve a matching ChartState pointer from our blocks
     while(state_it != poolHash->end()) {
       if (state == *(state_it->second)) {
         state_ptr = state_it->second;
@@ -85,15 +105,27 @@ struct Chart {
       state_it++;
     }
 
-    // Unable to find this ChartState in our pool, allocate new space for it
+    // Unable to find this ChartState, allocate new space for it
     if (!state_ptr) {
-      state_ptr = (lm::ngram::ChartState *) pool->Allocate(sizeof(lm::ngram::ChartState));
+      state_ptr = Allocate();
       *state_ptr = state;
       (*poolHash).insert({hashValue, state_ptr});
     }
 
     return state_ptr;
   }
+
+private:
+  lm::ngram::ChartState* Allocate() {
+    std::size_t block = used / kBlockStates;
+    if (block == blocks.size()) {
+      void* memory = malloc(kBlockStates * sizeof(lm::ngram::ChartState));
+      if (!memory)
+        throw std::bad_alloc();
+      blocks.push_back(static_cast<lm::ngram::ChartState*>(memory));
+    }
+    return blocks[block] + (used++ % kBlockStates);
+  }
 };
 
 // Vocab ids above what the vocabulary knows about are unknown and should
@@ -379,6 +411,16 @@ JNIEXPORT void JNICALL Java_org_apache_joshua_decoder_ff_lm_KenLM_destroyPool(
   delete chart;
 }
 
+JNIEXPORT void JNICALL Java_org_apache_joshua_decoder_ff_lm_KenLM_resetPool(
+    JNIEnv *env, jclass, jlong pointer) {
+  reinterpret_cast<Chart*>(pointer)->Reset();
+}
+
+JNIEXPORT jlong JNICALL Java_org_apache_joshua_decoder_ff_lm_KenLM_poolMemory(
+    JNIEnv *env, jclass, jlong pointer) {
+  return reinterpret_cast<Chart*>(pointer)->MemoryUsage();
+}
+
 JNIEXPORT jint JNICALL Java_org_apache_joshua_decoder_ff_lm_KenLM_order(
     JNIEnv *env, jclass, jlong pointer) {
   return reinterpret_cast<VirtualBase*>(pointer)->Order();
@@ -481,6 +523,41 @@ JNIEXPORT jobject JNICALL Java_org_apache_joshua_decoder_ff_lm_KenLM_probRule(
   return env->NewObject(base->ChartPair(), base->ChartPairInit(), (long)outStatePtr, prob);
 }
 
+// Scores count n-grams of the given order, passed back to back in a direct buffer of jints. The
+// words are mapped in place, so the buffer is scratch space. Probabilities are written to a
+// direct buffer of jfloats.
+JNIEXPORT void JNICALL Java_org_apache_joshua_decoder_ff_lm_KenLM_probBatch(
+  JNIEnv *env, jclass, jlong pointer, jobject ngrams, jint order, jint count, jobject probs) {
+  jint *words = reinterpret_cast<jint*>(env->GetDirectBufferAddress(ngrams));
+  jfloat *out = reinterpret_cast<jfloat*>(env->GetDirectBufferAddress(probs));
+  const VirtualBase *base = reinterpret_cast<const VirtualBase*>(pointer);
+
+  for (jint k = 0; k < count; k++, words += order) {
+    out[k] = base->Prob(words, words + order);
+  }
+}
+
+// Scores count rules, passed in a direct buffer of jlongs as (length, words...) records using the
+// encoding of probRule. The state pointer and probability of each rule are written to direct
+// buffers of jlongs and jfloats.
+JNIEXPORT void JNICALL Java_org_apache_joshua_decoder_ff_lm_KenLM_probRules(
+  JNIEnv *env, jclass, jlong pointer, jlong chartPtr, jobject rules, jint count, jobject states,
+  jobject probs) {
+  jlong *words = reinterpret_cast<jlong*>(env->GetDirectBufferAddress(rules));
+  jlong *outStates = reinterpret_cast<jlong*>(env->GetDirectBufferAddress(states));
+  jfloat *outProbs = reinterpret_cast<jfloat*>(env->GetDirectBufferAddress(probs));
+  const VirtualBase *base = reinterpret_cast<const VirtualBase*>(pointer);
+  Chart* chart = reinterpret_cast<Chart*>(chartPtr);
+
+  for (jint k = 0; k < count; k++) {
+    jlong length = *words++;
+    lm::ngram::ChartState outState;
+    outProbs[k] = base->ProbRule(words, words + length, outState);
+    outStates[k] = reinterpret_cast<jlong>(chart->put(outState));
+    words += length;
+  }
+}
+
 JNIEXPORT jfloat JNICALL Java_org_apache_joshua_decoder_ff_lm_KenLM_estimateRule(
   JNIEnv *env, jclass, jlong pointer, jlongArray arr) {
   jint length = env->GetArrayLength(arr);
@@ -30,10 +30,8 @@ import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectOutput;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.locks.StampedLock;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.joshua.decoder.ff.lm.NGramLanguageModel;
 import org.apache.joshua.util.FormatUtils;
@@ -44,6 +42,10 @@ import org.slf4j.LoggerFactory;
  * Static singular vocabulary class.
  * Supports (de-)serialization into a vocabulary file.
  *
+ * Reads never lock: ids are looked up in a concurrent map, and words in an append-only array
+ * that is republished through a volatile field whenever it grows. Only adding a new word (and
+ * registering a language model, which must see every word exactly once) is synchronized.
+ *
  * @author Juri Ganitkevitch
  */
 
@@ -52,11 +54,18 @@ public class Vocabulary implements Externalizable {
   private static final Logger LOG = LoggerFactory.getLogger(Vocabulary.class);
   private final static ArrayList<NGramLanguageModel> LMs = new ArrayList<>();
 
-  private static List<String> idToString;
-  private static Map<String, Integer> stringToId;
-  private static final StampedLock lock = new StampedLock();
+  /*
+   * Append-only table of words, indexed by id. A word is written here, and the size published,
+   * before its id is put into stringToId, so any thread that has obtained an id can read its word.
+   */
+  private static volatile String[] idToString;
+  private static volatile int size;
+  private static volatile ConcurrentHashMap<String, Integer> stringToId;
 
   static final int UNKNOWN_ID = 0;
+
+  /** Returned by {@link #getId(String)} for tokens that have not been registered. */
+  public static final int NO_ID = Integer.MIN_VALUE;
   static final String UNKNOWN_WORD = "<unk>";
 
   public static final String START_SYM = "<s>";
@@ -66,19 +75,14 @@ public class Vocabulary implements Externalizable {
     clear();
   }
 
-  public static boolean registerLanguageModel(NGramLanguageModel lm) {
-    long lock_stamp = lock.writeLock();
-    try {
-      // Store the language model.
-      LMs.add(lm);
-      // Notify it of all the existing words.
-      boolean collision = false;
-      for (int i = idToString.size() - 1; i > 0; i--)
-        collision = collision || lm.registerWord(idToString.get(i), i);
-      return collision;
-    } finally {
-      lock.unlockWrite(lock_stamp);
-    }
+  public static synchronized boolean registerLanguageModel(NGramLanguageModel lm) {
+    // Store the language model.
+    LMs.add(lm);
+    // Notify it of all the existing words.
+    boolean collision = false;
+    for (int i = size - 1; i > 0; i--)
+      collision = collision || lm.registerWord(idToString[i], i);
+    return collision;
   }
 
   /**
@@ -104,90 +108,72 @@ public class Vocabulary implements Externalizable {
       }
     }
     vocab_stream.close();
-    return (size + 1 == idToString.size());
+    return (size + 1 == Vocabulary.size);
   }
 
   public static void write(String file_name) throws IOException {
-    long lock_stamp =lock.readLock();
-    try {
-      File vocab_file = new File(file_name);
-      DataOutputStream vocab_stream =
-          new DataOutputStream(new BufferedOutputStream(new FileOutputStream(vocab_file)));
-      vocab_stream.writeInt(idToString.size() - 1);
-      LOG.info("Writing vocabulary: {} tokens", idToString.size() - 1);
-      for (int i = 1; i < idToString.size(); i++) {
-        vocab_stream.writeInt(i);
-        vocab_stream.writeUTF(idToString.get(i));
-      }
-      vocab_stream.close();
-    }
-    finally{
-      lock.unlockRead(lock_stamp);
+    final int numWords = size;
+    final String[] words = idToString;
+    File vocab_file = new File(file_name);
+    DataOutputStream vocab_stream =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(vocab_file)));
+    vocab_stream.writeInt(numWords - 1);
+    LOG.info("Writing vocabulary: {} tokens", numWords - 1);
+    for (int i = 1; i < numWords; i++) {
+      vocab_stream.writeInt(i);
+      vocab_stream.writeUTF(words[i]);
     }
+    vocab_stream.close();
   }
 
   /**
-   * Get the id of the token if it already exists, new id is created otherwise.
-   *
-   * TODO: currently locks for every call. Separate constant (frozen) ids from
-   * changing (e.g. OOV) ids. Constant ids could be immutable -&gt; no locking.
-   * Alternatively: could we use ConcurrentHashMap to not have to lock if
-   * actually contains it and only lock for modifications?
+   * Get the id of the token if it already exists, new id is created otherwise. Lookups of existing
+   * tokens do not lock.
    * 
    * @param token a token to obtain an id for
    * @return the token id
    */
   public static int id(String token) {
-    // First attempt an optimistic read
-    long attempt_read_lock = lock.tryOptimisticRead();
-    if (stringToId.containsKey(token)) {
-      int resultId = stringToId.get(token);
-      if (lock.validate(attempt_read_lock)) {
-        return resultId;
-      }
-    }
-
-    // The optimistic read failed, try a read with a stamped read lock
-    long read_lock_stamp = lock.readLock();
-    try {
-      if (stringToId.containsKey(token)) {
-        return stringToId.get(token);
-      }
-    } finally {
-      lock.unlockRead(read_lock_stamp);
-    }
-
-    // Looks like the id we want is not there, let's get a write lock and add it
-    long write_lock_stamp = lock.writeLock();
-    try {
-      if (stringToId.containsKey(token)) {
-        return stringToId.get(token);
-      }
-      int id = idToString.size() * (FormatUtils.isNonterminal(token) ? -1 : 1);
+    Integer id = stringToId.get(token);
+    if (id != null)
+      return id;
+    return register(token);
+  }
 
-      // register this (token,id) mapping with each language
-      // model, so that they can map it to their own private
-      // vocabularies
-      for (NGramLanguageModel lm : LMs)
-        lm.registerWord(token, Math.abs(id));
+  /**
+   * Get the id of the token without registering it. Does not lock.
+   * 
+   * @param token a token to obtain an id for
+   * @return the token id, or {@link #NO_ID} if the token has not been registered
+   */
+  public static int getId(String token) {
+    Integer id = stringToId.get(token);
+    return (id == null) ? NO_ID : id;
+  }
 
-      idToString.add(token);
-      stringToId.put(token, id);
-      return id;
-    } finally {
-      lock.unlockWrite(write_lock_stamp);
-    }
+  private static synchronized int register(String token) {
+    Integer existing = stringToId.get(token);
+    if (existing != null)
+      return existing;
+
+    int id = size * (FormatUtils.isNonterminal(token) ? -1 : 1);
+
+    // register this (token,id) mapping with each language
+    // model, so that they can map it to their own private
+    // vocabularies
+    for (NGramLanguageModel lm : LMs)
+      lm.registerWord(token, Math.abs(id));
+
+    if (size == idToString.length)
+      idToString = Arrays.copyOf(idToString, idToString.length * 2);
+    idToString[size] = token;
+    size++;
+    stringToId.put(token, id);
+    return id;
   }
 
   public static boolean hasId(int id) {
-    long lock_stamp = lock.readLock();
-    try {
-      id = Math.abs(id);
-      return (id < idToString.size());
-    }
-    finally{
-      lock.unlockRead(lock_stamp);
-    }
+    return Math.abs(id) < size;
   }
 
   public static int[] addAll(String sentence) {
@@ -202,14 +188,10 @@ public class Vocabulary implements Externalizable {
   }
 
   public static String word(int id) {
-    long lock_stamp = lock.readLock();
-    try {
-      id = Math.abs(id);
-      return idToString.get(id);
-    }
-    finally{
-      lock.unlockRead(lock_stamp);
-    }
+    id = Math.abs(id);
+    if (id >= size)
+      throw new IndexOutOfBoundsException(String.format("Unknown word id %d", id));
+    return idToString[id];
   }
 
   public static String getWords(int[] ids) {
@@ -243,15 +225,10 @@ public class Vocabulary implements Externalizable {
   }
 
   public static int size() {
-    long lock_stamp = lock.readLock();
-    try {
-      return idToString.size();
-    } finally {
-      lock.unlockRead(lock_stamp);
-    }
+    return size;
   }
 
-  public static synchronized int getTargetNonterminalIndex(int id) {
+  public static int getTargetNonterminalIndex(int id) {
     return FormatUtils.getNonterminalIndex(word(id));
   }
 
@@ -259,20 +236,16 @@ public class Vocabulary implements Externalizable {
    * Clears the vocabulary and initializes it with an unknown word. Registered
    * language models are left unchanged.
    */
-  public static void clear() {
-    long lock_stamp = lock.writeLock();
-    try {
-      idToString = new ArrayList<>();
-      stringToId = new HashMap<>();
-
-      idToString.add(UNKNOWN_ID, UNKNOWN_WORD);
-      stringToId.put(UNKNOWN_WORD, UNKNOWN_ID);
-    } finally {
-      lock.unlockWrite(lock_stamp);
-    }
+  public static synchronized void clear() {
+    stringToId = new ConcurrentHashMap<>();
+    idToString = new String[1024];
+
+    idToString[UNKNOWN_ID] = UNKNOWN_WORD;
+    size = 1;
+    stringToId.put(UNKNOWN_WORD, UNKNOWN_ID);
   }
 
-  public static void unregisterLanguageModels() {
+  public static synchronized void unregisterLanguageModels() {
     LMs.clear();
   }
 
@@ -387,11 +387,14 @@ public class BLEU {
                     edge.getTailNodes().get(tailIndex).getDPState(0).getClass()));
           }
 
+          // The tail's contexts, read where they are packed in its state
+          final int[] words = ngramState.getWords();
+
           // Compute ngrams overlapping with left context of tail node
           if (currentNgram.size() > 0) {
             boundary = currentNgram.size();
-            for (int id : ngramState.getLeftLMStateWords())
-              currentNgram.add(id);
+            for (int k = 0; k < ngramState.getContextLength(); k++)
+              currentNgram.add(words[ngramState.getLeftOffset() + k]);
 
             // Compute the BLEU statistics
             Stats partStats = computeOverDivide(currentNgram, references, boundary);
@@ -405,8 +408,8 @@ public class BLEU {
           //          System.err.println("    " + Vocabulary.getWords(ngramState.getRightLMStateWords()));
 
           // Accumulate ngrams from right context of tail node
-          for (int id : ngramState.getRightLMStateWords())
-            currentNgram.add(id);
+          for (int k = 0; k < ngramState.getContextLength(); k++)
+            currentNgram.add(words[ngramState.getRightOffset() + k]);
 
           boundary = currentNgram.size();
 
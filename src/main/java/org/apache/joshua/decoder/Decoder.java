@@ -30,18 +30,23 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.joshua.corpus.Vocabulary;
 import org.apache.joshua.decoder.ff.FeatureFunction;
+import org.apache.joshua.decoder.ff.FeatureMap;
 import org.apache.joshua.decoder.ff.FeatureVector;
 import org.apache.joshua.decoder.ff.PhraseModel;
 import org.apache.joshua.decoder.ff.StatefulFF;
+import org.apache.joshua.decoder.ff.lm.CachingLanguageModel;
+import org.apache.joshua.decoder.ff.lm.KenLMPoolManager;
+import org.apache.joshua.decoder.ff.lm.FusedLanguageModelFF;
 import org.apache.joshua.decoder.ff.lm.LanguageModelFF;
+import org.apache.joshua.decoder.ff.lm.NGramLanguageModel;
+import org.apache.joshua.decoder.ff.lm.StateMinimizingLanguageModel;
 import org.apache.joshua.decoder.ff.tm.Grammar;
 import org.apache.joshua.decoder.ff.tm.OwnerId;
 import org.apache.joshua.decoder.ff.tm.OwnerMap;
@@ -50,6 +55,7 @@ import org.apache.joshua.decoder.ff.tm.format.HieroFormatReader;
 import org.apache.joshua.decoder.ff.tm.hash_based.MemoryBasedBatchGrammar;
 import org.apache.joshua.decoder.ff.tm.packed.PackedGrammar;
 import org.apache.joshua.decoder.io.TranslationRequestStream;
+import org.apache.joshua.decoder.phrase.Hypothesis;
 import org.apache.joshua.decoder.phrase.PhraseTable;
 import org.apache.joshua.decoder.segment_file.Sentence;
 import org.apache.joshua.util.FileUtility;
@@ -60,7 +66,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Strings;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * This class handles decoder initialization and the complication introduced by multithreading.
@@ -68,14 +73,12 @@ import com.google.common.util.concurrent.ThreadFactoryBuilder;
  * After initialization, the main entry point to the Decoder object is
  * decodeAll(TranslationRequest), which returns a set of Translation objects wrapped in an iterable
  * TranslationResponseStream object. It is important that we support multithreading both (a) across the sentences
- * within a request and (b) across requests, in a round-robin fashion. This is done by maintaining a
- * fixed sized concurrent thread pool. When a new request comes in, a RequestParallelizer thread is
- * launched. This object iterates over the request's sentences, obtaining a thread from the
- * thread pool, and using that thread to decode the sentence. If a decoding thread is not available,
- * it will block until one is in a fair (FIFO) manner. RequestParallelizer thereby permits intra-request
- * parallelization by separating out reading the input stream from processing the translated sentences,
- * but also ensures that round-robin parallelization occurs, since RequestParallelizer uses the
- * thread pool before translating each request.
+ * within a request and (b) across requests. This is done by maintaining a single, fixed sized
+ * {@link TranslationScheduler} for the lifetime of the decoder. When a new request comes in, a
+ * reader task iterates over the request's sentences and queues each of them on the scheduler, which
+ * orders the sentences of all requests by length bucket and arrival. This permits intra-request
+ * parallelization by separating out reading the input stream from processing the translated
+ * sentences, while all requests share the same workers.
  *
  * A decoding thread is handled by DecoderTask and launched from DecoderThreadRunner. The purpose
  * of the runner is to record where to place the translated sentence when it is done (i.e., which
@@ -108,6 +111,15 @@ public class Decoder {
   private ArrayList<FeatureFunction> featureFunctions;
   private Grammar customPhraseTable;
 
+  /* Translates the sentences of all requests; created on the first call to decodeAll() */
+  private TranslationScheduler scheduler = null;
+
+  /*
+   * Completes the spans of a sentence in parallel (see num_span_threads); created on first use
+   * and shut down by cleanUp()
+   */
+  private ForkJoinPool spanPool = null;
+
   /* The feature weights. */
   public static FeatureVector weights;
 
@@ -184,34 +196,47 @@ public class Decoder {
   private void decodeAllAsync(TranslationRequestStream request,
                               TranslationResponseStream responseStream) {
 
-    // Give the threadpool a friendly name to help debuggers
-    final ThreadFactory threadFactory = new ThreadFactoryBuilder()
-            .setNameFormat("TranslationWorker-%d")
-            .setDaemon(true)
-            .build();
-    ExecutorService executor = Executors.newFixedThreadPool(this.joshuaConfiguration.num_parallel_decoders,
-            threadFactory);
-    try {
-      for (; ; ) {
-        Sentence sentence = request.next();
-
-        if (sentence == null) {
-          break;
-        }
+    final TranslationScheduler scheduler = getScheduler();
+    for (; ; ) {
+      Sentence sentence = request.next();
 
-        executor.execute(() -> {
-          try {
-            Translation result = decode(sentence);
-            responseStream.record(result);
-          } catch (Throwable ex) {
-            responseStream.propagate(ex);
-          }
-        });
+      if (sentence == null || responseStream.isCancelled()) {
+        break;
       }
-      responseStream.finish();
-    } finally {
-      executor.shutdown();
+
+      sentence.setCancellation(responseStream::isCancelled);
+      scheduler.submit(sentence, () -> {
+        // The client has given up on the request
+        if (responseStream.isCancelled())
+          return;
+        try {
+          Translation result = decode(sentence);
+          responseStream.record(result);
+        } catch (Throwable ex) {
+          responseStream.propagate(ex);
+        }
+      });
     }
+    responseStream.finish();
+  }
+
+  /**
+   * Returns the scheduler shared by all requests to this decoder, starting it on first use.
+   */
+  private synchronized TranslationScheduler getScheduler() {
+    if (scheduler == null)
+      scheduler = new TranslationScheduler(joshuaConfiguration.num_parallel_decoders);
+    return scheduler;
+  }
+
+  /**
+   * Returns the pool shared by all sentences whose spans are completed in parallel, starting it
+   * on first use, or null if spans are completed by the translating thread alone.
+   */
+  private synchronized ForkJoinPool getSpanPool() {
+    if (spanPool == null && joshuaConfiguration.num_span_threads > 1)
+      spanPool = new ForkJoinPool(joshuaConfiguration.num_span_threads);
+    return spanPool;
   }
 
 
@@ -224,11 +249,15 @@ public class Decoder {
    */
   public Translation decode(Sentence sentence) {
     try {
-      DecoderTask decoderTask = new DecoderTask(this.grammars, Decoder.weights, this.featureFunctions, joshuaConfiguration);
+      DecoderTask decoderTask = new DecoderTask(this.grammars, Decoder.weights, this.featureFunctions,
+          getSpanPool(), joshuaConfiguration);
       return decoderTask.translate(sentence);
     } catch (IOException e) {
       throw new RuntimeException(String.format(
               "Input %d: FATAL UNCAUGHT EXCEPTION: %s", sentence.id(), e.getMessage()), e);
+    } finally {
+      // The Translation releases them when done, but not if decoding failed
+      Translation.releaseKenLMStates(featureFunctions, sentence);
     }
   }
 
@@ -238,6 +267,35 @@ public class Decoder {
    * afterwards gets a fresh start.
    */
   public void cleanUp() {
+    synchronized (this) {
+      // Jobs still running must finish before the vocabulary and feature maps are reset below
+      if (scheduler != null)
+        scheduler.shutdown();
+      scheduler = null;
+      if (spanPool != null)
+        spanPool.shutdown();
+      spanPool = null;
+    }
+    for (Grammar grammar : grammars)
+      if (grammar instanceof PackedGrammar)
+        LOG.info("Rule cache of packed grammar {}: {}", getOwner(grammar.getOwner()),
+            ((PackedGrammar) grammar).getRuleCacheStats());
+    for (FeatureFunction feature : featureFunctions) {
+      if (feature instanceof LanguageModelFF
+          && ((LanguageModelFF) feature).getLM() instanceof CachingLanguageModel)
+        LOG.info("N-gram cache of {}: {}", feature.getName(), ((LanguageModelFF) feature).getLM());
+      if (feature instanceof FusedLanguageModelFF)
+        for (Map.Entry<String, NGramLanguageModel> lm : ((FusedLanguageModelFF) feature).getLMs().entrySet())
+          if (lm.getValue() instanceof CachingLanguageModel)
+            LOG.info("N-gram cache of {}: {}", lm.getKey(), lm.getValue());
+    }
+    for (FeatureFunction feature : featureFunctions)
+      if (feature instanceof StateMinimizingLanguageModel) {
+        KenLMPoolManager pools = StateMinimizingLanguageModel.getPoolManager();
+        pools.clear();
+        LOG.info("KenLM state pools: {}", pools);
+        break;
+      }
     resetGlobalState();
   }
 
@@ -245,8 +303,10 @@ public class Decoder {
     // clear/reset static variables
     OwnerMap.clear();
     DENSE_FEATURE_NAMES.clear();
+    FeatureMap.clear();
     Vocabulary.clear();
     Vocabulary.unregisterLanguageModels();
+    Hypothesis.resetRules();
     LanguageModelFF.resetLmIndex();
     StatefulFF.resetGlobalStateIndex();
   }
@@ -637,6 +697,7 @@ public class Decoder {
     }
 
     weights.registerDenseFeatures(featureFunctions);
+    StatefulFF.recordStatefulFeatures(featureFunctions);
   }
 
   /**
@@ -21,11 +21,13 @@ package org.apache.joshua.decoder;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.joshua.decoder.chart_parser.Chart;
 import org.apache.joshua.decoder.ff.FeatureFunction;
 import org.apache.joshua.decoder.ff.FeatureVector;
 import org.apache.joshua.decoder.ff.SourceDependentFF;
+import org.apache.joshua.decoder.ff.lm.KenLMPoolManager;
 import org.apache.joshua.decoder.ff.tm.Grammar;
 import org.apache.joshua.decoder.hypergraph.ForestWalker;
 import org.apache.joshua.decoder.hypergraph.GrammarBuilderWalkerFunction;
@@ -59,6 +61,8 @@ public class DecoderTask {
    */
   private final List<Grammar> allGrammars;
   private final List<FeatureFunction> featureFunctions;
+  /* Completes spans in parallel (see num_span_threads), or null */
+  private final ForkJoinPool spanPool;
 
 
   // ===============================================================
@@ -66,10 +70,12 @@ public class DecoderTask {
   // ===============================================================
   //TODO: (kellens) why is weights unused?
   public DecoderTask(List<Grammar> grammars, FeatureVector weights,
-                     List<FeatureFunction> featureFunctions, JoshuaConfiguration joshuaConfiguration) throws IOException {
+                     List<FeatureFunction> featureFunctions, ForkJoinPool spanPool,
+                     JoshuaConfiguration joshuaConfiguration) throws IOException {
 
     this.joshuaConfiguration = joshuaConfiguration;
     this.allGrammars = grammars;
+    this.spanPool = spanPool;
 
     this.featureFunctions = new ArrayList<>();
     for (FeatureFunction ff : featureFunctions) {
@@ -125,13 +131,14 @@ public class DecoderTask {
     try {
 
       if (joshuaConfiguration.search_algorithm.equals("stack")) {
-        Stacks stacks = new Stacks(sentence, this.featureFunctions, grammars, joshuaConfiguration);
+        Stacks stacks = new Stacks(sentence, this.featureFunctions, grammars, spanPool,
+            joshuaConfiguration);
 
         hypergraph = stacks.search();
       } else {
         /* Seeding: the chart only sees the grammars, not the factories */
         Chart chart = new Chart(sentence, this.featureFunctions, grammars,
-            joshuaConfiguration.goal_symbol, joshuaConfiguration);
+            joshuaConfiguration.goal_symbol, spanPool, joshuaConfiguration);
 
         hypergraph = (joshuaConfiguration.use_dot_chart) 
             ? chart.expand() 
@@ -141,6 +148,9 @@ public class DecoderTask {
     } catch (java.lang.OutOfMemoryError e) {
       LOG.error("Input {}: out of memory", sentence.id());
       hypergraph = null;
+    } catch (KenLMPoolManager.PoolLimitException e) {
+      LOG.error("Input {}: {}", sentence.id(), e.getMessage());
+      hypergraph = null;
     }
 
     float seconds = (System.currentTimeMillis() - startTime) / 1000.0f;
@@ -169,7 +179,8 @@ public class DecoderTask {
     /* Step 2. Create a new chart and parse with the instantiated grammar. */
     Grammar[] newGrammarArray = new Grammar[] { newGrammar };
     Sentence targetSentence = new Sentence(sentence.target(), sentence.id(), joshuaConfiguration);
-    Chart chart = new Chart(targetSentence, featureFunctions, newGrammarArray, "GOAL",joshuaConfiguration);
+    Chart chart = new Chart(targetSentence, featureFunctions, newGrammarArray, "GOAL", spanPool,
+        joshuaConfiguration);
     int goalSymbol = GrammarBuilderWalkerFunction.goalSymbol(hypergraph);
     String goalSymbolString = Vocabulary.word(goalSymbol);
     LOG.info("Sentence {}: goal symbol is {} ({}).", sentence.id(),
@@ -177,15 +188,20 @@ public class DecoderTask {
     chart.setGoalSymbolID(goalSymbol);
 
     /* Parsing */
-    HyperGraph englishParse = chart.expand();
-    long secondParseTime = System.currentTimeMillis();
-    LOG.info("Sentence {}: Finished second chart expansion ({} seconds).",
-        sentence.id(), (secondParseTime - sortTime) / 1000);
-    LOG.info("Sentence {} total time: {} seconds.\n", sentence.id(),
-        (secondParseTime - startTime) / 1000);
-    LOG.info("Memory used after sentence {} is {} MB", sentence.id(), (Runtime
-        .getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / 1000000.0);
-    return new Translation(sentence, englishParse, featureFunctions, joshuaConfiguration); // or do something else
+    try {
+      HyperGraph englishParse = chart.expand();
+      long secondParseTime = System.currentTimeMillis();
+      LOG.info("Sentence {}: Finished second chart expansion ({} seconds).",
+          sentence.id(), (secondParseTime - sortTime) / 1000);
+      LOG.info("Sentence {} total time: {} seconds.\n", sentence.id(),
+          (secondParseTime - startTime) / 1000);
+      LOG.info("Memory used after sentence {} is {} MB", sentence.id(), (Runtime
+          .getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) / 1000000.0);
+      return new Translation(sentence, englishParse, featureFunctions, joshuaConfiguration); // or do something else
+    } finally {
+      // The parse's KenLM states were allocated for the target sentence
+      Translation.releaseKenLMStates(featureFunctions, targetSentence);
+    }
   }
 
   private Grammar getGrammarFromHyperGraph(String goal, HyperGraph hg) {
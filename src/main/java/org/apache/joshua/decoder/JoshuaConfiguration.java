@@ -72,6 +72,33 @@ public class JoshuaConfiguration {
   // Testing shows there's up to ~95% hit rate when cache size is 5000 Trie nodes.
   public Integer cachedRuleSize = 5000;
 
+  /*
+   * How the packed grammar rule cache is bounded (-rule-cache-eviction): by the number of trie
+   * nodes ("entries") or of rules ("rules") given by cached-rules-size, or by its approximate heap
+   * size in bytes ("bytes"), given by -rule-cache-bytes.
+   */
+  public String rule_cache_eviction = "entries";
+  public long rule_cache_bytes = 256L * 1024 * 1024;
+
+  /*
+   * The number of n-gram probabilities each decoding thread caches for each Java language model
+   * (-lm-cache-size), e.g. 65536; 0, the default, disables the cache. KenLM is never cached.
+   */
+  public int lm_cache_size = 0;
+
+  /*
+   * The number of bytes of native memory that KenLM state pools may hold between sentences
+   * (-kenlm-pool-bytes); pools beyond it are freed rather than recycled.
+   */
+  public long kenlm_pool_bytes = 256L * 1024 * 1024;
+
+  /*
+   * The number of bytes of native memory that the KenLM state pools of the sentences being
+   * translated may hold (-kenlm-leased-pool-bytes); a sentence that would exceed it fails. 0 means
+   * no limit.
+   */
+  public long kenlm_leased_pool_bytes = 0;
+
   /*
    * The file to read the weights from (part of the sparse features implementation). Weights can
    * also just be listed in the main config file.
@@ -144,6 +171,19 @@ public class JoshuaConfiguration {
   /* The cube pruning pop limit. Set to 0 for exhaustive pruning. */
   public int pop_limit = 100;
 
+  /*
+   * Phrase-based decoding discards candidates whose score is more than this below the best
+   * candidate of their stack (-stack-beam). Set to 0 to keep all candidates.
+   */
+  public float stack_beam = 0.0f;
+
+  /*
+   * Phrase-based decoding cuts the candidate queue of a stack back to the candidates that can still
+   * be popped (-prune-stack-queues). This does not change the search; turning it off only costs
+   * memory.
+   */
+  public boolean prune_stack_queues = true;
+
   /* Maximum sentence length. Sentences longer than this are truncated. */
   public int maxlen = 200;
 
@@ -181,6 +221,22 @@ public class JoshuaConfiguration {
   /* The number of decoding threads to use (-threads). */
   public int num_parallel_decoders = 1;
 
+  /*
+   * The number of threads used to complete the cells of a single span width in parallel during
+   * CKY decoding, and to collect the translation options of a sentence and seed its stacks in
+   * parallel during phrase-based decoding (-span-threads). The default of 1 works on spans
+   * sequentially.
+   */
+  public int num_span_threads = 1;
+
+  /*
+   * When phrase-based stacks are seeded in parallel (see num_span_threads), add the candidates in
+   * the order of sequential search, so that the output does not depend on the number of threads
+   * (-deterministic-stacks). Otherwise candidates are added as they are scored, and candidates of
+   * equal score may be explored in a different order from run to run.
+   */
+  public boolean deterministic_stacks = false;
+
   /*
    * When true, _OOV is appended to all words that are passed through (useful for something like
    * transliteration on the target side
@@ -210,6 +266,18 @@ public class JoshuaConfiguration {
   /* If set, Joshua will start a (multi-threaded, per "threads") TCP/IP server on this port. */
   public int server_port = 0;
 
+  /*
+   * The number of server worker threads, each of which handles one client request at a time
+   * (-server-threads). If 0, num_parallel_decoders is used.
+   */
+  public int server_threads = 0;
+
+  /*
+   * The number of client requests that may wait for a free worker (-server-queue-size). Requests
+   * arriving while the queue is full are rejected instead of piling up.
+   */
+  public int server_queue_size = 64;
+
   /*
    * Whether to do forest rescoring. If set to true, the references are expected on STDIN along with
    * the input sentences in the following format:
@@ -272,7 +340,7 @@ public class JoshuaConfiguration {
   /* Weights overridden from the command line */
   public String weight_overwrite = "";
 
-  /* Timeout in seconds for threads */
+  /* Timeout in milliseconds for server requests, including time spent queued; 0 disables it */
   public long translation_thread_timeout = 30_000;
 
   /**
@@ -303,18 +371,30 @@ public class JoshuaConfiguration {
     true_oovs_only = false;
     filter_grammar = false;
     pop_limit = 100;
+    stack_beam = 0.0f;
+    prune_stack_queues = true;
     maxlen = 200;
     use_unique_nbest = false;
     include_align_index = false;
     topN = 1;
     outputFormat = "%i ||| %s ||| %f ||| %c";
     num_parallel_decoders = 1;
+    num_span_threads = 1;
+    deterministic_stacks = false;
     mark_oovs = false;
     // oracleFile = null;
     parse = false; // perform synchronous parsing
     features = new ArrayList<>();
     weights = new ArrayList<>();
     server_port = 0;
+    server_threads = 0;
+    server_queue_size = 64;
+    rule_cache_eviction = "entries";
+    rule_cache_bytes = 256L * 1024 * 1024;
+    lm_cache_size = 0;
+    kenlm_pool_bytes = 256L * 1024 * 1024;
+    kenlm_leased_pool_bytes = 0;
+    translation_thread_timeout = 30_000;
 
     reordering_limit = 8;
     num_translation_options = 20;
@@ -534,6 +614,19 @@ public class JoshuaConfiguration {
             }
             LOG.debug("num_parallel_decoders: {}", num_parallel_decoders);
 
+          } else if (parameter.equals(normalize_key("num_span_threads"))
+              || parameter.equals(normalize_key("span_threads"))) {
+            num_span_threads = Integer.parseInt(fds[1]);
+            if (num_span_threads <= 0) {
+              throw new IllegalArgumentException(
+                  "Must specify a positive number for num_span_threads");
+            }
+            LOG.debug("num_span_threads: {}", num_span_threads);
+
+          } else if (parameter.equals(normalize_key("deterministic_stacks"))) {
+            deterministic_stacks = Boolean.parseBoolean(fds[1]);
+            LOG.debug("deterministic_stacks: {}", deterministic_stacks);
+
           } else if (parameter.equals(normalize_key("mark_oovs"))) {
             mark_oovs = Boolean.valueOf(fds[1]);
             LOG.debug("mark_oovs: {}", mark_oovs);
@@ -542,6 +635,14 @@ public class JoshuaConfiguration {
             pop_limit = Integer.parseInt(fds[1]);
             LOG.info("pop-limit: {}", pop_limit);
 
+          } else if (parameter.equals(normalize_key("stack_beam"))) {
+            stack_beam = Float.parseFloat(fds[1]);
+            LOG.debug("stack_beam: {}", stack_beam);
+
+          } else if (parameter.equals(normalize_key("prune_stack_queues"))) {
+            prune_stack_queues = Boolean.parseBoolean(fds[1]);
+            LOG.debug("prune_stack_queues: {}", prune_stack_queues);
+
           } else if (parameter.equals(normalize_key("input-type"))) {
             switch (fds[1]) {
             case "json":
@@ -568,6 +669,18 @@ public class JoshuaConfiguration {
             server_port = Integer.parseInt(fds[1]);
             LOG.info("    server-port: {}", server_port);
 
+          } else if (parameter.equals(normalize_key("server-threads"))) {
+            server_threads = Integer.parseInt(fds[1]);
+            LOG.info("    server-threads: {}", server_threads);
+
+          } else if (parameter.equals(normalize_key("server-queue-size"))) {
+            server_queue_size = Integer.parseInt(fds[1]);
+            LOG.info("    server-queue-size: {}", server_queue_size);
+
+          } else if (parameter.equals(normalize_key("translation-thread-timeout"))) {
+            translation_thread_timeout = Long.parseLong(fds[1]);
+            LOG.info("    translation-thread-timeout: {}", translation_thread_timeout);
+
           } else if (parameter.equals(normalize_key("rescore-forest"))) {
             rescoreForest = true;
             LOG.info("    rescore-forest: {}", rescoreForest);
@@ -654,6 +767,27 @@ public class JoshuaConfiguration {
           } else if (parameter.equals(normalize_key("cached-rules-size"))) {
             // Check source sentence
             cachedRuleSize = Integer.parseInt(fds[1]);
+
+          } else if (parameter.equals(normalize_key("rule-cache-eviction"))) {
+            rule_cache_eviction = fds[1];
+            LOG.info("    rule-cache-eviction: {}", rule_cache_eviction);
+
+          } else if (parameter.equals(normalize_key("rule-cache-bytes"))) {
+            rule_cache_bytes = Long.parseLong(fds[1]);
+            LOG.info("    rule-cache-bytes: {}", rule_cache_bytes);
+
+          } else if (parameter.equals(normalize_key("lm-cache-size"))) {
+            lm_cache_size = Integer.parseInt(fds[1]);
+            LOG.info("    lm-cache-size: {}", lm_cache_size);
+
+          } else if (parameter.equals(normalize_key("kenlm-pool-bytes"))) {
+            kenlm_pool_bytes = Long.parseLong(fds[1]);
+            LOG.info("    kenlm-pool-bytes: {}", kenlm_pool_bytes);
+
+          } else if (parameter.equals(normalize_key("kenlm-leased-pool-bytes"))) {
+            kenlm_leased_pool_bytes = Long.parseLong(fds[1]);
+            LOG.info("    kenlm-leased-pool-bytes: {}", kenlm_leased_pool_bytes);
+
           } else if (parameter.equals(normalize_key("lowercase"))) {
             lowercase = true;
 
@@ -28,6 +28,7 @@ import java.net.InetSocketAddress;
 
 import org.apache.joshua.decoder.JoshuaConfiguration.SERVER_TYPE;
 import org.apache.joshua.decoder.io.TranslationRequestStream;
+import org.apache.joshua.server.ServerEngine;
 import org.apache.joshua.server.ServerThread;
 import org.apache.joshua.server.TcpServer;
 import org.apache.log4j.Level;
@@ -84,8 +85,10 @@ public class JoshuaDecoder {
 
         HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
         LOG.info("HTTP Server running and listening on port {}.", port);
-        server.createContext("/", new ServerThread(null, decoder, joshuaConfiguration));
-        server.setExecutor(null); // creates a default executor
+        // the handler only queues requests on the engine, so the default executor is sufficient
+        server.createContext("/", new ServerThread(new ServerEngine(joshuaConfiguration), decoder,
+            joshuaConfiguration));
+        server.setExecutor(null);
         server.start();
       } else {
         LOG.error("Unknown server type");
@@ -182,8 +182,8 @@ public class Translation {
 
     }
 
-    // remove state from StateMinimizingLanguageModel instances in features.
-    destroyKenLMStates(featureFunctions);
+    // release the state of StateMinimizingLanguageModel instances in features.
+    releaseKenLMStates(featureFunctions, source);
 
   }
 
@@ -226,13 +226,14 @@ public class Translation {
   }
 
   /**
-   * KenLM hack. If using KenLMFF, we need to tell KenLM to delete the pool used to create chart
-   * objects for this sentence.
+   * KenLM hack. If using KenLMFF, we need to tell KenLM to release the pools used to create chart
+   * objects for this sentence, so they can be reused for the next one. This invalidates the
+   * sentence's KenLM states, so it must only be called once the hypergraph is no longer used.
    */
-  private void destroyKenLMStates(final List<FeatureFunction> featureFunctions) {
+  static void releaseKenLMStates(final List<FeatureFunction> featureFunctions, Sentence sentence) {
     for (FeatureFunction feature : featureFunctions) {
       if (feature instanceof StateMinimizingLanguageModel) {
-        ((StateMinimizingLanguageModel) feature).destroyPool(getSourceSentence().id());
+        ((StateMinimizingLanguageModel) feature).releasePools(sentence);
         break;
       }
     }
@@ -20,6 +20,7 @@ package org.apache.joshua.decoder;
 
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.concurrent.CancellationException;
 
 import com.google.common.base.Throwables;
 import org.apache.joshua.decoder.io.TranslationRequestStream;
@@ -33,6 +34,11 @@ import org.apache.joshua.decoder.io.TranslationRequestStream;
  * Translation in the right place. When the next translation in a sequence is available, next() is
  * notified.
  * 
+ * A consumer that gives up on the translations (for example when its client times out) cancels
+ * the stream, either explicitly or by being interrupted while waiting for the next translation.
+ * The sentences of a cancelled stream that are still queued are not translated, and those being
+ * translated are abandoned.
+ * 
  * @author Matt Post post@cs.jhu.edu
  */
 public class TranslationResponseStream implements Iterator<Translation>, Iterable<Translation> {
@@ -54,6 +60,8 @@ public class TranslationResponseStream implements Iterator<Translation>, Iterabl
   private Translation nextTranslation;
   private Throwable fatalException;
 
+  private volatile boolean cancelled = false;
+
   public TranslationResponseStream(TranslationRequestStream request) {
     this.request = request;
     this.translations = new LinkedList<>();
@@ -73,6 +81,24 @@ public class TranslationResponseStream implements Iterator<Translation>, Iterabl
     }
   }
 
+  /**
+   * Abandons the translations of this stream. Sentences not yet translated are dropped, and a
+   * consumer waiting for the next translation gets a {@link CancellationException}.
+   */
+  public void cancel() {
+    synchronized (this) {
+      cancelled = true;
+      this.notifyAll();
+    }
+  }
+
+  /**
+   * @return true if the stream has been cancelled
+   */
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
   /**
    * This is called whenever a translation is completed by one of the decoder threads. There may be
    * a current output thread waiting for the current translation, which is determined by checking if
@@ -142,11 +168,13 @@ public class TranslationResponseStream implements Iterator<Translation>, Iterabl
         try {
           this.wait();
         } catch (InterruptedException e) {
-          // TODO Auto-generated catch block
-          e.printStackTrace();
+          cancel();
+          Thread.currentThread().interrupt();
         }
       }
 
+      if (cancelled)
+        throw new CancellationException("Translation request cancelled");
       fatalErrorCheck();
 
       /* We now have the sentence and can return it. */
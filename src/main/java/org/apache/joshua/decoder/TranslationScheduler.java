@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.joshua.decoder.segment_file.Sentence;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A long-lived pool of num_parallel_decoders translation workers, owned by a {@link Decoder} and
+ * shared by all of its requests. Sentences from all requests go into a single queue, so that short
+ * sentences from interactive clients are not stuck behind long ones. Each job carries its own
+ * continuation, which records the result in the response stream of the request the sentence came
+ * from.
+ *
+ * Jobs are ordered by a deadline: their arrival time, plus a delay for each length bucket they are
+ * in. A sentence is therefore overtaken by shorter sentences that arrive soon after it, but not by
+ * those that arrive more than its delay later, so long sentences are not starved under steady load.
+ * Jobs with the same deadline run in arrival order.
+ */
+public class TranslationScheduler {
+
+  /* Sentences whose lengths differ by less than this are in the same bucket */
+  public static final int BUCKET_WIDTH = 10;
+
+  /* The delay added to the deadline of a sentence for each bucket above the first */
+  public static final long BUCKET_DELAY_MILLIS = 1000;
+
+  private final ThreadPoolExecutor workers;
+  private final long bucketDelayMillis;
+
+  /* Breaks ties between sentences with the same deadline */
+  private final AtomicLong sequence = new AtomicLong();
+
+  public TranslationScheduler(int numThreads) {
+    this(numThreads, BUCKET_DELAY_MILLIS);
+  }
+
+  /**
+   * @param numThreads the number of workers
+   * @param bucketDelayMillis the delay added to a sentence's deadline for each length bucket
+   */
+  public TranslationScheduler(int numThreads, long bucketDelayMillis) {
+    this.bucketDelayMillis = bucketDelayMillis;
+    this.workers = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+        new PriorityBlockingQueue<>(),
+        new ThreadFactoryBuilder().setNameFormat("TranslationWorker-%d").setDaemon(true).build());
+  }
+
+  /**
+   * Queues a sentence for translation.
+   *
+   * @param sentence the sentence, which determines the job's priority
+   * @param job the work to do for the sentence, including delivering its result
+   */
+  public void submit(Sentence sentence, Runnable job) {
+    final long deadline = System.currentTimeMillis()
+        + (sentence.length() / BUCKET_WIDTH) * bucketDelayMillis;
+    workers.execute(new Job(deadline, sequence.getAndIncrement(), job));
+  }
+
+  /**
+   * @return the number of sentences waiting for a worker
+   */
+  public int getQueuedCount() {
+    return workers.getQueue().size();
+  }
+
+  /**
+   * Stops the workers once the sentences already queued have been translated, and waits for them
+   * to finish. If the calling thread is interrupted while waiting, the workers are interrupted and
+   * the jobs that have not started are dropped.
+   */
+  public void shutdown() {
+    workers.shutdown();
+    try {
+      workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      workers.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static class Job implements Runnable, Comparable<Job> {
+    private final long deadline;
+    private final long sequence;
+    private final Runnable job;
+
+    Job(long deadline, long sequence, Runnable job) {
+      this.deadline = deadline;
+      this.sequence = sequence;
+      this.job = job;
+    }
+
+    @Override
+    public void run() {
+      job.run();
+    }
+
+    @Override
+    public int compareTo(Job other) {
+      if (deadline != other.deadline)
+        return Long.compare(deadline, other.deadline);
+      return Long.compare(sequence, other.sequence);
+    }
+  }
+}
@@ -23,11 +23,15 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.joshua.corpus.Vocabulary;
 import org.apache.joshua.decoder.JoshuaConfiguration;
 import org.apache.joshua.decoder.chart_parser.DotChart.DotNode;
 import org.apache.joshua.decoder.ff.FeatureFunction;
+import org.apache.joshua.decoder.ff.ScoringBatch;
 import org.apache.joshua.decoder.ff.SourceDependentFF;
 import org.apache.joshua.decoder.ff.tm.AbstractGrammar;
 import org.apache.joshua.decoder.ff.tm.Grammar;
@@ -43,6 +47,7 @@ import org.apache.joshua.lattice.Arc;
 import org.apache.joshua.lattice.Lattice;
 import org.apache.joshua.lattice.Node;
 import org.apache.joshua.util.ChartSpan;
+import org.apache.joshua.util.Tasks;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -73,10 +78,15 @@ public class Chart {
   /**
    * how many items have been pruned away because its cost is greater than the
    * cutoff in calling chart.add_deduction_in_chart()
+   * 
+   * These are updated concurrently when spans are completed in parallel.
    */
-  int nMerged = 0;
-  int nAdded = 0;
-  int nDotitemAdded = 0; // note: there is no pruning in dot-item
+  final AtomicInteger nMerged = new AtomicInteger();
+  final AtomicInteger nAdded = new AtomicInteger();
+  final AtomicInteger nDotitemAdded = new AtomicInteger(); // note: there is no pruning in dot-item
+
+  /* Completes the cells of each width in parallel (see num_span_threads), or null */
+  private final ForkJoinPool spanPool;
 
   public Sentence getSentence() {
     return this.sentence;
@@ -115,8 +125,9 @@ public class Chart {
    */
 
   public Chart(Sentence sentence, List<FeatureFunction> featureFunctions, Grammar[] grammars,
-      String goalSymbol, JoshuaConfiguration config) {
+      String goalSymbol, ForkJoinPool spanPool, JoshuaConfiguration config) {
     this.config = config;
+    this.spanPool = spanPool;
     this.inputLattice = sentence.getLattice();
     this.sourceLength = inputLattice.size() - 1;
     this.featureFunctions = featureFunctions;
@@ -197,11 +208,20 @@ public class Chart {
    * rule, the 1-best tail node for that nonterminal and subspan. If the maximum
    * arity of a rule is R, then the dimension of the hypercube is R + 1, since
    * the first dimension is used to record the rule.
+   * 
+   * Edges are scored in batches (see {@link ComputeNodeResult#computeAll}): all the seeds of the
+   * span together, and then the successors of each popped state.
    */
   private void completeSpan(int i, int j) {
 
     /* STEP 1: create the heap, and seed it with all of the candidate states */
     PriorityQueue<CubePruneState> candidates = new PriorityQueue<>();
+    ScoringBatch batch = new ScoringBatch();
+
+    /* The seeds, which are scored together once all have been found */
+    ScoringBatch seeds = new ScoringBatch();
+    List<DotNode> seedDotNodes = new ArrayList<>();
+    List<List<Rule>> seedRules = new ArrayList<>();
 
     /*
      * Look at all the grammars, seeding the chart with completed rules from the
@@ -234,6 +254,22 @@ public class Chart {
           int numTranslationsAdded = 0;
 
           /* Terminal productions are added directly to the chart */
+          if (stateConstraint == null) {
+            int numRules = rules.size();
+            if (config.num_translation_options > 0)
+              numRules = Math.min(numRules, config.num_translation_options);
+
+            batch.clear();
+            for (Rule rule : rules.subList(0, numRules))
+              batch.add(rule, null, i, j, sourcePath);
+            ComputeNodeResult[] results = ComputeNodeResult.computeAll(featureFunctions, batch,
+                sentence);
+            for (int k = 0; k < numRules; k++)
+              getCell(i, j).addHyperEdgeInCell(results[k], rules.get(k), i, j, null, sourcePath,
+                  true);
+            continue;
+          }
+
           for (Rule rule : rules) {
 
             if (config.num_translation_options > 0
@@ -267,19 +303,23 @@ public class Chart {
            * represented by SuperNodes, which group together items with the same
            * nonterminal but different DP state (e.g., language model state)
            */
-          int[] ranks = new int[1 + superNodes.size()];
-          Arrays.fill(ranks, 1);
-
-          ComputeNodeResult result = new ComputeNodeResult(featureFunctions, bestRule,
-              currentTailNodes, i, j, sourcePath, sentence);
-          CubePruneState bestState = new CubePruneState(result, ranks, rules, currentTailNodes,
-              dotNode);
-          candidates.add(bestState);
+          seeds.add(bestRule, currentTailNodes, i, j, sourcePath);
+          seedDotNodes.add(dotNode);
+          seedRules.add(rules);
         }
       }
     }
 
-    applyCubePruning(i, j, candidates);
+    ComputeNodeResult[] results = ComputeNodeResult.computeAll(featureFunctions, seeds, sentence);
+    for (int k = 0; k < seeds.size(); k++) {
+      int[] ranks = new int[1 + seeds.getTailNodes(k).size()];
+      Arrays.fill(ranks, 1);
+      CubePruneState bestState = new CubePruneState(results[k], ranks, seedRules.get(k),
+          seeds.getTailNodes(k), seedDotNodes.get(k));
+      candidates.add(bestState);
+    }
+
+    applyCubePruning(i, j, candidates, batch);
   }
 
   /**
@@ -289,8 +329,10 @@ public class Chart {
    * @param j
    * @param stateConstraint
    * @param candidates
+   * @param batch a reusable batch for scoring the successors of each popped state
    */
-  private void applyCubePruning(int i, int j, PriorityQueue<CubePruneState> candidates) {
+  private void applyCubePruning(int i, int j, PriorityQueue<CubePruneState> candidates,
+      ScoringBatch batch) {
 
     // System.err.println(String.format("CUBEPRUNE: %d-%d with %d candidates",
     // i, j, candidates.size()));
@@ -304,6 +346,9 @@ public class Chart {
      */
     HashSet<CubePruneState> visitedStates = new HashSet<>();
 
+    /* The successors of the popped state, which are scored together */
+    List<int[]> successorRanks = new ArrayList<>();
+
     int popLimit = config.pop_limit;
     int popCount = 0;
     while (candidates.size() > 0 && ((++popCount <= popLimit) || popLimit == 0)) {
@@ -328,6 +373,8 @@ public class Chart {
        * the cube, in turn. k = 0 means we extend the rule being used; k > 0
        * expands the corresponding tail node.
        */
+      batch.clear();
+      successorRanks.clear();
 
       for (int k = 0; k < state.ranks.length; k++) {
 
@@ -353,18 +400,20 @@ public class Chart {
         for (int x = 0; x < state.ranks.length - 1; x++)
           nextAntNodes.add(superNodes.get(x).nodes.get(nextRanks[x + 1] - 1));
 
-        /* Create the next state. */
-        CubePruneState nextState = new CubePruneState(new ComputeNodeResult(featureFunctions,
-            nextRule, nextAntNodes, i, j, sourcePath, this.sentence), nextRanks, rules,
-            nextAntNodes, dotNode);
-
-        /* Skip states that have been explored before. */
-        if (visitedStates.contains(nextState))
+        /* Skip states that have been explored before (their equality ignores the result). */
+        if (!visitedStates.add(new CubePruneState(null, nextRanks, rules, nextAntNodes, dotNode)))
           continue;
 
-        visitedStates.add(nextState);
-        candidates.add(nextState);
+        batch.add(nextRule, nextAntNodes, i, j, sourcePath);
+        successorRanks.add(nextRanks);
       }
+
+      /* Score the new states together and add them to the heap. */
+      ComputeNodeResult[] results = ComputeNodeResult.computeAll(featureFunctions, batch,
+          sentence);
+      for (int x = 0; x < results.length; x++)
+        candidates.add(new CubePruneState(results[x], successorRanks.get(x), rules,
+            batch.getTailNodes(x), dotNode));
     }
   }
 
@@ -382,6 +431,7 @@ public class Chart {
 
   public HyperGraph expandSansDotChart() {
     for (i = sourceLength - 1; i >= 0; i--) {
+      sentence.checkCancelled();
       allCandidates = new PriorityQueue[sourceLength - i + 2];
       for (int id = 0; id < allCandidates.length; id++)
         allCandidates[id] = new PriorityQueue<>();
@@ -413,7 +463,7 @@ public class Chart {
         }
 
         // Now that we've accumulated all the candidates, apply cube pruning
-        applyCubePruning(i, j, allCandidates[j - i]);
+        applyCubePruning(i, j, allCandidates[j - i], new ScoringBatch());
 
         // Add unary nodes
         addUnaryNodes(this.grammars, i, j);
@@ -552,66 +602,28 @@ public class Chart {
    */
   public HyperGraph expand() {
 
-    for (int width = 1; width <= sourceLength; width++) {
-      for (int i = 0; i <= sourceLength - width; i++) {
-        int j = i + width;
-        if (LOG.isDebugEnabled())
-          LOG.debug("Processing span ({}, {})", i, j);
-
-        /* Skips spans for which no path exists (possible in lattices). */
-        if (inputLattice.distance(i, j) == Float.POSITIVE_INFINITY) {
-          continue;
-        }
-
-        /*
-         * 1. Expand the dot through all rules. This is a matter of (a) look for
-         * rules over (i,j-1) that need the terminal at (j-1,j) and looking at
-         * all split points k to expand nonterminals.
-         */
-        if (LOG.isDebugEnabled())
-          LOG.debug("Expanding cell");
-        for (int k = 0; k < this.grammars.length; k++) {
-          /**
-           * Each dotChart can act individually (without consulting other
-           * dotCharts) because it either consumes the source input or the
-           * complete nonTerminals, which are both grammar-independent.
-           **/
-          this.dotcharts[k].expandDotCell(i, j);
-        }
-
-        /*
-         * 2. The regular CKY part: add completed items onto the chart via cube
-         * pruning.
-         */
-        if (LOG.isDebugEnabled())
-          LOG.debug("Adding complete items into chart");
-        completeSpan(i, j);
-
-        /* 3. Process unary rules. */
-        if (LOG.isDebugEnabled())
-          LOG.debug("Adding unary items into chart");
-        addUnaryNodes(this.grammars, i, j);
-
-        // (4)=== in dot_cell(i,j), add dot-nodes that start from the /complete/
-        // superIterms in
-        // chart_cell(i,j)
-        if (LOG.isDebugEnabled())
-          LOG.debug("Initializing new dot-items that start from complete items in this cell");
-        for (int k = 0; k < this.grammars.length; k++) {
-          if (this.grammars[k].hasRuleForSpan(i, j, inputLattice.distance(i, j))) {
-            this.dotcharts[k].startDotItems(i, j);
-          }
-        }
+    /*
+     * All cells of a given width depend only on narrower cells, so they can be
+     * completed concurrently. This is restricted to linear-chain input, since
+     * lattice arcs spanning more than one word extend dot items into wider
+     * cells.
+     */
+    ForkJoinPool pool = sentence.isLinearChain() ? spanPool : null;
 
-        /*
-         * 5. Sort the nodes in the cell.
-         * 
-         * Sort the nodes in this span, to make them usable for future
-         * applications of cube pruning.
-         */
-        if (null != this.cells.get(i, j)) {
-          this.cells.get(i, j).getSortedNodes();
+    for (int width = 1; width <= sourceLength; width++) {
+      sentence.checkCancelled();
+      if (pool == null) {
+        for (int i = 0; i <= sourceLength - width; i++)
+          expandCell(i, i + width);
+      } else {
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int i = 0; i <= sourceLength - width; i++) {
+          final int start = i, end = i + width;
+          tasks.add(pool.submit(() -> expandCell(start, end)));
         }
+        /* Wait for the whole width before moving on to wider spans. If a cell fails, the others
+         * are still waited for, so none is left running when the failure reaches the caller. */
+        Tasks.joinAll(tasks);
       }
     }
 
@@ -631,6 +643,74 @@ public class Chart {
     return new HyperGraph(this.goalBin.getSortedNodes().get(0), -1, -1, this.sentence);
   }
 
+  /**
+   * Fills in a single cell of the chart. This touches only the cell and dot
+   * cells over (i, j), reading from the (already completed) narrower spans, so
+   * cells of the same width may be expanded concurrently.
+   * 
+   * @param i span start
+   * @param j span end
+   */
+  private void expandCell(int i, int j) {
+    if (LOG.isDebugEnabled())
+      LOG.debug("Processing span ({}, {})", i, j);
+
+    /* Skips spans for which no path exists (possible in lattices). */
+    if (inputLattice.distance(i, j) == Float.POSITIVE_INFINITY) {
+      return;
+    }
+
+    /*
+     * 1. Expand the dot through all rules. This is a matter of (a) look for
+     * rules over (i,j-1) that need the terminal at (j-1,j) and looking at
+     * all split points k to expand nonterminals.
+     */
+    if (LOG.isDebugEnabled())
+      LOG.debug("Expanding cell");
+    for (int k = 0; k < this.grammars.length; k++) {
+      /**
+       * Each dotChart can act individually (without consulting other
+       * dotCharts) because it either consumes the source input or the
+       * complete nonTerminals, which are both grammar-independent.
+       **/
+      this.dotcharts[k].expandDotCell(i, j);
+    }
+
+    /*
+     * 2. The regular CKY part: add completed items onto the chart via cube
+     * pruning.
+     */
+    if (LOG.isDebugEnabled())
+      LOG.debug("Adding complete items into chart");
+    completeSpan(i, j);
+
+    /* 3. Process unary rules. */
+    if (LOG.isDebugEnabled())
+      LOG.debug("Adding unary items into chart");
+    addUnaryNodes(this.grammars, i, j);
+
+    // (4)=== in dot_cell(i,j), add dot-nodes that start from the /complete/
+    // superIterms in
+    // chart_cell(i,j)
+    if (LOG.isDebugEnabled())
+      LOG.debug("Initializing new dot-items that start from complete items in this cell");
+    for (int k = 0; k < this.grammars.length; k++) {
+      if (this.grammars[k].hasRuleForSpan(i, j, inputLattice.distance(i, j))) {
+        this.dotcharts[k].startDotItems(i, j);
+      }
+    }
+
+    /*
+     * 5. Sort the nodes in the cell.
+     * 
+     * Sort the nodes in this span, to make them usable for future
+     * applications of cube pruning.
+     */
+    if (null != this.cells.get(i, j)) {
+      this.cells.get(i, j).getSortedNodes();
+    }
+  }
+
   /**
    * Get the requested cell, creating the entry if it doesn't already exist.
    * 
@@ -648,6 +728,17 @@ public class Chart {
     return cells.get(i, j);
   }
 
+  /**
+   * Get the requested cell without creating it.
+   * 
+   * @param i span start
+   * @param j span end
+   * @return the cell item, or null if nothing has been added over the span
+   */
+  Cell getExistingCell(int i, int j) {
+    return cells.get(i, j);
+  }
+
   // ===============================================================
   // Private methods
   // ===============================================================
@@ -655,7 +746,7 @@ public class Chart {
   private void logStatistics() {
     if (LOG.isDebugEnabled())
       LOG.debug("Input {}: Chart: added {} merged {} dot-items added: {}",
-          this.sentence.id(), this.nAdded, this.nMerged, this.nDotitemAdded);
+          this.sentence.id(), this.nAdded.get(), this.nMerged.get(), this.nDotitemAdded.get());
   }
 
   /**
@@ -18,14 +18,16 @@
  */
 package org.apache.joshua.decoder.chart_parser;
 
-import java.util.ArrayList;
-
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import org.apache.joshua.decoder.Decoder;
 import org.apache.joshua.decoder.ff.StatefulFF;
 import org.apache.joshua.decoder.ff.FeatureFunction;
 import org.apache.joshua.decoder.ff.FeatureVector;
+import org.apache.joshua.decoder.ff.ScoringBatch;
+import org.apache.joshua.decoder.ff.ScoringContext;
 import org.apache.joshua.decoder.ff.state_maintenance.DPState;
 import org.apache.joshua.decoder.ff.tm.Rule;
 import org.apache.joshua.decoder.hypergraph.HGNode;
@@ -54,8 +56,10 @@ public class ComputeNodeResult {
   // The future or outside cost (estimated)
   private float futureCostEstimate;
   
-  // The StateComputer objects themselves serve as keys.
-  private final List<DPState> dpStates;
+  // The new state of each stateful feature function, indexed by its state index.
+  private final DPState[] dpStates;
+
+  private static final DPState[] NO_STATES = new DPState[0];
 
   /**
    * Computes the new state(s) that are produced when applying the given rule to the list of tail
@@ -99,7 +103,8 @@ public class ComputeNodeResult {
       }
     }
 
-    List<DPState> allDPStates = new ArrayList<>();
+    final int numStatefulFeatures = StatefulFF.getNumStatefulFeatures(featureFunctions);
+    this.dpStates = (numStatefulFeatures == 0) ? NO_STATES : new DPState[numStatefulFeatures];
 
     // The transition cost is the new cost incurred by applying this rule
     this.transitionCost = 0.0f;
@@ -109,10 +114,11 @@ public class ComputeNodeResult {
 
     /*
      * We now iterate over all the feature functions, computing their cost and their expected future
-     * cost.
+     * cost. The scores are accumulated in this thread's reusable scoring context.
      */
+    final ScoringContext context = ScoringContext.get();
     for (FeatureFunction feature : featureFunctions) {
-      FeatureFunction.ScoreAccumulator acc = feature.new ScoreAccumulator(); 
+      ScoringContext acc = context.reset(feature);
 
       DPState newState = feature.compute(rule, tailNodes, i, j, sourcePath, sentence, acc);
       this.transitionCost += acc.getScore();
@@ -126,14 +132,63 @@ public class ComputeNodeResult {
 
       if (feature.isStateful()) {
         futureCostEstimate += feature.estimateFutureCost(rule, newState, sentence);
-        allDPStates.add(((StatefulFF)feature).getStateIndex(), newState);
+        dpStates[((StatefulFF)feature).getStateIndex()] = newState;
       }
     }
     this.viterbiCost += transitionCost;
     if (LOG.isDebugEnabled())
       LOG.debug("-> COST = {}", transitionCost);
+  }
 
-    this.dpStates = allDPStates;
+  /* Starts a result for an edge whose features are scored by computeAll() */
+  private ComputeNodeResult(List<HGNode> tailNodes, int numStatefulFeatures) {
+    this.viterbiCost = 0.0f;
+    if (null != tailNodes)
+      for (HGNode item : tailNodes)
+        viterbiCost += item.bestHyperedge.getBestDerivationScore();
+    this.dpStates = (numStatefulFeatures == 0) ? NO_STATES : new DPState[numStatefulFeatures];
+    this.transitionCost = 0.0f;
+    this.futureCostEstimate = 0.0f;
+  }
+
+  /**
+   * Computes the results of all edges in a batch. This is equivalent to constructing a
+   * ComputeNodeResult for each edge, but each feature function scores the whole batch with a
+   * single call to {@link FeatureFunction#computeAll}, which lets expensive features (such as
+   * language models) amortize their per-call costs over all edges of a cube-pruning round.
+   *
+   * @param featureFunctions {@link java.util.List} of {@link org.apache.joshua.decoder.ff.FeatureFunction}'s
+   * @param batch the {@link org.apache.joshua.decoder.ff.ScoringBatch} of edges to score
+   * @param sentence the lattice input
+   * @return the result of each edge, in batch order
+   */
+  public static ComputeNodeResult[] computeAll(List<FeatureFunction> featureFunctions,
+      ScoringBatch batch, Sentence sentence) {
+
+    final int numStatefulFeatures = StatefulFF.getNumStatefulFeatures(featureFunctions);
+    final int size = batch.size();
+    final ComputeNodeResult[] results = new ComputeNodeResult[size];
+    for (int k = 0; k < size; k++)
+      results[k] = new ComputeNodeResult(batch.getTailNodes(k), numStatefulFeatures);
+
+    final DPState[] newStates = new DPState[size];
+    for (FeatureFunction feature : featureFunctions) {
+      feature.computeAll(batch.reset(feature), sentence, newStates);
+
+      for (int k = 0; k < size; k++) {
+        final ComputeNodeResult result = results[k];
+        result.transitionCost += batch.getAccumulator(k).getScore();
+        if (feature.isStateful()) {
+          result.futureCostEstimate += feature.estimateFutureCost(batch.getRule(k), newStates[k],
+              sentence);
+          result.dpStates[((StatefulFF) feature).getStateIndex()] = newStates[k];
+        }
+      }
+    }
+
+    for (ComputeNodeResult result : results)
+      result.viterbiCost += result.transitionCost;
+    return results;
   }
 
   /**
@@ -171,15 +226,33 @@ public class ComputeNodeResult {
       HyperEdge edge, int i, int j, Sentence sentence) {
 
     // Initialize the set of features with those that were present with the rule in the grammar.
-    FeatureVector featureDelta = new FeatureVector();
+    return computeTransitionFeatures(featureFunctions, edge, i, j, sentence, new FeatureVector());
+  }
+
+  /**
+   * Computes the unweighted features fired along an edge, adding them to an existing vector. This
+   * lets callers that sum features over a whole derivation avoid a temporary vector per edge.
+   *
+   * @param featureFunctions {@link java.util.List} of {@link org.apache.joshua.decoder.ff.FeatureFunction}'s
+   * @param edge the {@link org.apache.joshua.decoder.hypergraph.HyperEdge} to score
+   * @param i the start of the source span covered by the edge (in phrase-based decoding, the last
+   *          source position covered by its tail hypothesis)
+   * @param j the end of the source span covered by the edge, exclusive
+   * @param sentence the lattice input
+   * @param featureDelta the {@link org.apache.joshua.decoder.ff.FeatureVector} to add the features to
+   * @return featureDelta
+   */
+  public static FeatureVector computeTransitionFeatures(List<FeatureFunction> featureFunctions,
+      HyperEdge edge, int i, int j, Sentence sentence, FeatureVector featureDelta) {
 
-    // === compute feature logPs
+    // === compute feature logPs. All features accumulate into the same vector.
     for (FeatureFunction ff : featureFunctions) {
+      FeatureFunction.Accumulator acc = ff.new FeatureAccumulator(featureDelta);
       // A null rule signifies the final transition.
       if (edge.getRule() == null)
-        featureDelta.add(ff.computeFinalFeatures(edge.getTailNodes().get(0), i, j, edge.getSourcePath(), sentence));
+        ff.computeFinal(edge.getTailNodes().get(0), i, j, edge.getSourcePath(), sentence, acc);
       else {
-        featureDelta.add(ff.computeFeatures(edge.getRule(), edge.getTailNodes(), i, j, edge.getSourcePath(), sentence));
+        ff.compute(edge.getRule(), edge.getTailNodes(), i, j, edge.getSourcePath(), sentence, acc);
       }
     }
 
@@ -216,7 +289,12 @@ public class ComputeNodeResult {
     return this.transitionCost;
   }
 
+  /**
+   * @return a fixed-size list view of the new states, indexed by state index
+   */
   public List<DPState> getDPStates() {
-    return this.dpStates;
+    if (dpStates.length == 0)
+      return Collections.emptyList();
+    return Arrays.asList(this.dpStates);
   }
 }
@@ -233,12 +233,13 @@ class DotChart {
    * @param skipUnary if true, don't extend unary rules
    */
   private void extendDotItemsWithProvedItems(int i, int k, int j, boolean skipUnary) {
-    if (this.dotcells.get(i, k) == null || this.dotChart.getCell(k, j) == null) {
+    Cell cell = this.dotChart.getExistingCell(k, j);
+    if (this.dotcells.get(i, k) == null || cell == null) {
       return;
     }
 
     // complete super-items (items over the same span with different LHSs)
-    List<SuperNode> superNodes = new ArrayList<>(this.dotChart.getCell(k, j).getSortedSuperItems().values());
+    List<SuperNode> superNodes = new ArrayList<>(cell.getSortedSuperItems().values());
 
     /* For every partially complete item over (i,k) */
     for (DotNode dotNode : dotcells.get(i, k).dotNodes) {
@@ -293,11 +294,11 @@ class DotChart {
       dotcells.set(i, j, new DotCell());
     }
     dotcells.get(i, j).addDotNode(item);
-    dotChart.nDotitemAdded++;
+    int numDotItems = dotChart.nDotitemAdded.incrementAndGet();
 
     if (LOG.isDebugEnabled()) {
       LOG.debug("Add a dotitem in cell ({}, {}), n_dotitem={}, {}", i, j,
-          dotChart.nDotitemAdded, srcPath);
+          numDotItems, srcPath);
 
       RuleCollection rules = tnode.getRuleCollection();
       if (rules != null) {
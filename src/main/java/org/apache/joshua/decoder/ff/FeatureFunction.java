@@ -60,7 +60,9 @@ import org.apache.joshua.decoder.segment_file.Sentence;
  * a generic way by passing an {@link Accumulator} object to the compute()
  * function. During decoding, the accumulator simply sums weighted features in a
  * scalar. During k-best extraction, when individual feature values are needed,
- * a {@link FeatureAccumulator} is used to retain the individual values.</p>
+ * a {@link FeatureAccumulator} is used to retain the individual values. The
+ * decoder itself scores edges through a per-thread {@link ScoringContext},
+ * which behaves like a {@link ScoreAccumulator} but is reused across edges.</p>
  * 
  * @author Matt Post post@cs.jhu.edu
  * @author Juri Ganitkevich juri@cs.jhu.edu
@@ -158,6 +160,24 @@ public abstract class FeatureFunction {
   public abstract DPState compute(Rule rule, List<HGNode> tailNodes, int i, int j,
       SourcePath sourcePath, Sentence sentence, Accumulator acc);
 
+  /**
+   * Computes the features of every edge in a batch, storing the new dynamic programming state of
+   * edge k in states[k] and accumulating its features in {@link ScoringBatch#getAccumulator(int)}.
+   * The decoder batches the edges it creates together (for example, the successors of a popped
+   * cube-pruning state), so that feature functions whose cost is dominated by per-call overhead,
+   * such as crossing into native code, can score them all at once. The default implementation
+   * calls {@link #compute} on each edge in turn.
+   * 
+   * @param batch the {@link ScoringBatch} of edges to score
+   * @param sentence {@link org.apache.joshua.lattice.Lattice} input
+   * @param states receives the new dynamic programming state of each edge
+   */
+  public void computeAll(ScoringBatch batch, Sentence sentence, DPState[] states) {
+    for (int k = 0; k < batch.size(); k++)
+      states[k] = compute(batch.getRule(k), batch.getTailNodes(k), batch.getI(k), batch.getJ(k),
+          batch.getSourcePath(k), sentence, batch.getAccumulator(k));
+  }
+
   /**
    * Feature functions must overrided this. StatefulFF and StatelessFF provide
    * reasonable defaults since most features do not fire on the goal node.
@@ -215,7 +235,8 @@ public abstract class FeatureFunction {
   public final float computeFinalCost(HGNode tailNode, int i, int j, SourcePath sourcePath,
       Sentence sentence) {
 
-    ScoreAccumulator score = new ScoreAccumulator();
+    // Not the thread's shared context, which a caller may be accumulating another feature in
+    ScoringContext score = new ScoringContext().reset(this);
     computeFinal(tailNode, i, j, sourcePath, sentence, score);
     return score.getScore();
   }
@@ -322,6 +343,14 @@ public abstract class FeatureFunction {
   public interface Accumulator {
     void add(String name, float value);
     void add(int id, float value);
+
+    /**
+     * Adds a sparse feature by its {@link FeatureMap} ID, which avoids hashing the feature name.
+     *
+     * @param featureId the ID returned by {@link FeatureMap#hashFeature(String)}
+     * @param value the unweighted feature value
+     */
+    void addSparse(int featureId, float value);
   }
 
   public class ScoreAccumulator implements Accumulator {
@@ -341,6 +370,11 @@ public abstract class FeatureFunction {
       score += value * weights.getDense(id);
     }
 
+    @Override
+    public void addSparse(int featureId, float value) {
+      score += value * weights.getSparse(featureId);
+    }
+
     public float getScore() {
       return score;
     }
@@ -350,7 +384,17 @@ public abstract class FeatureFunction {
     private final FeatureVector features;
 
     public FeatureAccumulator() {
-      this.features = new FeatureVector();
+      this(new FeatureVector());
+    }
+
+    /**
+     * Accumulates feature values directly into an existing vector, so that several feature
+     * functions can share a single vector without intermediate copies.
+     *
+     * @param features the {@link FeatureVector} to increment
+     */
+    public FeatureAccumulator(FeatureVector features) {
+      this.features = features;
     }
 
     @Override
@@ -363,6 +407,11 @@ public abstract class FeatureFunction {
       features.increment(id,  value);
     }
 
+    @Override
+    public void addSparse(int featureId, float value) {
+      features.incrementSparse(featureId, value);
+    }
+
     public FeatureVector getFeatures() {
       return features;
     }
@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * FeatureMap maintains a decoder-wide mapping between feature names and integer feature IDs. It
+ * allows {@link FeatureVector} to store sparse features as sorted primitive arrays keyed by ID,
+ * instead of hashing feature name strings on every update.
+ *
+ * IDs are handed out densely starting at 0 and are never reused until {@link #clear()} is called.
+ * Lookups in either direction do not lock; only the registration of a new name is synchronized.
+ */
+public class FeatureMap {
+
+  /* Returned by {@link #getId(String)} for names that have never been registered. */
+  public static final int UNKNOWN_FEATURE = -1;
+
+  private static final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+
+  /*
+   * Append-only table of names, indexed by feature ID. A name is written here before its ID is
+   * published through the ids map, so any thread that has obtained an ID can read its name.
+   */
+  private static volatile String[] names = new String[1024];
+  private static int size = 0;
+
+  /**
+   * Returns the ID of a feature, registering it if it has not yet been seen.
+   *
+   * @param name the feature name
+   * @return the feature ID
+   */
+  public static int hashFeature(String name) {
+    Integer id = ids.get(name);
+    if (id != null)
+      return id;
+    return register(name);
+  }
+
+  private static synchronized int register(String name) {
+    Integer id = ids.get(name);
+    if (id != null)
+      return id;
+
+    if (size == names.length)
+      names = Arrays.copyOf(names, names.length * 2);
+    names[size] = name;
+    ids.put(name, size);
+    return size++;
+  }
+
+  /**
+   * Returns the ID of a feature without registering it.
+   *
+   * @param name the feature name
+   * @return the feature ID, or {@link #UNKNOWN_FEATURE} if the name has never been registered
+   */
+  public static int getId(String name) {
+    Integer id = ids.get(name);
+    return (id == null) ? UNKNOWN_FEATURE : id;
+  }
+
+  /**
+   * @param id a feature ID previously returned by {@link #hashFeature(String)}
+   * @return the name of the feature
+   */
+  public static String getFeature(int id) {
+    return names[id];
+  }
+
+  public static synchronized int size() {
+    return size;
+  }
+
+  public static synchronized void clear() {
+    ids.clear();
+    names = new String[1024];
+    size = 0;
+  }
+}
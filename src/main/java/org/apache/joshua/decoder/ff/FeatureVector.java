@@ -19,26 +19,35 @@
 package org.apache.joshua.decoder.ff;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import com.google.common.primitives.Floats;
+
 /**
  * An implementation of a sparse feature vector, using for representing both weights and feature
  * values.
  *
  * This class is used to hold both the decoder weights and the feature values accumulated across
- * each edge. When features are read in upon decoder startup, they all start out as sparse features
- * and are stored in the hash table. After the feature functions have been loaded, the decoder
- * queries each of them for their sparse features via {@link registerDenseFeatures}. Those features
- * returned by each decoder are then *removed* from the sparse feature hash and placed in the dense
- * feature array. Therefore, when a feature registers a dense feature, it should take care to
- * query either {@link org.apache.joshua.decoder.ff.FeatureVector#getDense(int)} or
+ * each edge. When features are read in upon decoder startup, they all start out as sparse features.
+ * After the feature functions have been loaded, the decoder queries each of them for their sparse
+ * features via {@link #registerDenseFeatures(ArrayList)}. Those features returned by each decoder
+ * are then *removed* from the sparse features and placed in the dense feature array. Therefore,
+ * when a feature registers a dense feature, it should take care to query either
+ * {@link org.apache.joshua.decoder.ff.FeatureVector#getDense(int)} or
  * {@link org.apache.joshua.decoder.ff.FeatureVector#getSparse(String)} when asking for the feature
  * values later on.
  *
+ * Dense values live in a primitive float array indexed by dense feature index. Sparse values are
+ * kept as parallel int[] / float[] arrays sorted by the global feature ID assigned by
+ * {@link FeatureMap}, so lookups are binary searches and {@link #add(FeatureVector)} and
+ * {@link #innerProduct(FeatureVector)} are linear merges that neither box floats nor hash names.
+ *
  * @author Matt Post post@cs.jhu.edu
  */
 
@@ -48,21 +57,26 @@ public class FeatureVector {
    */
   public static final ArrayList<String> DENSE_FEATURE_NAMES = new ArrayList<>();
 
+  private static final int[] NO_IDS = new int[0];
+  private static final float[] NO_VALUES = new float[0];
+
   /*
-   * The values of each of the dense features, defaulting to 0.
+   * The values of each of the dense features, defaulting to 0. Only the first numDense entries
+   * are in use.
    */
-  private ArrayList<Float> denseFeatures = null;
+  private float[] denseFeatures;
+  private int numDense = 0;
 
   /*
-   * Value of sparse features.
+   * Value of sparse features, as parallel arrays sorted by FeatureMap ID. Only the first numSparse
+   * entries are in use.
    */
-  private final HashMap<String, Float> sparseFeatures;
+  private int[] sparseIds = NO_IDS;
+  private float[] sparseValues = NO_VALUES;
+  private int numSparse = 0;
 
   public FeatureVector() {
-    sparseFeatures = new HashMap<>();
-    denseFeatures = new ArrayList<>(DENSE_FEATURE_NAMES.size());
-    for (int i = 0; i < denseFeatures.size(); i++)
-      denseFeatures.set(i, 0.0f);
+    denseFeatures = new float[DENSE_FEATURE_NAMES.size()];
   }
 
   /**
@@ -86,8 +100,6 @@ public class FeatureVector {
    */
   public FeatureVector(String featureString, String prefix) {
 
-//    System.err.println(String.format("FEATURES_OF(%s, %s)", featureString, prefix));
-
     /*
      * Read through the features on this rule, adding them to the feature vector. Unlabeled features
      * are converted to a canonical form.
@@ -108,9 +120,7 @@ public class FeatureVector {
           /*
            * If we encounter an unlabeled feature, it is the next dense feature
            */
-          while (denseFeatures.size() <= denseFeatureIndex)
-            denseFeatures.add(0.0f);
-          denseFeatures.set(denseFeatureIndex, -Float.parseFloat(token));
+          set(denseFeatureIndex, -Float.parseFloat(token));
           denseFeatureIndex++;
         } else {
           /*
@@ -119,14 +129,10 @@ public class FeatureVector {
            */
           int splitPoint = token.indexOf('=');
           if (token.startsWith(prefix)) {
-//            System.err.println(String.format("  PREFIX=%s '%s'.substring(%d,%d) = %s", prefix, token, prefix.length(), splitPoint,
-//                token.substring(prefix.length(), splitPoint)));
             int index = Integer.parseInt(token.substring(prefix.length(), splitPoint));
-            while (denseFeatures.size() <= index)
-              denseFeatures.add(0.0f);
-            denseFeatures.set(index, 1.0f * Float.parseFloat(token.substring(splitPoint + 1)));
+            set(index, Float.parseFloat(token.substring(splitPoint + 1)));
           } else {
-            sparseFeatures.put(token.substring(0, splitPoint),
+            setSparse(FeatureMap.hashFeature(token.substring(0, splitPoint)),
                 Float.parseFloat(token.substring(splitPoint + 1)));
           }
         }
@@ -144,37 +150,95 @@ public class FeatureVector {
    */
   public void registerDenseFeatures(ArrayList<FeatureFunction> featureFunctions) {
     for (FeatureFunction feature: featureFunctions) {
-      ArrayList<String> names = feature.reportDenseFeatures(denseFeatures.size());
+      ArrayList<String> names = feature.reportDenseFeatures(numDense);
       for (String name: names) {
         DENSE_FEATURE_NAMES.add(name);
-        denseFeatures.add(getSparse(name));
-        sparseFeatures.remove(name);
+        int id = FeatureMap.getId(name);
+        int pos = (id == FeatureMap.UNKNOWN_FEATURE) ? -1 : findSparse(id);
+        if (pos >= 0) {
+          set(numDense, sparseValues[pos]);
+          removeSparse(pos);
+        } else {
+          set(numDense, 0.0f);
+        }
       }
     }
   }
 
-  public ArrayList<Float> getDenseFeatures() {
-    return denseFeatures;
+  /**
+   * Returns a copy of the dense feature values. Prefer {@link #getNumDense()} and
+   * {@link #getDense(int)} in performance-sensitive code.
+   *
+   * @return a list of the dense feature values
+   */
+  public List<Float> getDenseFeatures() {
+    return Floats.asList(Arrays.copyOf(denseFeatures, numDense));
   }
 
+  /**
+   * Returns a copy of the sparse features, keyed by name.
+   *
+   * @return a map from sparse feature names to values
+   */
   public HashMap<String,Float> getSparseFeatures() {
-    return sparseFeatures;
+    HashMap<String, Float> sparse = new HashMap<>(numSparse * 2);
+    for (int i = 0; i < numSparse; i++)
+      sparse.put(FeatureMap.getFeature(sparseIds[i]), sparseValues[i]);
+    return sparse;
+  }
+
+  /**
+   * @return the number of dense features that have been set on this vector
+   */
+  public int getNumDense() {
+    return numDense;
+  }
+
+  /**
+   * @return the number of sparse features that have been set on this vector
+   */
+  public int getNumSparse() {
+    return numSparse;
+  }
+
+  /**
+   * Returns the {@link FeatureMap} ID of the sparse feature at position <code>i</code> (in ID
+   * order). Together with {@link #getSparseValueAt(int)}, this allows iterating over the sparse
+   * features without materializing their names.
+   *
+   * @param i position in [0, {@link #getNumSparse()})
+   * @return the feature ID
+   */
+  public int getSparseIdAt(int i) {
+    return sparseIds[i];
+  }
+
+  /**
+   * @param i position in [0, {@link #getNumSparse()})
+   * @return the value of the sparse feature at that position
+   */
+  public float getSparseValueAt(int i) {
+    return sparseValues[i];
   }
 
   public Set<String> keySet() {
-    return sparseFeatures.keySet();
+    Set<String> keys = new HashSet<>(numSparse * 2);
+    for (int i = 0; i < numSparse; i++)
+      keys.add(FeatureMap.getFeature(sparseIds[i]));
+    return keys;
   }
 
   public int size() {
-    return sparseFeatures.size() + denseFeatures.size();
+    return numSparse + numDense;
   }
 
   public FeatureVector clone() {
     FeatureVector newOne = new FeatureVector();
-    for (String key : this.sparseFeatures.keySet())
-      newOne.set(key, this.sparseFeatures.get(key));
-    for (int i = 0; i < denseFeatures.size(); i++)
-      newOne.set(i, getDense(i));
+    newOne.denseFeatures = Arrays.copyOf(denseFeatures, Math.max(numDense, denseFeatures.length));
+    newOne.numDense = numDense;
+    newOne.sparseIds = Arrays.copyOf(sparseIds, numSparse);
+    newOne.sparseValues = Arrays.copyOf(sparseValues, numSparse);
+    newOne.numSparse = numSparse;
     return newOne;
   }
 
@@ -186,13 +250,10 @@ public class FeatureVector {
    * @param other another {@link org.apache.joshua.decoder.ff.FeatureVector} from which to subtract its score
    */
   public void subtract(FeatureVector other) {
-    for (int i = 0; i < denseFeatures.size(); i++)
-      denseFeatures.set(i, getDense(i) - other.getDense(i));
+    for (int i = 0; i < numDense; i++)
+      denseFeatures[i] -= other.getDense(i);
 
-    for (String key : other.keySet()) {
-      float oldValue = (sparseFeatures.containsKey(key)) ? sparseFeatures.get(key) : 0.0f;
-      sparseFeatures.put(key, oldValue - other.getSparse(key));
-    }
+    mergeSparse(other, -1.0f);
   }
 
   /**
@@ -202,18 +263,11 @@ public class FeatureVector {
    * @param other another {@link org.apache.joshua.decoder.ff.FeatureVector} from which to add its score
    */
   public void add(FeatureVector other) {
-    while (denseFeatures.size() < other.denseFeatures.size())
-      denseFeatures.add(0.0f);
-
-    for (int i = 0; i < other.denseFeatures.size(); i++)
-      increment(i, other.getDense(i));
+    ensureDense(other.numDense);
+    for (int i = 0; i < other.numDense; i++)
+      denseFeatures[i] += other.denseFeatures[i];
 
-    for (String key : other.keySet()) {
-      if (!sparseFeatures.containsKey(key))
-        sparseFeatures.put(key, other.getSparse(key));
-      else
-        sparseFeatures.put(key, sparseFeatures.get(key) + other.getSparse(key));
-    }
+    mergeSparse(other, 1.0f);
   }
 
   /**
@@ -223,11 +277,9 @@ public class FeatureVector {
    * @return the feature's weight
    */
   public float getWeight(String feature) {
-    for (int i = 0; i < DENSE_FEATURE_NAMES.size(); i++) {
-      if (DENSE_FEATURE_NAMES.get(i).equals(feature)) {
-        return getDense(i);
-      }
-    }
+    int index = DENSE_FEATURE_NAMES.indexOf(feature);
+    if (index != -1)
+      return getDense(index);
     return getSparse(feature);
   }
 
@@ -238,13 +290,26 @@ public class FeatureVector {
    * @return the sparse feature's weight, or 0 if not found.
    */
   public float getSparse(String feature) {
-    if (sparseFeatures.containsKey(feature))
-      return sparseFeatures.get(feature);
-    return 0.0f;
+    int id = FeatureMap.getId(feature);
+    if (id == FeatureMap.UNKNOWN_FEATURE)
+      return 0.0f;
+    return getSparse(id);
+  }
+
+  /**
+   * Return the weight of a sparse feature, indexed by its {@link FeatureMap} ID.
+   *
+   * @param featureId the ID of some sparse feature
+   * @return the sparse feature's weight, or 0 if not found.
+   */
+  public float getSparse(int featureId) {
+    int pos = findSparse(featureId);
+    return (pos >= 0) ? sparseValues[pos] : 0.0f;
   }
 
   public boolean hasValue(String name) {
-    return sparseFeatures.containsKey(name);
+    int id = FeatureMap.getId(name);
+    return id != FeatureMap.UNKNOWN_FEATURE && findSparse(id) >= 0;
   }
 
   /**
@@ -255,19 +320,32 @@ public class FeatureVector {
    * @return the dense feature's value, or 0 if not found.
    */
   public float getDense(int id) {
-    if (id < denseFeatures.size())
-      return denseFeatures.get(id);
+    if (id < numDense)
+      return denseFeatures[id];
     return 0.0f;
   }
 
   public void increment(String feature, float value) {
-    sparseFeatures.put(feature, getSparse(feature) + value);
+    incrementSparse(FeatureMap.hashFeature(feature), value);
   }
 
   public void increment(int id, float value) {
-    while (id >= denseFeatures.size())
-      denseFeatures.add(0.0f);
-    denseFeatures.set(id, getDense(id) + value);
+    ensureDense(id + 1);
+    denseFeatures[id] += value;
+  }
+
+  /**
+   * Increments a sparse feature, indexed by its {@link FeatureMap} ID.
+   *
+   * @param featureId the ID of some sparse feature
+   * @param value the amount to add to the feature's value
+   */
+  public void incrementSparse(int featureId, float value) {
+    int pos = findSparse(featureId);
+    if (pos >= 0)
+      sparseValues[pos] += value;
+    else
+      insertSparse(-pos - 1, featureId, value);
   }
 
   /**
@@ -278,25 +356,36 @@ public class FeatureVector {
    * @param value float value to set to the featue with the associated name
    */
   public void set(String feature, float value) {
-    for (int i = 0; i < DENSE_FEATURE_NAMES.size(); i++) {
-      if (DENSE_FEATURE_NAMES.get(i).equals(feature)) {
-        denseFeatures.set(i, value);
-        return;
-      }
+    int index = DENSE_FEATURE_NAMES.indexOf(feature);
+    if (index != -1) {
+      set(index, value);
+      return;
     }
     // No dense feature was found; assume it's sparse
-    sparseFeatures.put(feature, value);
+    setSparse(FeatureMap.hashFeature(feature), value);
   }
 
   public void set(int id, float value) {
-    while (id >= denseFeatures.size())
-      denseFeatures.add(0.0f);
-    denseFeatures.set(id, value);
+    ensureDense(id + 1);
+    denseFeatures[id] = value;
+  }
+
+  /**
+   * Sets a sparse feature, indexed by its {@link FeatureMap} ID.
+   *
+   * @param featureId the ID of some sparse feature
+   * @param value the new value of the feature
+   */
+  public void setSparse(int featureId, float value) {
+    int pos = findSparse(featureId);
+    if (pos >= 0)
+      sparseValues[pos] = value;
+    else
+      insertSparse(-pos - 1, featureId, value);
   }
 
   public Map<String, Float> getMap() {
-    Map<String, Float> allFeatures = new HashMap<>(sparseFeatures.size() + denseFeatures.size());
-    allFeatures.putAll(sparseFeatures);
+    Map<String, Float> allFeatures = getSparseFeatures();
     for (int i = 0; i < DENSE_FEATURE_NAMES.size(); i++) {
       allFeatures.put(DENSE_FEATURE_NAMES.get(i), getDense(i));
     }
@@ -311,18 +400,27 @@ public class FeatureVector {
    */
   public float innerProduct(FeatureVector other) {
     float cost = 0.0f;
-    for (int i = 0; i < DENSE_FEATURE_NAMES.size(); i++)
-      cost += getDense(i) * other.getDense(i);
-
-    for (String key : sparseFeatures.keySet())
-      cost += sparseFeatures.get(key) * other.getSparse(key);
+    final int dense = Math.min(numDense, other.numDense);
+    for (int i = 0; i < dense; i++)
+      cost += denseFeatures[i] * other.denseFeatures[i];
+
+    // Both sparse arrays are sorted by ID, so a single merge pass finds the shared features
+    int i = 0, j = 0;
+    while (i < numSparse && j < other.numSparse) {
+      if (sparseIds[i] < other.sparseIds[j])
+        i++;
+      else if (sparseIds[i] > other.sparseIds[j])
+        j++;
+      else
+        cost += sparseValues[i++] * other.sparseValues[j++];
+    }
 
     return cost;
   }
 
   public void times(float value) {
-    for (String key : sparseFeatures.keySet())
-      sparseFeatures.put(key, sparseFeatures.get(key) * value);
+    for (int i = 0; i < numSparse; i++)
+      sparseValues[i] *= value;
   }
 
   /***
@@ -343,6 +441,7 @@ public class FeatureVector {
     }
 
     // Now print the sparse features
+    HashMap<String, Float> sparseFeatures = getSparseFeatures();
     ArrayList<String> keys = new ArrayList<>(sparseFeatures.keySet());
     Collections.sort(keys);
     for (String key: keys) {
@@ -374,6 +473,7 @@ public class FeatureVector {
     }
 
     // Now print the rest of the features
+    HashMap<String, Float> sparseFeatures = getSparseFeatures();
     ArrayList<String> keys = new ArrayList<>(sparseFeatures.keySet());
     Collections.sort(keys);
     keys.stream().filter(key -> !printed_keys.contains(key)).forEach(
@@ -381,4 +481,91 @@ public class FeatureVector {
 
     return outputString.toString().trim();
   }
+
+  /*
+   * Grows the dense array (if necessary) so that the first <code>size</code> entries are in use.
+   */
+  private void ensureDense(int size) {
+    if (size > denseFeatures.length)
+      denseFeatures = Arrays.copyOf(denseFeatures, Math.max(size, denseFeatures.length * 2));
+    if (size > numDense)
+      numDense = size;
+  }
+
+  /*
+   * Binary search for a sparse feature ID. Returns the position if found, else (-insertion - 1).
+   */
+  private int findSparse(int featureId) {
+    return Arrays.binarySearch(sparseIds, 0, numSparse, featureId);
+  }
+
+  private void insertSparse(int pos, int featureId, float value) {
+    if (numSparse == sparseIds.length) {
+      int capacity = Math.max(4, numSparse * 2);
+      sparseIds = Arrays.copyOf(sparseIds, capacity);
+      sparseValues = Arrays.copyOf(sparseValues, capacity);
+    }
+    System.arraycopy(sparseIds, pos, sparseIds, pos + 1, numSparse - pos);
+    System.arraycopy(sparseValues, pos, sparseValues, pos + 1, numSparse - pos);
+    sparseIds[pos] = featureId;
+    sparseValues[pos] = value;
+    numSparse++;
+  }
+
+  private void removeSparse(int pos) {
+    System.arraycopy(sparseIds, pos + 1, sparseIds, pos, numSparse - pos - 1);
+    System.arraycopy(sparseValues, pos + 1, sparseValues, pos, numSparse - pos - 1);
+    numSparse--;
+  }
+
+  /*
+   * Adds scale * other's sparse values into this vector, as a single merge of the two sorted
+   * arrays. New arrays are only allocated if other has features this vector lacks.
+   */
+  private void mergeSparse(FeatureVector other, float scale) {
+    if (other.numSparse == 0)
+      return;
+
+    // Count the features that are missing here, updating the shared ones in place
+    int missing = 0;
+    int i = 0, j = 0;
+    while (j < other.numSparse) {
+      if (i == numSparse || sparseIds[i] > other.sparseIds[j]) {
+        missing++;
+        j++;
+      } else if (sparseIds[i] < other.sparseIds[j]) {
+        i++;
+      } else {
+        sparseValues[i++] += scale * other.sparseValues[j++];
+      }
+    }
+
+    if (missing == 0)
+      return;
+
+    int size = numSparse + missing;
+    int[] ids = new int[size];
+    float[] values = new float[size];
+    int k = 0;
+    i = 0;
+    j = 0;
+    while (i < numSparse || j < other.numSparse) {
+      if (j == other.numSparse || (i < numSparse && sparseIds[i] < other.sparseIds[j])) {
+        ids[k] = sparseIds[i];
+        values[k++] = sparseValues[i++];
+      } else if (i == numSparse || sparseIds[i] > other.sparseIds[j]) {
+        ids[k] = other.sparseIds[j];
+        values[k++] = scale * other.sparseValues[j++];
+      } else {
+        // shared feature, already summed above
+        ids[k] = sparseIds[i];
+        values[k++] = sparseValues[i++];
+        j++;
+      }
+    }
+
+    sparseIds = ids;
+    sparseValues = values;
+    numSparse = size;
+  }
 }
@@ -116,13 +116,7 @@ public class PhraseModel extends StatelessFF {
       }
       
 //      System.err.println(String.format("RULE = %s / %f", rule.getEnglishWords(), rule.getPrecomputableCost()));
-      for (int k = 0; k < phrase_weights.length; k++) {
-//        System.err.println(String.format("k = %d, denseFeatureIndex = %d, owner = %s, ownerID = %d", k, denseFeatureIndex, owner, ownerID));
-        acc.add(k + denseFeatureIndex, rule.getDenseFeature(k));
-      }
-      
-      for (String key: rule.getFeatureVector().keySet())
-        acc.add(key, rule.getFeatureVector().getSparse(key));
+      rule.accumulateFeatures(acc, denseFeatureIndex, phrase_weights.length);
     }
 
     return null;
@@ -58,7 +58,7 @@ public class PhrasePenalty extends StatelessFF {
   public DPState compute(Rule rule, List<HGNode> tailNodes, int i, int j, SourcePath sourcePath,
       Sentence sentence, Accumulator acc) {
 
-    if (rule != null && rule != Hypothesis.BEGIN_RULE && rule != Hypothesis.END_RULE 
+    if (rule != null && rule != Hypothesis.beginRule() && rule != Hypothesis.endRule() 
         && (rule.getOwner().equals(owner)))
       acc.add(denseFeatureIndex, value);
 
@@ -79,7 +79,7 @@ public class PhrasePenalty extends StatelessFF {
    */
   @Override
   public float estimateCost(Rule rule, Sentence sentence) {
-    if (rule != null && rule != Hypothesis.BEGIN_RULE && rule != Hypothesis.END_RULE 
+    if (rule != null && rule != Hypothesis.beginRule() && rule != Hypothesis.endRule() 
         && (rule.getOwner().equals(owner)))
       return weights.getDense(denseFeatureIndex) * value;
     return 0.0f;
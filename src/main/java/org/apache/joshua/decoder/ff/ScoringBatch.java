@@ -0,0 +1,139 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.joshua.decoder.chart_parser.SourcePath;
+import org.apache.joshua.decoder.ff.tm.Rule;
+import org.apache.joshua.decoder.hypergraph.HGNode;
+
+/**
+ * A batch of edges (rule applications) to be scored together, see
+ * {@link FeatureFunction#computeAll(ScoringBatch, org.apache.joshua.decoder.segment_file.Sentence,
+ * org.apache.joshua.decoder.ff.state_maintenance.DPState[])}. Each edge has its own
+ * {@link ScoringContext}, which is {@link #reset(FeatureFunction)} before each feature function
+ * scores the batch.
+ *
+ * A batch is meant to be reused for all the rounds of a search (it is {@link #clear()}ed between
+ * them) and, like {@link ScoringContext}, belongs to a single decoding thread.
+ */
+public final class ScoringBatch {
+
+  private Rule[] rules = new Rule[16];
+  private List<?>[] tailNodes = new List<?>[16];
+  private int[] is = new int[16];
+  private int[] js = new int[16];
+  private SourcePath[] sourcePaths = new SourcePath[16];
+  private ScoringContext[] contexts = new ScoringContext[0];
+  private int size = 0;
+
+  /**
+   * Adds an edge to the batch.
+   *
+   * @param rule the {@link Rule} being applied
+   * @param tailNodes its tail nodes (null for rules without nonterminals)
+   * @param i the start of the span
+   * @param j the end of the span
+   * @param sourcePath information about a path taken through the source lattice
+   * @return the index of the edge in the batch
+   */
+  public int add(Rule rule, List<HGNode> tailNodes, int i, int j, SourcePath sourcePath) {
+    if (size == rules.length) {
+      final int capacity = 2 * size;
+      this.rules = Arrays.copyOf(this.rules, capacity);
+      this.tailNodes = Arrays.copyOf(this.tailNodes, capacity);
+      this.is = Arrays.copyOf(this.is, capacity);
+      this.js = Arrays.copyOf(this.js, capacity);
+      this.sourcePaths = Arrays.copyOf(this.sourcePaths, capacity);
+    }
+    this.rules[size] = rule;
+    this.tailNodes[size] = tailNodes;
+    this.is[size] = i;
+    this.js[size] = j;
+    this.sourcePaths[size] = sourcePath;
+    return size++;
+  }
+
+  /**
+   * Empties the batch, releasing its references to rules and nodes.
+   */
+  public void clear() {
+    Arrays.fill(rules, 0, size, null);
+    Arrays.fill(tailNodes, 0, size, null);
+    Arrays.fill(sourcePaths, 0, size, null);
+    size = 0;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public Rule getRule(int k) {
+    return rules[k];
+  }
+
+  @SuppressWarnings("unchecked")
+  public List<HGNode> getTailNodes(int k) {
+    return (List<HGNode>) tailNodes[k];
+  }
+
+  public int getI(int k) {
+    return is[k];
+  }
+
+  public int getJ(int k) {
+    return js[k];
+  }
+
+  public SourcePath getSourcePath(int k) {
+    return sourcePaths[k];
+  }
+
+  /**
+   * Prepares the contexts of all edges to accumulate the weighted score of a feature function.
+   *
+   * @param feature the {@link FeatureFunction} about to score the batch
+   * @return this batch
+   */
+  public ScoringBatch reset(FeatureFunction feature) {
+    if (contexts.length < size) {
+      final int filled = contexts.length;
+      contexts = Arrays.copyOf(contexts, rules.length);
+      for (int k = filled; k < contexts.length; k++)
+        contexts[k] = new ScoringContext();
+    }
+    for (int k = 0; k < size; k++)
+      contexts[k].reset(feature);
+    return this;
+  }
+
+  /**
+   * @param k the index of an edge
+   * @return the accumulator for the features of edge k
+   */
+  public ScoringContext getAccumulator(int k) {
+    return contexts[k];
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff;
+
+import org.apache.joshua.decoder.ff.FeatureFunction.Accumulator;
+
+/**
+ * A reusable, per-thread version of {@link FeatureFunction.ScoreAccumulator}. Scoring an edge
+ * (see {@link org.apache.joshua.decoder.chart_parser.ComputeNodeResult}) happens for every
+ * cube-pruning pop, so instead of allocating a fresh accumulator per feature function per edge,
+ * each decoding thread owns a single context which is {@link #reset(FeatureFunction)} before
+ * every call to {@link FeatureFunction#compute}.
+ *
+ * Feature functions write into the context like into any other {@link Accumulator}; sparse
+ * features registered with {@link FeatureMap} can be added by ID via
+ * {@link #addSparse(int, float)} to avoid hashing their names.
+ */
+public final class ScoringContext implements Accumulator {
+
+  private static final ThreadLocal<ScoringContext> CONTEXT = ThreadLocal.withInitial(ScoringContext::new);
+
+  /* The weights of the feature function currently being scored */
+  private FeatureVector weights;
+
+  private float score;
+
+  ScoringContext() {
+    this.weights = null;
+    this.score = 0.0f;
+  }
+
+  /**
+   * @return the scoring context owned by the calling thread
+   */
+  public static ScoringContext get() {
+    return CONTEXT.get();
+  }
+
+  /**
+   * Prepares the context to accumulate the weighted score of a feature function.
+   *
+   * @param feature the {@link FeatureFunction} about to be scored
+   * @return this context
+   */
+  public ScoringContext reset(FeatureFunction feature) {
+    this.weights = feature.weights;
+    this.score = 0.0f;
+    return this;
+  }
+
+  @Override
+  public void add(String name, float value) {
+    score += value * weights.getSparse(name);
+  }
+
+  @Override
+  public void add(int id, float value) {
+    score += value * weights.getDense(id);
+  }
+
+  @Override
+  public void addSparse(int featureId, float value) {
+    score += value * weights.getSparse(featureId);
+  }
+
+  public float getScore() {
+    return score;
+  }
+}
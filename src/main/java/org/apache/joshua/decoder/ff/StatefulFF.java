@@ -45,6 +45,12 @@ public abstract class StatefulFF extends FeatureFunction {
   /* Every stateful FF takes a unique index value and increments this. */
   static int GLOBAL_STATE_INDEX = 0;
 
+  /*
+   * The number of stateful feature functions of the decoder, recorded once they have all been
+   * created; -1 until then.
+   */
+  private static volatile int numStatefulFeatures = -1;
+
   /* This records the state index for each instantiated stateful feature function. */
   protected int stateIndex = 0;
 
@@ -57,6 +63,39 @@ public abstract class StatefulFF extends FeatureFunction {
 
   public static void resetGlobalStateIndex() {
     GLOBAL_STATE_INDEX = 0;
+    numStatefulFeatures = -1;
+  }
+
+  /**
+   * Records how many of the decoder's feature functions are stateful, so that the number of states
+   * of each new node need not be counted for every edge. Called by the decoder once it has created
+   * its feature functions.
+   * 
+   * @param featureFunctions the feature functions of the decoder
+   */
+  public static void recordStatefulFeatures(List<FeatureFunction> featureFunctions) {
+    numStatefulFeatures = countStatefulFeatures(featureFunctions);
+  }
+
+  /**
+   * Returns the number of states of a node, that is, the number of stateful feature functions. This
+   * is the number recorded by the decoder, or, for feature functions used without one, the number
+   * of stateful ones among featureFunctions.
+   * 
+   * @param featureFunctions the feature functions scoring the node
+   * @return the number of stateful feature functions
+   */
+  public static int getNumStatefulFeatures(List<FeatureFunction> featureFunctions) {
+    final int recorded = numStatefulFeatures;
+    return (recorded >= 0) ? recorded : countStatefulFeatures(featureFunctions);
+  }
+
+  private static int countStatefulFeatures(List<FeatureFunction> featureFunctions) {
+    int count = 0;
+    for (FeatureFunction feature : featureFunctions)
+      if (feature.isStateful())
+        count++;
+    return count;
   }
 
   public final boolean isStateful() {
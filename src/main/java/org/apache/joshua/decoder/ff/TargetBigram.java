@@ -113,11 +113,12 @@ public class TargetBigram extends StatefulFF {
       if (FormatUtils.isNonterminal(curID)) {
         int index = -(curID + 1);
         NgramDPState state = (NgramDPState) tailNodes.get(index).getDPState(stateIndex);
-        int[] leftContext = state.getLeftLMStateWords();
-        int[] rightContext = state.getRightLMStateWords();
+        final int[] words = state.getWords();
+        final int length = state.getContextLength();
 
         // Left context.
-        for (int token : leftContext) {
+        for (int k = state.getLeftOffset(); k < state.getLeftOffset() + length; k++) {
+          int token = words[k];
           currentNgram.add(getWord(token));
           if (left == -1)
             left = token;
@@ -131,8 +132,8 @@ public class TargetBigram extends StatefulFF {
         }
         // Replace right context.
         int tSize = currentNgram.size();
-        for (int i = 0; i < rightContext.length; i++)
-          currentNgram.set(tSize - rightContext.length + i, getWord(rightContext[i]));
+        for (int i = 0; i < length; i++)
+          currentNgram.set(tSize - length + i, getWord(words[state.getRightOffset() + i]));
 
       } else { // terminal words
         currentNgram.add(getWord(curID));
@@ -55,7 +55,7 @@ public final class WordPenalty extends StatelessFF {
     if (rule != null) {
       // TODO: this is an inefficient way to do this. Find a better way to not apply this rule
       // to start and stop glue rules when phrase-based decoding.
-      if (isCky || (rule != Hypothesis.BEGIN_RULE && rule != Hypothesis.END_RULE)) {
+      if (isCky || (rule != Hypothesis.beginRule() && rule != Hypothesis.endRule())) {
         acc.add(denseFeatureIndex, OMEGA * (rule.getEnglish().length - rule.getArity()));
       }
     }
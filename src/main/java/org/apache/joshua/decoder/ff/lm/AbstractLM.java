@@ -33,7 +33,8 @@ import java.util.List;
 public abstract class AbstractLM extends DefaultNGramLanguageModel { 
 
   public AbstractLM(int symbolTable, int order) { 
-    super(symbolTable, order); 
+    // The symbol table size is no longer needed
+    super(order); 
   } 
 
   @SuppressWarnings("null")
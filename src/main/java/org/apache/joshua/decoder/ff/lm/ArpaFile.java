@@ -18,16 +18,28 @@
  */
 package org.apache.joshua.decoder.ff.lm; 
 
+import java.io.BufferedReader;
 import java.io.File; 
 import java.io.FileInputStream; 
 import java.io.FileNotFoundException; 
 import java.io.IOException; 
 import java.io.InputStream; 
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.Iterator; 
+import java.util.List;
 import java.util.NoSuchElementException; 
-import java.util.Scanner; 
-import java.util.regex.Matcher; 
-import java.util.regex.Pattern; 
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream; 
 
 import org.apache.joshua.corpus.Vocabulary; 
@@ -36,8 +48,18 @@ import org.apache.joshua.util.io.LineReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 /**
  * Utility class for reading ARPA language model files. 
+ * <p>
+ * N-gram lines are read in blocks, which never cross the boundary of an n-gram order's section,
+ * and the blocks are parsed by a pool of threads while the file is being read. N-grams are still
+ * returned in file order. Lines are split into tokens by hand rather than with regular expressions.
+ * The thread that parses a block also looks its words up in the {@link Vocabulary}, without
+ * registering them. Words that are not in the vocabulary yet are registered when their block is
+ * returned, in file order, so that new words get the same IDs, in order of first appearance,
+ * however many threads parse the file.
  *  
  * @author Lane Schwartz 
  */ 
@@ -60,12 +82,35 @@ public class ArpaFile implements Iterable<ArpaNgram> {
    */ 
   public static final Regex NGRAM_END = new Regex("^\\\\end\\\\s*$"); 
 
+  /** Number of n-gram lines parsed at a time. */
+  private static final int BLOCK_SIZE = 1 << 14;
+
   /** ARPA file for this object. */ 
   private final File arpaFile; 
 
   /** The vocabulary associated with this object. */ 
   private final Vocabulary vocab; 
 
+  /** Number of blocks parsed at a time; 1 parses them on the calling thread. */
+  private final int numThreads;
+
+  /**
+   * The threads parsing blocks for all ArpaFiles. They exit when idle, so the pool never needs to
+   * be shut down, even when an iteration is abandoned.
+   */
+  private static final class Parsers {
+    static final ExecutorService POOL = createPool();
+
+    private static ExecutorService createPool() {
+      final int threads = Runtime.getRuntime().availableProcessors();
+      final ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<>(),
+          new ThreadFactoryBuilder().setNameFormat("ArpaParser-%d").setDaemon(true).build());
+      pool.allowCoreThreadTimeOut(true);
+      return pool;
+    }
+  }
+
   /**
    * Constructs an object that represents an ARPA language model file. 
    *  
@@ -73,13 +118,27 @@ public class ArpaFile implements Iterable<ArpaNgram> {
    * @param vocab Symbol table to be used by this object 
    */ 
   public ArpaFile(String arpaFileName, Vocabulary vocab) { 
+    this(arpaFileName, vocab, Runtime.getRuntime().availableProcessors());
+  } 
+
+  /**
+   * Constructs an object that represents an ARPA language model file. 
+   *  
+   * @param arpaFileName File name of an ARPA language model file 
+   * @param vocab Symbol table to be used by this object 
+   * @param numThreads the number of blocks of n-grams parsed at a time while iterating (by a pool
+   *          shared by all ArpaFiles, with one thread per core)
+   */ 
+  public ArpaFile(String arpaFileName, Vocabulary vocab, int numThreads) { 
     this.arpaFile = new File(arpaFileName); 
     this.vocab = vocab; 
+    this.numThreads = Math.max(1, numThreads);
   } 
 
   public ArpaFile(String arpaFileName) throws IOException { 
     this.arpaFile = new File(arpaFileName); 
     this.vocab = new Vocabulary(); 
+    this.numThreads = Runtime.getRuntime().availableProcessors();
 
     //  final Scanner scanner = new Scanner(arpaFile); 
 
@@ -189,33 +248,88 @@ public class ArpaFile implements Iterable<ArpaNgram> {
   } 
 
   public int getOrder() throws FileNotFoundException { 
+    return getNgramCounts().length;
+  } 
+
+  /**
+   * Reads the n-gram counts listed in the header of the ARPA file (the "ngram N=count" lines).
+   * These are not checked against the n-grams the file actually contains.
+   *
+   * @return the number of n-grams of each order N, at index N - 1
+   * @throws FileNotFoundException if the file does not exist
+   */
+  public long[] getNgramCounts() throws FileNotFoundException {
+    long[] counts = new long[0];
+    try (BufferedReader reader = open()) {
+      String line;
+      while ((line = reader.readLine()) != null && sectionOrder(line) == 0) {
+        line = line.trim();
+        final int equals = line.indexOf('=');
+        if (line.startsWith("ngram ") && equals > 0) {
+          final int order = Integer.parseInt(line.substring(6, equals).trim());
+          if (order > counts.length)
+            counts = Arrays.copyOf(counts, order);
+          counts[order - 1] = Long.parseLong(line.substring(equals + 1).trim());
+        }
+      }
+    } catch (FileNotFoundException e) {
+      throw e;
+    } catch (IOException | NumberFormatException e) {
+      throw new RuntimeException(String.format("Can't read the header of ARPA file %s", arpaFile), e);
+    }
+    return counts;
+  }
 
-    Pattern pattern = Pattern.compile("^ngram (\\d+)=\\d+$"); 
-    LOG.debug("Pattern is {}", pattern);
-    @SuppressWarnings("resource")
-    final Scanner scanner = new Scanner(arpaFile); 
+  private BufferedReader open() throws IOException {
+    InputStream in = new FileInputStream(arpaFile);
+    if (arpaFile.getName().endsWith("gz"))
+      in = new GZIPInputStream(in, 1 << 16);
+    return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16);
+  }
 
-    int order = 0; 
+  /**
+   * @return N if the line starts the section of N-grams, -1 if it ends the file, and 0 otherwise
+   */
+  static int sectionOrder(String line) {
+    line = line.trim();
+    if (line.isEmpty() || line.charAt(0) != '\\')
+      return 0;
+    if (line.equals("\\end\\"))
+      return -1;
+    if (line.endsWith("-grams:")) {
+      try {
+        return Integer.parseInt(line.substring(1, line.length() - 7));
+      } catch (NumberFormatException e) {
+        return 0;
+      }
+    }
+    return 0;
+  }
 
-    // Eat initial header lines 
-    while (scanner.hasNextLine()) { 
-      String line = scanner.nextLine(); 
+  /**
+   * Parses an n-gram line: its log probability, the N words and, optionally, its backoff weight.
+   */
+  static ArpaNgram parseNgram(String line, int order) {
+    return new Block(new String[] { line }, order).ngrams()[0];
+  }
 
-      if (NGRAM_HEADER.matches(line)) { 
-        break; 
-      } else { 
-        Matcher matcher = pattern.matcher(line); 
-        if (matcher.matches()) { 
-          LOG.debug("DOES  match: '{}'", line);
-          order = Integer.valueOf(matcher.group(1)); 
-        } else {
-          LOG.debug("Doesn't match: '{}'", line);
-        } 
-      } 
-    } 
+  private static int skipSpace(String line, int pos) {
+    while (pos < line.length() && Character.isWhitespace(line.charAt(pos)))
+      pos++;
+    return pos;
+  }
 
-    return order; 
-  } 
+  private static int skipToken(String line, int pos) {
+    while (pos < line.length() && !Character.isWhitespace(line.charAt(pos)))
+      pos++;
+    return pos;
+  }
+
+  private static float parseFloat(String line, int start, int end) {
+    final String token = line.substring(start, end);
+    // SRILM and KenLM write impossible events as -inf
+    return token.equals("-inf") ? Float.NEGATIVE_INFINITY : Float.parseFloat(token);
+  }
 
   /**
    * Gets an iterator capable of iterating  
@@ -224,105 +338,196 @@ public class ArpaFile implements Iterable<ArpaNgram> {
    * @return an iterator capable of iterating  
    *         over all n-grams in the ARPA file 
    */ 
-  @SuppressWarnings("resource")
   public Iterator<ArpaNgram> iterator() { 
-
     try { 
-      final Scanner scanner; 
-
-      if (arpaFile.getName().endsWith("gz")) { 
-        InputStream in = new GZIPInputStream( 
-            new FileInputStream(arpaFile)); 
-        scanner = new Scanner(in); 
-      } else { 
-        scanner = new Scanner(arpaFile); 
-      } 
-
-      // Eat initial header lines 
-      while (scanner.hasNextLine()) { 
-        String line = scanner.nextLine(); 
-        LOG.debug("Discarding line: {}", line);
-        if (NGRAM_HEADER.matches(line)) { 
-          break; 
-        } 
-      } 
-
-      return new Iterator<ArpaNgram>() { 
-
-        String nextLine = null; 
-        int ngramOrder = 1; 
-        //    int id = 0; 
-
-        public boolean hasNext() { 
-
-          if (scanner.hasNext()) { 
-
-            String line = scanner.nextLine(); 
-
-            boolean lineIsHeader = NGRAM_HEADER.matches(line) || NGRAM_END.matches(line); 
-
-            while (lineIsHeader || BLANK_LINE.matches(line)) { 
-
-              if (lineIsHeader) { 
-                ngramOrder++; 
-              } 
-
-              if (scanner.hasNext()) { 
-                line = scanner.nextLine().trim(); 
-                lineIsHeader = NGRAM_HEADER.matches(line) || NGRAM_END.matches(line); 
-              } else { 
-                nextLine = null; 
-                return false; 
-              } 
-            } 
-
-            nextLine = line; 
-            return true; 
-
-          } else { 
-            nextLine = null; 
-            return false; 
-          } 
-
-        } 
-
-        public ArpaNgram next() { 
-          if (nextLine!=null) { 
-
-            String[] parts = Regex.spaces.split(nextLine); 
-
-            float value = Float.valueOf(parts[0]); 
-
-            int word = Vocabulary.id(parts[ngramOrder]); 
-
-            int[] context = new int[ngramOrder-1]; 
-            for (int i=1; i<ngramOrder; i++) { 
-              context[i-1] = Vocabulary.id(parts[i]); 
-            } 
-
-            float backoff; 
-            if (parts.length > ngramOrder+1) { 
-              backoff = Float.valueOf(parts[parts.length-1]); 
-            } else { 
-              backoff = ArpaNgram.DEFAULT_BACKOFF; 
-            } 
-
-            nextLine = null; 
-            return new ArpaNgram(word, context, value, backoff); 
-
-          } else { 
-            throw new NoSuchElementException(); 
-          } 
-        } 
-
-        public void remove() { 
-          throw new UnsupportedOperationException(); 
-        } 
-
-      }; 
+      return new NgramIterator(open());
     } catch (IOException e) {
       LOG.error(e.getMessage(), e);
       return null; 
     } 
   }
-}
\ No newline at end of file
+
+  /**
+   * Reads blocks of lines ahead and parses them in parallel, keeping up to two blocks per thread in
+   * flight. The file is closed once the last n-gram has been returned.
+   */
+  private final class NgramIterator implements Iterator<ArpaNgram> {
+
+    private final BufferedReader reader;
+    private final Deque<Future<Block>> blocks = new ArrayDeque<>();
+
+    private ArpaNgram[] block = new ArpaNgram[0];
+    private int next = 0;
+
+    /* The order of the section being read, 0 before the first */
+    private int order = 0;
+    /* The order of the n-grams of the block last read */
+    private int blockOrder = 0;
+    private boolean eof = false;
+
+    NgramIterator(BufferedReader reader) {
+      this.reader = reader;
+    }
+
+    public boolean hasNext() {
+      try {
+        while (next == block.length) {
+          readAhead();
+          if (blocks.isEmpty()) {
+            close();
+            return false;
+          }
+          block = blocks.removeFirst().get().ngrams();
+          next = 0;
+        }
+        return true;
+      } catch (IOException | InterruptedException | ExecutionException e) {
+        close();
+        throw new RuntimeException(String.format("Can't read ARPA file %s", arpaFile), e);
+      }
+    }
+
+    public ArpaNgram next() {
+      if (!hasNext())
+        throw new NoSuchElementException();
+      return block[next++];
+    }
+
+    public void remove() { 
+      throw new UnsupportedOperationException(); 
+    } 
+
+    private void readAhead() throws IOException, InterruptedException, ExecutionException {
+      final int maxBlocks = (numThreads == 1) ? 1 : 2 * numThreads;
+      while (!eof && blocks.size() < maxBlocks) {
+        final List<String> lines = readBlock();
+        if (lines.isEmpty())
+          continue;
+        final String[] blockLines = lines.toArray(new String[0]);
+        final int blockOrder = this.blockOrder;
+        if (numThreads == 1)
+          blocks.addLast(CompletableFuture.completedFuture(new Block(blockLines, blockOrder)));
+        else
+          blocks.addLast(Parsers.POOL.submit(() -> new Block(blockLines, blockOrder)));
+      }
+    }
+
+    /**
+     * Reads the n-gram lines of the current section, up to BLOCK_SIZE. Lines before the first
+     * section and blank lines are skipped.
+     */
+    private List<String> readBlock() throws IOException {
+      final List<String> lines = new ArrayList<>();
+      String line;
+      while (lines.size() < BLOCK_SIZE && (line = reader.readLine()) != null) {
+        final int section = sectionOrder(line);
+        if (section != 0) {
+          if (section < 0)
+            eof = true;
+          else
+            order = section;
+          // A block never spans two sections
+          if (!lines.isEmpty() || eof)
+            return lines;
+        } else if (order > 0 && !line.trim().isEmpty()) {
+          if (lines.isEmpty())
+            blockOrder = order;
+          lines.add(line);
+        }
+      }
+      if (lines.size() < BLOCK_SIZE)
+        eof = true;
+      return lines;
+    }
+
+    private void close() {
+      eof = true;
+      for (Future<Block> pending : blocks)
+        pending.cancel(false);
+      blocks.clear();
+      try {
+        reader.close();
+      } catch (IOException e) {
+        LOG.warn(e.getMessage(), e);
+      }
+    }
+  }
+
+  /**
+   * A block of n-gram lines of one order, parsed by the thread that constructs it. The IDs of words
+   * that were not in the {@link Vocabulary} then are filled in by {@link #ngrams()}.
+   */
+  private static final class Block {
+    private final int order;
+    /* The IDs of the words of line i at [i * order, (i + 1) * order) */
+    private final int[] ids;
+    private final float[] values;
+    private final float[] backoffs;
+
+    /* The positions in ids of the words that were not in the vocabulary, and those words */
+    private int[] missing = new int[0];
+    private final List<String> missingWords = new ArrayList<>();
+
+    private ArpaNgram[] ngrams = null;
+
+    Block(String[] lines, int order) {
+      this.order = order;
+      this.ids = new int[lines.length * order];
+      this.values = new float[lines.length];
+      this.backoffs = new float[lines.length];
+      for (int i = 0; i < lines.length; i++)
+        parse(lines[i], i);
+      if (missingWords.isEmpty())
+        ngrams = build();
+    }
+
+    private void parse(String line, int i) {
+      int start = skipSpace(line, 0);
+      int end = skipToken(line, start);
+      values[i] = parseFloat(line, start, end);
+
+      for (int k = i * order; k < (i + 1) * order; k++) {
+        start = skipSpace(line, end);
+        end = skipToken(line, start);
+        if (start == end)
+          throw new IllegalArgumentException(String.format("Not a %d-gram: '%s'", order, line));
+        final String word = line.substring(start, end);
+        ids[k] = Vocabulary.getId(word);
+        if (ids[k] == Vocabulary.NO_ID) {
+          if (missingWords.size() == missing.length)
+            missing = Arrays.copyOf(missing, Math.max(16, 2 * missing.length));
+          missing[missingWords.size()] = k;
+          missingWords.add(word);
+        }
+      }
+
+      start = skipSpace(line, end);
+      end = skipToken(line, start);
+      backoffs[i] = (start < end) ? parseFloat(line, start, end) : ArpaNgram.DEFAULT_BACKOFF;
+    }
+
+    /**
+     * Registers the words that were not in the vocabulary when the block was parsed, in the order
+     * they appear, and returns the block's n-grams. Blocks must be asked for their n-grams in file
+     * order.
+     */
+    ArpaNgram[] ngrams() {
+      if (ngrams == null) {
+        for (int m = 0; m < missingWords.size(); m++)
+          ids[missing[m]] = Vocabulary.id(missingWords.get(m));
+        ngrams = build();
+      }
+      return ngrams;
+    }
+
+    private ArpaNgram[] build() {
+      final ArpaNgram[] result = new ArpaNgram[values.length];
+      for (int i = 0; i < result.length; i++) {
+        final int offset = i * order;
+        result[i] = new ArpaNgram(ids[offset + order - 1],
+            Arrays.copyOfRange(ids, offset, offset + order - 1), values[i], backoffs[i]);
+      }
+      return result;
+    }
+  }
+}
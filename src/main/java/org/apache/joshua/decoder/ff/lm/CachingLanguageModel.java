@@ -0,0 +1,283 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.lm;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.joshua.decoder.segment_file.Sentence;
+
+/**
+ * Memoizes the n-gram probabilities of another language model. The same n-grams are queried over
+ * and over during decoding (by neighbouring cells, cube-pruning pops and the cost estimates), which
+ * is expensive for the Java language models.
+ *
+ * Each decoding thread has its own cache, so lookups need no synchronization. A cache is an
+ * open-addressing table of a fixed number of entries, keyed by a rolling hash of the n-gram's word
+ * ids; the ids themselves are stored as well, so a lookup never returns the probability of a
+ * different n-gram. When all slots an n-gram may occupy are taken, it replaces an entry that was
+ * last used for an earlier sentence, or failing that the entry in its home slot. Entries are aged
+ * by calling {@link #beginSentence(Sentence)} whenever the calling thread starts on a new sentence.
+ *
+ * The cache must only wrap language models whose sentence probability is the sum of the
+ * probabilities of its n-grams (which excludes KenLM, see {@link KenLM#probString(int[], int)}).
+ */
+public class CachingLanguageModel implements NGramLanguageModel {
+
+  /* The number of slots an n-gram may occupy, starting at its home slot */
+  private static final int PROBES = 4;
+
+  private final NGramLanguageModel languageModel;
+  private final int maxLength;
+  private final int capacity;
+
+  private final ThreadLocal<Table> tables;
+
+  /* Statistics of all threads' tables */
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /**
+   * @param languageModel the language model whose probabilities are cached
+   * @param capacity the number of n-grams cached per thread (rounded up to a power of two)
+   */
+  public CachingLanguageModel(NGramLanguageModel languageModel, int capacity) {
+    this.languageModel = languageModel;
+    this.maxLength = languageModel.getOrder();
+    this.capacity = Integer.highestOneBit(Math.max(capacity - 1, PROBES)) << 1;
+    final int tableCapacity = this.capacity;
+    final int tableMaxLength = this.maxLength;
+    this.tables = ThreadLocal.withInitial(() -> new Table(tableCapacity, tableMaxLength));
+  }
+
+  /**
+   * @return the language model whose probabilities are cached
+   */
+  public NGramLanguageModel getLanguageModel() {
+    return languageModel;
+  }
+
+  /**
+   * Ages the calling thread's cache if it was last used for a different sentence: its entries can
+   * still be found, but are replaced before those used for the new sentence. Sentences are told
+   * apart by identity, since their IDs restart with each request to the server.
+   *
+   * @param sentence the sentence being decoded
+   */
+  public void beginSentence(Sentence sentence) {
+    Table table = tables.get();
+    if (table.sentence.get() != sentence) {
+      table.sentence = new WeakReference<>(sentence);
+      table.generation++;
+    }
+  }
+
+  /**
+   * @return the number of sentences the calling thread's cache was aged for
+   */
+  int getGeneration() {
+    return tables.get().generation;
+  }
+
+  /*
+   * A thread's cache. It does not refer to the CachingLanguageModel, whose thread-local refers to
+   * it, so that caches no longer used can be collected even while their threads live on.
+   */
+  private static final class Table {
+    private final int capacity;
+    private final int maxLength;
+    /* Entry e holds the words [e * maxLength, e * maxLength + length) */
+    private final int[] words;
+    /* length | order << 8, or 0 for empty entries */
+    private final int[] shapes;
+    private final int[] generations;
+    private final float[] probs;
+
+    /* The sentence last begun, which the cache does not keep alive */
+    private WeakReference<Sentence> sentence = new WeakReference<>(null);
+    private int generation = 0;
+
+    Table(int capacity, int maxLength) {
+      this.capacity = capacity;
+      this.maxLength = maxLength;
+      words = new int[capacity * maxLength];
+      shapes = new int[capacity];
+      generations = new int[capacity];
+      probs = new float[capacity];
+    }
+
+    float get(CachingLanguageModel owner, int[] ngram, int start, int length, int order) {
+      final int shape = length | (order << 8);
+
+      int hash = order;
+      for (int i = start; i < start + length; i++)
+        hash = hash * 0x9E3779B1 + ngram[i];
+      hash ^= hash >>> 16;
+
+      final int mask = capacity - 1;
+      int victim = -1;
+      for (int p = 0; p < PROBES; p++) {
+        final int slot = (hash + p) & mask;
+        if (shapes[slot] == 0) {
+          if (victim == -1)
+            victim = slot;
+          break;
+        }
+        if (shapes[slot] == shape && matches(slot, ngram, start, length)) {
+          owner.hits.increment();
+          generations[slot] = generation;
+          return probs[slot];
+        }
+        if (victim == -1 && generations[slot] != generation)
+          victim = slot;
+      }
+      if (victim == -1)
+        victim = hash & mask;
+
+      owner.misses.increment();
+      final int[] key = (start == 0 && length == ngram.length) ? ngram
+          : Arrays.copyOfRange(ngram, start, start + length);
+      final float prob = owner.languageModel.ngramLogProbability(key, order);
+
+      System.arraycopy(ngram, start, words, victim * maxLength, length);
+      shapes[victim] = shape;
+      generations[victim] = generation;
+      probs[victim] = prob;
+      return prob;
+    }
+
+    private boolean matches(int slot, int[] ngram, int start, int length) {
+      final int offset = slot * maxLength;
+      for (int i = 0; i < length; i++)
+        if (words[offset + i] != ngram[start + i])
+          return false;
+      return true;
+    }
+  }
+
+  private float get(int[] ngram, int start, int length, int order) {
+    if (length > maxLength)
+      return languageModel.ngramLogProbability(
+          Arrays.copyOfRange(ngram, start, start + length), order);
+    return tables.get().get(this, ngram, start, length, order);
+  }
+
+  /**
+   * @return the number of lookups answered from the caches of all threads
+   */
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  /**
+   * @return the number of lookups passed on to the language model by the caches of all threads
+   */
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  /**
+   * @return the fraction of lookups answered from the caches, or 0 if there were none
+   */
+  public double getHitRate() {
+    final long hits = getHitCount();
+    final long lookups = hits + getMissCount();
+    return (lookups == 0) ? 0.0 : (double) hits / lookups;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d hits, %d misses (hit rate %.3f), %d entries per thread",
+        getHitCount(), getMissCount(), getHitRate(), capacity);
+  }
+
+  @Override
+  public int getOrder() {
+    return languageModel.getOrder();
+  }
+
+  @Override
+  public boolean registerWord(String token, int id) {
+    return languageModel.registerWord(token, id);
+  }
+
+  @Override
+  public boolean isOov(int id) {
+    return languageModel.isOov(id);
+  }
+
+  /**
+   * Sums the cached probabilities of the sentence's n-grams, as
+   * {@link DefaultNGramLanguageModel#sentenceLogProbability(int[], int, int)} does.
+   */
+  @Override
+  public float sentenceLogProbability(int[] sentence, int order, int startIndex) {
+    if (sentence == null || sentence.length == 0)
+      return 0.0f;
+
+    float probability = 0.0f;
+    // partial ngrams at the beginning
+    for (int j = startIndex; j < order && j <= sentence.length; j++)
+      probability += get(sentence, 0, j, order);
+
+    // regular-order ngrams
+    for (int i = 0; i <= sentence.length - order; i++)
+      probability += get(sentence, i, order, order);
+
+    return probability;
+  }
+
+  @Override
+  public float sentenceLogProbability(int[] words, int start, int length, int order,
+      int startIndex) {
+    float probability = 0.0f;
+    for (int j = startIndex; j < order && j <= length; j++)
+      probability += get(words, start, j, order);
+    for (int i = start; i <= start + length - order; i++)
+      probability += get(words, i, order, order);
+    return probability;
+  }
+
+  @Override
+  public int rightContextLength(int[] words, int start, int length) {
+    return languageModel.rightContextLength(words, start, length);
+  }
+
+  @Override
+  public float ngramLogProbability(int[] ngram, int order) {
+    return get(ngram, 0, ngram.length, order);
+  }
+
+  @Override
+  public float ngramLogProbability(int[] words, int start, int length, int order) {
+    return get(words, start, length, order);
+  }
+
+  @Override
+  public float ngramLogProbability(int[] ngram) {
+    return get(ngram, 0, ngram.length, maxLength);
+  }
+
+  @Override
+  public void ngramLogProbabilities(int[] ngrams, int order, int count, float[] probs) {
+    for (int k = 0; k < count; k++)
+      probs[k] = get(ngrams, k * order, order, order);
+  }
+}
@@ -19,46 +19,48 @@
 package org.apache.joshua.decoder.ff.lm;
 
 import java.io.IOException;
+import java.util.Arrays;
 
 import org.apache.joshua.corpus.Vocabulary;
 import org.apache.joshua.util.io.LineReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.collect.ImmutableMap;
-
+/**
+ * Maps words to their classes, for class-based language models. The map is a dense array indexed
+ * by vocabulary id; words without a class (including words added to the vocabulary after the map
+ * was read) map to the unknown word.
+ */
 public class ClassMap {
 
   private static final Logger LOG = LoggerFactory.getLogger(ClassMap.class);
 
   private static final int OOV_ID = Vocabulary.getUnknownId();
-  private final ImmutableMap<Integer, Integer> mapping;
-
-  public ClassMap(String file_name) {
-    this.mapping = read(file_name);
-    LOG.info("{} entries read from class map", this.mapping.size());
-  }
-
-  public int getClassID(int wordID) {
-    return this.mapping.getOrDefault(wordID, OOV_ID);
-  }
 
-  public int size() {
-    return mapping.size();
-  }
+  /* Vocabulary id -> class id */
+  private final int[] classes;
+  private final int size;
 
-  /**
-   * Reads a class map from file_name
-   */
-  private static ImmutableMap<Integer, Integer> read(String file_name) {
-    final ImmutableMap.Builder<Integer, Integer> builder = ImmutableMap.builder();
+  public ClassMap(String file_name) {
+    int[] mapping = new int[Math.max(Vocabulary.size(), 1)];
+    Arrays.fill(mapping, OOV_ID);
+    int entries = 0;
     int lineno = 0;
     try {
       for (String line : new LineReader(file_name, false)) {
         lineno++;
         String[] lineComp = line.trim().split("\\s+");
         try {
-          builder.put(Vocabulary.id(lineComp[0]), Vocabulary.id(lineComp[1]));
+          final int word = Vocabulary.id(lineComp[0]);
+          final int wordClass = Vocabulary.id(lineComp[1]);
+          if (word >= mapping.length) {
+            int oldLength = mapping.length;
+            mapping = Arrays.copyOf(mapping, Math.max(word + 1, 2 * oldLength));
+            Arrays.fill(mapping, oldLength, mapping.length, OOV_ID);
+          }
+          if (mapping[word] == OOV_ID)
+            entries++;
+          mapping[word] = wordClass;
         } catch (java.lang.ArrayIndexOutOfBoundsException e) {
           LOG.warn("bad vocab line #{} '{}'. skipping!", lineno, line);
           LOG.warn(e.getMessage(), e);
@@ -67,7 +69,31 @@ public class ClassMap {
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
-    return builder.build();
+    this.classes = mapping;
+    this.size = entries;
+    LOG.info("{} entries read from class map", this.size);
+  }
+
+  public int getClassID(int wordID) {
+    return (wordID >= 0 && wordID < classes.length) ? classes[wordID] : OOV_ID;
   }
 
+  /**
+   * Replaces the words of a rule's target side with their classes, leaving nonterminals alone.
+   *
+   * @param target the target side of a rule
+   * @return a new array with the classes
+   */
+  public int[] project(int[] target) {
+    int[] tokens = new int[target.length];
+    for (int i = 0; i < tokens.length; i++) {
+      final int id = target[i];
+      tokens[i] = (id > 0) ? getClassID(id) : id; // skip non-terminals
+    }
+    return tokens;
+  }
+
+  public int size() {
+    return size;
+  }
 }
@@ -42,6 +42,9 @@ public abstract class DefaultNGramLanguageModel implements NGramLanguageModel {
   
   protected float ceiling_cost = -100;
 
+  /* The n-grams passed one at a time by ngramLogProbabilities, indexed by their order */
+  private static final ThreadLocal<int[][]> NGRAM_SCRATCH = ThreadLocal.withInitial(() -> new int[0][]);
+
   // ===============================================================
   // Constructors
   // ===============================================================
@@ -108,6 +111,38 @@ public abstract class DefaultNGramLanguageModel implements NGramLanguageModel {
     return this.ngramLogProbability(ngram, this.ngramOrder);
   }
 
+  @Override
+  public void ngramLogProbabilities(int[] ngrams, int order, int count, float[] probs) {
+    final int[] ngram = ngramScratch(order);
+    for (int k = 0; k < count; k++) {
+      System.arraycopy(ngrams, k * order, ngram, 0, order);
+      probs[k] = ngramLogProbability(ngram, order);
+    }
+  }
+
+  /**
+   * Returns this thread's array for n-grams of the given order, whose length must be the order
+   * since {@link #ngramLogProbability(int[], int)} takes the n-gram length from it.
+   */
+  private static int[] ngramScratch(int order) {
+    int[][] scratch = NGRAM_SCRATCH.get();
+    if (scratch.length <= order) {
+      scratch = Arrays.copyOf(scratch, order + 1);
+      NGRAM_SCRATCH.set(scratch);
+    }
+    if (scratch[order] == null)
+      scratch[order] = new int[order];
+    return scratch[order];
+  }
+
+  /**
+   * Does no state minimization: all words of the context are kept.
+   */
+  @Override
+  public int rightContextLength(int[] words, int start, int length) {
+    return length;
+  }
+
   protected abstract float ngramLogProbability_helper(int[] ngram, int order);
   
   @Override
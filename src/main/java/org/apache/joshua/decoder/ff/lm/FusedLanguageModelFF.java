@@ -0,0 +1,480 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.lm;
+
+import static org.apache.joshua.util.FormatUtils.isNonterminal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.joshua.corpus.Vocabulary;
+import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.apache.joshua.decoder.chart_parser.SourcePath;
+import org.apache.joshua.decoder.ff.FeatureFunction;
+import org.apache.joshua.decoder.ff.FeatureVector;
+import org.apache.joshua.decoder.ff.ScoringBatch;
+import org.apache.joshua.decoder.ff.StatefulFF;
+import org.apache.joshua.decoder.ff.state_maintenance.DPState;
+import org.apache.joshua.decoder.ff.state_maintenance.FusedNgramDPState;
+import org.apache.joshua.decoder.ff.tm.Rule;
+import org.apache.joshua.decoder.hypergraph.HGNode;
+import org.apache.joshua.decoder.segment_file.Sentence;
+
+/**
+ * Several n-gram language models scored as a single stateful feature. Each language model still
+ * fires its own dense feature (named lm_0, lm_1, ... in the same sequence as {@link LanguageModelFF}
+ * features, so weight files carry over), but the target side of each rule application is walked
+ * only once, and a hypothesis carries one {@link FusedNgramDPState} rather than one state per
+ * language model.
+ *
+ * The language models are grouped by the vocabulary they are queried in: the target words, or
+ * their classes under a class map. The walk keeps one window of preceding words per vocabulary,
+ * as long as the highest order among its language models; the n-grams of lower-order models are
+ * suffixes of that window. The state keeps, per vocabulary, the contexts of its highest-order
+ * model, so hypotheses are recombined exactly when they would be with separate features. A
+ * language model with the -minimize_state option minimizes its part of the right context, as
+ * {@link LanguageModelFF} does.
+ *
+ * The options of each language model are those of {@link LanguageModelFF}, and are separated by
+ * "|||":
+ *
+ * <pre>
+ *   FusedLanguageModel -lm_type kenlm -lm_order 5 -lm_file big.kenlm \
+ *     ||| -lm_type berkeleylm -lm_order 3 -lm_file in-domain.gz -oov_feature \
+ *     ||| -lm_type kenlm -lm_order 9 -lm_file class.kenlm -class_map class.map
+ * </pre>
+ */
+public class FusedLanguageModelFF extends StatefulFF {
+
+  /** Separates the options of the language models on the feature line */
+  public static final String SEPARATOR = "|||";
+
+  /* One of the language models */
+  private static final class Component {
+    final String name;
+    final String oovName;
+    final NGramLanguageModel languageModel;
+    final int order;
+    final float weight;
+    final float oovWeight;
+    final boolean withOovFeature;
+    final boolean minimizeState;
+
+    /* The index of the component's vocabulary, and of its n-gram batch */
+    final int view;
+    final int index;
+
+    int denseFeatureIndex = -1;
+    int oovDenseFeatureIndex = -1;
+
+    Component(String name, NGramLanguageModel languageModel, int order, boolean withOovFeature,
+        boolean minimizeState, FeatureVector weights, int view, int index) {
+      this.name = name;
+      this.oovName = name + LanguageModelFF.OOV_SUFFIX;
+      this.languageModel = languageModel;
+      this.order = order;
+      this.withOovFeature = withOovFeature;
+      this.minimizeState = minimizeState;
+      // The dense feature initialization hasn't happened yet, so we have to retrieve this as sparse
+      this.weight = weights.getSparse(name);
+      this.oovWeight = weights.getSparse(oovName);
+      this.view = view;
+      this.index = index;
+    }
+  }
+
+  /* A vocabulary the language models are queried in */
+  private static final class View {
+    /* The class map, or null for the target words */
+    final ClassMap classMap;
+    final String classMapFile;
+    final List<Component> components = new ArrayList<>();
+    /* The highest order of its language models */
+    int order = 1;
+
+    View(String classMapFile) {
+      this.classMapFile = classMapFile;
+      this.classMap = (classMapFile == null) ? null : new ClassMap(classMapFile);
+    }
+  }
+
+  private final List<View> views = new ArrayList<>();
+  private final List<Component> components = new ArrayList<>();
+  private final int startSymbolId;
+
+  private final ThreadLocal<Walk> walks = ThreadLocal.withInitial(Walk::new);
+
+  public FusedLanguageModelFF(FeatureVector weights, String[] args, JoshuaConfiguration config) {
+    super(weights, "FusedLanguageModel", args, config);
+
+    List<String> options = new ArrayList<>();
+    for (int i = 1; i <= args.length; i++) {
+      if (i == args.length || args[i].equals(SEPARATOR)) {
+        if (!options.isEmpty())
+          addComponent(FeatureFunction.parseArgs(options.toArray(new String[0])));
+        options.clear();
+      } else {
+        options.add(args[i]);
+      }
+    }
+    if (components.isEmpty())
+      throw new RuntimeException("* FATAL: FusedLanguageModel needs at least one language model");
+
+    Vocabulary.id(config.default_non_terminal);
+    startSymbolId = Vocabulary.id(Vocabulary.START_SYM);
+  }
+
+  private void addComponent(Map<String, String> options) {
+    final String classMapFile = options.get("class_map");
+    View view = null;
+    for (View v : views)
+      if (classMapFile == null ? v.classMapFile == null : classMapFile.equals(v.classMapFile))
+        view = v;
+    if (view == null) {
+      view = new View(classMapFile);
+      views.add(view);
+    }
+
+    final int order = Integer.parseInt(options.get("lm_order"));
+    final NGramLanguageModel languageModel = LanguageModelFF.createLanguageModel(
+        options.get("lm_type"), order, options.get("lm_file"), config);
+    Vocabulary.registerLanguageModel(languageModel);
+
+    final Component component = new Component(
+        LanguageModelFF.NAME_PREFIX + LanguageModelFF.LM_INDEX++, languageModel, order,
+        options.containsKey("oov_feature"), options.containsKey("minimize_state"), weights,
+        views.indexOf(view), components.size());
+    components.add(component);
+    view.components.add(component);
+    view.order = Math.max(view.order, order);
+  }
+
+  @Override
+  public ArrayList<String> reportDenseFeatures(int index) {
+    denseFeatureIndex = index;
+    final ArrayList<String> names = new ArrayList<>();
+    for (Component component : components) {
+      component.denseFeatureIndex = index + names.size();
+      names.add(component.name);
+      if (component.withOovFeature) {
+        component.oovDenseFeatureIndex = index + names.size();
+        names.add(component.oovName);
+      }
+    }
+    return names;
+  }
+
+  /**
+   * @return the language model of each dense feature, by feature name
+   */
+  public Map<String, NGramLanguageModel> getLMs() {
+    Map<String, NGramLanguageModel> lms = new LinkedHashMap<>();
+    for (Component component : components)
+      lms.put(component.name, component.languageModel);
+    return lms;
+  }
+
+  @Override
+  public String logString() {
+    StringBuilder sb = new StringBuilder(name);
+    for (Component component : components)
+      sb.append(String.format("%s %s, order %d (weight %.3f), classLm=%s",
+          component.index == 0 ? ":" : ";", component.name, component.order, component.weight,
+          views.get(component.view).classMap != null));
+    return sb.toString();
+  }
+
+  @Override
+  public DPState compute(Rule rule, List<HGNode> tailNodes, int i, int j, SourcePath sourcePath,
+      Sentence sentence, Accumulator acc) {
+    if (rule == null)
+      return null;
+
+    beginSentence(sentence);
+    final Walk walk = walks.get().clear();
+    final FusedNgramDPState state = walk.transition(rule, tailNodes, i, sentence, acc);
+    walk.endEdge();
+    walk.score();
+    for (Component component : components)
+      acc.add(component.denseFeatureIndex, walk.batches[component.index].getLogProbability(0));
+    return state;
+  }
+
+  /**
+   * Computes the features of a batch of edges. The n-grams created by all the edges are scored
+   * with a single call per language model to
+   * {@link NGramLanguageModel#ngramLogProbabilities(int[], int, int, float[])}.
+   */
+  @Override
+  public void computeAll(ScoringBatch batch, Sentence sentence, DPState[] states) {
+    beginSentence(sentence);
+    final Walk walk = walks.get().clear();
+    for (int k = 0; k < batch.size(); k++) {
+      final Rule rule = batch.getRule(k);
+      states[k] = (rule == null) ? null
+          : walk.transition(rule, batch.getTailNodes(k), batch.getI(k), sentence,
+              batch.getAccumulator(k));
+      walk.endEdge();
+    }
+
+    walk.score();
+    for (int k = 0; k < batch.size(); k++)
+      if (batch.getRule(k) != null)
+        for (Component component : components)
+          batch.getAccumulator(k).add(component.denseFeatureIndex,
+              walk.batches[component.index].getLogProbability(k));
+  }
+
+  /**
+   * Scores the incomplete n-grams of the left contexts, as
+   * {@link LanguageModelFF#computeFinal(HGNode, int, int, SourcePath, Sentence, Accumulator)} does
+   * for each language model.
+   */
+  @Override
+  public DPState computeFinal(HGNode tailNode, int i, int j, SourcePath sourcePath,
+      Sentence sentence, Accumulator acc) {
+    final FusedNgramDPState state = (FusedNgramDPState) tailNode.getDPState(stateIndex);
+    for (Component component : components) {
+      final int[] leftContext = state.getLeftLMStateWords(component.view, component.order - 1);
+      float logProb = 0.0f;
+      for (int k = 1; k < leftContext.length; k++) {
+        final int[] ngram = Arrays.copyOfRange(leftContext, Math.max(0, k + 1 - component.order),
+            k + 1);
+        logProb += component.languageModel.ngramLogProbability(ngram, ngram.length);
+      }
+      acc.add(component.denseFeatureIndex, logProb);
+    }
+    return state;
+  }
+
+  /**
+   * Sums the estimates of {@link LanguageModelFF#estimateCost(Rule, Sentence)} for each language
+   * model: the complete n-grams found in the rule, and the incomplete ones on its left.
+   */
+  @Override
+  public float estimateCost(Rule rule, Sentence sentence) {
+    float estimate = 0.0f;
+    for (Component component : components) {
+      final int[] words = getRuleIds(views.get(component.view), rule);
+
+      float lmEstimate = 0.0f;
+      boolean skipStart = words.length > 0 && words[0] == startSymbolId;
+      int start = 0;
+      for (int k = 0; k <= words.length; k++) {
+        if (k == words.length || isNonterminal(words[k])) {
+          lmEstimate += scoreChunkLogP(component, Arrays.copyOfRange(words, start, k), skipStart);
+          start = k + 1;
+          skipStart = false;
+        }
+      }
+
+      final float oovEstimate = component.withOovFeature ? getOovs(component, words) : 0f;
+      estimate += component.weight * lmEstimate + component.oovWeight * oovEstimate;
+    }
+    return estimate;
+  }
+
+  /**
+   * Sums the costs of the leftmost k-grams, k = [1..n-1], of each language model.
+   */
+  @Override
+  public float estimateFutureCost(Rule rule, DPState currentState, Sentence sentence) {
+    final FusedNgramDPState state = (FusedNgramDPState) currentState;
+    float estimate = 0.0f;
+    for (Component component : components) {
+      final int[] leftContext = state.getLeftLMStateWords(component.view, component.order - 1);
+      if (leftContext.length > 0)
+        estimate += component.weight
+            * scoreChunkLogP(component, leftContext, leftContext[0] == startSymbolId);
+    }
+    // NOTE: no future cost for oov weight
+    return estimate;
+  }
+
+  private static float scoreChunkLogP(Component component, int[] words, boolean skipStart) {
+    if (words.length == 0)
+      return 0.0f;
+    return component.languageModel.sentenceLogProbability(words, component.order,
+        skipStart ? 2 : 1);
+  }
+
+  private static int getOovs(Component component, int[] words) {
+    int result = 0;
+    for (int id : words)
+      if (!isNonterminal(id) && component.languageModel.isOov(id))
+        result++;
+    return result;
+  }
+
+  /* The target-side ids of a rule in a vocabulary, as LanguageModelFF#getRuleIds() */
+  private static int[] getRuleIds(View view, Rule rule) {
+    return (view.classMap == null) ? rule.getEnglish() : rule.getEnglishClasses(view.classMap);
+  }
+
+  /* The ids scored in a vocabulary, as LanguageModelFF#getWords() */
+  private int[] getWords(View view, Rule rule, int i, Sentence sentence) {
+    if (config.source_annotations)
+      return LanguageModelFF.projectAnnotations(rule, i, sentence);
+    return getRuleIds(view, rule);
+  }
+
+  private void beginSentence(Sentence sentence) {
+    if (sentence == null)
+      return;
+    for (Component component : components)
+      if (component.languageModel instanceof CachingLanguageModel)
+        ((CachingLanguageModel) component.languageModel).beginSentence(sentence);
+  }
+
+  /**
+   * The calling thread's scratch space for walking the target side of rule applications: a window
+   * of the most recent words and the left context so far, per vocabulary, and an n-gram batch per
+   * language model.
+   */
+  private final class Walk {
+    final int[][] windows = new int[views.size()][];
+    final int[] counts = new int[views.size()];
+    final int[][] lefts = new int[views.size()][];
+    final int[] leftCounts = new int[views.size()];
+    final int[][] tokens = new int[views.size()][];
+    final NgramBatch[] batches = new NgramBatch[components.size()];
+
+    Walk() {
+      for (int v = 0; v < views.size(); v++) {
+        windows[v] = new int[views.get(v).order];
+        lefts[v] = new int[views.get(v).order - 1];
+      }
+      for (int c = 0; c < batches.length; c++)
+        batches[c] = new NgramBatch();
+    }
+
+    Walk clear() {
+      for (Component component : components)
+        batches[component.index].clear(component.order);
+      return this;
+    }
+
+    /**
+     * Walks the target side of a rule application once, adding the n-grams it completes to the
+     * batch of each language model. An n-gram is complete when its last word has order - 1
+     * predecessors in the new hypothesis; the n-grams of a tail node's words beyond its first
+     * order - 1 were completed within the tail node already.
+     */
+    FusedNgramDPState transition(Rule rule, List<HGNode> tailNodes, int i, Sentence sentence,
+        Accumulator acc) {
+      final int[] english = rule.getEnglish();
+      for (int v = 0; v < views.size(); v++) {
+        tokens[v] = getWords(views.get(v), rule, i, sentence);
+        counts[v] = 0;
+        leftCounts[v] = 0;
+      }
+      for (Component component : components)
+        if (component.withOovFeature)
+          acc.add(component.oovDenseFeatureIndex, getOovs(component, tokens[component.view]));
+
+      for (int p = 0; p < english.length; p++) {
+        if (isNonterminal(english[p])) {
+          final FusedNgramDPState state = (FusedNgramDPState) tailNodes.get(-(english[p] + 1))
+              .getDPState(stateIndex);
+          for (int v = 0; v < views.size(); v++) {
+            final int length = state.getContextLength(v);
+            for (int k = 0; k < length; k++)
+              push(v, state.getLeftLMStateWord(v, k), k);
+            for (int k = 0; k < length; k++)
+              windows[v][counts[v] - length + k] = state.getRightLMStateWord(v, k);
+          }
+        } else {
+          for (int v = 0; v < views.size(); v++)
+            push(v, tokens[v][p], -1);
+        }
+      }
+
+      final int numViews = views.size();
+      int size = 2 * numViews;
+      for (int v = 0; v < numViews; v++)
+        size += 2 * leftCounts[v];
+      final int[] words = new int[size];
+      for (int v = 0, offset = 2 * numViews; v < numViews; v++) {
+        final int length = leftCounts[v];
+        words[v] = length;
+        words[numViews + v] = rightStateLength(v);
+        System.arraycopy(lefts[v], 0, words, offset, length);
+        System.arraycopy(windows[v], counts[v] - length, words, offset + length, length);
+        offset += 2 * length;
+      }
+      return new FusedNgramDPState(numViews, words);
+    }
+
+    /**
+     * Returns the number of most recent words of a vocabulary's right context that any of its
+     * language models needs. Contexts shorter than the highest order are not minimized: they are
+     * the whole hypothesis, as are the left contexts.
+     */
+    private int rightStateLength(int v) {
+      final View view = views.get(v);
+      if (leftCounts[v] < view.order - 1)
+        return leftCounts[v];
+
+      int length = 0;
+      for (Component component : view.components) {
+        final int context = component.order - 1;
+        length = Math.max(length, component.minimizeState
+            ? component.languageModel.rightContextLength(windows[v], counts[v] - context, context)
+            : context);
+      }
+      return length;
+    }
+
+    /**
+     * Appends a word to the window of a vocabulary, and adds the n-grams it completes.
+     *
+     * @param tailPosition the word's position in the left context of a tail node, or -1 for a
+     *          word of the rule
+     */
+    private void push(int v, int word, int tailPosition) {
+      final View view = views.get(v);
+      final int[] window = windows[v];
+      if (counts[v] == view.order) {
+        System.arraycopy(window, 1, window, 0, view.order - 1);
+        counts[v]--;
+      }
+      window[counts[v]++] = word;
+      if (leftCounts[v] < view.order - 1)
+        lefts[v][leftCounts[v]++] = word;
+
+      for (Component component : view.components)
+        if (counts[v] >= component.order
+            && (tailPosition < 0 || tailPosition < component.order - 1))
+          batches[component.index].add(window, counts[v] - component.order);
+    }
+
+    void endEdge() {
+      for (NgramBatch batch : batches)
+        batch.endEdge();
+    }
+
+    void score() {
+      for (Component component : components)
+        batches[component.index].score(component.languageModel);
+    }
+  }
+}
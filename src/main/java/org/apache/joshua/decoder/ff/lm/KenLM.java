@@ -18,6 +18,9 @@
  */
 package org.apache.joshua.decoder.ff.lm;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 import org.apache.joshua.corpus.Vocabulary;
 import org.apache.joshua.decoder.ff.state_maintenance.KenLMState;
 import org.apache.joshua.util.FormatUtils;
@@ -67,10 +70,23 @@ public class KenLM implements NGramLanguageModel, Comparable<KenLM> {
 
   private static native float probString(long ptr, int words[], int start);
 
+  private static native void probBatch(long ptr, ByteBuffer ngrams, int order, int count,
+      ByteBuffer probs);
+
+  private static native void probRules(long ptr, long pool, ByteBuffer words, int count,
+      ByteBuffer states, ByteBuffer probs);
+
   private static native long createPool();
 
   private static native void destroyPool(long pointer);
 
+  private static native void resetPool(long pointer);
+
+  private static native long poolMemory(long pointer);
+
+  /* Buffers for passing batches of n-grams to KenLM, reused by each thread */
+  private static final ThreadLocal<NgramBuffers> NGRAM_BUFFERS = ThreadLocal.withInitial(NgramBuffers::new);
+
   public KenLM(int order, String file_name) {
     pointer = initializeSystemLibrary(file_name);
     ngramOrder = order;
@@ -105,14 +121,32 @@ public class KenLM implements NGramLanguageModel, Comparable<KenLM> {
     }
   }
 
-  public long createLMPool() {
+  public static long createLMPool() {
     return createPool();
   }
 
-  public void destroyLMPool(long pointer) {
+  public static void destroyLMPool(long pointer) {
     destroyPool(pointer);
   }
 
+  /**
+   * Forgets all states allocated from a pool, keeping its memory for reuse. States from the pool
+   * must not be used afterwards.
+   *
+   * @param pointer the pool
+   */
+  public static void resetLMPool(long pointer) {
+    resetPool(pointer);
+  }
+
+  /**
+   * @param pointer the pool
+   * @return the approximate number of bytes of native memory held by the pool
+   */
+  public static long getLMPoolMemory(long pointer) {
+    return poolMemory(pointer);
+  }
+
   public void destroy() {
     destroy(pointer);
   }
@@ -170,6 +204,21 @@ public class KenLM implements NGramLanguageModel, Comparable<KenLM> {
     return pair;
   }
 
+  /**
+   * Scores a batch of rule applications with a single call into KenLM, which is otherwise crossed
+   * once per rule (see {@link #probRule(long[], long)}). The rules and their results are passed
+   * through the batch's direct buffers, so no arrays or result objects are created per rule.
+   *
+   * @param batch the rules to score; receives their probabilities and states
+   * @param poolPointer the pool in which KenLM allocates the states
+   */
+  public void probRules(RuleBatch batch, long poolPointer) {
+    if (batch.count == 0)
+      return;
+    batch.prepareResults();
+    probRules(pointer, poolPointer, batch.words, batch.count, batch.states, batch.probs);
+  }
+
   /**
    * Public facing function that estimates the cost of a rule, which value is used for sorting
    * rules during cube pruning.
@@ -209,6 +258,15 @@ public class KenLM implements NGramLanguageModel, Comparable<KenLM> {
     return isLmOov(pointer, wordId);
   }
 
+  /**
+   * KenLM minimizes its states natively, see {@link StateMinimizingLanguageModel}; queried n-gram
+   * by n-gram, all words of the context are kept.
+   */
+  @Override
+  public int rightContextLength(int[] words, int start, int length) {
+    return length;
+  }
+
   public boolean isKnownWord(String word) {
     return isKnownWord(pointer, word);
   }
@@ -228,6 +286,94 @@ public class KenLM implements NGramLanguageModel, Comparable<KenLM> {
     }
   }
 
+  /**
+   * A reusable batch of rule applications for {@link KenLM#probRules(RuleBatch, long)}. Each rule
+   * is added as a call to {@link #beginRule(int)} followed by its words, in the encoding used by
+   * {@link KenLM#probRule(long[], long)}: terminals are Joshua word ids, nonterminals the negated
+   * KenLM state of the tail node. Batches hold native-order direct buffers, which KenLM reads and
+   * writes in place; they are not thread-safe.
+   */
+  public static class RuleBatch {
+    private ByteBuffer words = allocate(8 * 1024);
+    private ByteBuffer states = allocate(8 * 64);
+    private ByteBuffer probs = allocate(4 * 64);
+    private int count = 0;
+
+    /**
+     * Empties the batch.
+     *
+     * @return this batch
+     */
+    public RuleBatch clear() {
+      words.clear();
+      count = 0;
+      return this;
+    }
+
+    public int size() {
+      return count;
+    }
+
+    /**
+     * Starts the next rule.
+     *
+     * @param length the number of words of the rule, which must be added next
+     */
+    public void beginRule(int length) {
+      final int needed = words.position() + 8 * (length + 1);
+      if (needed > words.capacity()) {
+        ByteBuffer larger = allocate(Math.max(needed, 2 * words.capacity()));
+        words.flip();
+        larger.put(words);
+        words = larger;
+      }
+      words.putLong(length);
+      count++;
+    }
+
+    /**
+     * Adds the next word of the current rule.
+     *
+     * @param word a Joshua word id, or the negated KenLM state of a nonterminal's tail node
+     */
+    public void addWord(long word) {
+      words.putLong(word);
+    }
+
+    private void prepareResults() {
+      if (states.capacity() < 8 * count) {
+        states = allocate(8 * Math.max(count, 2 * states.capacity() / 8));
+        probs = allocate(4 * Math.max(count, 2 * probs.capacity() / 4));
+      }
+    }
+
+    /**
+     * @param k the index of a scored rule
+     * @return the LM probability incurred by rule k
+     */
+    public float getProb(int k) {
+      return probs.getFloat(4 * k);
+    }
+
+    /**
+     * @param k the index of a scored rule
+     * @return the KenLM state after rule k
+     */
+    public KenLMState getState(int k) {
+      return new KenLMState(states.getLong(8 * k));
+    }
+  }
+
+  /* Native-order direct buffers for probBatch(), grown as needed */
+  private static class NgramBuffers {
+    private ByteBuffer ngrams = allocate(4 * 1024);
+    private ByteBuffer probs = allocate(4 * 256);
+  }
+
+  private static ByteBuffer allocate(int bytes) {
+    return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+  }
+
   @Override
   public int compareTo(KenLM other) {
     if (this == other)
@@ -256,4 +402,25 @@ public class KenLM implements NGramLanguageModel, Comparable<KenLM> {
     return prob(ngram);
   }
 
+  /**
+   * Scores all n-grams with a single call into KenLM, passing them through direct buffers.
+   */
+  @Override
+  public void ngramLogProbabilities(int[] ngrams, int order, int count, float[] probs) {
+    if (count == 0)
+      return;
+
+    final NgramBuffers buffers = NGRAM_BUFFERS.get();
+    if (buffers.ngrams.capacity() < 4 * order * count)
+      buffers.ngrams = allocate(Math.max(4 * order * count, 2 * buffers.ngrams.capacity()));
+    if (buffers.probs.capacity() < 4 * count)
+      buffers.probs = allocate(Math.max(4 * count, 2 * buffers.probs.capacity()));
+
+    buffers.ngrams.clear();
+    buffers.ngrams.asIntBuffer().put(ngrams, 0, order * count);
+    probBatch(pointer, buffers.ngrams, order, count, buffers.probs);
+    buffers.probs.clear();
+    buffers.probs.asFloatBuffer().get(probs, 0, count);
+  }
+
 }
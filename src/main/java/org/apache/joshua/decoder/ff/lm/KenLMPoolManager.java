@@ -0,0 +1,304 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.lm;
+
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.joshua.decoder.segment_file.Sentence;
+
+/**
+ * Hands out the KenLM pools from which the states of {@link StateMinimizingLanguageModel} are
+ * allocated, and recycles them between sentences.
+ *
+ * KenLM pools are not thread-safe, so each thread working on a sentence (there can be several when
+ * spans are completed in parallel) leases its own pool. Leases are keyed by the {@link Sentence}
+ * object being translated, which is unique to a translation (unlike sentence IDs, which restart
+ * with every server request). All of a sentence's pools are released together once its
+ * {@link org.apache.joshua.decoder.Translation} is done, which invalidates the sentence's
+ * {@link org.apache.joshua.decoder.ff.state_maintenance.KenLMState}s. Released pools are reset and
+ * kept for the next sentence of the thread that used them (or, failing that, of any thread), as
+ * long as the native memory held by idle pools stays below a limit; beyond it they are destroyed.
+ *
+ * The native memory of leased pools can be capped as well. Each thread measures its pool every
+ * {@link #MEASURE_INTERVAL} leases, and no new pools are leased while the cap is exceeded; a
+ * sentence that would exceed it fails with a {@link PoolLimitException}.
+ */
+public class KenLMPoolManager {
+
+  /* The number of acquisitions of a pool between measurements of its memory */
+  static final int MEASURE_INTERVAL = 1024;
+
+  /**
+   * The native operations on KenLM pools.
+   */
+  interface NativePools {
+    long create();
+
+    void reset(long pool);
+
+    void destroy(long pool);
+
+    /* The approximate number of bytes of native memory held by the pool */
+    long memory(long pool);
+  }
+
+  private static final NativePools KENLM_POOLS = new NativePools() {
+    @Override
+    public long create() {
+      return KenLM.createLMPool();
+    }
+
+    @Override
+    public void reset(long pool) {
+      KenLM.resetLMPool(pool);
+    }
+
+    @Override
+    public void destroy(long pool) {
+      KenLM.destroyLMPool(pool);
+    }
+
+    @Override
+    public long memory(long pool) {
+      return KenLM.getLMPoolMemory(pool);
+    }
+  };
+
+  /**
+   * Thrown when the pools leased for the sentences being translated hold more native memory than
+   * allowed.
+   */
+  public static class PoolLimitException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public PoolLimitException(String message) {
+      super(message);
+    }
+  }
+
+  private static final class Pool {
+    final long pointer;
+    /* Native memory held by the pool when it was last measured */
+    long bytes = 0;
+    /* Acquisitions since then (only touched by the leasing thread) */
+    int uses = 0;
+
+    Pool(long pointer) {
+      this.pointer = pointer;
+    }
+  }
+
+  private final NativePools natives;
+
+  /* Sentence -> thread ID -> leased pool */
+  private final Map<Sentence, Map<Long, Pool>> leases = new ConcurrentHashMap<>();
+
+  /* Thread ID -> idle pools last used by that thread */
+  private final Map<Long, Deque<Pool>> idle = new ConcurrentHashMap<>();
+
+  private volatile long memoryLimit;
+  private volatile long leasedMemoryLimit;
+
+  private final AtomicLong idleBytes = new AtomicLong();
+  private final AtomicLong leasedBytes = new AtomicLong();
+  private final AtomicLong peakLeasedBytes = new AtomicLong();
+  private final AtomicLong peakBytes = new AtomicLong();
+  private final AtomicLong created = new AtomicLong();
+  private final AtomicLong reused = new AtomicLong();
+  private final AtomicLong destroyed = new AtomicLong();
+
+  /**
+   * @param memoryLimit the number of bytes of native memory idle pools may hold
+   */
+  public KenLMPoolManager(long memoryLimit) {
+    this(KENLM_POOLS, memoryLimit, 0);
+  }
+
+  /**
+   * @param natives the native pool operations
+   * @param memoryLimit the number of bytes of native memory idle pools may hold
+   * @param leasedMemoryLimit the number of bytes of native memory leased pools may hold, or 0 for
+   *          no limit
+   */
+  KenLMPoolManager(NativePools natives, long memoryLimit, long leasedMemoryLimit) {
+    this.natives = natives;
+    this.memoryLimit = memoryLimit;
+    this.leasedMemoryLimit = leasedMemoryLimit;
+  }
+
+  /**
+   * @param memoryLimit the number of bytes of native memory idle pools may hold
+   */
+  public void setMemoryLimit(long memoryLimit) {
+    this.memoryLimit = memoryLimit;
+  }
+
+  /**
+   * @param leasedMemoryLimit the number of bytes of native memory leased pools may hold, or 0 for
+   *          no limit
+   */
+  public void setLeasedMemoryLimit(long leasedMemoryLimit) {
+    this.leasedMemoryLimit = leasedMemoryLimit;
+  }
+
+  /**
+   * Returns the calling thread's pool for a sentence, leasing one if it does not have one yet.
+   *
+   * @param sentence the sentence being decoded
+   * @return the pool
+   * @throws PoolLimitException if the leased pools hold more memory than allowed
+   */
+  public long acquire(Sentence sentence) {
+    final Pool pool = leases
+        .computeIfAbsent(sentence, s -> new ConcurrentHashMap<>())
+        .computeIfAbsent(Thread.currentThread().getId(), this::take);
+    if (++pool.uses >= MEASURE_INTERVAL) {
+      pool.uses = 0;
+      measure(pool);
+    }
+    return pool.pointer;
+  }
+
+  private Pool take(long threadId) {
+    checkLeasedMemory(leasedBytes.get());
+
+    Pool pool = poll(idle.get(threadId));
+    if (pool == null)
+      for (Deque<Pool> pools : idle.values())
+        if ((pool = poll(pools)) != null)
+          break;
+
+    if (pool != null) {
+      idleBytes.addAndGet(-pool.bytes);
+      peakLeasedBytes.accumulateAndGet(leasedBytes.addAndGet(pool.bytes), Math::max);
+      reused.incrementAndGet();
+      return pool;
+    }
+
+    created.incrementAndGet();
+    return new Pool(natives.create());
+  }
+
+  private static Pool poll(Deque<Pool> pools) {
+    return (pools == null) ? null : pools.pollFirst();
+  }
+
+  /**
+   * Updates the leased memory with the current size of a pool.
+   */
+  private void measure(Pool pool) {
+    final long bytes = natives.memory(pool.pointer);
+    final long leased = leasedBytes.addAndGet(bytes - pool.bytes);
+    pool.bytes = bytes;
+    peakLeasedBytes.accumulateAndGet(leased, Math::max);
+    checkLeasedMemory(leased);
+  }
+
+  private void checkLeasedMemory(long leased) {
+    final long limit = leasedMemoryLimit;
+    if (limit > 0 && leased > limit)
+      throw new PoolLimitException(String.format(
+          "KenLM state pools of the sentences being translated hold %d KB, above the limit of %d KB",
+          leased >> 10, limit >> 10));
+  }
+
+  /**
+   * Releases all pools leased for a sentence. The states allocated from them must not be used
+   * afterwards. Releasing a sentence without pools does nothing.
+   *
+   * @param sentence the sentence
+   */
+  public void release(Sentence sentence) {
+    Map<Long, Pool> pools = leases.remove(sentence);
+    if (pools == null)
+      return;
+
+    for (Map.Entry<Long, Pool> lease : pools.entrySet()) {
+      final Pool pool = lease.getValue();
+      leasedBytes.addAndGet(-pool.bytes);
+      pool.bytes = natives.memory(pool.pointer);
+      pool.uses = 0;
+      peakBytes.accumulateAndGet(pool.bytes, Math::max);
+
+      if (idleBytes.addAndGet(pool.bytes) > memoryLimit) {
+        idleBytes.addAndGet(-pool.bytes);
+        destroy(pool);
+      } else {
+        natives.reset(pool.pointer);
+        idle.computeIfAbsent(lease.getKey(), id -> new ConcurrentLinkedDeque<>()).addFirst(pool);
+      }
+    }
+  }
+
+  /**
+   * Destroys all idle pools. Pools still leased are not affected.
+   */
+  public void clear() {
+    for (Deque<Pool> pools : idle.values()) {
+      Pool pool;
+      while ((pool = pools.pollFirst()) != null) {
+        idleBytes.addAndGet(-pool.bytes);
+        destroy(pool);
+      }
+    }
+  }
+
+  private void destroy(Pool pool) {
+    natives.destroy(pool.pointer);
+    destroyed.incrementAndGet();
+  }
+
+  /**
+   * @return the number of pools leased for sentences that have not been released
+   */
+  public int getLeasedCount() {
+    int count = 0;
+    for (Map<Long, Pool> pools : leases.values())
+      count += pools.size();
+    return count;
+  }
+
+  /**
+   * @return the number of bytes of native memory held by idle pools
+   */
+  public long getIdleBytes() {
+    return idleBytes.get();
+  }
+
+  /**
+   * @return the number of bytes of native memory held by leased pools, as last measured
+   */
+  public long getLeasedBytes() {
+    return leasedBytes.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "%d pools created, %d reused, %d destroyed, %d leased; idle pools hold %d KB (limit %d KB), "
+        + "leased pools %d KB (peak %d KB, limit %s), largest pool %d KB",
+        created.get(), reused.get(), destroyed.get(), getLeasedCount(), idleBytes.get() >> 10,
+        memoryLimit >> 10, leasedBytes.get() >> 10, peakLeasedBytes.get() >> 10,
+        leasedMemoryLimit > 0 ? (leasedMemoryLimit >> 10) + " KB" : "none", peakBytes.get() >> 10);
+  }
+}
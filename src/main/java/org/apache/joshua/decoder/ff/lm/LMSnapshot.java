@@ -0,0 +1,198 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.lm;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Helpers for the versioned binary snapshots that Java language models write once they are built,
+ * so that later startups can map them instead of rebuilding the model from text.
+ *
+ * A snapshot starts with a magic number identifying the model class and a format version, followed
+ * by model-specific data. It is written with a {@link DataOutputStream} (so in big-endian order)
+ * and read from a memory-mapped buffer. Arrays are written as their length followed by their
+ * elements, and words as the length of their UTF-8 encoding followed by its bytes.
+ */
+public final class LMSnapshot {
+
+  private LMSnapshot() {
+  }
+
+  /**
+   * Creates a snapshot file and writes its magic number and version.
+   *
+   * @param filename the snapshot file
+   * @param magic the magic number of the model class
+   * @param version the format version
+   * @return a stream to write the model's data to
+   * @throws IOException if the file cannot be created
+   */
+  public static DataOutputStream create(String filename, int magic, int version) throws IOException {
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(filename), 1 << 16));
+    out.writeInt(magic);
+    out.writeInt(version);
+    return out;
+  }
+
+  /**
+   * @param filename a file
+   * @param magic the magic number of a model class
+   * @return whether the file is a snapshot of that model class (of any version)
+   * @throws IOException if the file cannot be read
+   */
+  public static boolean isSnapshot(String filename, int magic) throws IOException {
+    try (DataInputStream in = new DataInputStream(new FileInputStream(filename))) {
+      return in.readInt() == magic;
+    } catch (EOFException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Maps a snapshot file, checking its magic number and version.
+   *
+   * @param filename the snapshot file
+   * @param magic the magic number of the model class
+   * @param version the format version
+   * @return the snapshot, positioned at the model's data
+   * @throws IOException if the file cannot be read, or is not a snapshot of this version
+   */
+  public static ByteBuffer map(String filename, int magic, int version) throws IOException {
+    try (RandomAccessFile file = new RandomAccessFile(filename, "r");
+        FileChannel channel = file.getChannel()) {
+      if (channel.size() > Integer.MAX_VALUE)
+        throw new IOException(String.format("Snapshot %s is larger than 2 GB", filename));
+      ByteBuffer in = channel.map(MapMode.READ_ONLY, 0, channel.size());
+      if (in.remaining() < 8 || in.getInt() != magic)
+        throw new IOException(String.format("%s is not a snapshot of this language model", filename));
+      int fileVersion = in.getInt();
+      if (fileVersion != version)
+        throw new IOException(String.format("Snapshot %s has version %d, but version %d is required",
+            filename, fileVersion, version));
+      return in;
+    }
+  }
+
+  public static void writeWords(DataOutputStream out, String[] words) throws IOException {
+    out.writeInt(words.length);
+    for (String word : words) {
+      byte[] bytes = word.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  public static String[] readWords(ByteBuffer in) {
+    String[] words = new String[in.getInt()];
+    byte[] bytes = new byte[64];
+    for (int i = 0; i < words.length; i++) {
+      int length = in.getInt();
+      if (length > bytes.length)
+        bytes = new byte[Math.max(length, 2 * bytes.length)];
+      in.get(bytes, 0, length);
+      words[i] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+    return words;
+  }
+
+  public static void writeLongs(DataOutputStream out, long[] values, int count) throws IOException {
+    out.writeInt(count);
+    for (int i = 0; i < count; i++)
+      out.writeLong(values[i]);
+  }
+
+  public static long[] readLongs(ByteBuffer in) {
+    long[] values = new long[in.getInt()];
+    in.asLongBuffer().get(values);
+    in.position(in.position() + 8 * values.length);
+    return values;
+  }
+
+  /**
+   * Returns an array written by {@link #writeLongs(DataOutputStream, long[], int)} as a view of the
+   * snapshot, without copying it, and moves past it.
+   */
+  public static LongBuffer mapLongs(ByteBuffer in) {
+    return slice(in, 8 * in.getInt()).asLongBuffer();
+  }
+
+  public static void writeInts(DataOutputStream out, int[] values, int count) throws IOException {
+    out.writeInt(count);
+    for (int i = 0; i < count; i++)
+      out.writeInt(values[i]);
+  }
+
+  public static int[] readInts(ByteBuffer in) {
+    int[] values = new int[in.getInt()];
+    in.asIntBuffer().get(values);
+    in.position(in.position() + 4 * values.length);
+    return values;
+  }
+
+  /**
+   * Returns an array written by {@link #writeInts(DataOutputStream, int[], int)} as a view of the
+   * snapshot, without copying it, and moves past it.
+   */
+  public static IntBuffer mapInts(ByteBuffer in) {
+    return slice(in, 4 * in.getInt()).asIntBuffer();
+  }
+
+  public static void writeFloats(DataOutputStream out, float[] values, int count) throws IOException {
+    out.writeInt(count);
+    for (int i = 0; i < count; i++)
+      out.writeFloat(values[i]);
+  }
+
+  public static float[] readFloats(ByteBuffer in) {
+    float[] values = new float[in.getInt()];
+    in.asFloatBuffer().get(values);
+    in.position(in.position() + 4 * values.length);
+    return values;
+  }
+
+  /**
+   * Returns an array written by {@link #writeFloats(DataOutputStream, float[], int)} as a view of
+   * the snapshot, without copying it, and moves past it.
+   */
+  public static FloatBuffer mapFloats(ByteBuffer in) {
+    return slice(in, 4 * in.getInt()).asFloatBuffer();
+  }
+
+  private static ByteBuffer slice(ByteBuffer in, int bytes) {
+    ByteBuffer slice = in.slice();
+    slice.limit(bytes);
+    in.position(in.position() + bytes);
+    return slice;
+  }
+}
@@ -23,16 +23,16 @@ import static org.apache.joshua.util.FormatUtils.isNonterminal;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
 import java.util.List;
 
 import org.apache.joshua.corpus.Vocabulary;
 import org.apache.joshua.decoder.JoshuaConfiguration;
-import org.apache.joshua.decoder.Support;
 import org.apache.joshua.decoder.chart_parser.SourcePath;
 import org.apache.joshua.decoder.ff.FeatureVector;
+import org.apache.joshua.decoder.ff.ScoringBatch;
 import org.apache.joshua.decoder.ff.StatefulFF;
 import org.apache.joshua.decoder.ff.lm.berkeley_lm.LMGrammarBerkeley;
+import org.apache.joshua.decoder.ff.lm.mapped_lm.MappedTrieLM;
 import org.apache.joshua.decoder.ff.state_maintenance.DPState;
 import org.apache.joshua.decoder.ff.state_maintenance.NgramDPState;
 import org.apache.joshua.decoder.ff.tm.Rule;
@@ -105,6 +105,12 @@ public class LanguageModelFF extends StatefulFF {
   
   /** Whether this feature function fires LM oov indicators */ 
   protected boolean withOovFeature;
+
+  /**
+   * Whether hypotheses are recombined on the part of their right context that the LM says can
+   * still matter, see {@link NGramLanguageModel#rightContextLength(int[], int, int)}
+   */
+  protected boolean minimizeState;
   protected int oovDenseFeatureIndex = -1;
 
   public LanguageModelFF(FeatureVector weights, String[] args, JoshuaConfiguration config) {
@@ -125,6 +131,10 @@ public class LanguageModelFF extends StatefulFF {
       this.withOovFeature = true;
     }
 
+    if (parsedArgs.containsKey("minimize_state")) {
+      this.minimizeState = true;
+    }
+
     // The dense feature initialization hasn't happened yet, so we have to retrieve this as sparse
     this.weight = weights.getSparse(name);
     this.oovWeight = weights.getSparse(oovFeatureName);
@@ -149,25 +159,48 @@ public class LanguageModelFF extends StatefulFF {
    * Initializes the underlying language model.
    */
   protected void initializeLM() {
+    this.languageModel = createLanguageModel(type, ngramOrder, path, config);
+
+    Vocabulary.registerLanguageModel(this.languageModel);
+    Vocabulary.id(config.default_non_terminal);
+
+    startSymbolId = Vocabulary.id(Vocabulary.START_SYM);
+  }
+
+  /**
+   * Loads a language model, wrapped in an n-gram cache if one is configured.
+   *
+   * @param type the backend ('kenlm', 'berkeleylm' or 'mapped')
+   * @param order the order of the language model
+   * @param path the language model file
+   * @param config the decoder configuration
+   * @return the language model
+   */
+  static NGramLanguageModel createLanguageModel(String type, int order, String path,
+      JoshuaConfiguration config) {
+    NGramLanguageModel languageModel;
     switch (type) {
     case "kenlm":
-      this.languageModel = new KenLM(ngramOrder, path);
+      languageModel = new KenLM(order, path);
 
       break;
     case "berkeleylm":
-      this.languageModel = new LMGrammarBerkeley(ngramOrder, path);
+      languageModel = new LMGrammarBerkeley(order, path);
+
+      break;
+    case "mapped":
+      languageModel = new MappedTrieLM(order, path);
 
       break;
     default:
       String msg = String.format("* FATAL: Invalid backend lm_type '%s' for LanguageModel", type)
-          + "*        Permissible values for 'lm_type' are 'kenlm' and 'berkeleylm'";
+          + "*        Permissible values for 'lm_type' are 'kenlm', 'berkeleylm' and 'mapped'";
       throw new RuntimeException(msg);
     }
 
-    Vocabulary.registerLanguageModel(this.languageModel);
-    Vocabulary.id(config.default_non_terminal);
-
-    startSymbolId = Vocabulary.id(Vocabulary.START_SYM);
+    if (config.lm_cache_size > 0 && !(languageModel instanceof KenLM))
+      languageModel = new CachingLanguageModel(languageModel, config.lm_cache_size);
+    return languageModel;
   }
 
   public NGramLanguageModel getLM() {
@@ -179,7 +212,8 @@ public class LanguageModelFF extends StatefulFF {
   }
 
   public String logString() {
-    return String.format("%s, order %d (weight %.3f), classLm=%s", name, languageModel.getOrder(), weight, isClassLM);
+    return String.format("%s, order %d (weight %.3f), classLm=%s, minimizeState=%s", name,
+        languageModel.getOrder(), weight, isClassLM, minimizeState);
   }
 
   /**
@@ -195,22 +229,71 @@ public class LanguageModelFF extends StatefulFF {
       return null;
     }
 
-    int[] words;
-    if (config.source_annotations) {
-      // get source side annotations and project them to the target side
-      words = getTags(rule, i, j, sentence);
-    } else {
-      words = getRuleIds(rule);
-    }
+    beginSentence(sentence);
+    int[] words = getWords(rule, i, j, sentence);
     
     if (withOovFeature) {
       acc.add(oovDenseFeatureIndex, getOovs(words));
     }
 
-    return computeTransition(words, tailNodes, acc);
+    NgramBatch ngrams = NgramBatch.get(this.ngramOrder);
+    NgramDPState state = computeTransition(words, tailNodes, ngrams);
+    ngrams.endEdge();
+    ngrams.score(this.languageModel);
+    acc.add(denseFeatureIndex, ngrams.getLogProbability(0));
 
+    return state;
 	}
 
+  /**
+   * Computes the features of a batch of edges. The n-grams created by all the edges are scored
+   * together with a single call to
+   * {@link NGramLanguageModel#ngramLogProbabilities(int[], int, int, float[])}.
+   */
+  @Override
+  public void computeAll(ScoringBatch batch, Sentence sentence, DPState[] states) {
+    beginSentence(sentence);
+    NgramBatch ngrams = NgramBatch.get(this.ngramOrder);
+    for (int k = 0; k < batch.size(); k++) {
+      final Rule rule = batch.getRule(k);
+      if (rule == null) {
+        states[k] = null;
+      } else {
+        int[] words = getWords(rule, batch.getI(k), batch.getJ(k), sentence);
+        if (withOovFeature) {
+          batch.getAccumulator(k).add(oovDenseFeatureIndex, getOovs(words));
+        }
+        states[k] = computeTransition(words, batch.getTailNodes(k), ngrams);
+      }
+      ngrams.endEdge();
+    }
+
+    ngrams.score(this.languageModel);
+    for (int k = 0; k < batch.size(); k++)
+      if (batch.getRule(k) != null)
+        batch.getAccumulator(k).add(denseFeatureIndex, ngrams.getLogProbability(k));
+  }
+
+  /**
+   * Tells the n-gram cache, if any, which sentence the calling thread is working on.
+   */
+  private void beginSentence(Sentence sentence) {
+    if (sentence != null && this.languageModel instanceof CachingLanguageModel)
+      ((CachingLanguageModel) this.languageModel).beginSentence(sentence);
+  }
+
+  /**
+   * Returns the ids the LM scores for a rule: its target-side ids (or classes), or the configured
+   * source-side annotation tags.
+   */
+  protected int[] getWords(Rule rule, int i, int j, Sentence sentence) {
+    if (config.source_annotations) {
+      // get source side annotations and project them to the target side
+      return getTags(rule, i, j, sentence);
+    }
+    return getRuleIds(rule);
+  }
+
   /**
    * Retrieve ids from rule. These are either simply the rule ids on the target
    * side, their corresponding class map ids, or the configured source-side
@@ -256,29 +339,38 @@ public class LanguageModelFF extends StatefulFF {
    * @return todo
    */
   protected int[] getTags(Rule rule, int begin, int end, Sentence sentence) {
-    /* Very important to make a copy here, so the original rule is not modified */
-    int[] tokens = Arrays.copyOf(rule.getEnglish(), rule.getEnglish().length);
-    byte[] alignments = rule.getAlignment();
+    return projectAnnotations(rule, begin, sentence);
+  }
 
-    //    System.err.println(String.format("getTags() %s", rule.getRuleString()));
+  /**
+   * Replaces the target-side words of a rule by the "class" annotations of the source words they
+   * are aligned to, see {@link #getTags(Rule, int, int, Sentence)}.
+   */
+  static int[] projectAnnotations(Rule rule, int begin, Sentence sentence) {
+    final int[] english = rule.getEnglish();
+    final byte[] alignments = rule.getAlignment();
+    if (alignments == null)
+      return english;
+
+    /* Target positions that appear as the first element of an alignment point, in one pass over
+     * the alignment rather than one per token
+     */
+    final boolean[] aligned = new boolean[english.length];
+    for (int j = 0; j < alignments.length; j += 2)
+      if (alignments[j] >= 0 && alignments[j] < english.length)
+        aligned[alignments[j]] = true;
 
-    /* For each target-side token, project it to each of its source-language alignments. If any of those
-     * are annotated, take the first annotation and quit.
+    /* For each target-side token, project it to its source-language alignment. If that is
+     * annotated, take the annotation. The rule's own array is only copied if a token changes.
      */
-    if (alignments != null) {
-      for (int i = 0; i < tokens.length; i++) {
-        if (tokens[i] > 0) { // skip nonterminals
-          for (int j = 0; j < alignments.length; j += 2) {
-            if (alignments[j] == i) {
-              String annotation = sentence.getAnnotation((int)alignments[i] + begin, "class");
-              if (annotation != null) {
-                //                System.err.println(String.format("  word %d source %d abs %d annotation %d/%s",
-                //                    i, alignments[i], alignments[i] + begin, annotation, Vocabulary.word(annotation)));
-                tokens[i] = Vocabulary.id(annotation);
-                break;
-              }
-            }
-          }
+    int[] tokens = english;
+    for (int i = 0; i < english.length; i++) {
+      if (english[i] > 0 && aligned[i]) { // skip nonterminals
+        String annotation = sentence.getAnnotation((int)alignments[i] + begin, "class");
+        if (annotation != null) {
+          if (tokens == english)
+            tokens = Arrays.copyOf(english, english.length);
+          tokens[i] = Vocabulary.id(annotation);
         }
       }
     }
@@ -296,22 +388,16 @@ public class LanguageModelFF extends StatefulFF {
   }
 
   /**
-   * Replace each word in a rule with the target side classes.
+   * Replace each word in a rule with the target side classes. The classes are computed once per
+   * rule and cached with it, see {@link Rule#getEnglishClasses(ClassMap)}.
    * @param rule {@link org.apache.joshua.decoder.ff.tm.Rule} to use when obtaining tokens
-   * @return int[] of tokens
+   * @return int[] of tokens, which must not be modified
    */
   protected int[] getClasses(Rule rule) {
     if (this.classMap == null) {
       throw new RuntimeException("The class map is not set. Cannot use the class LM ");
     }
-    /* Very important to make a copy here, so the original rule is not modified */
-    int[] tokens = Arrays.copyOf(rule.getEnglish(), rule.getEnglish().length);
-    for (int i = 0; i < tokens.length; i++) {
-      if (tokens[i] > 0 ) { // skip non-terminals
-        tokens[i] = this.classMap.getClassID(tokens[i]);
-      }
-    }
-    return tokens;
+    return rule.getEnglishClasses(this.classMap);
   }
 
   @Override
@@ -364,14 +450,15 @@ public class LanguageModelFF extends StatefulFF {
     NgramDPState state = (NgramDPState) currentState;
 
     float estimate = 0.0f;
-    int[] leftContext = state.getLeftLMStateWords();
-
-    if (null != leftContext) {
-      boolean skipStart = true;
-      if (leftContext[0] != startSymbolId) {
-        skipStart = false;
-      }
-      estimate += scoreChunkLogP(leftContext, true, skipStart);
+    // The left context is scored where it is packed in the state, without copying it
+    final int length = state.getContextLength();
+    if (length > 0) {
+      final int[] words = state.getWords();
+      final int start = state.getLeftOffset();
+      // Incomplete n-grams are scored, except for the start symbol's
+      final int startIndex = (words[start] == startSymbolId) ? 2 : 1;
+      estimate += this.languageModel.sentenceLogProbability(words, start, length, this.ngramOrder,
+          startIndex);
     }
     // NOTE: no future cost for oov weight
     return weight * estimate;
@@ -389,13 +476,14 @@ public class LanguageModelFF extends StatefulFF {
    * than the complete n-gram state remain *unscored*. This fact adds a lot of complication to the
    * code, including the use of the computeFinal* family of functions, which correct this fact for
    * sentences that are too short on the final transition.
+   *
+   * The n-grams are added to a batch for scoring; the caller ends the edge and scores the batch.
    */
-  private NgramDPState computeTransition(int[] enWords, List<HGNode> tailNodes, Accumulator acc) {
+  private NgramDPState computeTransition(int[] enWords, List<HGNode> tailNodes, NgramBatch ngrams) {
 
     int[] current = new int[this.ngramOrder];
     int[] shadow = new int[this.ngramOrder];
     int ccount = 0;
-    float transitionLogP = 0.0f;
     int[] left_context = null;
 
     for (int curID : enWords) {
@@ -403,21 +491,18 @@ public class LanguageModelFF extends StatefulFF {
         int index = -(curID + 1);
 
         NgramDPState state = (NgramDPState) tailNodes.get(index).getDPState(stateIndex);
-        int[] left = state.getLeftLMStateWords();
-        int[] right = state.getRightLMStateWords();
+        final int length = state.getContextLength();
 
         // Left context.
-        for (int aLeft : left) {
-          current[ccount++] = aLeft;
+        for (int k = 0; k < length; k++) {
+          current[ccount++] = state.getLeftLMStateWord(k);
 
           if (left_context == null && ccount == this.ngramOrder - 1)
             left_context = Arrays.copyOf(current, ccount);
 
           if (ccount == this.ngramOrder) {
-            // Compute the current word probability, and remove it.
-            float prob = this.languageModel.ngramLogProbability(current, this.ngramOrder);
-            //            System.err.println(String.format("-> prob(%s) = %f", Vocabulary.getWords(current), prob));
-            transitionLogP += prob;
+            // Queue the current word's n-gram for scoring, and remove it.
+            ngrams.add(current);
             System.arraycopy(current, 1, shadow, 0, this.ngramOrder - 1);
             int[] tmp = current;
             current = shadow;
@@ -425,7 +510,8 @@ public class LanguageModelFF extends StatefulFF {
             --ccount;
           }
         }
-        System.arraycopy(right, 0, current, ccount - right.length, right.length);
+        for (int k = 0; k < length; k++)
+          current[ccount - length + k] = state.getRightLMStateWord(k);
       } else { // terminal words
         current[ccount++] = curID;
 
@@ -433,10 +519,8 @@ public class LanguageModelFF extends StatefulFF {
           left_context = Arrays.copyOf(current, ccount);
 
         if (ccount == this.ngramOrder) {
-          // Compute the current word probability, and remove it.s
-          float prob = this.languageModel.ngramLogProbability(current, this.ngramOrder);
-          //          System.err.println(String.format("-> prob(%s) = %f", Vocabulary.getWords(current), prob));
-          transitionLogP += prob;
+          // Queue the current word's n-gram for scoring, and remove it.
+          ngrams.add(current);
           System.arraycopy(current, 1, shadow, 0, this.ngramOrder - 1);
           int[] tmp = current;
           current = shadow;
@@ -445,12 +529,10 @@ public class LanguageModelFF extends StatefulFF {
         }
       }
     }
-    //    acc.add(name, transitionLogP);
-    acc.add(denseFeatureIndex, transitionLogP);
-
     if (left_context != null) {
-      return new NgramDPState(left_context, Arrays.copyOfRange(current, ccount - this.ngramOrder
-          + 1, ccount));
+      final int[] right = Arrays.copyOfRange(current, ccount - this.ngramOrder + 1, ccount);
+      return new NgramDPState(left_context, right,
+          minimizeState ? languageModel.rightContextLength(right, 0, right.length) : right.length);
     } else {
       int[] context = Arrays.copyOf(current, ccount);
       return new NgramDPState(context, context);
@@ -470,20 +552,15 @@ public class LanguageModelFF extends StatefulFF {
     //    System.err.println(String.format("LanguageModel::computeFinalTransition()"));
 
     float res = 0.0f;
-    LinkedList<Integer> currentNgram = new LinkedList<>();
-    int[] leftContext = state.getLeftLMStateWords();
-    int[] rightContext = state.getRightLMStateWords();
-
-    for (int t : leftContext) {
-      currentNgram.add(t);
-
-      if (currentNgram.size() >= 2) { // start from bigram
-        float prob = this.languageModel
-            .ngramLogProbability(Support.toArray(currentNgram), currentNgram.size());
-        res += prob;
-      }
-      if (currentNgram.size() == this.ngramOrder)
-        currentNgram.removeFirst();
+    final int[] words = state.getWords();
+    final int offset = state.getLeftOffset();
+
+    // The n-grams ending at each word of the left context, starting from the bigram, read where
+    // they are packed in the state
+    for (int end = 2; end <= state.getContextLength(); end++) {
+      final int start = Math.max(0, end - this.ngramOrder);
+      res += this.languageModel.ngramLogProbability(words, offset + start, end - start,
+          end - start);
     }
 
     // Tell the accumulator
@@ -491,7 +568,7 @@ public class LanguageModelFF extends StatefulFF {
     acc.add(denseFeatureIndex, res);
 
     // State is the same
-    return new NgramDPState(leftContext, rightContext);
+    return state;
   }
 
 
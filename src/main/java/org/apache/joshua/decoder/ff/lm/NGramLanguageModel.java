@@ -18,6 +18,8 @@
  */
 package org.apache.joshua.decoder.ff.lm;
 
+import java.util.Arrays;
+
 /**
  * An interface for new language models to implement. An object of this type is passed to
  * LanguageModelFF, which will handle all the dynamic programming and state maintenance.
@@ -60,6 +62,24 @@ public interface NGramLanguageModel {
    */
   float sentenceLogProbability(int[] sentence, int order, int startIndex);
 
+  /**
+   * Scores a sentence held in part of an array, such as a context packed into an
+   * {@link org.apache.joshua.decoder.ff.state_maintenance.NgramDPState}. Models that can read it in
+   * place override this; by default the words are copied out.
+   *
+   * @param words an array holding the sentence
+   * @param start the position of the sentence's first word
+   * @param length the number of words in the sentence
+   * @param order the order of N-grams for the LM
+   * @param startIndex as in {@link #sentenceLogProbability(int[], int, int)}
+   * @return the LogP of the sentence
+   */
+  default float sentenceLogProbability(int[] words, int start, int length, int order,
+      int startIndex) {
+    return sentenceLogProbability(Arrays.copyOfRange(words, start, start + length), order,
+        startIndex);
+  }
+
   /**
    * Compute the probability of a single word given its context.
    * 
@@ -70,6 +90,32 @@ public interface NGramLanguageModel {
   float ngramLogProbability(int[] ngram, int order);
 
   float ngramLogProbability(int[] ngram);
+
+  /**
+   * Computes the probability of an n-gram held in part of an array. Models that can read it in
+   * place override this; by default the words are copied out.
+   *
+   * @param words an array holding the n-gram
+   * @param start the position of the n-gram's first word
+   * @param length the number of words in the n-gram
+   * @param order NGram order/context
+   * @return float representing the probability
+   */
+  default float ngramLogProbability(int[] words, int start, int length, int order) {
+    return ngramLogProbability(Arrays.copyOfRange(words, start, start + length), order);
+  }
+
+  /**
+   * Compute the probabilities of a batch of n-grams of the same order with a single call. This
+   * lets language models that are expensive to call (such as KenLM, which is reached through JNI)
+   * score all the n-grams created by a round of cube pruning at once.
+   * 
+   * @param ngrams the n-grams, concatenated: n-gram k is found at [k * order, (k + 1) * order)
+   * @param order the length of each n-gram
+   * @param count the number of n-grams
+   * @param probs receives the probability of n-gram k in probs[k]
+   */
+  void ngramLogProbabilities(int[] ngrams, int order, int count, float[] probs);
   
   /**
    * Check whether a word corresponding to the given id is OOV to the language model.
@@ -78,4 +124,18 @@ public interface NGramLanguageModel {
    */
   boolean isOov(int id);
 
+  /**
+   * Right-state minimization: returns how many of the most recent words of a context can affect
+   * the probabilities of the words that follow it. Earlier words can be ignored when hypotheses are
+   * recombined: the longer contexts ending in the returned number of words are not contexts of any
+   * longer n-gram and have no backoff weight, so every later n-gram probability backs off past
+   * them. Models that cannot tell return {@code length}.
+   *
+   * @param words an array holding the context
+   * @param start the position of the context's first (oldest) word
+   * @param length the number of words in the context
+   * @return the number of its most recent words that matter, between 0 and {@code length}
+   */
+  int rightContextLength(int[] words, int start, int length);
+
 }
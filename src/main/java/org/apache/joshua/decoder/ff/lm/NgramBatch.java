@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.lm;
+
+import java.util.Arrays;
+
+/**
+ * Collects the n-grams created by a batch of edges, so that they can be scored with a single call
+ * to {@link NGramLanguageModel#ngramLogProbabilities(int[], int, int, float[])}. The n-grams of
+ * each edge are added in turn, followed by a call to {@link #endEdge()}.
+ * 
+ * Batches are reused: each decoding thread owns one, which is {@link #clear(int)}ed before use.
+ */
+final class NgramBatch {
+
+  private static final ThreadLocal<NgramBatch> BATCH = ThreadLocal.withInitial(NgramBatch::new);
+
+  private int order;
+  private int[] ngrams = new int[64];
+  private float[] probs = new float[16];
+  private int count;
+
+  /* The number of n-grams added before the end of each edge */
+  private int[] edgeEnds = new int[16];
+  private int edges;
+
+  /**
+   * @param order the order of the n-grams to be scored
+   * @return the calling thread's batch, cleared
+   */
+  static NgramBatch get(int order) {
+    return BATCH.get().clear(order);
+  }
+
+  NgramBatch clear(int order) {
+    this.order = order;
+    this.count = 0;
+    this.edges = 0;
+    return this;
+  }
+
+  /**
+   * Adds the first {@code order} words of an array as the next n-gram of the current edge.
+   */
+  void add(int[] ngram) {
+    add(ngram, 0);
+  }
+
+  /**
+   * Adds the {@code order} words of an array starting at {@code start} as the next n-gram of the
+   * current edge.
+   */
+  void add(int[] words, int start) {
+    if ((count + 1) * order > ngrams.length)
+      ngrams = Arrays.copyOf(ngrams, 2 * (count + 1) * order);
+    System.arraycopy(words, start, ngrams, count * order, order);
+    count++;
+  }
+
+  /**
+   * Ends the current edge; the n-grams added since the previous edge belong to it.
+   */
+  void endEdge() {
+    if (edges == edgeEnds.length)
+      edgeEnds = Arrays.copyOf(edgeEnds, 2 * edges);
+    edgeEnds[edges++] = count;
+  }
+
+  /**
+   * Scores all the n-grams of the batch.
+   */
+  void score(NGramLanguageModel languageModel) {
+    if (count == 0)
+      return;
+    if (probs.length < count)
+      probs = new float[Math.max(count, 2 * probs.length)];
+    languageModel.ngramLogProbabilities(ngrams, order, count, probs);
+  }
+
+  /**
+   * @param edge the index of an edge
+   * @return the sum of the log probabilities of its n-grams
+   */
+  float getLogProbability(int edge) {
+    float logProb = 0.0f;
+    for (int k = (edge == 0) ? 0 : edgeEnds[edge - 1]; k < edgeEnds[edge]; k++)
+      logProb += probs[k];
+    return logProb;
+  }
+}
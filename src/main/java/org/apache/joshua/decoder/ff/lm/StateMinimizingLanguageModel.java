@@ -21,12 +21,12 @@ package org.apache.joshua.decoder.ff.lm;
 import static org.apache.joshua.util.FormatUtils.isNonterminal;
 
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.joshua.corpus.Vocabulary;
 import org.apache.joshua.decoder.JoshuaConfiguration;
 import org.apache.joshua.decoder.chart_parser.SourcePath;
 import org.apache.joshua.decoder.ff.FeatureVector;
+import org.apache.joshua.decoder.ff.ScoringBatch;
 import org.apache.joshua.decoder.ff.lm.KenLM.StateProbPair;
 import org.apache.joshua.decoder.ff.state_maintenance.DPState;
 import org.apache.joshua.decoder.ff.state_maintenance.KenLMState;
@@ -42,8 +42,15 @@ import org.apache.joshua.decoder.segment_file.Sentence;
  */
 public class StateMinimizingLanguageModel extends LanguageModelFF {
 
-  // maps from sentence numbers to KenLM-side pools used to allocate state
-  private static final ConcurrentHashMap<Integer, Long> poolMap = new ConcurrentHashMap<>();
+  /*
+   * The KenLM-side pools used to allocate state. Hosting them here statically allows pools to be
+   * shared across KenLM instances.
+   */
+  private static final KenLMPoolManager pools = new KenLMPoolManager(256L * 1024 * 1024);
+
+  /* Batches of rules passed to KenLM, reused by each thread */
+  private static final ThreadLocal<KenLM.RuleBatch> RULE_BATCH =
+      ThreadLocal.withInitial(KenLM.RuleBatch::new);
 
   public StateMinimizingLanguageModel(FeatureVector weights, String[] args, JoshuaConfiguration config) {
     super(weights, args, config);
@@ -53,6 +60,15 @@ public class StateMinimizingLanguageModel extends LanguageModelFF {
           + "*        Remove lm_type from line or set to 'kenlm'";
       throw new RuntimeException(msg);
     }
+    pools.setMemoryLimit(config.kenlm_pool_bytes);
+    pools.setLeasedMemoryLimit(config.kenlm_leased_pool_bytes);
+  }
+
+  /**
+   * @return the manager of the KenLM pools of all instances
+   */
+  public static KenLMPoolManager getPoolManager() {
+    return pools;
   }
 
   /**
@@ -99,13 +115,7 @@ public class StateMinimizingLanguageModel extends LanguageModelFF {
       return null;
     }
 
-    int[] ruleWords;
-    if (config.source_annotations) {
-      // get source side annotations and project them to the target side
-      ruleWords = getTags(rule, i, j, sentence);
-    } else {
-      ruleWords = getRuleIds(rule);
-    }
+    int[] ruleWords = getWords(rule, i, j, sentence);
     
     // Record the oov count
     if (withOovFeature) {
@@ -115,14 +125,10 @@ public class StateMinimizingLanguageModel extends LanguageModelFF {
      // map to ken lm ids
     final long[] words = mapToKenLmIds(ruleWords, tailNodes, false);
 
-    final int sentID = sentence.id();
-    // Since sentId is unique across threads, next operations are safe, but not atomic!
-    if (!poolMap.containsKey(sentID)) {
-      poolMap.put(sentID, ((KenLM) languageModel).createLMPool());
-    }
+    final long pool = getPool(sentence);
 
     // Get the probability of applying the rule and the new state
-    final StateProbPair pair = ((KenLM) languageModel).probRule(words, poolMap.get(sentID));
+    final StateProbPair pair = ((KenLM) languageModel).probRule(words, pool);
 
     // Record the prob
     acc.add(denseFeatureIndex, pair.prob);
@@ -131,6 +137,56 @@ public class StateMinimizingLanguageModel extends LanguageModelFF {
     return pair.state;
   }
 
+  /**
+   * Computes the features of a batch of edges with a single call into KenLM, see
+   * {@link KenLM#probRules(KenLM.RuleBatch, long)}.
+   */
+  @Override
+  public void computeAll(ScoringBatch batch, Sentence sentence, DPState[] states) {
+    final KenLM.RuleBatch rules = RULE_BATCH.get().clear();
+    for (int k = 0; k < batch.size(); k++) {
+      final Rule rule = batch.getRule(k);
+      if (rule == null)
+        continue;
+
+      int[] ruleWords = getWords(rule, batch.getI(k), batch.getJ(k), sentence);
+      if (withOovFeature) {
+        batch.getAccumulator(k).add(oovDenseFeatureIndex, getOovs(ruleWords));
+      }
+
+      rules.beginRule(ruleWords.length);
+      final List<HGNode> tailNodes = batch.getTailNodes(k);
+      for (int id : ruleWords) {
+        if (isNonterminal(id)) {
+          final KenLMState state = (KenLMState) tailNodes.get(-(id + 1)).getDPState(stateIndex);
+          rules.addWord(-state.getState());
+        } else {
+          rules.addWord(id);
+        }
+      }
+    }
+
+    ((KenLM) languageModel).probRules(rules, getPool(sentence));
+
+    int scored = 0;
+    for (int k = 0; k < batch.size(); k++) {
+      if (batch.getRule(k) == null) {
+        states[k] = null;
+      } else {
+        batch.getAccumulator(k).add(denseFeatureIndex, rules.getProb(scored));
+        states[k] = rules.getState(scored);
+        scored++;
+      }
+    }
+  }
+
+  /**
+   * Returns the calling thread's KenLM pool for the sentence.
+   */
+  private long getPool(Sentence sentence) {
+    return pools.acquire(sentence);
+  }
+
   /**
    * Maps given array of word/class ids to KenLM ids. For estimating cost and computing,
    * state retrieval differs slightly.
@@ -162,16 +218,14 @@ public class StateMinimizingLanguageModel extends LanguageModelFF {
   }
 
   /**
-   * Destroys the pool created to allocate state for this sentence. Called from the
-   * {@link org.apache.joshua.decoder.Translation} class after outputting the sentence or k-best list. Hosting
-   * this map here in KenLMFF statically allows pools to be shared across KenLM instances.
+   * Releases the pools used to allocate state for this sentence, which invalidates its
+   * {@link KenLMState}s. Called from the {@link org.apache.joshua.decoder.Translation} class after
+   * outputting the sentence or k-best list.
    *
-   * @param sentId a key in the poolmap table to destroy
+   * @param sentence the sentence
    */
-  public void destroyPool(int sentId) {
-    if (poolMap.containsKey(sentId))
-      ((KenLM) languageModel).destroyLMPool(poolMap.get(sentId));
-    poolMap.remove(sentId);
+  public void releasePools(Sentence sentence) {
+    pools.release(sentence);
   }
 
   /**
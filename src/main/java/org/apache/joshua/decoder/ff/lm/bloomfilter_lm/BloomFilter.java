@@ -18,13 +18,10 @@
  */
 package org.apache.joshua.decoder.ff.lm.bloomfilter_lm;
 
-import java.io.Externalizable;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInput;
-import java.io.ObjectOutput;
-import java.math.BigInteger;
-import java.util.BitSet;
-import java.util.Random;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
 
 /**
  * A Bloom filter: a lossy data structure for set representation. A Bloom filter consists of a bit
@@ -50,166 +47,174 @@ import java.util.Random;
  * error is one-sided. This means that while the query function may return false positives (saying
  * an object is present when it really isn't), it can never return false negatives (saying that an
  * object is not present when it was already added.
+ * <p>
+ * This is a blocked Bloom filter: the bit set is divided into blocks of 512 bits, the size of a
+ * cache line, and all bits of an object are set in the same block. An object is hashed to a single
+ * 64-bit value by the caller; one part of it selects the block, and the bits within the block are
+ * derived from it by double hashing. A query therefore touches one cache line, whatever the number
+ * of hash functions, at the price of a slightly higher false-positive rate than a classic Bloom
+ * filter of the same size.
+ * <p>
+ * The bits live outside the Java heap, in a direct buffer while the filter is built, and in the
+ * memory-mapped snapshot once it is read back (see {@link #readSnapshot(ByteBuffer)}), so that all
+ * processes using the same model share one copy of it.
  */
-public class BloomFilter implements Externalizable {
-  /**
-   * The main bit set of the Bloom filter.
-   */
-  private BitSet bitSet;
+public class BloomFilter {
+
+  /* The number of longs in a block: 64 bytes, the size of a cache line */
+  private static final int BLOCK_LONGS = 8;
+  private static final int BLOCK_BYTES = 8 * BLOCK_LONGS;
+  private static final int BLOCK_BITS = 8 * BLOCK_BYTES;
 
   /**
-   * The number of objects expected to be stored in the Bloom filter. The optimal number of hash
-   * functions depends on this number.
+   * The largest number of hash functions used. Beyond it, additional bits in the same block add
+   * little.
    */
-  int expectedNumberOfObjects;
+  static final int MAX_HASH_FUNCTIONS = 16;
 
   /**
-   * A prime number that should be bigger than the size of the bit set.
+   * The bit set of the Bloom filter. Block b is stored in the longs [b * 8, b * 8 + 8).
    */
-  long bigPrime;
+  private final LongBuffer bits;
+
+  private final int numBlocks;
 
   /**
-   * The size of the bit set, in bits.
+   * The number of objects expected to be stored in the Bloom filter. The optimal number of hash
+   * functions depends on this number.
    */
-  int filterSize;
+  final int expectedNumberOfObjects;
 
   /**
-   * A random number generator for building hash functions.
+   * The number of bits set for each object.
    */
-  final transient private Random RANDOM = new Random();
+  final int numHashFunctions;
 
   /**
-   * Builds an empty Bloom filter, ready to build hash functions and store objects.
+   * Builds an empty Bloom filter, ready to store objects.
    * 
-   * @param filterSize the size of Bloom filter to make, in bits
+   * @param filterSize the size of Bloom filter to make, in bits (rounded up to whole blocks)
    * @param expectedNumberOfObjects the number of objects expected to be stored in the Bloom filter
    */
-  public BloomFilter(int filterSize, int expectedNumberOfObjects) {
-    bitSet = new BitSet(filterSize);
-    this.filterSize = filterSize;
+  public BloomFilter(long filterSize, int expectedNumberOfObjects) {
+    if (filterSize <= 0
+        || (filterSize + BLOCK_BITS - 1) / BLOCK_BITS * BLOCK_BYTES > Integer.MAX_VALUE)
+      throw new IllegalArgumentException("Invalid Bloom filter size: " + filterSize + " bits");
+    this.numBlocks = (int) ((filterSize + BLOCK_BITS - 1) / BLOCK_BITS);
     this.expectedNumberOfObjects = expectedNumberOfObjects;
-    bigPrime = getPrimeLargerThan(filterSize);
+    this.numHashFunctions = optimalNumberOfHashFunctions((long) numBlocks * BLOCK_BITS,
+        expectedNumberOfObjects);
+    this.bits = ByteBuffer.allocateDirect(numBlocks * BLOCK_BYTES).asLongBuffer();
+  }
+
+  private BloomFilter(LongBuffer bits, int expectedNumberOfObjects, int numHashFunctions) {
+    this.bits = bits;
+    this.numBlocks = bits.capacity() / BLOCK_LONGS;
+    this.expectedNumberOfObjects = expectedNumberOfObjects;
+    this.numHashFunctions = numHashFunctions;
   }
 
   /**
-   * Adds an item (represented by an integer) to the bloom filter.
-   * 
-   * @param objectToAdd the object to add
-   * @param hashFunctions an array of pairs of long, representing the hash functions to be used on
-   *        the object
+   * @param numBits the size of the bit set
+   * @param numObjects the number of objects that will be stored
+   * @return the number of hash functions that minimizes the false-positive rate, ln(2) * m / n
    */
-  public void add(int objectToAdd, long[][] hashFunctions) {
-    for (long[] h : hashFunctions) {
-      int i = hash(h, (long) objectToAdd);
-      bitSet.set(i);
-    }
+  static int optimalNumberOfHashFunctions(long numBits, int numObjects) {
+    int k = (int) Math.floor(Math.log(2) * numBits / Math.max(numObjects, 1));
+    return Math.max(1, Math.min(k, MAX_HASH_FUNCTIONS));
   }
 
-  public void add(long objectToAdd, long[][] hashFunctions) {
-    for (long[] h : hashFunctions) {
-      int i = hash(h, objectToAdd);
-      bitSet.set(i);
+  /**
+   * Adds an object, represented by a 64-bit hash, to the Bloom filter.
+   * 
+   * @param hash a well-mixed 64-bit hash of the object to add
+   */
+  public void add(long hash) {
+    final int base = block(hash);
+    int h1 = (int) hash;
+    final int h2 = secondHash(hash);
+    for (int i = 0; i < numHashFunctions; i++, h1 += h2) {
+      final int index = base + ((h1 & (BLOCK_BITS - 1)) >>> 6);
+      bits.put(index, bits.get(index) | (1L << h1));
     }
   }
 
   /**
-   * Determines whether an item (represented by an integer) is present in the bloom filter.
+   * Determines whether an object, represented by a 64-bit hash, is present in the Bloom filter.
    * 
-   * @param objectToQuery the object we want to query for membership
-   * @param hashFunctions an array of pairs of long, representing the hash functions to be used
+   * @param hash the hash of the object we want to query for membership, as passed to
+   *        {@link #add(long)}
    * 
    * @return true if the objects is assumed to be present in the Bloom filter, false if it is
    *         definitely not present
    */
-  public boolean query(int objectToQuery, long[][] hashFunctions) {
-    for (long[] h : hashFunctions) {
-      int i = hash(h, (long) objectToQuery);
-      if (!bitSet.get(i)) return false;
-    }
-    return true;
-  }
-
-  public boolean query(long objectToQuery, long[][] hashFunctions) {
-    for (long[] h : hashFunctions) {
-      int i = hash(h, objectToQuery);
-      if (!bitSet.get(i)) return false;
+  public boolean query(long hash) {
+    final int base = block(hash);
+    int h1 = (int) hash;
+    final int h2 = secondHash(hash);
+    for (int i = 0; i < numHashFunctions; i++, h1 += h2) {
+      if ((bits.get(base + ((h1 & (BLOCK_BITS - 1)) >>> 6)) & (1L << h1)) == 0)
+        return false;
     }
     return true;
   }
 
   /**
-   * Builds an array of pairs of long that can be used as hash functions for this Bloom filter.
-   * 
-   * @return an array of pairs of long suitable for use as hash functions
+   * @return the index of the first long of the block an object is stored in, chosen by the upper
+   *         half of its hash
    */
-  public long[][] initializeHashFunctions() {
-    int numberOfHashFunctions;
-    int bigPrimeInt = (int) bigPrime;
-    numberOfHashFunctions =
-        (int) Math.floor(Math.log(2) * bitSet.length() / expectedNumberOfObjects);
-    if (numberOfHashFunctions == 0) numberOfHashFunctions = 1;
-    long[][] hashFunctions = new long[numberOfHashFunctions][2];
-    for (long[] h : hashFunctions) {
-      h[0] = (long) RANDOM.nextInt(bigPrimeInt) + 1;
-      h[1] = (long) RANDOM.nextInt(bigPrimeInt) + 1;
-    }
-    return hashFunctions;
+  private int block(long hash) {
+    return (int) (((hash >>> 32) * numBlocks) >>> 32) * BLOCK_LONGS;
   }
 
   /**
-   * Determines which bit of the bit set should be either set, for add operations, or checked, for
-   * query operations.
-   * 
-   * @param h a length-2 array of long used as a hash function
-   * @param objectToHash the object of interest
-   * 
-   * @return an index into the bit set of the Bloom filter
+   * @return the step of the double hashing within a block. It is odd, so that the first 512 bits
+   *         probed are all distinct.
    */
-  private int hash(long[] h, long objectToHash) {
-    long obj = (objectToHash < Integer.MAX_VALUE) ? objectToHash : objectToHash - bigPrime;
-    long h0 = h[0];
-    long h1 = (h[1] < (Long.MAX_VALUE / 2)) ? h[1] : h[1] - bigPrime;
-    long ret = (obj * h0) % bigPrime;
-    ret = (ret < (Long.MAX_VALUE / 2)) ? ret : ret - bigPrime;
-    return (int) (((ret + h1) % bigPrime) % (long) filterSize);
+  private static int secondHash(long hash) {
+    return (int) ((hash * 0x9E3779B97F4A7C15L) >>> 40) | 1;
   }
 
   /**
-   * Finds a prime number that is larger than the given number. This is used to find bigPrime, a
-   * prime that has to be larger than the size of the Bloom filter.
-   * 
-   * @param n an integer
-   * 
-   * @return a prime number larger than n
+   * @return the size of the bit set, in bits
    */
-  private long getPrimeLargerThan(int n) {
-    BigInteger ret;
-    BigInteger maxLong = BigInteger.valueOf(Long.MAX_VALUE);
-    int numBits = BigInteger.valueOf(n).bitLength() + 1;
-    do {
-      ret = BigInteger.probablePrime(numBits, RANDOM);
-    } while (ret.compareTo(maxLong) > 1);
-    return ret.longValue();
+  public long size() {
+    return (long) numBlocks * BLOCK_BITS;
   }
 
   /*
-   * functions for interface externalizable
+   * functions for binary snapshots
    */
 
-  public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
-    expectedNumberOfObjects = in.readInt();
-    filterSize = in.readInt();
-    bigPrime = in.readLong();
-    bitSet = (BitSet) in.readObject();
-  }
-
-  public void writeExternal(ObjectOutput out) throws IOException {
+  /**
+   * Writes the filter to a snapshot. The bit set is padded to start at a multiple of 64 bytes from
+   * the start of the file, so that its blocks are aligned with cache lines once it is mapped.
+   */
+  void writeSnapshot(DataOutputStream out) throws IOException {
     out.writeInt(expectedNumberOfObjects);
-    out.writeInt(filterSize);
-    out.writeLong(bigPrime);
-    out.writeObject(bitSet);
+    out.writeInt(numHashFunctions);
+    out.writeInt(numBlocks);
+    while (out.size() % BLOCK_BYTES != 0)
+      out.writeByte(0);
+    for (int i = 0; i < bits.capacity(); i++)
+      out.writeLong(bits.get(i));
   }
 
-  // only used for reconstruction via Externalizable
-  public BloomFilter() {}
+  /**
+   * Reads a filter from a snapshot without copying its bit set, which stays in the snapshot's
+   * buffer.
+   *
+   * @param in a snapshot mapped from the start of the file, positioned at the filter
+   */
+  static BloomFilter readSnapshot(ByteBuffer in) {
+    final int expectedNumberOfObjects = in.getInt();
+    final int numHashFunctions = in.getInt();
+    final int numBlocks = in.getInt();
+    while (in.position() % BLOCK_BYTES != 0)
+      in.get();
+    ByteBuffer bytes = in.slice();
+    bytes.limit(numBlocks * BLOCK_BYTES);
+    in.position(in.position() + bytes.limit());
+    return new BloomFilter(bytes.asLongBuffer(), expectedNumberOfObjects, numHashFunctions);
+  }
 }
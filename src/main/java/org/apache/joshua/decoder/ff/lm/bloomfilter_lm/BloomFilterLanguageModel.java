@@ -18,21 +18,17 @@
  */
 package org.apache.joshua.decoder.ff.lm.bloomfilter_lm;
 
-import java.io.Externalizable;
+import java.io.DataOutputStream;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInput;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutput;
-import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import org.apache.joshua.corpus.Vocabulary;
 import org.apache.joshua.decoder.ff.lm.DefaultNGramLanguageModel;
+import org.apache.joshua.decoder.ff.lm.LMSnapshot;
 import org.apache.joshua.util.Regex;
 import org.apache.joshua.util.io.LineReader;
 import org.slf4j.Logger;
@@ -42,23 +38,37 @@ import org.slf4j.LoggerFactory;
  * An n-gram language model with linearly-interpolated Witten-Bell smoothing, using a Bloom filter
  * as its main data structure. A Bloom filter is a lossy data structure that can be used to test for
  * set membership.
+ * <p>
+ * Models are built with {@link #main(String[])} and stored as binary snapshots (see
+ * {@link LMSnapshot}), whose Bloom filter is used in place once the snapshot is mapped. Models
+ * built by earlier versions, which used a different filter and hash functions, must be rebuilt.
+ * <p>
+ * The Bloom filter stores each n-gram once per quantized count up to its own, and likewise for the
+ * number of distinct types following it. All of these objects are hashed from a single 64-bit hash
+ * of the n-gram's words, and the hashes of all suffixes of an n-gram are computed together, so that
+ * backing off to shorter n-grams does not hash any words again.
  */
-public class BloomFilterLanguageModel extends DefaultNGramLanguageModel implements Externalizable {
+public class BloomFilterLanguageModel extends DefaultNGramLanguageModel {
   /**
-   * An initial value used for hashing n-grams so that they can be stored in a bloom filter.
+   * The initial value of the hashes of n-grams.
    */
-  public static final int HASH_SEED = 17;
+  private static final long HASH_SEED = 0x2545F4914F6CDD1DL;
 
   /**
-   * Another value used in the process of hashing n-grams.
+   * The values mixed into an n-gram's hash to tell the objects storing its counts apart from those
+   * storing the number of types following it.
    */
-  public static final int HASH_OFFSET = 37;
+  private static final long COUNTS = 0x632BE59BD9B4E019L;
+  private static final long TYPES = 0x8CB92BA72F3D8DD7L;
 
   /**
    * The maximum score that a language model feature function can return to the Joshua decoder.
    */
   public static final double MAX_SCORE = 100.0;
 
+  static final int SNAPSHOT_MAGIC = 0x4a424c4d; // "JBLM"
+  static final int SNAPSHOT_VERSION = 2;
+
   /**
    * The logger for this class.
    */
@@ -80,17 +90,6 @@ public class BloomFilterLanguageModel extends DefaultNGramLanguageModel implemen
    */
   private double numTokens;
 
-  /**
-   * An array of pairs of long, used as hash functions for storing or retreiving the count of an
-   * n-gram in the Bloom filter.
-   */
-  private long[][] countFuncs;
-  /**
-   * An array of pairs of long, used as hash functions for storing or retreiving the number of
-   * distinct types observed after an n-gram.
-   */
-  private long[][] typesFuncs;
-
   /**
    * The smoothed probability of an unseen n-gram. This is also the probability of any n-gram under
    * the zeroth-order model.
@@ -115,17 +114,15 @@ public class BloomFilterLanguageModel extends DefaultNGramLanguageModel implemen
    * 
    * @param order the order of the language model
    * @param filename path to the file where the language model is stored
-   * @throws IOException if the bloom filter language model cannot be rebuilt from the input file
+   * @throws IOException if the file cannot be read, or was not written by this version
    */
   public BloomFilterLanguageModel(int order, String filename) throws IOException {
     super(order);
-    try {
-      readExternal(new ObjectInputStream(new GZIPInputStream(new FileInputStream(filename))));
-    } catch (ClassNotFoundException e) {
-      IOException ioe = new IOException("Could not rebuild bloom filter LM from file " + filename);
-      ioe.initCause(e);
-      throw ioe;
-    }
+    if (!LMSnapshot.isSnapshot(filename, SNAPSHOT_MAGIC))
+      throw new IOException(String.format(
+          "%s is not a bloom filter LM snapshot; models built by earlier versions must be rebuilt",
+          filename));
+    readSnapshot(LMSnapshot.map(filename, SNAPSHOT_MAGIC, SNAPSHOT_VERSION));
 
     int vocabSize = Vocabulary.size();
     p0 = -Math.log(vocabSize + 1);
@@ -145,7 +142,7 @@ public class BloomFilterLanguageModel extends DefaultNGramLanguageModel implemen
    * @param size the size of the Bloom filter, in bits
    * @param base a double. The base of the logarithm for quantization.
    */
-  private BloomFilterLanguageModel(String filename, int order, int size, double base) {
+  private BloomFilterLanguageModel(String filename, int order, long size, double base) {
     super(order);
     quantizationBase = base;
     populateBloomFilter(size, filename);
@@ -170,10 +167,12 @@ public class BloomFilterLanguageModel extends DefaultNGramLanguageModel implemen
    */
   private float wittenBell(int[] ngram, int ngramOrder) {
     int end = ngram.length;
+    // the hashes of all suffixes that are looked up, hashes[n] being that of the last n words
+    long[] hashes = suffixHashes(ngram, Math.min(ngramOrder, end));
     double p = p0; // current calculated probability
     // note that p0 and lambda0 are independent of the given
     // ngram so they are calculated ahead of time.
-    int MAX_QCOUNT = getCount(ngram, ngram.length - 1, ngram.length, maxQ);
+    int MAX_QCOUNT = getCount(hashes[1], maxQ);
     if (MAX_QCOUNT == 0) // OOV!
       return (float) p;
     double pML = Math.log(unQuantize(MAX_QCOUNT)) - numTokens;
@@ -186,14 +185,14 @@ public class BloomFilterLanguageModel extends DefaultNGramLanguageModel implemen
     // otherwise we calculate the linear interpolation
     // with higher order models.
     for (int i = end - 2; i >= end - ngramOrder && i >= 0; i--) {
-      int historyCnt = getCount(ngram, i, end, MAX_QCOUNT);
+      int historyCnt = getCount(hashes[end - i], MAX_QCOUNT);
       // if the count for the history is zero, all higher
       // terms in the interpolation must be zero, so we
       // are done here.
       if (historyCnt == 0) {
         return (float) p;
       }
-      int historyTypesAfter = getTypesAfter(ngram, i, end, historyCnt);
+      int historyTypesAfter = getTypesAfter(hashes[end - i], historyCnt);
       // unQuantize the counts we got from the BF
       double HC = unQuantize(historyCnt);
       double HTA = 1 + unQuantize(historyTypesAfter);
@@ -202,7 +201,7 @@ public class BloomFilterLanguageModel extends DefaultNGramLanguageModel implemen
       double oneMinusLambda = Math.log(HC) - Math.log(HTA + HC);
       // p *= 1 - lambda
       p += oneMinusLambda;
-      int wordCount = getCount(ngram, i + 1, end, historyTypesAfter);
+      int wordCount = getCount(hashes[end - i - 1], historyTypesAfter);
       double WC = unQuantize(wordCount);
       // p += lambda * p_ML(w|h)
       if (WC == 0) return (float) p;
@@ -217,17 +216,14 @@ public class BloomFilterLanguageModel extends DefaultNGramLanguageModel implemen
    * ngram in the training corpus? This corresponds roughly to algorithm 2 in Talbot and Osborne's
    * "Tera-Scale LMs on the Cheap."
    * 
-   * @param ngram array containing the ngram as a sub-array
-   * @param start the index of the first word of the ngram
-   * @param end the index after the last word of the ngram
+   * @param ngramHash the hash of the ngram, see {@link #hashNgram(int[], int, int)}
    * @param qcount the maximum possible count to be returned
    * 
    * @return the number of times the ngram was seen in the training corpus, quantized
    */
-  private int getCount(int[] ngram, int start, int end, int qcount) {
+  private int getCount(long ngramHash, int qcount) {
     for (int i = 1; i <= qcount; i++) {
-      int hash = hashNgram(ngram, start, end, i);
-      if (!bf.query(hash, countFuncs)) {
+      if (!bf.query(hashValue(ngramHash, COUNTS, i))) {
         return i - 1;
       }
     }
@@ -240,24 +236,20 @@ public class BloomFilterLanguageModel extends DefaultNGramLanguageModel implemen
    * This is another version of algorithm 2. As noted in the paper, we have different algorithms for
    * getting ngram counts versus suffix counts because c(x) = 1 is a proxy item for s(x) = 1
    * 
-   * @param ngram an array the contains the ngram as a sub-array
-   * @param start the index of the first word of the ngram
-   * @param end the index after the last word of the ngram
+   * @param ngramHash the hash of the ngram, see {@link #hashNgram(int[], int, int)}
    * @param qcount the maximum possible return value
    * 
    * @return the number of distinct types observed to follow an ngram in the training corpus,
    *         quantized
    */
-  private int getTypesAfter(int[] ngram, int start, int end, int qcount) {
+  private int getTypesAfter(long ngramHash, int qcount) {
     // first we check c(x) >= 1
-    int hash = hashNgram(ngram, start, end, 1);
-    if (!bf.query(hash, countFuncs)) {
+    if (!bf.query(hashValue(ngramHash, COUNTS, 1))) {
       return 0;
     }
     // if c(x) >= 1, we check for the stored suffix count
     for (int i = 1; i < qcount; i++) {
-      hash = hashNgram(ngram, start, end, i);
-      if (!bf.query(hash, typesFuncs)) {
+      if (!bf.query(hashValue(ngramHash, TYPES, i))) {
         return i - 1;
       }
     }
@@ -292,21 +284,57 @@ public class BloomFilterLanguageModel extends DefaultNGramLanguageModel implemen
   }
 
   /**
-   * Converts an n-gram and a count into a value that can be stored into a Bloom filter. This is
-   * adapted directly from <code>AbstractPhrase.hashCode()</code> elsewhere in the Joshua code base.
+   * Hashes an n-gram. Words are hashed from the last one backwards, so that the hash of each suffix
+   * of an n-gram is an intermediate result of hashing the whole n-gram.
    * 
    * @param ngram an array containing the ngram as a sub-array
    * @param start the index of the first word of the ngram
    * @param end the index after the last word of the ngram
-   * @param val the count of the ngram
    * 
-   * @return a value suitable to be stored in a Bloom filter
+   * @return the hash of the ngram
    */
-  private int hashNgram(int[] ngram, int start, int end, int val) {
-    int result = HASH_OFFSET * HASH_SEED + val;
-    for (int i = start; i < end; i++)
-      result = HASH_OFFSET * result + ngram[i];
-    return result;
+  static long hashNgram(int[] ngram, int start, int end) {
+    long hash = HASH_SEED;
+    for (int i = end - 1; i >= start; i--)
+      hash = nextHash(hash, ngram[i]);
+    return hash;
+  }
+
+  /**
+   * Hashes the suffixes of an n-gram, as {@link #hashNgram(int[], int, int)} would.
+   * 
+   * @param ngram the ngram
+   * @param maxLength the length of the longest suffix to hash
+   * 
+   * @return an array whose element n is the hash of the last n words of the ngram
+   */
+  static long[] suffixHashes(int[] ngram, int maxLength) {
+    long[] hashes = new long[maxLength + 1];
+    hashes[0] = HASH_SEED;
+    for (int n = 1; n <= maxLength; n++)
+      hashes[n] = nextHash(hashes[n - 1], ngram[ngram.length - n]);
+    return hashes;
+  }
+
+  private static long nextHash(long hash, int word) {
+    return Long.rotateLeft((hash ^ word) * 0x9E3779B97F4A7C15L, 31);
+  }
+
+  /**
+   * Converts an n-gram's hash and a count into the hash of an object stored in the Bloom filter.
+   * The result is mixed with MurmurHash3's finalizer, as the filter derives all its bits from it.
+   * 
+   * @param ngramHash the hash of the ngram
+   * @param kind {@link #COUNTS} or {@link #TYPES}
+   * @param val the (quantized) count
+   * 
+   * @return the hash of the object to be stored or looked up in the Bloom filter
+   */
+  private static long hashValue(long ngramHash, long kind, int val) {
+    long h = ngramHash ^ (kind * val);
+    h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+    h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+    return h ^ (h >>> 33);
   }
 
   /**
@@ -339,17 +367,12 @@ public class BloomFilterLanguageModel extends DefaultNGramLanguageModel implemen
       return;
     }
     int order = Integer.parseInt(argv[1]);
-    int size = (int) (Integer.parseInt(argv[2]) * Math.pow(2, 23));
+    long size = Long.parseLong(argv[2]) << 23;
     double base = Double.parseDouble(argv[3]);
 
     try {
       BloomFilterLanguageModel lm = new BloomFilterLanguageModel(argv[0], order, size, base);
-
-      ObjectOutputStream out =
-          new ObjectOutputStream(new GZIPOutputStream(new FileOutputStream(argv[4])));
-
-      lm.writeExternal(out);
-      out.close(); //TODO: try-with-resources
+      lm.writeSnapshot(argv[4]);
     } catch (IOException e) {
       LOG.error(e.getMessage(), e);
     }
@@ -364,40 +387,36 @@ public class BloomFilterLanguageModel extends DefaultNGramLanguageModel implemen
    * @param bloomFilterSize the size of the Bloom filter, in bits
    * @param filename path to the statistics file
    */
-  private void populateBloomFilter(int bloomFilterSize, String filename) {
+  private void populateBloomFilter(long bloomFilterSize, String filename) {
     HashMap<String, Long> typesAfter = new HashMap<>();
     try {
-      FileInputStream file_in = new FileInputStream(filename);
-      FileInputStream file_in_copy = new FileInputStream(filename);
-      InputStream in;
-      InputStream estimateStream;
-      if (filename.endsWith(".gz")) {
-        in = new GZIPInputStream(file_in);
-        estimateStream = new GZIPInputStream(file_in_copy);
-      } else {
-        in = file_in;
-        estimateStream = file_in_copy;
+      try (InputStream estimateStream = openStatistics(filename)) {
+        int numObjects = estimateNumberOfObjects(estimateStream);
+        LOG.debug("Estimated number of objects: {}", numObjects);
+        bf = new BloomFilter(bloomFilterSize, numObjects);
+        LOG.debug("Bloom filter of {} bits with {} hash functions", bf.size(), bf.numHashFunctions);
+      }
+      try (InputStream in = openStatistics(filename)) {
+        populateFromInputStream(in, typesAfter);
       }
-      int numObjects = estimateNumberOfObjects(estimateStream);
-      LOG.debug("Estimated number of objects: {}", numObjects);
-      bf = new BloomFilter(bloomFilterSize, numObjects);
-      countFuncs = bf.initializeHashFunctions();
-      populateFromInputStream(in, typesAfter);
-      in.close();
     } catch (IOException e) {
       LOG.error(e.getMessage(), e);
       return;
     }
-    typesFuncs = bf.initializeHashFunctions();
     for (String history : typesAfter.keySet()) {
       String[] toks = Regex.spaces.split(history);
       int[] hist = new int[toks.length];
       for (int i = 0; i < toks.length; i++)
         hist[i] = Vocabulary.id(toks[i]);
-      add(hist, typesAfter.get(history), typesFuncs);
+      add(hist, 0, hist.length, typesAfter.get(history), TYPES);
     }
   }
 
+  private static InputStream openStatistics(String filename) throws IOException {
+    InputStream in = new FileInputStream(filename);
+    return filename.endsWith(".gz") ? new GZIPInputStream(in) : in;
+  }
+
   /**
    * Estimate the number of objects that will be stored in the Bloom filter. The optimum number of
    * hash functions depends on the number of items that will be stored, so we want a guess before we
@@ -430,7 +449,8 @@ public class BloomFilterLanguageModel extends DefaultNGramLanguageModel implemen
   /**
    * Reads the statistics from a source and stores them in the Bloom filter. The ngram counts are
    * stored immediately in the Bloom filter, but the counts of distinct types following each ngram
-   * are accumulated from the file as we go.
+   * are accumulated from the file as we go. Reading stops at the first line without a valid count,
+   * as estimating the number of objects does.
    * 
    * @param source an InputStream pointing to the statistics
    * @param types a HashMap that will stores the accumulated counts of distinct types observed to
@@ -441,6 +461,14 @@ public class BloomFilterLanguageModel extends DefaultNGramLanguageModel implemen
     for (String line: new LineReader(source)) {
       String[] toks = Regex.spaces.split(line);
       if ((toks.length < 2) || (toks.length > ngramOrder + 1)) continue;
+      long cnt;
+      try {
+        cnt = Long.parseLong(toks[toks.length - 1]);
+      } catch (NumberFormatException e) {
+        LOG.error(e.getMessage(), e);
+        break;
+      }
+
       int[] ngram = new int[toks.length - 1];
       StringBuilder history = new StringBuilder();
       for (int i = 0; i < toks.length - 1; i++) {
@@ -448,20 +476,14 @@ public class BloomFilterLanguageModel extends DefaultNGramLanguageModel implemen
         if (i < toks.length - 2) history.append(toks[i]).append(" ");
       }
 
-      long cnt = Long.parseLong(toks[toks.length - 1]);
-      add(ngram, cnt, countFuncs);
+      add(ngram, 0, ngram.length, cnt, COUNTS);
       if (toks.length == 2) { // unigram
         numTokens = logAdd(numTokens, Math.log(cnt));
         // no need to count types after ""
         // that's what vocabulary.size() is for.
         continue;
       }
-      if (types.get(history) == null)
-        types.put(history.toString(), 1L);
-      else {
-        long x = types.get(history);
-        types.put(history.toString(), x + 1);
-      }
+      types.merge(history.toString(), 1L, Long::sum);
     }
   }
 
@@ -469,73 +491,51 @@ public class BloomFilterLanguageModel extends DefaultNGramLanguageModel implemen
    * Adds an ngram, along with an associated value, to the Bloom filter. This corresponds to Talbot
    * and Osborne's "Tera-scale LMs on the cheap", algorithm 1.
    * 
-   * @param ngram an array representing the ngram
+   * @param ngram an array containing the ngram as a sub-array
+   * @param start the index of the first word of the ngram
+   * @param end the index after the last word of the ngram
    * @param value the value to be associated with the ngram
-   * @param funcs an array of long to be used as hash functions
+   * @param kind {@link #COUNTS} or {@link #TYPES}
    */
-  private void add(int[] ngram, long value, long[][] funcs) {
+  private void add(int[] ngram, int start, int end, long value, long kind) {
     if (ngram == null) return;
+    long ngramHash = hashNgram(ngram, start, end);
     int qValue = quantize(value);
-    for (int i = 1; i <= qValue; i++) {
-      int hash = hashNgram(ngram, 0, ngram.length, i);
-      bf.add(hash, funcs);
-    }
+    for (int i = 1; i <= qValue; i++)
+      bf.add(hashValue(ngramHash, kind, i));
   }
 
   /**
-   * Read a Bloom filter LM from an external file.
+   * Reads a Bloom filter LM from a binary snapshot. This assumes that the vocabulary is empty, so
+   * that words get the IDs they had when the LM was built.
    * 
-   * @param in an ObjectInput stream to read from
+   * @param in the snapshot, positioned after its header
    */
-  public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
-    int vocabSize = in.readInt();
-    for (int i = 0; i < vocabSize; i++) {
-      String line = in.readUTF();
-      Vocabulary.id(line);
-    }
-    numTokens = in.readDouble();
-    countFuncs = new long[in.readInt()][2];
-    for (int i = 0; i < countFuncs.length; i++) {
-      countFuncs[i][0] = in.readLong();
-      countFuncs[i][1] = in.readLong();
-    }
-    typesFuncs = new long[in.readInt()][2];
-    for (int i = 0; i < typesFuncs.length; i++) {
-      typesFuncs[i][0] = in.readLong();
-      typesFuncs[i][1] = in.readLong();
-    }
-    quantizationBase = in.readDouble();
-    bf = new BloomFilter();
-    bf.readExternal(in);
+  private void readSnapshot(ByteBuffer in) {
+    for (String word : LMSnapshot.readWords(in))
+      Vocabulary.id(word);
+    numTokens = in.getDouble();
+    quantizationBase = in.getDouble();
+    bf = BloomFilter.readSnapshot(in);
   }
 
   /**
-   * Write a Bloom filter LM to some external location.
+   * Writes a Bloom filter LM as a binary snapshot.
    * 
-   * @param out an ObjectOutput stream to write to
+   * @param filename path to the snapshot file
    * 
-   * @throws IOException if an input or output exception occurred
+   * @throws IOException if the file cannot be written
    */
-  public void writeExternal(ObjectOutput out) throws IOException {
-    out.writeInt(Vocabulary.size());
-    for (int i = 0; i < Vocabulary.size(); i++) {
-      // out.writeBytes(vocabulary.getWord(i));
-      // out.writeChar('\n'); // newline
-      out.writeUTF(Vocabulary.word(i));
-    }
-    out.writeDouble(numTokens);
-    out.writeInt(countFuncs.length);
-    for (long[] countFunc : countFuncs) {
-      out.writeLong(countFunc[0]);
-      out.writeLong(countFunc[1]);
-    }
-    out.writeInt(typesFuncs.length);
-    for (long[] typesFunc : typesFuncs) {
-      out.writeLong(typesFunc[0]);
-      out.writeLong(typesFunc[1]);
+  public void writeSnapshot(String filename) throws IOException {
+    try (DataOutputStream out = LMSnapshot.create(filename, SNAPSHOT_MAGIC, SNAPSHOT_VERSION)) {
+      String[] words = new String[Vocabulary.size()];
+      for (int i = 0; i < words.length; i++)
+        words[i] = Vocabulary.word(i);
+      LMSnapshot.writeWords(out, words);
+      out.writeDouble(numTokens);
+      out.writeDouble(quantizationBase);
+      bf.writeSnapshot(out);
     }
-    out.writeDouble(quantizationBase);
-    bf.writeExternal(out);
   }
 
   /**
@@ -559,7 +559,7 @@ public class BloomFilterLanguageModel extends DefaultNGramLanguageModel implemen
   @Override
   public boolean isOov(int id) {
     int[] ngram = new int[] {id};
-    int MAX_QCOUNT = getCount(ngram, ngram.length - 1, ngram.length, maxQ);
+    int MAX_QCOUNT = getCount(hashNgram(ngram, 0, 1), maxQ);
     return (MAX_QCOUNT == 0);
   }
 }
@@ -18,21 +18,29 @@
  */
 package org.apache.joshua.decoder.ff.lm.buildin_lm;
 
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
 
 import org.apache.joshua.corpus.Vocabulary;
 import org.apache.joshua.decoder.ff.lm.AbstractLM;
 import org.apache.joshua.decoder.ff.lm.ArpaFile;
 import org.apache.joshua.decoder.ff.lm.ArpaNgram;
+import org.apache.joshua.decoder.ff.lm.LMSnapshot;
 import org.apache.joshua.util.Bits;
 import org.apache.joshua.util.Regex;
 import org.slf4j.Logger;
@@ -49,6 +57,10 @@ import org.slf4j.LoggerFactory;
  * <p>
  * Additionally, each node in the trie stores
  * the backoff weight for that context.
+ * <p>
+ * Once built, the trie can be saved as a binary snapshot with {@link #writeSnapshot(String)},
+ * which {@link #load(String)} maps and searches in place, rather than reading the ARPA file on
+ * later startups.
  *
  * @author Lane Schwartz
  * @see <a href="http://www.speech.sri.com/projects/srilm/manpages/ngram-discount.7.html">SRILM ngram-discount documentation</a>
@@ -62,27 +74,45 @@ public class TrieLM extends AbstractLM { //DefaultNGramLanguageModel {
    */
   private static final int ROOT_NODE_ID = 0;
 
+  static final int SNAPSHOT_MAGIC = 0x4a545249; // "JTRI"
+  static final int SNAPSHOT_VERSION = 2;
 
-  /**
-   * Maps from (node id, word id for child) --> node id of child.
-   */
-  private final Map<Long,Integer> children;
 
   /**
-   * Maps from (node id, word id for lookup word) -->
-   * log prob of lookup word given context
-   *
-   * (the context is defined by where you are in the tree).
+   * No node, returned by {@link Trie#child(int, int)} for missing children.
    */
-  private final Map<Long,Float> logProbs;
+  private static final int NO_NODE = -1;
 
   /**
-   * Maps from (node id) -->
-   * backoff weight for that context
-   *
-   * (the context is defined by where you are in the tree).
+   * The trie's maps, built in memory from an ARPA file or read in place from a snapshot.
    */
-  private final Map<Integer,Float> backoffs;
+  private interface Trie {
+
+    /**
+     * @return the ID of the child of a node for a word (a {@link Vocabulary} ID), or NO_NODE
+     */
+    int child(int nodeID, int word);
+
+    /**
+     * @return whether the words of a node can affect the probability of a following word: those
+     *         that are the context of a longer n-gram, or have a backoff weight
+     */
+    boolean isContext(int nodeID);
+
+    /**
+     * @return a map from (node id, word id for child) --> node id of child
+     */
+    Map<Long,Integer> children();
+
+    /**
+     * Writes the snapshot data that follows the order: the words, then the children, log probs
+     * and backoffs, each as keys sorted for binary search and their values, then the context nodes
+     * as a bitset.
+     */
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  private final Trie trie;
 
   public TrieLM(Vocabulary vocab, String file) throws FileNotFoundException {
     this(new ArpaFile(file,vocab));
@@ -97,12 +127,16 @@ public class TrieLM extends AbstractLM { //DefaultNGramLanguageModel {
   public TrieLM(ArpaFile arpaFile) throws FileNotFoundException {
     super(Vocabulary.size(), arpaFile.getOrder());
 
-    int ngramCounts = arpaFile.size();
+    // The header's counts are enough to size the maps; counting the n-grams would read the file twice
+    long totalCount = 0;
+    for (long count : arpaFile.getNgramCounts())
+      totalCount += count;
+    int ngramCounts = (int) Math.min(totalCount, 1 << 30);
     LOG.debug("ARPA file contains {} n-grams", ngramCounts);
 
-    this.children = new HashMap<>(ngramCounts);
-    this.logProbs = new HashMap<>(ngramCounts);
-    this.backoffs = new HashMap<>(ngramCounts);
+    final MemoryTrie trie = new MemoryTrie(ngramCounts);
+    this.trie = trie;
+    final Map<Long,Integer> children = trie.children;
 
     int nodeCounter = 0;
 
@@ -142,7 +176,9 @@ public class TrieLM extends AbstractLM { //DefaultNGramLanguageModel {
           long key = Bits.encodeAsLong(contextNodeID, word);
           float logProb = ngram.getValue();
           LOG.debug("logProbs.put({}:{}, {}", contextNodeID, word, logProb);
-          this.logProbs.put(key, logProb);
+          trie.logProbs.put(key, logProb);
+          if (contextNodeID != ROOT_NODE_ID)
+            trie.contextNodes.set(contextNodeID);
         }
       }
 
@@ -179,7 +215,9 @@ public class TrieLM extends AbstractLM { //DefaultNGramLanguageModel {
         {
           float backoff = ngram.getBackoff();
           LOG.debug("backoffs.put({}:{}, {})", backoffNodeID, word, backoff);
-          this.backoffs.put(backoffNodeID, backoff);
+          trie.backoffs.put(backoffNodeID, backoff);
+          if (backoff != 0.0f)
+            trie.contextNodes.set(backoffNodeID);
         }
       }
 
@@ -187,6 +225,62 @@ public class TrieLM extends AbstractLM { //DefaultNGramLanguageModel {
   }
 
 
+  /**
+   * Reads a snapshot written by {@link #writeSnapshot(String)}, which is used in place.
+   */
+  private TrieLM(ByteBuffer in) {
+    super(Vocabulary.size(), in.getInt());
+    this.trie = new MappedTrie(in);
+  }
+
+  /**
+   * Loads a language model from a snapshot written by {@link #writeSnapshot(String)}, or from an
+   * ARPA file.
+   *
+   * @param file path to a snapshot or ARPA file
+   * @return the language model
+   * @throws IOException if the file cannot be read
+   */
+  public static TrieLM load(String file) throws IOException {
+    if (LMSnapshot.isSnapshot(file, SNAPSHOT_MAGIC)) {
+      LOG.info("Reading TrieLM snapshot {}", file);
+      return new TrieLM(LMSnapshot.map(file, SNAPSHOT_MAGIC, SNAPSHOT_VERSION));
+    }
+    return new TrieLM(new ArpaFile(file, new Vocabulary()));
+  }
+
+  /**
+   * Writes the trie as a binary snapshot, to be read by {@link #load(String)}.
+   *
+   * @param file path to the snapshot file
+   * @throws IOException if the file cannot be written
+   */
+  public void writeSnapshot(String file) throws IOException {
+    try (DataOutputStream out = LMSnapshot.create(file, SNAPSHOT_MAGIC, SNAPSHOT_VERSION)) {
+      out.writeInt(getOrder());
+      trie.write(out);
+    }
+  }
+
+  /**
+   * Walks the trie from the most recent word of the context backwards, and returns the length of
+   * the longest suffix whose node can affect the probability of a following word.
+   */
+  @Override
+  public int rightContextLength(int[] words, int start, int length) {
+    final int last = start + length - 1;
+    int nodeID = ROOT_NODE_ID;
+    int result = 0;
+    for (int n = 1; n <= length && n < getOrder(); n++) {
+      nodeID = trie.child(nodeID, words[last - n + 1]);
+      if (nodeID == NO_NODE)
+        break;
+      if (trie.isContext(nodeID))
+        result = n;
+    }
+    return result;
+  }
+
   @Override
   protected double logProbabilityOfBackoffState_helper(int[] ngram, int order, int qtyAdditionalBackoffWeight) {
     throw new UnsupportedOperationException("probabilityOfBackoffState_helper undefined for TrieLM");
@@ -198,7 +292,7 @@ public class TrieLM extends AbstractLM { //DefaultNGramLanguageModel {
   }
 
   public Map<Long,Integer> getChildren() {
-    return this.children;
+    return trie.children();
   }
 
   public static void main(String[] args) throws IOException {
@@ -281,4 +375,214 @@ public class TrieLM extends AbstractLM { //DefaultNGramLanguageModel {
     throw new RuntimeException("Not implemented!");
   }
 
-}
\ No newline at end of file
+
+  /**
+   * The trie built from an ARPA file, in hash maps keyed by {@link Vocabulary} IDs.
+   */
+  private static final class MemoryTrie implements Trie {
+
+    /**
+     * Maps from (node id, word id for child) --> node id of child.
+     */
+    final Map<Long,Integer> children;
+
+    /**
+     * Maps from (node id, word id for lookup word) -->
+     * log prob of lookup word given context
+     *
+     * (the context is defined by where you are in the tree).
+     */
+    final Map<Long,Float> logProbs;
+
+    /**
+     * Maps from (node id) -->
+     * backoff weight for that context
+     *
+     * (the context is defined by where you are in the tree).
+     */
+    final Map<Integer,Float> backoffs;
+
+    final BitSet contextNodes = new BitSet();
+
+    MemoryTrie(int ngramCounts) {
+      this.children = new HashMap<>(ngramCounts);
+      this.logProbs = new HashMap<>(ngramCounts);
+      this.backoffs = new HashMap<>(ngramCounts);
+    }
+
+    @Override
+    public int child(int nodeID, int word) {
+      Integer childID = children.get(Bits.encodeAsLong(nodeID, word));
+      return (childID == null) ? NO_NODE : childID;
+    }
+
+    @Override
+    public boolean isContext(int nodeID) {
+      return contextNodes.get(nodeID);
+    }
+
+    @Override
+    public Map<Long,Integer> children() {
+      return children;
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+      String[] words = new String[Vocabulary.size()];
+      for (int i = 0; i < words.length; i++)
+        words[i] = Vocabulary.word(i);
+      LMSnapshot.writeWords(out, words);
+
+      long[] longKeys = sortedKeys(children.keySet());
+      int[] intValues = new int[longKeys.length];
+      for (int i = 0; i < longKeys.length; i++)
+        intValues[i] = children.get(longKeys[i]);
+      LMSnapshot.writeLongs(out, longKeys, longKeys.length);
+      LMSnapshot.writeInts(out, intValues, intValues.length);
+
+      longKeys = sortedKeys(logProbs.keySet());
+      float[] floatValues = new float[longKeys.length];
+      for (int i = 0; i < longKeys.length; i++)
+        floatValues[i] = logProbs.get(longKeys[i]);
+      LMSnapshot.writeLongs(out, longKeys, longKeys.length);
+      LMSnapshot.writeFloats(out, floatValues, floatValues.length);
+
+      int[] intKeys = new int[backoffs.size()];
+      int n = 0;
+      for (int key : backoffs.keySet())
+        intKeys[n++] = key;
+      Arrays.sort(intKeys);
+      floatValues = new float[intKeys.length];
+      for (int i = 0; i < intKeys.length; i++)
+        floatValues[i] = backoffs.get(intKeys[i]);
+      LMSnapshot.writeInts(out, intKeys, intKeys.length);
+      LMSnapshot.writeFloats(out, floatValues, floatValues.length);
+
+      long[] bits = contextNodes.toLongArray();
+      LMSnapshot.writeLongs(out, bits, bits.length);
+    }
+
+    private static long[] sortedKeys(Set<Long> keys) {
+      long[] sorted = new long[keys.size()];
+      int n = 0;
+      for (long key : keys)
+        sorted[n++] = key;
+      Arrays.sort(sorted);
+      return sorted;
+    }
+  }
+
+  /**
+   * The trie of a snapshot, searched in the mapped file. Keys pair a node ID with a word's index in
+   * the snapshot's words, which may differ from its {@link Vocabulary} ID.
+   */
+  private static final class MappedTrie implements Trie {
+
+    /* The Vocabulary ID of each word of the snapshot */
+    private final int[] ids;
+    /* The index in the snapshot's words of each Vocabulary ID (by absolute value), or -1 */
+    private final int[] snapshotWords;
+
+    private final LongBuffer childKeys;
+    private final IntBuffer childValues;
+    private final LongBuffer probKeys;
+    private final FloatBuffer probValues;
+    private final IntBuffer backoffKeys;
+    private final FloatBuffer backoffValues;
+    private final LongBuffer contextBits;
+
+    MappedTrie(ByteBuffer in) {
+      String[] words = LMSnapshot.readWords(in);
+      this.ids = new int[words.length];
+      for (int i = 0; i < words.length; i++)
+        ids[i] = Vocabulary.id(words[i]);
+      this.snapshotWords = new int[Vocabulary.size()];
+      Arrays.fill(snapshotWords, -1);
+      for (int i = 0; i < ids.length; i++)
+        snapshotWords[Math.abs(ids[i])] = i;
+
+      this.childKeys = LMSnapshot.mapLongs(in);
+      this.childValues = LMSnapshot.mapInts(in);
+      this.probKeys = LMSnapshot.mapLongs(in);
+      this.probValues = LMSnapshot.mapFloats(in);
+      this.backoffKeys = LMSnapshot.mapInts(in);
+      this.backoffValues = LMSnapshot.mapFloats(in);
+      this.contextBits = LMSnapshot.mapLongs(in);
+    }
+
+    @Override
+    public int child(int nodeID, int word) {
+      final int index = Math.abs(word);
+      if (index >= snapshotWords.length || snapshotWords[index] < 0)
+        return NO_NODE;
+      final int found = find(childKeys, Bits.encodeAsLong(nodeID, snapshotWords[index]));
+      return (found < 0) ? NO_NODE : childValues.get(found);
+    }
+
+    @Override
+    public boolean isContext(int nodeID) {
+      final int word = nodeID >>> 6;
+      return word < contextBits.limit() && (contextBits.get(word) & (1L << (nodeID & 63))) != 0;
+    }
+
+    @Override
+    public Map<Long,Integer> children() {
+      Map<Long,Integer> children = new HashMap<>(2 * childKeys.limit());
+      for (int i = 0; i < childKeys.limit(); i++) {
+        long key = childKeys.get(i);
+        children.put(Bits.encodeAsLong(Bits.decodeHighBits(key), ids[Bits.decodeLowBits(key)]),
+            childValues.get(i));
+      }
+      return children;
+    }
+
+    @Override
+    public void write(DataOutputStream out) throws IOException {
+      String[] words = new String[ids.length];
+      for (int i = 0; i < ids.length; i++)
+        words[i] = Vocabulary.word(ids[i]);
+      LMSnapshot.writeWords(out, words);
+
+      long[] longs = new long[childKeys.limit()];
+      childKeys.duplicate().get(longs);
+      LMSnapshot.writeLongs(out, longs, longs.length);
+      int[] ints = new int[childValues.limit()];
+      childValues.duplicate().get(ints);
+      LMSnapshot.writeInts(out, ints, ints.length);
+
+      longs = new long[probKeys.limit()];
+      probKeys.duplicate().get(longs);
+      LMSnapshot.writeLongs(out, longs, longs.length);
+      float[] floats = new float[probValues.limit()];
+      probValues.duplicate().get(floats);
+      LMSnapshot.writeFloats(out, floats, floats.length);
+
+      ints = new int[backoffKeys.limit()];
+      backoffKeys.duplicate().get(ints);
+      LMSnapshot.writeInts(out, ints, ints.length);
+      floats = new float[backoffValues.limit()];
+      backoffValues.duplicate().get(floats);
+      LMSnapshot.writeFloats(out, floats, floats.length);
+
+      longs = new long[contextBits.limit()];
+      contextBits.duplicate().get(longs);
+      LMSnapshot.writeLongs(out, longs, longs.length);
+    }
+
+    /* Binary search of sorted keys, returning the index of the key or -1 */
+    private static int find(LongBuffer keys, long key) {
+      int lo = 0, hi = keys.limit() - 1;
+      while (lo <= hi) {
+        final int mid = (lo + hi) >>> 1;
+        final long value = keys.get(mid);
+        if (value < key)
+          lo = mid + 1;
+        else if (value > key)
+          hi = mid - 1;
+        else
+          return mid;
+      }
+      return -1;
+    }
+  }
+}
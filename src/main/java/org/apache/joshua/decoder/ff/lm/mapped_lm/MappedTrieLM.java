@@ -0,0 +1,323 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.lm.mapped_lm;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.joshua.decoder.ff.lm.DefaultNGramLanguageModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An n-gram language model read from the binary trie written by {@link MappedTrieLMWriter}. The
+ * n-gram arrays are memory-mapped rather than loaded, so even large models are ready to use right
+ * away, and processes decoding with the same model share its pages. Only the LM's vocabulary and
+ * the codebooks of the 16-bit encoded probabilities and backoffs live on the heap.
+ *
+ * The trie is keyed by reversed n-grams: looking up p(w_n | w_1 ... w_n-1) starts at the unigram
+ * w_n and extends it with w_n-1, w_n-2, ... as long as the n-gram is found, binary-searching the
+ * sorted children of each entry. Backoff weights of the unmatched contexts are found the same way,
+ * starting from w_n-1. Lookups only use absolute reads of the mapped buffers, so the model is safe
+ * to share between decoding threads.
+ *
+ * Below the highest order, a bitset marks the entries that are the context of a longer n-gram or
+ * have a backoff weight, which answers {@link #rightContextLength(int[], int, int)} with one walk
+ * down the trie.
+ *
+ * Like the ARPA file it was built from, the model returns log10 probabilities.
+ */
+public class MappedTrieLM extends DefaultNGramLanguageModel {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MappedTrieLM.class);
+
+  static final int MAGIC = 0x4a4c4d54; // "JLMT"
+  static final int VERSION = 2;
+
+  static final String UNKNOWN_WORD = "<unk>";
+  /* Probability of the unknown word if the ARPA file does not list it */
+  static final float UNKNOWN_LOG_PROB = -100.0f;
+
+  /* LM word id of the unknown word, to which unmapped words map */
+  private static final int UNKNOWN_ID = 0;
+
+  private final Map<String, Integer> wordIds;
+
+  /* Maps Joshua's vocabulary ids to the LM's word ids */
+  private volatile int[] vocabIdToMyIdMapping = new int[16];
+
+  /*
+   * Per order (index n - 1); words and children are null where not stored. Values are stored either
+   * as codes (with a codebook) or as floats.
+   */
+  private final IntBuffer[] words;
+  private final IntBuffer[] children;
+  private final Values[] probs;
+  private final Values[] backoffs;
+  /* Per order below the highest, the bitset of entries that matter as contexts */
+  private final LongBuffer[] contexts;
+
+  private static final class Values {
+    private final float[] codebook;
+    private final ShortBuffer codes;
+    private final FloatBuffer floats;
+
+    Values(float[] codebook, ByteBuffer buffer) {
+      this.codebook = codebook;
+      this.codes = (codebook != null) ? buffer.asShortBuffer() : null;
+      this.floats = (codebook == null) ? buffer.asFloatBuffer() : null;
+    }
+
+    static long size(float[] codebook, long count) {
+      return (codebook != null ? 2 : 4) * count;
+    }
+
+    float get(int entry) {
+      if (codes != null)
+        return codebook[codes.get(entry) & 0xFFFF];
+      return floats.get(entry);
+    }
+  }
+
+  public MappedTrieLM(int order, String lm_file) {
+    super(order);
+
+    try (RandomAccessFile file = new RandomAccessFile(lm_file, "r");
+        FileChannel channel = file.getChannel()) {
+      if (file.readInt() != MAGIC)
+        throw new RuntimeException(String.format("%s is not a binary LM; convert ARPA files with %s",
+            lm_file, MappedTrieLMWriter.class.getName()));
+      int version = file.readInt();
+      if (version != VERSION)
+        throw new RuntimeException(String.format("%s has version %d, but version %d is required",
+            lm_file, version, VERSION));
+
+      byte[] headerBytes = new byte[file.readInt()];
+      file.readFully(headerBytes);
+      DataInputStream header = new DataInputStream(new ByteArrayInputStream(headerBytes));
+
+      final int fileOrder = header.readInt();
+      if (fileOrder != order)
+        LOG.warn("LM {} has order {}, but was configured with order {}", lm_file, fileOrder, order);
+
+      final int vocabSize = header.readInt();
+      wordIds = new HashMap<>(vocabSize * 2);
+      for (int i = 0; i < vocabSize; i++)
+        wordIds.put(header.readUTF(), i);
+
+      words = new IntBuffer[fileOrder];
+      children = new IntBuffer[fileOrder];
+      probs = new Values[fileOrder];
+      backoffs = new Values[fileOrder];
+      contexts = new LongBuffer[fileOrder];
+      final float[][] probCodebooks = new float[fileOrder][];
+      final float[][] backoffCodebooks = new float[fileOrder][];
+
+      final int[] counts = new int[fileOrder];
+      for (int n = 1; n <= fileOrder; n++) {
+        counts[n - 1] = header.readInt();
+        probCodebooks[n - 1] = readCodebook(header);
+        if (n < fileOrder)
+          backoffCodebooks[n - 1] = readCodebook(header);
+      }
+
+      long offset = align(12 + headerBytes.length);
+      for (int n = 1; n <= fileOrder; n++) {
+        final long count = counts[n - 1];
+        if (n > 1) {
+          words[n - 1] = map(channel, offset, 4 * count).asIntBuffer();
+          offset += align(4 * count);
+        }
+        long size = Values.size(probCodebooks[n - 1], count);
+        probs[n - 1] = new Values(probCodebooks[n - 1], map(channel, offset, size));
+        offset += align(size);
+        if (n < fileOrder) {
+          size = Values.size(backoffCodebooks[n - 1], count);
+          backoffs[n - 1] = new Values(backoffCodebooks[n - 1], map(channel, offset, size));
+          offset += align(size);
+          children[n - 1] = map(channel, offset, 4 * (count + 1)).asIntBuffer();
+          offset += align(4 * (count + 1));
+          size = 8 * ((count + 63) >>> 6);
+          contexts[n - 1] = map(channel, offset, size).asLongBuffer();
+          offset += size;
+        }
+      }
+
+      LOG.info("Mapped {}-gram LM {} with {} words and {} n-grams", fileOrder, lm_file, vocabSize,
+          Arrays.stream(counts).asLongStream().sum());
+    } catch (IOException e) {
+      throw new RuntimeException(String.format("Can't read lm_file '%s'", lm_file), e);
+    }
+  }
+
+  /* Returns null if the values are stored as floats */
+  private static float[] readCodebook(DataInputStream header) throws IOException {
+    final int size = header.readInt();
+    if (size < 0)
+      return null;
+    float[] codes = new float[size + 1];
+    codes[0] = Float.NaN;
+    for (int i = 1; i < codes.length; i++)
+      codes[i] = header.readFloat();
+    return codes;
+  }
+
+  private static ByteBuffer map(FileChannel channel, long offset, long length) throws IOException {
+    if (length > Integer.MAX_VALUE)
+      throw new RuntimeException("LM sections larger than 2 GB are not supported");
+    return channel.map(MapMode.READ_ONLY, offset, length);
+  }
+
+  private static long align(long offset) {
+    return (offset + 7) & ~7L;
+  }
+
+  @Override
+  public boolean registerWord(String token, int id) {
+    Integer myId = wordIds.get(token);
+    int[] mapping = vocabIdToMyIdMapping;
+    if (id >= mapping.length)
+      mapping = Arrays.copyOf(mapping, Math.max(id + 1, mapping.length * 2));
+    mapping[id] = (myId == null) ? UNKNOWN_ID : myId;
+    vocabIdToMyIdMapping = mapping;
+    return false;
+  }
+
+  @Override
+  public boolean isOov(int id) {
+    return toMyId(id) == UNKNOWN_ID;
+  }
+
+  private int toMyId(int id) {
+    final int[] mapping = vocabIdToMyIdMapping;
+    return (id >= 0 && id < mapping.length) ? mapping[id] : UNKNOWN_ID;
+  }
+
+  /**
+   * Finds a word among the children [start, end) of the previous order's entry.
+   *
+   * @return the index of the entry, or -1
+   */
+  private int find(IntBuffer levelWords, int start, int end, int word) {
+    int low = start;
+    int high = end - 1;
+    while (low <= high) {
+      final int mid = (low + high) >>> 1;
+      final int midWord = levelWords.get(mid);
+      if (midWord < word)
+        low = mid + 1;
+      else if (midWord > word)
+        high = mid - 1;
+      else
+        return mid;
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the entry at order n + 1 for the given word under an entry of order n, or -1.
+   */
+  private int child(int n, int entry, int word) {
+    if (n >= words.length)
+      return -1;
+    final IntBuffer levelChildren = children[n - 1];
+    return find(words[n], levelChildren.get(entry), levelChildren.get(entry + 1), word);
+  }
+
+  /**
+   * Walks the context backwards from its most recent word, as far as the trie has it, and returns
+   * the length of the longest suffix that is marked as mattering.
+   */
+  @Override
+  public int rightContextLength(int[] context, int start, int length) {
+    if (length == 0)
+      return 0;
+
+    final int last = start + length - 1;
+    int entry = toMyId(context[last]);
+    int result = isContext(1, entry) ? 1 : 0;
+    for (int n = 1; n < length; n++) {
+      entry = child(n, entry, toMyId(context[last - n]));
+      if (entry == -1)
+        break;
+      if (isContext(n + 1, entry))
+        result = n + 1;
+    }
+    return result;
+  }
+
+  private boolean isContext(int n, int entry) {
+    if (n >= words.length)
+      return false;
+    return (contexts[n - 1].get(entry >>> 6) & (1L << (entry & 63))) != 0;
+  }
+
+  /**
+   * Only the last {@code order} words of the n-gram are used.
+   */
+  @Override
+  protected float ngramLogProbability_helper(int[] ngram, int order) {
+    final int last = ngram.length - 1;
+    // Number of words of history used
+    final int history = Math.min(last, order - 1);
+
+    // Longest matching n-gram ending in the predicted word
+    int entry = toMyId(ngram[last]);
+    float prob = probs[0].get(entry);
+    int matched = 1;
+    for (int n = 1; n <= history; n++) {
+      entry = child(n, entry, toMyId(ngram[last - n]));
+      if (entry == -1)
+        break;
+      final float p = probs[n].get(entry);
+      if (!Float.isNaN(p)) {
+        prob = p;
+        matched = n + 1;
+      }
+    }
+
+    // Back off from every context longer than the matched n-gram's
+    if (matched <= history) {
+      entry = toMyId(ngram[last - 1]);
+      for (int n = 1; n <= history; n++) {
+        if (n > 1) {
+          entry = child(n - 1, entry, toMyId(ngram[last - n]));
+          if (entry == -1)
+            break;
+        }
+        if (n >= matched)
+          prob += backoffs[n - 1].get(entry);
+      }
+    }
+
+    return prob;
+  }
+}
@@ -0,0 +1,440 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.lm.mapped_lm;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.joshua.corpus.Vocabulary;
+import org.apache.joshua.decoder.ff.lm.ArpaFile;
+import org.apache.joshua.decoder.ff.lm.ArpaNgram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Converts an ARPA language model into the binary trie read by {@link MappedTrieLM}.
+ *
+ * The n-grams of each order are stored with their words reversed (the predicted word first), sorted
+ * by word id within each parent, as parallel arrays: word ids, probabilities and (below the highest
+ * order) backoffs and the offsets of each entry's children in the next order.
+ * Unigrams are indexed by word id directly. Where an order has at most 65535 distinct probabilities
+ * (or backoffs), they are stored as 16-bit indices into a codebook of those values, which halves
+ * their size without losing precision; otherwise they are stored as floats.
+ *
+ * Missing suffixes of n-grams (which the ARPA format does not strictly require) are added as
+ * entries without a probability of their own, so that every entry has a parent; so are missing
+ * contexts (the n-grams without their last word). Below the highest order, a bitset marks the
+ * entries whose words can affect the probability of a following word (those that are the context
+ * of a longer n-gram, or have a backoff weight), which {@link MappedTrieLM} uses to minimize
+ * language model states.
+ *
+ * Usage: MappedTrieLMWriter lm.arpa[.gz] lm.bin
+ */
+public class MappedTrieLMWriter {
+
+  private static final Logger LOG = LoggerFactory.getLogger(MappedTrieLMWriter.class);
+
+  /* Size of a codebook; code 0 is reserved for "no probability" */
+  private static final int MAX_CODES = 65535;
+
+  /* The largest array the JVM allocates, and the largest hash table of a level */
+  private static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+  private static final int MAX_TABLE_SIZE = 1 << 30;
+
+  /**
+   * The n-grams of one order, stored in flat arrays rather than as objects, so that large LMs fit in
+   * memory: entry i has the LM word ids words[i * n, (i + 1) * n), predicted word first. Entries
+   * are found through an open-addressing hash table of their indices, which is kept at most half
+   * full. A level therefore holds at most MAX_TABLE_SIZE / 2 entries, and fewer for orders whose
+   * words would not fit in one array; sizes are computed as longs and checked before growing.
+   */
+  private static final class Level {
+    final int n;
+    int size = 0;
+    int[] words;
+    float[] probs;
+    float[] backoffs;
+    /* Entries that are the context of a longer n-gram */
+    final BitSet extended = new BitSet();
+    /* Entry index + 1 per slot, 0 for empty slots */
+    int[] table = new int[1 << 10];
+
+    Level(int n) {
+      this.n = n;
+      words = new int[16 * n];
+      probs = new float[16];
+      backoffs = new float[16];
+    }
+
+    /**
+     * Returns the index of the entry with the words key[from, from + n), adding it if needed.
+     */
+    int entry(int[] key, int from) {
+      int slot = hash(key, from) & (table.length - 1);
+      for (int index; (index = table[slot]) != 0; slot = (slot + 1) & (table.length - 1))
+        if (matches(index - 1, key, from))
+          return index - 1;
+
+      if (size == probs.length)
+        grow();
+      final int index = size++;
+      System.arraycopy(key, from, words, index * n, n);
+      probs[index] = Float.NaN;
+      backoffs[index] = 0.0f;
+      table[slot] = index + 1;
+      if (2L * size > table.length)
+        rehash();
+      return index;
+    }
+
+    private void grow() {
+      final long capacity = Math.min(2L * size, Math.min(MAX_ARRAY_SIZE / n, MAX_TABLE_SIZE / 2));
+      if (capacity <= size)
+        throw new IllegalStateException(String.format(
+            "Too many %d-grams: at most %d fit in memory", n, size));
+      words = Arrays.copyOf(words, (int) capacity * n);
+      probs = Arrays.copyOf(probs, (int) capacity);
+      backoffs = Arrays.copyOf(backoffs, (int) capacity);
+    }
+
+    private boolean matches(int index, int[] key, int from) {
+      for (int i = 0; i < n; i++)
+        if (words[index * n + i] != key[from + i])
+          return false;
+      return true;
+    }
+
+    private int hash(int[] key, int from) {
+      int hash = 0;
+      for (int i = 0; i < n; i++)
+        hash = 31 * hash + key[from + i];
+      return hash ^ (hash >>> 16) ^ (hash >>> 7);
+    }
+
+    private void rehash() {
+      if (table.length >= MAX_TABLE_SIZE)
+        throw new IllegalStateException(String.format(
+            "Too many %d-grams: at most %d fit in memory", n, MAX_TABLE_SIZE / 2));
+      table = new int[2 * table.length];
+      for (int index = 0; index < size; index++) {
+        int slot = hash(words, index * n) & (table.length - 1);
+        while (table[slot] != 0)
+          slot = (slot + 1) & (table.length - 1);
+        table[slot] = index + 1;
+      }
+    }
+
+    /**
+     * Returns the entries in trie order (by their words, predicted word first), sorted by a radix
+     * sort on the word ids, and drops the hash table, which is no longer needed.
+     */
+    int[] sort(int vocabSize) {
+      table = null;
+      int[] sorted = new int[size];
+      for (int i = 0; i < size; i++)
+        sorted[i] = i;
+      int[] buffer = new int[size];
+      int[] starts = new int[vocabSize + 1];
+      for (int pos = n - 1; pos >= 0; pos--) {
+        Arrays.fill(starts, 0);
+        for (int index : sorted)
+          starts[words[index * n + pos] + 1]++;
+        for (int w = 0; w < vocabSize; w++)
+          starts[w + 1] += starts[w];
+        for (int index : sorted)
+          buffer[starts[words[index * n + pos]]++] = index;
+        int[] swap = sorted;
+        sorted = buffer;
+        buffer = swap;
+      }
+      return sorted;
+    }
+
+    int word(int index, int pos) {
+      return words[index * n + pos];
+    }
+  }
+
+  private final List<String> words = new ArrayList<>();
+  private final Map<String, Integer> wordIds = new HashMap<>();
+  private final List<Level> ngrams = new ArrayList<>();
+
+  public MappedTrieLMWriter() {
+    // LM word id 0 is the unknown word, so that unmapped words are unknown
+    wordId(MappedTrieLM.UNKNOWN_WORD);
+  }
+
+  private int wordId(String word) {
+    Integer id = wordIds.get(word);
+    if (id == null) {
+      id = words.size();
+      words.add(word);
+      wordIds.put(word, id);
+    }
+    return id;
+  }
+
+  private Level level(int n) {
+    while (ngrams.size() < n)
+      ngrams.add(new Level(ngrams.size() + 1));
+    return ngrams.get(n - 1);
+  }
+
+  /**
+   * Adds an n-gram.
+   *
+   * @param ngram the words of the n-gram, in sentence order
+   * @param prob its log10 probability
+   * @param backoff its log10 backoff weight
+   */
+  public void add(String[] ngram, float prob, float backoff) {
+    int[] reversed = new int[ngram.length];
+    for (int i = 0; i < ngram.length; i++)
+      reversed[ngram.length - 1 - i] = wordId(ngram[i]);
+    Level level = level(ngram.length);
+    int entry = level.entry(reversed, 0);
+    level.probs[entry] = prob;
+    level.backoffs[entry] = backoff;
+  }
+
+  /**
+   * Adds all n-grams of an ARPA file.
+   *
+   * @param arpaFile the ARPA file
+   */
+  public void addAll(ArpaFile arpaFile) {
+    int count = 0;
+    for (ArpaNgram ngram : arpaFile) {
+      int[] context = ngram.getContext();
+      String[] tokens = new String[context.length + 1];
+      for (int i = 0; i < context.length; i++)
+        tokens[i] = Vocabulary.word(context[i]);
+      tokens[context.length] = Vocabulary.word(ngram.getWord());
+      add(tokens, ngram.getValue(), ngram.getBackoff());
+      if (++count % 1000000 == 0)
+        LOG.info("Read {} n-grams", count);
+    }
+  }
+
+  /**
+   * Writes the binary trie.
+   *
+   * @param filename the output file
+   * @throws IOException if the file cannot be written
+   */
+  public void write(String filename) throws IOException {
+    if (ngrams.isEmpty())
+      throw new IllegalStateException("No n-grams to write");
+    final int order = ngrams.size();
+
+    // Every entry needs its parent and its context: add missing ones, highest order first
+    for (int n = order; n > 1; n--) {
+      final Level level = ngrams.get(n - 1);
+      final Level lower = ngrams.get(n - 2);
+      for (int i = 0; i < level.size; i++) {
+        lower.entry(level.words, i * n);
+        lower.extended.set(lower.entry(level.words, i * n + 1));
+      }
+    }
+
+    // Every word is a unigram (the unknown word may be missing)
+    final Level unigrams = level(1);
+    for (int w = 0; w < words.size(); w++) {
+      int entry = unigrams.entry(new int[] { w }, 0);
+      if (Float.isNaN(unigrams.probs[entry]))
+        unigrams.probs[entry] = MappedTrieLM.UNKNOWN_LOG_PROB;
+    }
+
+    // The entries of each order, in the order they are written
+    List<int[]> sorted = new ArrayList<>(order);
+    for (int n = 1; n <= order; n++)
+      sorted.add(ngrams.get(n - 1).sort(words.size()));
+
+    ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+    DataOutputStream header = new DataOutputStream(headerBytes);
+    header.writeInt(order);
+    header.writeInt(words.size());
+    for (String word : words)
+      header.writeUTF(word);
+
+    List<float[]> probCodebooks = new ArrayList<>(order);
+    List<float[]> backoffCodebooks = new ArrayList<>(order);
+    for (int n = 1; n <= order; n++) {
+      Level level = ngrams.get(n - 1);
+      header.writeInt(level.size);
+      probCodebooks.add(writeCodebook(header, level.probs, level.size));
+      if (n < order)
+        backoffCodebooks.add(writeCodebook(header, level.backoffs, level.size));
+    }
+    header.close();
+
+    // The sections follow the header in this order, each aligned to 8 bytes
+    final long dataStart = align(12 + headerBytes.size());
+    long offset = 0;
+
+    try (DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(filename)))) {
+      out.writeInt(MappedTrieLM.MAGIC);
+      out.writeInt(MappedTrieLM.VERSION);
+      out.writeInt(headerBytes.size());
+      headerBytes.writeTo(out);
+      pad(out, dataStart - 12 - headerBytes.size());
+
+      for (int n = 1; n <= order; n++) {
+        Level level = ngrams.get(n - 1);
+        int[] entries = sorted.get(n - 1);
+        if (n > 1) {
+          for (int e : entries)
+            out.writeInt(level.word(e, n - 1));
+          offset = padSection(out, offset, 4L * entries.length);
+        }
+
+        offset = writeValues(out, offset, entries, level.probs, probCodebooks.get(n - 1));
+
+        if (n < order) {
+          offset = writeValues(out, offset, entries, level.backoffs, backoffCodebooks.get(n - 1));
+
+          // Children of entry i are entries [children[i], children[i + 1]) of the next order
+          Level nextLevel = ngrams.get(n);
+          int[] next = sorted.get(n);
+          int child = 0;
+          for (int e : entries) {
+            out.writeInt(child);
+            while (child < next.length && isParent(level, e, nextLevel, next[child]))
+              child++;
+          }
+          out.writeInt(child);
+          if (child != next.length)
+            throw new IllegalStateException(String.format("Orphaned %d-grams", n + 1));
+          offset = padSection(out, offset, 4L * (entries.length + 1));
+
+          // Bit i is set if entry i can affect the probability of a following word
+          long[] contexts = new long[(entries.length + 63) >>> 6];
+          for (int i = 0; i < entries.length; i++)
+            if (level.extended.get(entries[i]) || level.backoffs[entries[i]] != 0.0f)
+              contexts[i >>> 6] |= 1L << (i & 63);
+          for (long bits : contexts)
+            out.writeLong(bits);
+          offset = padSection(out, offset, 8L * contexts.length);
+        }
+      }
+    }
+
+    for (int n = 1; n <= order; n++)
+      LOG.info("Wrote {} {}-grams", ngrams.get(n - 1).size, n);
+  }
+
+  private static boolean isParent(Level level, int parent, Level nextLevel, int child) {
+    for (int i = 0; i < level.n; i++)
+      if (level.word(parent, i) != nextLevel.word(child, i))
+        return false;
+    return true;
+  }
+
+  /**
+   * Writes the probabilities (or backoffs) of a level's entries as codes, or as floats if there is
+   * no codebook.
+   */
+  private static long writeValues(DataOutputStream out, long offset, int[] entries, float[] values,
+      float[] codes) throws IOException {
+    for (int e : entries) {
+      if (codes == null)
+        out.writeFloat(values[e]);
+      else
+        out.writeShort(encode(codes, values[e]));
+    }
+    return padSection(out, offset, (codes == null ? 4L : 2L) * entries.length);
+  }
+
+  /**
+   * Writes the codebook of the probabilities (or backoffs) of a level: their distinct values, or
+   * -1 (no codebook) if there are more than MAX_CODES.
+   */
+  private static float[] writeCodebook(DataOutputStream header, float[] levelValues, int size)
+      throws IOException {
+    float[] values = new float[size];
+    int count = 0;
+    for (int i = 0; i < size; i++)
+      if (!Float.isNaN(levelValues[i]))
+        values[count++] = levelValues[i];
+    values = Arrays.copyOf(values, count);
+    Arrays.sort(values);
+
+    float[] distinct = new float[count];
+    int numDistinct = 0;
+    for (float value : values)
+      if (numDistinct == 0 || distinct[numDistinct - 1] != value)
+        distinct[numDistinct++] = value;
+
+    if (numDistinct > MAX_CODES) {
+      header.writeInt(-1);
+      return null;
+    }
+
+    float[] codes = Arrays.copyOf(distinct, numDistinct);
+    header.writeInt(codes.length);
+    for (float code : codes)
+      header.writeFloat(code);
+    return codes;
+  }
+
+  /* Code 0 is "no value"; code i > 0 stands for codes[i - 1] */
+  private static short encode(float[] codes, float value) {
+    if (Float.isNaN(value))
+      return 0;
+    return (short) (Arrays.binarySearch(codes, value) + 1);
+  }
+
+  private static long align(long offset) {
+    return (offset + 7) & ~7L;
+  }
+
+  private static long padSection(DataOutputStream out, long offset, long length) throws IOException {
+    long end = offset + length;
+    pad(out, align(end) - end);
+    return align(end);
+  }
+
+  private static void pad(DataOutputStream out, long bytes) throws IOException {
+    for (long i = 0; i < bytes; i++)
+      out.writeByte(0);
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("Usage: MappedTrieLMWriter lm.arpa[.gz] lm.bin");
+      System.exit(1);
+    }
+
+    MappedTrieLMWriter writer = new MappedTrieLMWriter();
+    LOG.info("Reading ARPA file {}", args[0]);
+    writer.addAll(new ArpaFile(args[0], new Vocabulary()));
+    LOG.info("Writing binary LM {}", args[1]);
+    writer.write(args[1]);
+  }
+}
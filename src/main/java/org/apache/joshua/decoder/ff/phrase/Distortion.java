@@ -56,7 +56,7 @@ public class Distortion extends StatelessFF {
   public DPState compute(Rule rule, List<HGNode> tailNodes, int i, int j, SourcePath sourcePath,
       Sentence sentence, Accumulator acc) {
 
-    if (rule == Hypothesis.INORDER_RULE) {
+    if (rule == Hypothesis.inOrderRule()) {
       int last_phrase_end = tailNodes.get(0).j;
       int new_phrase_start = tailNodes.get(1).i;
       int jump_size = Math.abs(last_phrase_end - new_phrase_start);
@@ -65,7 +65,7 @@ public class Distortion extends StatelessFF {
       //            last_phrase_end, new_phrase_start, jump_size));
 
       acc.add(denseFeatureIndex, -jump_size);
-    } else if (rule == Hypothesis.INVERTED_RULE) {
+    } else if (rule == Hypothesis.invertedRule()) {
       int last_phrase_end = tailNodes.get(1).j;
       int new_phrase_start = tailNodes.get(0).i;
       int jump_size = Math.abs(last_phrase_end - new_phrase_start);
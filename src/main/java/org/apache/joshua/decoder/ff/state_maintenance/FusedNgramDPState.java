@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.state_maintenance;
+
+import java.util.Arrays;
+
+import org.apache.joshua.corpus.Vocabulary;
+
+/**
+ * The state of a {@link org.apache.joshua.decoder.ff.lm.FusedLanguageModelFF}: the left and right
+ * contexts of a hypothesis in each of the vocabularies its language models are queried in (the
+ * target words themselves, or their classes under a class map). Each pair of contexts is that of
+ * an {@link NgramDPState} for the highest-order language model of its vocabulary; the contexts of
+ * lower-order models are their prefixes (left) and suffixes (right).
+ *
+ * All contexts are packed into a single array, and the hash code is computed once when the state
+ * is created. As in {@link NgramDPState}, right contexts are stored in full but may be minimized:
+ * only their most recent words that can affect later n-gram probabilities are compared when
+ * hypotheses are recombined.
+ */
+public class FusedNgramDPState extends DPState {
+
+  /*
+   * The context length of each view, then the number of compared words of each view's right
+   * context, followed by each view's left and then right context
+   */
+  private final int[] words;
+  private final int numViews;
+  private final int hash;
+
+  /**
+   * @param numViews the number of vocabularies
+   * @param words the context length of each vocabulary, then the number of most recent words of
+   *          each right context that can affect later n-grams, followed by the left and then the
+   *          right context of each vocabulary in turn; the array is owned by the state
+   */
+  public FusedNgramDPState(int numViews, int[] words) {
+    this.numViews = numViews;
+    this.words = words;
+
+    int h = 1;
+    for (int v = 0, offset = 2 * numViews; v < numViews; v++) {
+      h = 31 * h + words[v];
+      h = 31 * h + words[numViews + v];
+      for (int k = offset; k < offset + words[v]; k++)
+        h = 31 * h + words[k];
+      offset += 2 * words[v];
+      for (int k = offset - words[numViews + v]; k < offset; k++)
+        h = 31 * h + words[k];
+    }
+    this.hash = h;
+  }
+
+  public int getNumViews() {
+    return numViews;
+  }
+
+  /**
+   * @param view a vocabulary
+   * @return the number of words in each of its contexts
+   */
+  public int getContextLength(int view) {
+    return words[view];
+  }
+
+  /**
+   * @param view a vocabulary
+   * @return the number of most recent words of its right context that are compared
+   */
+  public int getRightStateLength(int view) {
+    return words[numViews + view];
+  }
+
+  private int offset(int view) {
+    int offset = 2 * numViews;
+    for (int v = 0; v < view; v++)
+      offset += 2 * words[v];
+    return offset;
+  }
+
+  /**
+   * @param view a vocabulary
+   * @param k a position in its left context
+   * @return the word at that position
+   */
+  public int getLeftLMStateWord(int view, int k) {
+    return words[offset(view) + k];
+  }
+
+  /**
+   * @param view a vocabulary
+   * @param k a position in its right context
+   * @return the word at that position
+   */
+  public int getRightLMStateWord(int view, int k) {
+    return words[offset(view) + words[view] + k];
+  }
+
+  /**
+   * @param view a vocabulary
+   * @param length the maximum number of words to return
+   * @return a copy of the first (at most) {@code length} words of the left context
+   */
+  public int[] getLeftLMStateWords(int view, int length) {
+    final int start = offset(view);
+    return Arrays.copyOfRange(words, start, start + Math.min(length, words[view]));
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (this == other)
+      return true;
+    if (other instanceof FusedNgramDPState) {
+      FusedNgramDPState that = (FusedNgramDPState) other;
+      if (this.hash != that.hash || this.words.length != that.words.length)
+        return false;
+      for (int k = 0; k < 2 * numViews; k++)
+        if (this.words[k] != that.words[k])
+          return false;
+      for (int v = 0, offset = 2 * numViews; v < numViews; v++) {
+        for (int k = offset; k < offset + words[v]; k++)
+          if (this.words[k] != that.words[k])
+            return false;
+        offset += 2 * words[v];
+        for (int k = offset - words[numViews + v]; k < offset; k++)
+          if (this.words[k] != that.words[k])
+            return false;
+      }
+      return true;
+    }
+    return false;
+  }
+
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (int v = 0, offset = 2 * numViews; v < numViews; v++) {
+      sb.append("<");
+      for (int k = 0; k < words[v]; k++)
+        sb.append(" ").append(Vocabulary.word(words[offset + k]));
+      sb.append(" |");
+      for (int k = 0; k < words[v]; k++)
+        sb.append(" ").append(Vocabulary.word(words[offset + words[v] + k]));
+      sb.append(" >");
+      offset += 2 * words[v];
+    }
+    return sb.toString();
+  }
+}
@@ -19,7 +19,9 @@
 package org.apache.joshua.decoder.ff.state_maintenance;
 
 /**
- * Maintains a state pointer used by KenLM to implement left-state minimization. 
+ * Maintains a state pointer used by KenLM to implement left-state minimization. The state lives in
+ * a pool leased for the sentence, and is no longer valid once the sentence's pools are released
+ * (see {@link org.apache.joshua.decoder.ff.lm.KenLMPoolManager}).
  * 
  * @author Matt Post post@cs.jhu.edu
  * @author Juri Ganitkevitch juri@cs.jhu.edu
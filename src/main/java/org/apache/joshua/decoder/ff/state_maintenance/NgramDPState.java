@@ -23,77 +23,177 @@ import java.util.Arrays;
 import org.apache.joshua.corpus.Vocabulary;
 
 /**
+ * The n-gram language model state of a hypothesis: its leftmost and rightmost n-1 target words
+ * (fewer if the hypothesis is shorter), the left and right contexts. Both contexts are packed into
+ * a single array, and the hash code is computed once when the state is created, so recombining
+ * hypotheses only has to compare the hashes and, if they match, one array.
+ *
+ * A state can be minimized on the right (see
+ * {@link org.apache.joshua.decoder.ff.lm.NGramLanguageModel#rightContextLength(int[], int, int)}):
+ * the right context is still stored in full, so that later n-grams can be scored as usual, but
+ * only its most recent words that can affect their probabilities are compared when hypotheses are
+ * recombined.
+ *
  * @author Zhifei Li, zhifei.work@gmail.com
  * @author Juri Ganitkevitch, juri@cs.jhu.edu
  */
 public class NgramDPState extends DPState {
 
-  private int[] left;
-  private int[] right;
+  /* The left context followed by the right context, which have the same length */
+  private int[] words;
 
-  private int hash = 0;
+  /* The number of most recent words of the right context that are compared */
+  private int rightLength;
+
+  private int hash;
 
   public NgramDPState(int[] l, int[] r) {
-    left = l;
-    right = r;
-    assertLengths();
+    this(l, r, r.length);
+  }
+
+  /**
+   * @param l the left context
+   * @param r the right context
+   * @param rightLength the number of most recent words of the right context that can affect the
+   *          probabilities of later words
+   */
+  public NgramDPState(int[] l, int[] r, int rightLength) {
+    pack(l, r, rightLength);
+  }
+
+  private void pack(int[] left, int[] right, int rightLength) {
+    if (left.length != right.length)
+      throw new RuntimeException("Unequal lengths in left and right state: < "
+          + Vocabulary.getWords(left) + " | " + Vocabulary.getWords(right) + " >");
+    if (rightLength < 0 || rightLength > right.length)
+      throw new IllegalArgumentException("Invalid length of the right state: " + rightLength);
+
+    words = new int[left.length + right.length];
+    System.arraycopy(left, 0, words, 0, left.length);
+    System.arraycopy(right, 0, words, left.length, right.length);
+    this.rightLength = rightLength;
+
+    int h = rightLength;
+    for (int k = 0; k < left.length; k++)
+      h = 31 * h + words[k];
+    for (int k = words.length - rightLength; k < words.length; k++)
+      h = 31 * h + words[k];
+    hash = h;
   }
 
   public void setLeftLMStateWords(int[] words) {
-    left = words;
-    assertLengths();
+    pack(words, getRightLMStateWords(), rightLength);
   }
 
+  /**
+   * @return a copy of the left context
+   */
   public int[] getLeftLMStateWords() {
-    return left;
+    return Arrays.copyOfRange(words, 0, getContextLength());
   }
 
   public void setRightLMStateWords(int[] words) {
-    right = words;
-    assertLengths();
+    pack(getLeftLMStateWords(), words, words.length);
   }
 
+  /**
+   * @return a copy of the right context
+   */
   public int[] getRightLMStateWords() {
-    return right;
+    return Arrays.copyOfRange(words, getContextLength(), words.length);
   }
 
-  private void assertLengths() {
-    if (left.length != right.length)
-      throw new RuntimeException("Unequal lengths in left and right state: < "
-          + Vocabulary.getWords(left) + " | " + Vocabulary.getWords(right) + " >");
+  /**
+   * The contexts without copying them: the left context is found at
+   * [{@link #getLeftOffset()}, {@link #getLeftOffset()} + {@link #getContextLength()}) and the right
+   * context at [{@link #getRightOffset()}, {@link #getRightOffset()} + {@link #getContextLength()}).
+   *
+   * @return the packed words, which must not be modified
+   */
+  public int[] getWords() {
+    return words;
+  }
+
+  /**
+   * @return the position of the left context in {@link #getWords()}
+   */
+  public int getLeftOffset() {
+    return 0;
+  }
+
+  /**
+   * @return the position of the right context in {@link #getWords()}
+   */
+  public int getRightOffset() {
+    return getContextLength();
+  }
+
+  /**
+   * @return the number of words in each of the contexts
+   */
+  public int getContextLength() {
+    return words.length >> 1;
+  }
+
+  /**
+   * @return the number of most recent words of the right context that are compared when
+   *         hypotheses are recombined
+   */
+  public int getRightStateLength() {
+    return rightLength;
+  }
+
+  /**
+   * @param k a position in the left context
+   * @return the word at that position
+   */
+  public int getLeftLMStateWord(int k) {
+    return words[k];
+  }
+
+  /**
+   * @param k a position in the right context
+   * @return the word at that position
+   */
+  public int getRightLMStateWord(int k) {
+    return words[getContextLength() + k];
   }
 
   @Override
   public int hashCode() {
-    if (hash == 0) {
-      hash = 31 + Arrays.hashCode(left);
-      hash = hash * 19 + Arrays.hashCode(right);
-    }
     return hash;
   }
 
   @Override
   public boolean equals(Object other) {
+    if (this == other)
+      return true;
     if (other instanceof NgramDPState) {
       NgramDPState that = (NgramDPState) other;
-      if (this.left.length == that.left.length && this.right.length == that.right.length) {
-        for (int i = 0; i < left.length; ++i)
-          if (this.left[i] != that.left[i] || this.right[i] != that.right[i])
-            return false;
-        return true;
-      }
+      if (this.hash != that.hash || this.words.length != that.words.length
+          || this.rightLength != that.rightLength)
+        return false;
+      final int length = getContextLength();
+      for (int k = 0; k < length; k++)
+        if (this.words[k] != that.words[k])
+          return false;
+      for (int k = words.length - rightLength; k < words.length; k++)
+        if (this.words[k] != that.words[k])
+          return false;
+      return true;
     }
     return false;
   }
 
   public String toString() {
+    final int length = getContextLength();
     StringBuilder sb = new StringBuilder();
     sb.append("<");
-    for (int id : left)
-      sb.append(" ").append(Vocabulary.word(id));
+    for (int k = 0; k < length; k++)
+      sb.append(" ").append(Vocabulary.word(words[k]));
     sb.append(" |");
-    for (int id : right)
-      sb.append(" ").append(Vocabulary.word(id));
+    for (int k = length; k < words.length; k++)
+      sb.append(" ").append(Vocabulary.word(words[k]));
     sb.append(" >");
     return sb.toString();
   }
@@ -33,7 +33,9 @@ import com.google.common.base.Suppliers;
 
 import org.apache.joshua.corpus.Vocabulary;
 import org.apache.joshua.decoder.ff.FeatureFunction;
+import org.apache.joshua.decoder.ff.FeatureFunction.Accumulator;
 import org.apache.joshua.decoder.ff.FeatureVector;
+import org.apache.joshua.decoder.ff.lm.ClassMap;
 import org.apache.joshua.decoder.segment_file.Sentence;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -86,6 +88,24 @@ public class Rule implements Comparator<Rule>, Comparable<Rule> {
   private String alignmentString;
   private final Supplier<byte[]> alignmentSupplier;
 
+  private static final ClassProjection[] NO_CLASS_PROJECTIONS = new ClassProjection[0];
+
+  // The most class maps a rule keeps projections for; a decoder rarely has more than one class LM
+  private static final int MAX_CLASS_PROJECTIONS = 4;
+
+  // The target side projected through the class maps of class LMs, see getEnglishClasses()
+  private volatile ClassProjection[] englishClasses = NO_CLASS_PROJECTIONS;
+
+  private static final class ClassProjection {
+    private final ClassMap classMap;
+    private final int[] classes;
+
+    ClassProjection(ClassMap classMap, int[] classes) {
+      this.classMap = classMap;
+      this.classes = classes;
+    }
+  }
+
   /**
    * Constructs a new rule using the provided parameters. Rule id for this rule is
    * undefined. Note that some of the sparse features may be unlabeled, but they cannot be mapped to
@@ -160,13 +180,15 @@ public class Rule implements Comparator<Rule>, Comparable<Rule> {
   }
   
   /**
-   * Constructor (implicitly) used by PackedRule
+   * Constructor (implicitly) used by PackedRule, which reads its features and alignment from the
+   * packed grammar itself. Subclasses using it must override {@link #getFeatureVector()},
+   * {@link #getFeatureString()} and {@link #getAlignment()}.
    */
   public Rule() {
     this.lhs = -1;
-    this.sparseFeatureStringSupplier = initializeSparseFeaturesStringSupplier();
-    this.featuresSupplier = initializeFeatureSupplierFromString();
-    this.alignmentSupplier = initializeAlignmentSupplier();
+    this.sparseFeatureStringSupplier = null;
+    this.featuresSupplier = null;
+    this.alignmentSupplier = null;
   }
 
   // ==========================================================================
@@ -214,12 +236,39 @@ public class Rule implements Comparator<Rule>, Comparable<Rule> {
 
   public void setEnglish(int[] eng) {
     this.target = eng;
+    this.englishClasses = NO_CLASS_PROJECTIONS;
   }
 
   public int[] getEnglish() {
     return this.target;
   }
 
+  /**
+   * Returns the target side with its words replaced by their classes, computing it on first use.
+   * Class LMs score the same rule many times, so the projection is cached with the rule, one per
+   * class map (up to a few maps, after which the oldest is dropped). The returned array must not
+   * be modified.
+   *
+   * @param classMap the class map of a class LM
+   * @return the class-projected target side
+   */
+  public int[] getEnglishClasses(ClassMap classMap) {
+    final ClassProjection[] projections = englishClasses;
+    for (ClassProjection projection : projections)
+      if (projection.classMap == classMap)
+        return projection.classes;
+
+    // Publish a new array rather than updating the shared one. Racing threads may each add their
+    // own map and one of them be lost, which only costs recomputing it.
+    final int[] classes = classMap.project(getEnglish());
+    final int keep = Math.min(projections.length, MAX_CLASS_PROJECTIONS - 1);
+    final ClassProjection[] updated = new ClassProjection[keep + 1];
+    System.arraycopy(projections, projections.length - keep, updated, 0, keep);
+    updated[keep] = new ClassProjection(classMap, classes);
+    englishClasses = updated;
+    return classes;
+  }
+
   /**
    * Two Rules are equal of they have the same LHS, the same source RHS and the same target
    * RHS.
@@ -333,12 +382,12 @@ public class Rule implements Comparator<Rule>, Comparable<Rule> {
   public void setPrecomputableCost(float[] dense_weights, FeatureVector weights) {
     float cost = 0.0f;
     FeatureVector features = getFeatureVector();
-    for (int i = 0; i < features.getDenseFeatures().size() && i < dense_weights.length; i++) {
+    for (int i = 0; i < features.getNumDense() && i < dense_weights.length; i++) {
       cost += dense_weights[i] * features.getDense(i);
     }
 
-    for (String key: features.getSparseFeatures().keySet()) {
-      cost += weights.getSparse(key) * features.getSparse(key);
+    for (int i = 0; i < features.getNumSparse(); i++) {
+      cost += weights.getSparse(features.getSparseIdAt(i)) * features.getSparseValueAt(i);
     }
     
     this.precomputableCost = cost;
@@ -354,6 +403,22 @@ public class Rule implements Comparator<Rule>, Comparable<Rule> {
   public float getDenseFeature(int k) {
     return getFeatureVector().getDense(k);
   }
+
+  /**
+   * Adds the rule's grammar features to an accumulator: the first numDense dense features at
+   * denseOffset onwards, and all sparse features.
+   *
+   * @param acc the accumulator
+   * @param denseOffset the index of the rule's first dense feature in the global weight vector
+   * @param numDense the number of dense features to add
+   */
+  public void accumulateFeatures(Accumulator acc, int denseOffset, int numDense) {
+    FeatureVector features = getFeatureVector();
+    for (int k = 0; k < numDense; k++)
+      acc.add(k + denseOffset, features.getDense(k));
+    for (int k = 0; k < features.getNumSparse(); k++)
+      acc.addSparse(features.getSparseIdAt(k), features.getSparseValueAt(k));
+  }
   
   /**
    * This function estimates the cost of a rule, which is used for sorting the rules for cube
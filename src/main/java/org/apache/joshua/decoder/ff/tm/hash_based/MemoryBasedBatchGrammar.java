@@ -163,7 +163,7 @@ public class MemoryBasedBatchGrammar extends AbstractGrammar {
     rule.setOwner(owner);
 
     if (numDenseFeatures == 0)
-      numDenseFeatures = rule.getFeatureVector().getDenseFeatures().size();
+      numDenseFeatures = rule.getFeatureVector().getNumDense();
 
     // === identify the position, and insert the trie nodes as necessary
     MemoryBasedTrie pos = root;
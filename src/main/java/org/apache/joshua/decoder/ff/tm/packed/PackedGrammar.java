@@ -56,6 +56,8 @@ package org.apache.joshua.decoder.ff.tm.packed;
 
 import static java.util.Collections.sort;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -76,10 +78,14 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.joshua.corpus.Vocabulary;
+import org.apache.joshua.decoder.Decoder;
 import org.apache.joshua.decoder.JoshuaConfiguration;
 import org.apache.joshua.decoder.ff.FeatureFunction;
+import org.apache.joshua.decoder.ff.FeatureFunction.Accumulator;
+import org.apache.joshua.decoder.ff.FeatureMap;
 import org.apache.joshua.decoder.ff.FeatureVector;
 import org.apache.joshua.decoder.ff.tm.AbstractGrammar;
 import org.apache.joshua.decoder.ff.tm.BasicRuleCollection;
@@ -95,30 +101,65 @@ import org.apache.joshua.util.io.LineReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.base.Supplier;
-import com.google.common.base.Suppliers;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 
 public class PackedGrammar extends AbstractGrammar {
 
   private static final Logger LOG = LoggerFactory.getLogger(PackedGrammar.class);
   public static final String VOCABULARY_FILENAME = "vocabulary";
+  public static final String PRESORT_WEIGHTS_FILENAME = "presort.weights";
 
   private EncoderConfiguration encoding;
+
+  /*
+   * Resolved feature identities for each inner id of the encoding: the dense feature index for
+   * unlabeled (numeric) features, or -1, and the FeatureMap id for labeled sparse features.
+   */
+  private int[] denseIndexByInnerId;
+  private int[] featureIdByInnerId;
+
   private PackedRoot root;
   private ArrayList<PackedSlice> slices;
 
   private final File vocabFile; // store path to vocabulary file
 
-  // A rule cache for commonly used tries to avoid excess object allocations
-  // Testing shows there's up to ~95% hit rate when cache size is 5000 Trie nodes.
-  private final Cache<Trie, List<Rule>> cached_rules;
+  /*
+   * A grammar-level cache of the (sorted, once sortRules() has run) rule lists of the most recently
+   * used trie nodes, keyed by (slice, node address). Testing shows there's up to ~95% hit rate when
+   * cache size is 5000 Trie nodes. The rules' estimated costs are kept in their slice, so a list
+   * evicted from the cache is rebuilt without rescoring.
+   */
+  private final Cache<Long, List<Rule>> cached_rules;
+
+  /*
+   * Rough heap footprint of a cached list and of each rule view in it, for byte-based eviction. A
+   * view holds only its address; decoded data is kept in its slice, see DecodedCache.
+   */
+  private static final int BYTES_PER_CACHED_LIST = 96;
+  private static final int BYTES_PER_CACHED_RULE = 80;
+
+  /* Each slice keeps the decoded target sides, features and alignments of 2^12 rules at most */
+  private static final int DECODED_CACHE_BITS = 12;
 
   private final String grammarDir;
   
   private JoshuaConfiguration config;
 
+  /*
+   * Set if the rules of each trie node were sorted by the packer (see GrammarPacker), with weights
+   * matching the decoder's. The packer's order is then used as is, and the grammar costs are read
+   * from disk: nothing is scored or sorted when a trie node is first touched. The estimates of the
+   * other feature functions (such as the LM's) are added to a rule's grammar cost only when its
+   * estimated cost is asked for, see PackedRule.getEstimatedCost().
+   */
+  private boolean presorted = false;
+  private String presortOwner = null;
+
+  /* The feature functions rules were last sorted for, which estimate the costs of presorted rules */
+  private volatile List<FeatureFunction> estimateModels = null;
+
   public PackedGrammar(String grammar_dir, int span_limit, String owner, String type,
       JoshuaConfiguration joshuaConfiguration) throws IOException {
     super(owner, joshuaConfiguration, span_limit);
@@ -144,24 +185,118 @@ public class PackedGrammar extends AbstractGrammar {
     LOG.info("Reading encoder configuration: {}{}encoding", grammar_dir, File.separator);
     encoding = new EncoderConfiguration();
     encoding.load(grammar_dir + File.separator + "encoding");
+    resolveFeatureIds();
+
+    if (presorted)
+      presorted = checkPresortWeights(owner);
 
     final List<String> listing = Arrays.asList(new File(grammar_dir).list());
     sort(listing); // File.list() has arbitrary sort order
     slices = new ArrayList<>();
     for (String prefix : listing) {
       if (prefix.startsWith("slice_") && prefix.endsWith(".source"))
-        slices.add(new PackedSlice(grammar_dir + File.separator + prefix.substring(0, 11)));
+        slices.add(new PackedSlice(slices.size(), grammar_dir + File.separator + prefix.substring(0, 11)));
     }
 
     long count = 0;
     for (PackedSlice s : slices)
       count += s.estimated.length;
     root = new PackedRoot(slices);
-    cached_rules = CacheBuilder.newBuilder().maximumSize(joshuaConfiguration.cachedRuleSize).build();
+    cached_rules = buildRuleCache(joshuaConfiguration);
 
     LOG.info("Loaded {} rules", count);
   }
 
+  /**
+   * Builds the rule cache according to rule_cache_eviction: bounded by the number of trie nodes
+   * ("entries", the default) or rules ("rules") given by cached_rules_size, or by an estimate of the
+   * heap it takes up ("bytes", up to rule_cache_bytes).
+   */
+  private static Cache<Long, List<Rule>> buildRuleCache(JoshuaConfiguration config) {
+    final CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder().recordStats();
+    switch (config.rule_cache_eviction) {
+    case "entries":
+      return builder.maximumSize(config.cachedRuleSize).build();
+    case "rules":
+      return builder.maximumWeight(config.cachedRuleSize)
+          .weigher((Long key, List<Rule> rules) -> rules.size()).build();
+    case "bytes":
+      return builder.maximumWeight(config.rule_cache_bytes)
+          .weigher((Long key, List<Rule> rules) ->
+              BYTES_PER_CACHED_LIST + BYTES_PER_CACHED_RULE * rules.size()).build();
+    default:
+      throw new RuntimeException(String.format(
+          "Unknown rule-cache-eviction '%s' (use entries, rules or bytes)", config.rule_cache_eviction));
+    }
+  }
+
+  /**
+   * @return the hit and miss counts of the rule cache
+   */
+  public CacheStats getRuleCacheStats() {
+    return cached_rules.stats();
+  }
+
+  /**
+   * Resolves the name of each feature in the encoding once, so that loading a rule's features does
+   * not have to look up and parse feature names for every rule.
+   */
+  private void resolveFeatureIds() {
+    final int numFeatureIds = encoding.getNumFeatureIds();
+    denseIndexByInnerId = new int[numFeatureIds];
+    featureIdByInnerId = new int[numFeatureIds];
+    for (int innerId = 0; innerId < numFeatureIds; innerId++) {
+      // TODO (fhieber): why on earth are dense feature ids (ints) encoded in the vocabulary?
+      final String featureName = Vocabulary.word(encoding.outerId(innerId));
+      try {
+        denseIndexByInnerId[innerId] = Integer.parseInt(featureName);
+        featureIdByInnerId[innerId] = FeatureMap.UNKNOWN_FEATURE;
+      } catch (NumberFormatException e) {
+        denseIndexByInnerId[innerId] = -1;
+        featureIdByInnerId[innerId] = FeatureMap.hashFeature(featureName);
+      }
+    }
+  }
+
+  /**
+   * The packer's order (and its precomputed costs) can only be used if the decoder weights every
+   * feature in the grammar exactly as the packer did. Otherwise we fall back to sorting at runtime.
+   */
+  private boolean checkPresortWeights(String owner) throws IOException {
+    if (!owner.equals(presortOwner)) {
+      LOG.warn("Grammar {} was pre-sorted for owner '{}' but is loaded as '{}'; sorting at runtime",
+          grammarDir, presortOwner, owner);
+      return false;
+    }
+    if (Decoder.weights == null) {
+      LOG.warn("No decoder weights available for pre-sorted grammar {}; sorting at runtime", grammarDir);
+      return false;
+    }
+
+    Map<String, Float> packWeights = new HashMap<>();
+    for (String line : new LineReader(grammarDir + File.separator + PRESORT_WEIGHTS_FILENAME)) {
+      String[] tokens = line.trim().split("\\s+");
+      if (tokens.length == 2)
+        packWeights.put(tokens[0], Float.parseFloat(tokens[1]));
+    }
+
+    for (int innerId = 0; innerId < encoding.getNumFeatureIds(); innerId++) {
+      final String name = (denseIndexByInnerId[innerId] >= 0)
+          ? String.format("tm_%s_%d", owner, denseIndexByInnerId[innerId])
+          : Vocabulary.word(encoding.outerId(innerId));
+      final float packWeight = packWeights.getOrDefault(name, 0.0f);
+      final float weight = Decoder.weights.getWeight(name);
+      if (weight != packWeight) {
+        LOG.warn("Grammar {} was pre-sorted with {} = {}, but the decoder uses {}; sorting at runtime",
+            grammarDir, name, packWeight, weight);
+        return false;
+      }
+    }
+
+    LOG.info("Using pre-sorted rule order of {}", grammarDir);
+    return true;
+  }
+
   @Override
   public Trie getTrieRoot() {
     return root;
@@ -213,6 +348,41 @@ public class PackedGrammar extends AbstractGrammar {
     return sb.toString();
   }
 
+  /**
+   * A fixed-size, direct-mapped table of values decoded from a slice, keyed by rule address. A rule
+   * replaces whatever rule held its slot, so the table never holds more than 2^DECODED_CACHE_BITS
+   * values. Entries are immutable and published without locking: a reader sees either a complete
+   * entry or a stale one, and decodes the value again on a miss.
+   */
+  private static final class DecodedCache<T> {
+    private static final class Entry<T> {
+      final int address;
+      final T value;
+
+      Entry(int address, T value) {
+        this.address = address;
+        this.value = value;
+      }
+    }
+
+    private final Entry<?>[] entries = new Entry<?>[1 << DECODED_CACHE_BITS];
+
+    /* Fibonacci hashing spreads the addresses of neighbouring rules, which are 3 ints apart */
+    private static int slot(int address) {
+      return (address * 0x9E3779B9) >>> (32 - DECODED_CACHE_BITS);
+    }
+
+    @SuppressWarnings("unchecked")
+    T get(int address) {
+      Entry<?> entry = entries[slot(address)];
+      return entry != null && entry.address == address ? (T) entry.value : null;
+    }
+
+    void put(int address, T value) {
+      entries[slot(address)] = new Entry<>(address, value);
+    }
+  }
+
   /**
    * PackedRoot represents the root of the packed grammar trie.
    * Tries for different source-side firstwords are organized in
@@ -331,6 +501,7 @@ public class PackedGrammar extends AbstractGrammar {
   }
 
   public final class PackedSlice {
+    private final int index;
     private final String name;
 
     private final int[] source;
@@ -346,11 +517,18 @@ public class PackedGrammar extends AbstractGrammar {
     private final static int BUFFER_HEADER_POSITION = 8;
 
     /**
-     * Provides a cache of packedTrie nodes to be used in getTrie.
+     * Provides a cache of packedTrie nodes to be used in getTrie. Nodes are materialized at most
+     * once per address without locking the slice.
      */
-    private HashMap<Integer, PackedTrie> tries;
+    private final ConcurrentHashMap<Integer, PackedTrie> tries;
 
-    public PackedSlice(String prefix) throws IOException {
+    /* Recently decoded target sides, feature vectors and alignments, keyed by rule address */
+    private final DecodedCache<int[]> decodedEnglish = new DecodedCache<>();
+    private final DecodedCache<FeatureVector> decodedFeatures = new DecodedCache<>();
+    private final DecodedCache<byte[]> decodedAlignments = new DecodedCache<>();
+
+    public PackedSlice(int index, String prefix) throws IOException {
+      this.index = index;
       name = prefix;
 
       File source_file = new File(prefix + ".source");
@@ -358,6 +536,7 @@ public class PackedGrammar extends AbstractGrammar {
       File target_lookup_file = new File(prefix + ".target.lookup");
       File feature_file = new File(prefix + ".features");
       File alignment_file = new File(prefix + ".alignments");
+      File estimate_file = new File(prefix + ".estimates");
 
       source = fullyLoadFileToArray(source_file);
       // First int specifies the size of this file, load from 1st int on
@@ -366,6 +545,8 @@ public class PackedGrammar extends AbstractGrammar {
       target = associateMemoryMappedFile(target_file).asIntBuffer();
       features = associateMemoryMappedFile(feature_file);
       initializeFeatureStructures();
+      if (presorted)
+        loadPrecomputableCosts(estimate_file);
 
       if (alignment_file.exists()) {
         alignments = associateMemoryMappedFile(alignment_file);
@@ -373,7 +554,7 @@ public class PackedGrammar extends AbstractGrammar {
         alignments = null;
       }
 
-      tries = new HashMap<>();
+      tries = new ConcurrentHashMap<>();
     }
 
     /**
@@ -389,6 +570,27 @@ public class PackedGrammar extends AbstractGrammar {
       featureSize = features.getInt(4);
     }
 
+    /**
+     * Reads the grammar costs computed by the packer, one per rule, as the rules' precomputable
+     * costs. A rule's estimated cost adds the estimates of the other feature functions to it when
+     * it is first asked for.
+     */
+    private void loadPrecomputableCosts(File estimate_file) throws IOException {
+      if (estimate_file.length() != 4L * (precomputable.length + 1))
+        throw new RuntimeException(String.format(
+            "%s does not hold one cost for each of the slice's %d rules; please repack the grammar",
+            estimate_file, precomputable.length));
+      try (DataInputStream in = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(estimate_file)))) {
+        final int num_blocks = in.readInt();
+        if (num_blocks != precomputable.length)
+          throw new RuntimeException(String.format("%s has %d entries, but the slice has %d rules",
+              estimate_file, num_blocks, precomputable.length));
+        for (int i = 0; i < num_blocks; i++)
+          precomputable[i] = in.readFloat();
+      }
+    }
+
     private int getIntFromByteBuffer(int position, ByteBuffer buffer) {
       return buffer.getInt(BUFFER_HEADER_POSITION + (4 * position));
     }
@@ -443,22 +645,19 @@ public class PackedGrammar extends AbstractGrammar {
       return tgt;
     }
 
-    private synchronized PackedTrie getTrie(final int node_address) {
+    private PackedTrie getTrie(final int node_address) {
       PackedTrie t = tries.get(node_address);
-      if (t == null) {
-        t = new PackedTrie(node_address);
-        tries.put(node_address, t);
-      }
+      if (t == null)
+        t = tries.computeIfAbsent(node_address, address -> new PackedTrie(address));
       return t;
     }
 
-    private synchronized PackedTrie getTrie(int node_address, int[] parent_src, int parent_arity,
+    private PackedTrie getTrie(int node_address, int[] parent_src, int parent_arity,
         int symbol) {
       PackedTrie t = tries.get(node_address);
-      if (t == null) {
-        t = new PackedTrie(node_address, parent_src, parent_arity, symbol);
-        tries.put(node_address, t);
-      }
+      if (t == null)
+        t = tries.computeIfAbsent(node_address,
+            address -> new PackedTrie(address, parent_src, parent_arity, symbol));
       return t;
     }
 
@@ -477,20 +676,16 @@ public class PackedGrammar extends AbstractGrammar {
       featurePosition += EncoderConfiguration.ID_SIZE;
       final FeatureVector featureVector = new FeatureVector();
       FloatEncoder encoder;
-      String featureName;
 
       for (int i = 0; i < numFeatures; i++) {
         final int innerId = encoding.readId(features, featurePosition);
-        final int outerId = encoding.outerId(innerId);
         encoder = encoding.encoder(innerId);
-        // TODO (fhieber): why on earth are dense feature ids (ints) encoded in the vocabulary?
-        featureName = Vocabulary.word(outerId);
         final float value = encoder.read(features, featurePosition);
-        try {
-          int index = Integer.parseInt(featureName);
+        final int index = denseIndexByInnerId[innerId];
+        if (index >= 0) {
           featureVector.increment(index, -value);
-        } catch (NumberFormatException e) {
-          featureVector.increment(featureName, value);
+        } else {
+          featureVector.incrementSparse(featureIdByInnerId[innerId], value);
         }
         featurePosition += EncoderConfiguration.ID_SIZE + encoder.size();
       }
@@ -498,28 +693,87 @@ public class PackedGrammar extends AbstractGrammar {
       return featureVector;
     }
 
+    /*
+     * The following read a rule's features straight from the mapped feature block, without
+     * building a FeatureVector. Dense (unlabeled) values are negated, as in loadFeatureVector().
+     */
+
+    private float getDenseFeature(int block_id, int k) {
+      int featurePosition = getIntFromByteBuffer(block_id, features);
+      final int numFeatures = encoding.readId(features, featurePosition);
+      featurePosition += EncoderConfiguration.ID_SIZE;
+
+      for (int i = 0; i < numFeatures; i++) {
+        final int innerId = encoding.readId(features, featurePosition);
+        final FloatEncoder encoder = encoding.encoder(innerId);
+        if (denseIndexByInnerId[innerId] == k)
+          return -encoder.read(features, featurePosition);
+        featurePosition += EncoderConfiguration.ID_SIZE + encoder.size();
+      }
+      return 0.0f;
+    }
+
+    private float computePrecomputableCost(int block_id, float[] dense_weights, FeatureVector weights) {
+      int featurePosition = getIntFromByteBuffer(block_id, features);
+      final int numFeatures = encoding.readId(features, featurePosition);
+      featurePosition += EncoderConfiguration.ID_SIZE;
+
+      float cost = 0.0f;
+      for (int i = 0; i < numFeatures; i++) {
+        final int innerId = encoding.readId(features, featurePosition);
+        final FloatEncoder encoder = encoding.encoder(innerId);
+        final float value = encoder.read(features, featurePosition);
+        final int index = denseIndexByInnerId[innerId];
+        if (index < 0)
+          cost += weights.getSparse(featureIdByInnerId[innerId]) * value;
+        else if (index < dense_weights.length)
+          cost -= dense_weights[index] * value;
+        featurePosition += EncoderConfiguration.ID_SIZE + encoder.size();
+      }
+      return cost;
+    }
+
+    private void accumulateFeatures(int block_id, Accumulator acc, int denseOffset, int numDense) {
+      int featurePosition = getIntFromByteBuffer(block_id, features);
+      final int numFeatures = encoding.readId(features, featurePosition);
+      featurePosition += EncoderConfiguration.ID_SIZE;
+
+      for (int i = 0; i < numFeatures; i++) {
+        final int innerId = encoding.readId(features, featurePosition);
+        final FloatEncoder encoder = encoding.encoder(innerId);
+        final float value = encoder.read(features, featurePosition);
+        final int index = denseIndexByInnerId[innerId];
+        if (index < 0)
+          acc.addSparse(featureIdByInnerId[innerId], value);
+        else if (index < numDense)
+          acc.add(denseOffset + index, -value);
+        featurePosition += EncoderConfiguration.ID_SIZE + encoder.size();
+      }
+    }
+
     /**
-     * We need to synchronize this method as there is a many to one ratio between
-     * PackedRule/PhrasePair and this class (PackedSlice). This means during concurrent first
-     * getAlignments calls to PackedRule objects they could alter each other's positions within the
-     * buffer before calling read on the buffer.
+     * There is a many to one ratio between PackedRule/PhrasePair and this class (PackedSlice), so
+     * concurrent getAlignments calls could alter each other's positions within the shared buffer.
+     * Instead of locking the slice, each call reads through its own duplicate of the buffer, which
+     * shares the content but has an independent position.
      */
-    private synchronized byte[] getAlignmentArray(int block_id) {
+    private byte[] getAlignmentArray(int block_id) {
       if (alignments == null)
         throw new RuntimeException("No alignments available.");
       int alignment_position = getIntFromByteBuffer(block_id, alignments);
       int num_points = alignments.get(alignment_position);
       byte[] alignment = new byte[num_points * 2];
 
-      alignments.position(alignment_position + 1);
+      final ByteBuffer view = alignments.duplicate();
+      view.position(alignment_position + 1);
       try {
-        alignments.get(alignment, 0, num_points * 2);
+        view.get(alignment, 0, num_points * 2);
       } catch (BufferUnderflowException bue) {
         LOG.warn("Had an exception when accessing alignment mapped byte buffer");
         LOG.warn("Attempting to access alignments at position: {}",  alignment_position + 1);
         LOG.warn("And to read this many bytes: {}",  num_points * 2);
         LOG.warn("Buffer capacity is : {}", alignments.capacity());
-        LOG.warn("Buffer position is : {}", alignments.position());
+        LOG.warn("Buffer position is : {}", view.position());
         LOG.warn("Buffer limit is : {}", alignments.limit());
         throw bue;
       }
@@ -546,19 +800,28 @@ public class PackedGrammar extends AbstractGrammar {
 
       private final int position;
 
-      private boolean sorted = false;
+      /* Identifies this node in the grammar's rule cache */
+      private final long cacheKey;
+
+      /*
+       * Written once, after the rules have been sorted in place; the volatile write publishes the
+       * sorted source array and rule estimates to all threads that subsequently see it set.
+       */
+      private volatile boolean sorted = false;
 
       private final int[] src;
       private int arity;
 
       private PackedTrie(int position) {
         this.position = position;
+        this.cacheKey = ((long) index << 32) | position;
         src = new int[0];
         arity = 0;
       }
 
       private PackedTrie(int position, int[] parent_src, int parent_arity, int symbol) {
         this.position = position;
+        this.cacheKey = ((long) index << 32) | position;
         src = new int[parent_src.length + 1];
         System.arraycopy(parent_src, 0, src, 0, parent_src.length);
         src[src.length - 1] = symbol;
@@ -638,7 +901,19 @@ public class PackedGrammar extends AbstractGrammar {
 
       @Override
       public List<Rule> getRules() {
-        List<Rule> rules = cached_rules.getIfPresent(this);
+        // Until the rules are sorted, sortRules() may be rewriting the rule block in place, so
+        // unsorted lists are read and built under the same monitor. Once sorted, the block no
+        // longer changes.
+        if (!sorted) {
+          synchronized (this) {
+            return readRules();
+          }
+        }
+        return readRules();
+      }
+
+      private List<Rule> readRules() {
+        List<Rule> rules = cached_rules.getIfPresent(cacheKey);
         if (rules != null) {
           return rules;
         }
@@ -652,7 +927,7 @@ public class PackedGrammar extends AbstractGrammar {
           rules.add(new PackedRule(rule_position + 3 * i));
         }
 
-        cached_rules.put(this, rules);
+        cached_rules.put(cacheKey, rules);
         return rules;
       }
 
@@ -666,6 +941,16 @@ public class PackedGrammar extends AbstractGrammar {
       }
 
       private synchronized void sortRules(List<FeatureFunction> models) {
+        // Another thread may have sorted the rules while we were waiting
+        if (sorted)
+          return;
+
+        // The packer sorted the rules already; their estimates are computed when asked for
+        if (presorted) {
+          this.sorted = true;
+          return;
+        }
+
         int num_children = source[position];
         int rule_position = position + 2 * (num_children + 1);
         int num_rules = source[rule_position - 1];
@@ -673,21 +958,21 @@ public class PackedGrammar extends AbstractGrammar {
           this.sorted = true;
           return;
         }
-        Integer[] rules = new Integer[num_rules];
 
-        int target_address;
-        int block_id;
+        // Score each rule through a view onto the slice. The grammar features are read straight
+        // from the feature block (or, for pre-sorted grammars, were computed by the packer).
+        Integer[] rules = new Integer[num_rules];
         for (int i = 0; i < num_rules; ++i) {
-          target_address = source[rule_position + 1 + 3 * i];
+          PackedRule rule = new PackedRule(rule_position + 3 * i);
+          float cost = 0.0f;
+          if (models != null)
+            for (FeatureFunction ff : models)
+              cost += ff.estimateCost(rule, null);
+          estimated[source[rule_position + 3 * i + 2]] = cost;
           rules[i] = rule_position + 2 + 3 * i;
-          block_id = source[rules[i]];
-
-          Rule rule = new Rule(source[rule_position + 3 * i], src,
-              getTarget(target_address), loadFeatureVector(block_id), arity, owner);
-          estimated[block_id] = rule.estimateRuleCost(models);
-          precomputable[block_id] = rule.getPrecomputableCost();
         }
 
+        // A stable sort, so ties keep the packer's order
         Arrays.sort(rules, (a, b) -> {
           float a_cost = estimated[source[a]];
           float b_cost = estimated[source[b]];
@@ -696,6 +981,16 @@ public class PackedGrammar extends AbstractGrammar {
           return (a_cost > b_cost ? -1 : 1);
         });
 
+        // Rules that are already in order (typically, those the packer sorted) stay as they are,
+        // and so do their cached copies
+        boolean inOrder = true;
+        for (int i = 0; i < num_rules && inOrder; i++)
+          inOrder = (rules[i] == rule_position + 2 + 3 * i);
+        if (inOrder) {
+          this.sorted = true;
+          return;
+        }
+
         int[] sorted = new int[3 * num_rules];
         int j = 0;
         for (Integer address : rules) {
@@ -706,12 +1001,15 @@ public class PackedGrammar extends AbstractGrammar {
         System.arraycopy(sorted, 0, source, rule_position + 0, sorted.length);
 
         // Replace rules in cache with their sorted values on next getRules()
-        cached_rules.invalidate(this);
+        cached_rules.invalidate(cacheKey);
         this.sorted = true;
       }
 
       @Override
       public List<Rule> getSortedRules(List<FeatureFunction> featureFunctions) {
+        if (presorted && featureFunctions != estimateModels)
+          estimateModels = featureFunctions;
+        // Only the first caller(s) lock; afterwards this is a single volatile read
         if (!isSorted())
           sortRules(featureFunctions);
         return getRules();
@@ -796,13 +1094,8 @@ public class PackedGrammar extends AbstractGrammar {
        */
       public final class PackedPhrasePair extends PackedRule {
 
-        private final Supplier<int[]> englishSupplier;
-        private final Supplier<byte[]> alignmentSupplier;
-
         public PackedPhrasePair(int address) {
           super(address);
-          englishSupplier = initializeEnglishSupplier();
-          alignmentSupplier = initializeAlignmentSupplier();
         }
 
         @Override
@@ -810,45 +1103,19 @@ public class PackedGrammar extends AbstractGrammar {
           return PackedTrie.this.getArity() + 1;
         }
 
-        /**
-         * Initialize a number of suppliers which get evaluated when their respective getters
-         * are called.
-         * Inner lambda functions are guaranteed to only be called once, because of this underlying
-         * structures are accessed in a threadsafe way.
-         * Guava's implementation makes sure only one read of a volatile variable occurs per get.
-         * This means this implementation should be as thread-safe and performant as possible.
-         */
-
-        private Supplier<int[]> initializeEnglishSupplier(){
-          return Suppliers.memoize(() ->{
-            int[] phrase = getTarget(source[address + 1]);
-            int[] tgt = new int[phrase.length + 1];
-            tgt[0] = -1;
-            for (int i = 0; i < phrase.length; i++)
-              tgt[i+1] = phrase[i];
-            return tgt;
-          });
-        }
-
-        private Supplier<byte[]> initializeAlignmentSupplier(){
-          return Suppliers.memoize(() ->{
-            byte[] raw_alignment = getAlignmentArray(source[address + 2]);
-            byte[] points = new byte[raw_alignment.length + 2];
-            points[0] = points[1] = 0;
-            for (int i = 0; i < raw_alignment.length; i++)
-              points[i + 2] = (byte) (raw_alignment[i] + 1);
-            return points;
-          });
-        }
-
         /**
          * Take the English phrase of the underlying rule and prepend an [X].
          *
          * @return the augmented phrase
          */
         @Override
-        public int[] getEnglish() {
-          return this.englishSupplier.get();
+        protected int[] decodeEnglish() {
+          int[] phrase = getTarget(source[address + 1]);
+          int[] tgt = new int[phrase.length + 1];
+          tgt[0] = -1;
+          for (int i = 0; i < phrase.length; i++)
+            tgt[i+1] = phrase[i];
+          return tgt;
         }
 
         /**
@@ -871,49 +1138,29 @@ public class PackedGrammar extends AbstractGrammar {
          * @return the byte[] alignment
          */
         @Override
-        public byte[] getAlignment() {
-          // if no alignments in grammar do not fail
-          if (alignments == null) {
-            return null;
-          }
-
-          return this.alignmentSupplier.get();
+        protected byte[] decodeAlignment() {
+          byte[] raw_alignment = getAlignmentArray(source[address + 2]);
+          byte[] points = new byte[raw_alignment.length + 2];
+          points[0] = points[1] = 0;
+          for (int i = 0; i < raw_alignment.length; i++)
+            points[i + 2] = (byte) (raw_alignment[i] + 1);
+          return points;
         }
       }
 
+      /**
+       * A view of a rule in the slice, identified by the rule's address in the source array, which
+       * is all it holds. Its target side, features and alignment are decoded from the mapped slice
+       * when asked for, and the most recently decoded ones are kept in the slice's bounded
+       * caches, since feature functions ask for them on every edge. Feature functions that only
+       * need the grammar features can use {@link #accumulateFeatures} and
+       * {@link #setPrecomputableCost}, which do not build a FeatureVector at all.
+       */
       public class PackedRule extends Rule {
         protected final int address;
-        private final Supplier<int[]> englishSupplier;
-        private final Supplier<FeatureVector> featureVectorSupplier;
-        private final Supplier<byte[]> alignmentsSupplier;
 
         public PackedRule(int address) {
           this.address = address;
-          this.englishSupplier = intializeEnglishSupplier();
-          this.featureVectorSupplier = initializeFeatureVectorSupplier();
-          this.alignmentsSupplier = initializeAlignmentsSupplier();
-        }
-
-        private Supplier<int[]> intializeEnglishSupplier(){
-          return Suppliers.memoize(() ->{
-            return getTarget(source[address + 1]);
-          });
-        }
-
-        private Supplier<FeatureVector> initializeFeatureVectorSupplier(){
-          return Suppliers.memoize(() ->{
-            return loadFeatureVector(source[address + 2]);
-         });
-        }
-
-        private Supplier<byte[]> initializeAlignmentsSupplier(){
-          return Suppliers.memoize(()->{
-            // if no alignments in grammar do not fail
-            if (alignments == null){
-              return null;
-            }
-            return getAlignmentArray(source[address + 2]);
-          });
         }
 
         @Override
@@ -949,7 +1196,16 @@ public class PackedGrammar extends AbstractGrammar {
 
         @Override
         public int[] getEnglish() {
-          return this.englishSupplier.get();
+          int[] english = decodedEnglish.get(address);
+          if (english == null) {
+            english = decodeEnglish();
+            decodedEnglish.put(address, english);
+          }
+          return english;
+        }
+
+        protected int[] decodeEnglish() {
+          return getTarget(source[address + 1]);
         }
 
         @Override
@@ -963,12 +1219,44 @@ public class PackedGrammar extends AbstractGrammar {
 
         @Override
         public FeatureVector getFeatureVector() {
-          return this.featureVectorSupplier.get();
+          FeatureVector features = decodedFeatures.get(address);
+          if (features == null) {
+            features = loadFeatureVector(source[address + 2]);
+            decodedFeatures.put(address, features);
+          }
+          return features;
+        }
+
+        @Override
+        public String getFeatureString() {
+          return getFeatureVector().toString();
+        }
+
+        @Override
+        public float getDenseFeature(int k) {
+          return PackedSlice.this.getDenseFeature(source[address + 2], k);
+        }
+
+        @Override
+        public void accumulateFeatures(Accumulator acc, int denseOffset, int numDense) {
+          PackedSlice.this.accumulateFeatures(source[address + 2], acc, denseOffset, numDense);
         }
 
         @Override
         public byte[] getAlignment() {
-          return this.alignmentsSupplier.get();
+          // if no alignments in grammar do not fail
+          if (alignments == null)
+            return null;
+          byte[] alignment = decodedAlignments.get(address);
+          if (alignment == null) {
+            alignment = decodeAlignment();
+            decodedAlignments.put(address, alignment);
+          }
+          return alignment;
+        }
+
+        protected byte[] decodeAlignment() {
+          return getAlignmentArray(source[address + 2]);
         }
 
         @Override
@@ -976,15 +1264,27 @@ public class PackedGrammar extends AbstractGrammar {
             throw new RuntimeException("AlignmentString not implemented for PackedRule!");
         }
 
+        /**
+         * For presorted grammars, the estimate is computed on first use, by the feature functions
+         * the rules were last sorted for. Concurrent callers compute the same value.
+         */
         @Override
         public float getEstimatedCost() {
-          return estimated[source[address + 2]];
+          final float cost = estimated[source[address + 2]];
+          if (cost == Float.NEGATIVE_INFINITY && presorted && estimateModels != null)
+            return estimateRuleCost(estimateModels);
+          return cost;
         }
 
-//        @Override
-//        public void setPrecomputableCost(float cost) {
-//          precomputable[source[address + 2]] = cost;
-//        }
+        /**
+         * Stores the cost in the slice, where all views of this rule will see it. Concurrent
+         * callers compute the same value, so the race is benign.
+         */
+        @Override
+        public void setPrecomputableCost(float[] dense_weights, FeatureVector weights) {
+          final int block_id = source[address + 2];
+          precomputable[block_id] = computePrecomputableCost(block_id, dense_weights, weights);
+        }
 
         @Override
         public float getPrecomputableCost() {
@@ -993,7 +1293,14 @@ public class PackedGrammar extends AbstractGrammar {
 
         @Override
         public float estimateRuleCost(List<FeatureFunction> models) {
-          return estimated[source[address + 2]];
+          final int block_id = source[address + 2];
+          if (estimated[block_id] == Float.NEGATIVE_INFINITY && presorted && models != null) {
+            float cost = 0.0f;
+            for (FeatureFunction ff : models)
+              cost += ff.estimateCost(this, null);
+            estimated[block_id] = cost;
+          }
+          return estimated[block_id];
         }
 
         @Override
@@ -1040,6 +1347,10 @@ public class PackedGrammar extends AbstractGrammar {
       else if (tokens[0].equals("version")) {
         version = Integer.parseInt(tokens[1]);
       }
+      else if (tokens[0].equals("presorted"))
+        this.presorted = Boolean.parseBoolean(tokens[1]);
+      else if (tokens[0].equals("presort-owner"))
+        this.presortOwner = tokens[1];
     }
 
     if (! isSupportedVersion(version)) {
@@ -51,23 +51,23 @@ public class FeatureVectorExtractor implements WalkerFunction, DerivationVisitor
   /** Accumulate edge features from Viterbi path */
   @Override
   public void apply(HGNode node, int nodeIndex) {
-    features.add(
-        computeTransitionFeatures(
-          featureFunctions,
-          node.bestHyperedge,
-          node.i, node.j,
-          sourceSentence));
+    computeTransitionFeatures(
+        featureFunctions,
+        node.bestHyperedge,
+        node.i, node.j,
+        sourceSentence,
+        features);
   }
 
   /** Accumulate edge features for that DerivationState */
   @Override
   public void before(DerivationState state, int level, int tailNodeIndex) {
-    features.add(
-        computeTransitionFeatures(
-          featureFunctions,
-          state.edge,
-          state.parentNode.i, state.parentNode.j,
-          sourceSentence));
+    computeTransitionFeatures(
+        featureFunctions,
+        state.edge,
+        state.parentNode.i, state.parentNode.j,
+        sourceSentence,
+        features);
   }
   
   /** Nothing to do */
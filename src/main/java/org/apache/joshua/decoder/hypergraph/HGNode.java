@@ -195,36 +195,47 @@ public class HGNode {
    * based on the dynamic programming state.
    */
   public class Signature {
-    // Cached hash code.
-    private int hash = 0;
+    /* The node's states (null if the node's list is) */
+    private final DPState[] states;
+    private final int hash;
+
+    private Signature() {
+      states = (dpStates == null) ? null : dpStates.toArray(new DPState[0]);
+      int h = 31 * lhs;
+      if (null != states)
+        for (DPState dps : states)
+          h = h * 19 + dps.hashCode();
+      hash = h;
+    }
 
     @Override
     public int hashCode() {
-      if (hash == 0) {
-        hash = 31 * lhs;
-        if (null != dpStates && dpStates.size() > 0)
-          for (DPState dps : dpStates)
-            hash = hash * 19 + dps.hashCode();
-      }
       return hash;
     }
 
+    /**
+     * Compares the cached hash codes before the states, so that nodes with different states are
+     * told apart without looking at them.
+     */
     @Override
     public boolean equals(Object other) {
+      if (this == other)
+        return true;
       if (other instanceof Signature) {
-        HGNode that = ((Signature) other).node();
-        if (lhs != that.lhs)
+        Signature that = (Signature) other;
+        if (hash != that.hash)
           return false;
-        if (i != that.i || j != that.j)
+        HGNode thatNode = that.node();
+        if (lhs != thatNode.lhs)
           return false;
-        if (dpStates == null)
-          return (that.dpStates == null);
-        if (that.dpStates == null)
+        if (i != thatNode.i || j != thatNode.j)
           return false;
-        if (dpStates.size() != that.dpStates.size())
+        if (states == null || that.states == null)
+          return states == that.states;
+        if (states.length != that.states.length)
           return false;
-        for (int i = 0; i < dpStates.size(); i++) {
-          if (!dpStates.get(i).equals(that.dpStates.get(i)))
+        for (int k = 0; k < states.length; k++) {
+          if (states[k] != that.states[k] && !states[k].equals(that.states[k]))
             return false;
         }
         return true;
@@ -39,6 +39,7 @@ import java.util.List;
 import org.apache.joshua.corpus.Span;
 import org.apache.joshua.decoder.chart_parser.ComputeNodeResult;
 import org.apache.joshua.decoder.ff.FeatureFunction;
+import org.apache.joshua.decoder.ff.ScoringBatch;
 import org.apache.joshua.decoder.ff.state_maintenance.DPState;
 import org.apache.joshua.decoder.ff.tm.Rule;
 import org.apache.joshua.decoder.hypergraph.HGNode;
@@ -120,13 +121,11 @@ public class Candidate implements Comparable<Candidate> {
     this.phrases = phrases;
     this.future_delta = delta;
     this.ranks = ranks;
-    this.rule = isMonotonic() ? Hypothesis.INORDER_RULE : Hypothesis.INVERTED_RULE;
+    this.rule = isMonotonic() ? Hypothesis.inOrderRule() : Hypothesis.invertedRule();
 //    this.score = hypotheses.get(ranks[0]).score + phrases.get(ranks[1]).getEstimatedCost();
 
+    // Computed lazily, or for many candidates at once by computeAll()
     this.computedResult = null;
-    
-    // TODO: compute this proactively or lazily according to a parameter
-    computeResult();
   }
   
   /**
@@ -234,6 +233,33 @@ public class Candidate implements Comparable<Candidate> {
     
     return computedResult;
   }
+
+  /**
+   * Computes the results of all candidates that have not been computed yet, scoring them together
+   * as a single batch (see {@link ComputeNodeResult#computeAll}).
+   * 
+   * @param candidates the candidates to compute
+   * @param batch a reusable {@link ScoringBatch}
+   */
+  static void computeAll(List<Candidate> candidates, ScoringBatch batch) {
+    batch.clear();
+    List<Candidate> computing = new ArrayList<>(candidates.size());
+    for (Candidate cand : candidates) {
+      if (cand.computedResult == null) {
+        batch.add(cand.getRule(), cand.getTailNodes(), cand.getLastCovered(), cand.getPhraseEnd(),
+            null);
+        computing.add(cand);
+      }
+    }
+    if (computing.isEmpty())
+      return;
+
+    Candidate first = computing.get(0);
+    ComputeNodeResult[] results = ComputeNodeResult.computeAll(first.featureFunctions, batch,
+        first.sentence);
+    for (int k = 0; k < results.length; k++)
+      computing.get(k).computedResult = results[k];
+  }
     
   /**
    * This returns the rule being applied (straight or inverted)
@@ -287,7 +313,7 @@ public class Candidate implements Comparable<Candidate> {
    */
   public float score() {
 //    float score = computedResult.getViterbiCost() + future_delta;
-    float score = getHypothesis().getScore() + getPhraseNode().getScore() + future_delta + computedResult.getTransitionCost();
+    float score = getHypothesis().getScore() + getPhraseNode().getScore() + future_delta + computeResult().getTransitionCost();
     return score;
   }
   
@@ -299,6 +325,18 @@ public class Candidate implements Comparable<Candidate> {
     return computeResult().getDPStates();
   }
   
+  /**
+   * Under constrained decoding, returns the number of target words the hypothesis will have produced
+   * once this candidate's phrase is added.
+   * 
+   * @return the target length after this candidate, or 0 if the decoding is not constrained
+   */
+  public int getTargetLength() {
+    if (sentence.target() == null)
+      return 0;
+    return getHypothesis().getTargetLength() + getPhraseRule().getEnglish().length;
+  }
+
   public int getLastCovered() {
     return getHypothesis().getLastSourceIndex();
   }
@@ -18,6 +18,7 @@
  */
 package org.apache.joshua.decoder.phrase;
 
+import java.util.Arrays;
 import java.util.BitSet;
 
 import org.apache.joshua.corpus.Span;
@@ -26,6 +27,12 @@ import org.apache.joshua.corpus.Span;
  * Represents a coverage vector. The vector is relative to a hypothesis. {firstZero} denotes the
  * first uncovered word of the sentence, and {bits} contains the coverage vector of all the words
  * after it, with the first zero removed. 
+ * 
+ * The bits are held in two longs, which cover the 128 words following the first zero; with the
+ * usual reordering limits no word beyond them is ever covered. Longer vectors, which can arise for
+ * long sentences with a wide or no reordering limit, spill over into an array. Operations work on
+ * whole words with masks and do not allocate (unless the vector spills over), and the hash code is
+ * computed whenever the vector changes, since coverage vectors are used as keys by {@link Stack}.
  */
 
 public class Coverage {
@@ -36,19 +43,24 @@ public class Coverage {
   // Bits with the first zero removed.                                                             
   // We also assume anything beyond this is zero due to the reordering window.                     
   // Lowest bits correspond to next word.    
-  private BitSet bits;
+  private long bits0;
+  private long bits1;
+
+  // Bits from 128 on, or null if they are all zero. Trailing zero words are removed.
+  private long[] more;
+
+  private int hash;
 
   // Default bit vector length
   private static final int INITIAL_LENGTH = 10;
 
   public Coverage() {
-    firstZero = 0;
-    bits = new BitSet(INITIAL_LENGTH);
+    this(0);
   }
 
   public Coverage(int firstZero) {
     this.firstZero = firstZero;
-    bits = new BitSet(INITIAL_LENGTH);
+    updateHash();
   }
 
   /**
@@ -59,8 +71,8 @@ public class Coverage {
     StringBuilder sb = new StringBuilder();
     sb.append(String.format("%d ", firstZero));
 
-    for (int i = 0; i < Math.max(INITIAL_LENGTH, bits.length()); i++) { // only display first 10 bits
-      sb.append(bits.get(i) ? "x" : ".");
+    for (int i = 0; i < Math.max(INITIAL_LENGTH, length()); i++) { // only display first 10 bits
+      sb.append(get(i) ? "x" : ".");
     }
 
     return sb.toString();
@@ -73,7 +85,10 @@ public class Coverage {
    */
   public Coverage(Coverage other) {
     this.firstZero = other.firstZero;
-    this.bits = (BitSet) other.bits.clone();
+    this.bits0 = other.bits0;
+    this.bits1 = other.bits1;
+    this.more = (other.more == null) ? null : other.more.clone();
+    this.hash = other.hash;
   }
 
   /**
@@ -86,27 +101,28 @@ public class Coverage {
   public void set(int begin, int end) {
     assert compatible(begin, end);
 
-    //    StringBuffer sb = new StringBuffer();
-    //    sb.append(String.format("SET(%d,%d) %s", begin, end, this));
-
     if (begin == firstZero) {
       // A concatenation. 
-      firstZero = end;
-      bits = bits.get(end - begin, Math.max(end - begin, bits.length()));
-      int firstClear = bits.nextClearBit(0);
-      if (firstClear != 0) {
-        // We might have exactly covered a gap, in which case we need to adjust shift
-        // firstZero and the bits until we reach the new end
-        firstZero += firstClear;
-        bits = bits.get(firstClear,  bits.length());
+      shiftRight(end - begin);
+      // We might have exactly covered a gap, in which case we need to adjust shift
+      // firstZero and the bits until we reach the new end
+      int firstClear = 0;
+      for (int w = 0; ; w++) {
+        int ones = Long.numberOfTrailingZeros(~word(w));
+        firstClear += ones;
+        if (ones < 64)
+          break;
       }
+      shiftRight(firstClear);
+      firstZero = end + firstClear;
     } else {
-      // Set the bits relative to the currenS
-      bits.or(pattern(begin, end));
+      // Set the bits relative to the current first zero
+      final int from = begin - firstZero, to = end - firstZero;
+      for (int w = from >>> 6; w <= (to - 1) >>> 6; w++)
+        setWord(w, word(w) | mask(w, from, to));
     }
-
-    //    sb.append(String.format(" -> %s", this));
-    //    System.err.println(sb);
+    trim();
+    updateHash();
   }
 
   /**
@@ -127,12 +143,17 @@ public class Coverage {
    * @return true if the span is compatible with the coverage vector
    */
   public boolean compatible(int begin, int end) {
-    if (begin >= firstZero) {
-      BitSet pattern = new BitSet();
-      pattern.set(begin - firstZero, end - firstZero);
-      return ! bits.intersects(pattern);
-    }
-    return false;
+    if (begin < firstZero)
+      return false;
+    final int from = begin - firstZero, to = end - firstZero;
+    if (from >= to)
+      return true;
+    if (to <= 64)
+      return (bits0 & mask(0, from, to)) == 0;
+    for (int w = from >>> 6; w <= (to - 1) >>> 6; w++)
+      if ((word(w) & mask(w, from, to)) != 0)
+        return false;
+    return true;
   }
 
   /**
@@ -158,11 +179,20 @@ public class Coverage {
    * @return todo
    */
   public int leftOpening(int begin) {
-    for (int i = begin - firstZero; i > 0; --i) {
-      if (bits.get(i)) {
-        assert compatible(i + firstZero + 1, begin);
-        assert !compatible(i + firstZero, begin);
-        return i + firstZero + 1;
+    final int last = begin - firstZero;
+    if (last > 0) {
+      for (int w = last >>> 6; w >= 0; w--) {
+        long word = word(w);
+        if (w == last >>> 6)
+          word &= -1L >>> (63 - (last & 63));
+        if (w == 0)
+          word &= ~1L;
+        if (word != 0) {
+          int i = 64 * w + 63 - Long.numberOfLeadingZeros(word);
+          assert compatible(i + firstZero + 1, begin);
+          assert !compatible(i + firstZero, begin);
+          return i + firstZero + 1;
+        }
       }
     }
 
@@ -179,30 +209,31 @@ public class Coverage {
    *     
    * provides this gap.                                           
    * 
-   * Finds the right bound of the enclosing gap, or the end of sentence, whichever is less.
+   * Finds the right bound of the enclosing gap, or the end of sentence, whichever is less. Only
+   * the first 64 words after the first zero are searched.
    * @param end end of phrase pair
    * @param sentenceLength length of sentence
    * @return todo
    */
   public int rightOpening(int end, int sentenceLength) {
-    for (int i = end - firstZero; i < Math.min(64, sentenceLength - firstZero); i++) {
-      if (bits.get(i)) {
-        return i + firstZero;
-      }
+    final int from = end - firstZero, to = Math.min(64, sentenceLength - firstZero);
+    if (from < to) {
+      long word = bits0 & mask(0, from, to);
+      if (word != 0)
+        return Long.numberOfTrailingZeros(word) + firstZero;
     }
     return sentenceLength;
   }
 
   /**
    * Creates a bit vector with the same offset as the current coverage vector, flipping on
-   * bits begin..end.
+   * bits begin..end. This allocates a {@link java.util.BitSet}, and is not used during search.
    * 
    * @param begin the begin index (absolute)
    * @param end the end index (absolute)
    * @return a bit vector (relative) with positions [begin..end) on
    */
   public BitSet pattern(int begin, int end) {
-    //    System.err.println(String.format("pattern(%d,%d) %d %s %s", begin, end, firstZero, begin >= firstZero, toString()));
     assert begin >= firstZero;
     BitSet pattern = new BitSet(INITIAL_LENGTH);
     pattern.set(begin - firstZero, end - firstZero);
@@ -210,19 +241,122 @@ public class Coverage {
   }
 
   /**
-   * Returns the underlying coverage bits.
+   * Returns a copy of the underlying coverage bits.
    * 
    * @return {@link java.util.BitSet} vector of bits
    */
   public BitSet getCoverage() {
-    return bits;
+    long[] words = new long[numWords()];
+    for (int w = 0; w < words.length; w++)
+      words[w] = word(w);
+    return BitSet.valueOf(words);
+  }
+
+  /**
+   * @param w the index of a word of the vector
+   * @param from the first bit of a range
+   * @param to the bit after the range, with from &lt; to
+   * @return the bits of the range that fall into word w
+   */
+  private static long mask(int w, int from, int to) {
+    final int lo = Math.max(from - 64 * w, 0);
+    final int hi = Math.min(to - 64 * w, 64);
+    return (-1L >>> (64 - (hi - lo))) << lo;
+  }
+
+  private int numWords() {
+    return 2 + ((more == null) ? 0 : more.length);
+  }
+
+  private long word(int w) {
+    if (w == 0)
+      return bits0;
+    if (w == 1)
+      return bits1;
+    return (more != null && w - 2 < more.length) ? more[w - 2] : 0L;
+  }
+
+  private void setWord(int w, long value) {
+    if (w == 0)
+      bits0 = value;
+    else if (w == 1)
+      bits1 = value;
+    else {
+      if (more == null)
+        more = new long[w - 1];
+      else if (w - 2 >= more.length)
+        more = Arrays.copyOf(more, Math.max(w - 1, 2 * more.length));
+      more[w - 2] = value;
+    }
+  }
+
+  private boolean get(int i) {
+    return ((word(i >>> 6) >>> i) & 1L) != 0;
+  }
+
+  /**
+   * @return the index of the highest bit set, plus one
+   */
+  private int length() {
+    for (int w = numWords() - 1; w >= 0; w--)
+      if (word(w) != 0)
+        return 64 * w + 64 - Long.numberOfLeadingZeros(word(w));
+    return 0;
+  }
+
+  private void shiftRight(int n) {
+    if (n == 0)
+      return;
+    if (more == null) {
+      if (n >= 128) {
+        bits0 = bits1 = 0L;
+      } else if (n >= 64) {
+        bits0 = bits1 >>> (n - 64);
+        bits1 = 0L;
+      } else {
+        bits0 = (bits0 >>> n) | (bits1 << 1 << (63 - n));
+        bits1 >>>= n;
+      }
+      return;
+    }
+    final int words = n >>> 6, shift = n & 63;
+    for (int w = 0, count = numWords(); w < count; w++) {
+      long value = word(w + words) >>> shift;
+      if (shift != 0)
+        value |= word(w + words + 1) << (64 - shift);
+      setWord(w, value);
+    }
+  }
+
+  private void trim() {
+    if (more == null)
+      return;
+    int length = more.length;
+    while (length > 0 && more[length - 1] == 0L)
+      length--;
+    if (length == 0)
+      more = null;
+    else if (length < more.length)
+      more = Arrays.copyOf(more, length);
+  }
+
+  /**
+   * Computes the hash code of the bits as {@link java.util.BitSet#hashCode()} does, so that it
+   * does not depend on the representation.
+   */
+  private void updateHash() {
+    long h = 1234;
+    for (int w = numWords() - 1; w >= 0; w--)
+      h ^= word(w) * (w + 1);
+    hash = (int) ((h >> 32) ^ h) * firstZero;
   }
 
   @Override
   public boolean equals(Object obj) {
     if (obj instanceof Coverage) {
       Coverage other = (Coverage) obj;
-      return getCoverage().equals(other.getCoverage()) && firstZero() == other.firstZero();
+      return hash == other.hash && firstZero == other.firstZero && bits0 == other.bits0
+          && bits1 == other.bits1 && Arrays.equals(more, other.more);
     }
 
     return false;
@@ -230,6 +364,6 @@ public class Coverage {
 
   @Override
   public int hashCode() {
-    return getCoverage().hashCode() * firstZero();
+    return hash;
   }
 }
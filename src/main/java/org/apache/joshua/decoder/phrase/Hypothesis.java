@@ -42,10 +42,62 @@ public class Hypothesis extends HGNode implements Comparable<Hypothesis> {
   // The hypothesis' coverage vector
   private final Coverage coverage;
 
-  public static Rule BEGIN_RULE = new HieroFormatReader().parseLine("[GOAL] ||| <s> ||| <s> |||   ||| 0-0");
-  public static Rule END_RULE   = new HieroFormatReader().parseLine("[GOAL] ||| </s> ||| </s> |||   ||| 0-0");
-  public static Rule INORDER_RULE  = new HieroFormatReader().parseLine("[GOAL] ||| [GOAL,1] [X,2] ||| [GOAL,1] [X,2] |||   ||| 0-0 1-1");
-  public static Rule INVERTED_RULE  = new HieroFormatReader().parseLine("[GOAL] ||| [X,1] [GOAL,2] ||| [GOAL,2] [X,1] |||   ||| 0-1 1-0");
+  /*
+   * The number of target words produced so far, counting <s>. This is only tracked for
+   * constrained decoding, where they are always a prefix of the target sentence; otherwise it is 0
+   * for all hypotheses but the root.
+   */
+  private final int targetLength;
+
+  /*
+   * The rules that begin and end a translation and that join a phrase to a hypothesis. They hold
+   * IDs from the Vocabulary, so they are built on first use and rebuilt after the Vocabulary is
+   * cleared (see resetRules()).
+   */
+  private static final class Rules {
+    final Rule begin = new HieroFormatReader().parseLine("[GOAL] ||| <s> ||| <s> |||   ||| 0-0");
+    final Rule end = new HieroFormatReader().parseLine("[GOAL] ||| </s> ||| </s> |||   ||| 0-0");
+    final Rule inOrder = new HieroFormatReader().parseLine("[GOAL] ||| [GOAL,1] [X,2] ||| [GOAL,1] [X,2] |||   ||| 0-0 1-1");
+    final Rule inverted = new HieroFormatReader().parseLine("[GOAL] ||| [X,1] [GOAL,2] ||| [GOAL,2] [X,1] |||   ||| 0-1 1-0");
+  }
+
+  private static volatile Rules rules = null;
+
+  private static Rules rules() {
+    Rules current = rules;
+    if (current == null) {
+      synchronized (Rules.class) {
+        if (rules == null)
+          rules = new Rules();
+        current = rules;
+      }
+    }
+    return current;
+  }
+
+  public static Rule beginRule() {
+    return rules().begin;
+  }
+
+  public static Rule endRule() {
+    return rules().end;
+  }
+
+  public static Rule inOrderRule() {
+    return rules().inOrder;
+  }
+
+  public static Rule invertedRule() {
+    return rules().inverted;
+  }
+
+  /**
+   * Drops the rules, whose word IDs are no longer valid once the
+   * {@link org.apache.joshua.corpus.Vocabulary} has been cleared. They are rebuilt on next use.
+   */
+  public static void resetRules() {
+    rules = null;
+  }
   
   public String toString() {
     StringBuffer sb = new StringBuffer();
@@ -57,9 +109,10 @@ public class Hypothesis extends HGNode implements Comparable<Hypothesis> {
 
   // Initialize root hypothesis. Provide the LM's BeginSentence.
   public Hypothesis(List<DPState> states, float futureCost) {
-    super(0, 1, BEGIN_RULE.getLHS(), states,
-        new HyperEdge(BEGIN_RULE, 0.0f, 0.0f, null, null), futureCost);
+    super(0, 1, beginRule().getLHS(), states,
+        new HyperEdge(beginRule(), 0.0f, 0.0f, null, null), futureCost);
     this.coverage = new Coverage(1);
+    this.targetLength = 1;
   }
 
   /**
@@ -74,6 +127,7 @@ public class Hypothesis extends HGNode implements Comparable<Hypothesis> {
             cand.computeResult().getTransitionCost(),
             cand.getTailNodes(), null), cand.score());
     this.coverage = cand.getCoverage();
+    this.targetLength = cand.getTargetLength();
   }
 
   
@@ -81,12 +135,21 @@ public class Hypothesis extends HGNode implements Comparable<Hypothesis> {
   public Hypothesis(List<DPState> states, float score, Hypothesis previous, int source_end, Rule target) {
     super(-1, source_end, -1, null, null, score);
     this.coverage = previous.coverage;
+    this.targetLength = previous.targetLength;
   }
 
   public Coverage getCoverage() {
     return coverage;
   }
 
+  /**
+   * @return the number of target words produced, counting &lt;s&gt; (only tracked for constrained
+   *         decoding)
+   */
+  public int getTargetLength() {
+    return targetLength;
+  }
+
   public Rule getRule() {
     return bestHyperedge.getRule();
   }
@@ -104,7 +167,7 @@ public class Hypothesis extends HGNode implements Comparable<Hypothesis> {
   @Override
   public int hashCode() {
     int hash = 0;
-    hash = 31 * getLastSourceIndex() + 19 * getCoverage().hashCode();
+    hash = 31 * getLastSourceIndex() + 19 * getCoverage().hashCode() + 7 * targetLength;
     if (null != dpStates && dpStates.size() > 0)
       for (DPState dps: dpStates)
         hash *= 57 + dps.hashCode();
@@ -114,7 +177,8 @@ public class Hypothesis extends HGNode implements Comparable<Hypothesis> {
   /**
    * Defines equivalence in terms of recombinability. Two hypotheses are recombinable if 
    * all their DP states are the same, their coverage is the same, and they have the next soure
-   * index the same.
+   * index the same. Under constrained decoding, they must also have produced the same number of
+   * target words.
    */
   @Override
   public boolean equals(Object obj) {
@@ -123,6 +187,9 @@ public class Hypothesis extends HGNode implements Comparable<Hypothesis> {
 
       if (getLastSourceIndex() != other.getLastSourceIndex() || ! getCoverage().equals(other.getCoverage()))
         return false;
+
+      if (targetLength != other.targetLength)
+        return false;
       
       if (dpStates == null)
         return (other.dpStates == null);
@@ -19,16 +19,19 @@
 package org.apache.joshua.decoder.phrase;
 
 import java.util.ArrayList;	
-import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import org.apache.joshua.decoder.chart_parser.ComputeNodeResult;
 import org.apache.joshua.decoder.ff.FeatureFunction;
 import org.apache.joshua.decoder.ff.tm.Rule;
 import org.apache.joshua.decoder.ff.tm.RuleCollection;
+import org.apache.joshua.decoder.ff.tm.Trie;
 import org.apache.joshua.decoder.hypergraph.HGNode;
 import org.apache.joshua.decoder.hypergraph.HyperEdge;
 import org.apache.joshua.decoder.segment_file.Sentence;
+import org.apache.joshua.util.Tasks;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -67,6 +70,21 @@ public class PhraseChart {
    */
   public PhraseChart(PhraseTable[] tables, List<FeatureFunction> features, Sentence source,
       int num_options) {
+    this(tables, features, source, num_options, null);
+  }
+
+  /**
+   * Create a new PhraseChart object, collecting the phrases that start at different positions of
+   * the input sentence in parallel.
+   * 
+   * @param tables input array of {@link org.apache.joshua.decoder.phrase.PhraseTable}'s
+   * @param features {@link java.util.List} of {@link org.apache.joshua.decoder.ff.FeatureFunction}'s
+   * @param source input to {@link org.apache.joshua.lattice.Lattice}
+   * @param num_options number of translation options (typically set to 20)
+   * @param pool the pool collecting phrases (see num_span_threads), or null to do it sequentially
+   */
+  public PhraseChart(PhraseTable[] tables, List<FeatureFunction> features, Sentence source,
+      int num_options, ForkJoinPool pool) {
 
     float startTime = System.currentTimeMillis();
 
@@ -88,17 +106,23 @@ public class PhraseChart {
     for (int i = 0; i < sentence_length * max_source_phrase_length; i++)
       entries.add(null);
 
-    // There's some unreachable ranges off the edge. Meh.
-    for (int begin = 0; begin != sentence_length; ++begin) {
-      for (int end = begin + 1; (end != sentence_length + 1)
-          && (end <= begin + max_source_phrase_length); ++end) {
-        if (source.hasPath(begin, end)) {
-          for (PhraseTable table : tables)
-            addToRange(begin, end,
-                table.getPhrases(Arrays.copyOfRange(source.getWordIDs(), begin, end)));
-        }
-
+    /*
+     * The phrases starting at different positions fill different entries, so they can be
+     * collected concurrently. This is restricted to linear-chain input, like parallel span
+     * completion in the CKY chart.
+     */
+    final int[] words = source.getWordIDs();
+    if (pool == null || !source.isLinearChain()) {
+      for (int begin = 0; begin != sentence_length; ++begin)
+        collectPhrases(tables, words, begin);
+    } else {
+      List<ForkJoinTask<?>> tasks = new ArrayList<>();
+      for (int begin = 0; begin != sentence_length; ++begin) {
+        final int start = begin;
+        tasks.add(pool.submit(() -> collectPhrases(tables, words, start)));
       }
+      // All positions finish, even if one fails, before the failure reaches the caller
+      Tasks.joinAll(tasks);
     }
 
     /* 
@@ -127,6 +151,41 @@ public class PhraseChart {
     }
   }
 
+  /**
+   * Adds the phrases of all tables that start at a position. Instead of looking up each span from
+   * the root of the tables' tries, this extends one trie pointer per table by a word at a time,
+   * and stops when no table has a longer matching phrase.
+   * 
+   * @param tables the phrase tables
+   * @param words the words of the input sentence
+   * @param begin the start of the phrases
+   */
+  private void collectPhrases(PhraseTable[] tables, int[] words, int begin) {
+    Trie[] pointers = new Trie[tables.length];
+    for (int t = 0; t < tables.length; t++)
+      pointers[t] = tables[t].getTrieRoot();
+
+    // There's some unreachable ranges off the edge. Meh.
+    for (int end = begin + 1; (end != sentence_length + 1)
+        && (end <= begin + max_source_phrase_length); ++end) {
+      boolean matched = false;
+      for (int t = 0; t < tables.length; t++) {
+        if (pointers[t] != null) {
+          pointers[t] = pointers[t].match(words[end - 1]);
+          matched |= (pointers[t] != null);
+        }
+      }
+      if (!matched)
+        break;
+
+      if (sentence.hasPath(begin, end)) {
+        for (Trie pointer : pointers)
+          if (pointer != null && pointer.hasRules())
+            addToRange(begin, end, pointer.getRuleCollection());
+      }
+    }
+  }
+
   public int SentenceLength() {
     return sentence_length;
   }
@@ -55,4 +55,27 @@ public class PhraseNodes extends ArrayList<HGNode> {
     Collections.sort(this, HGNode.inverseLogPComparator);    
   }
 
+  /**
+   * Returns the phrases whose words appear in the target sentence at the given position, in the
+   * order of this list. Checking a phrase takes time linear in its length.
+   * 
+   * @param target the word IDs of the target sentence, with sentence markers
+   * @param start the position in the target, i.e. the length of the prefix produced so far
+   * @return the matching phrases, over the same span
+   */
+  public PhraseNodes matching(int[] target, int start) {
+    PhraseNodes matching = new PhraseNodes(i, j, 1);
+    for (HGNode node : this) {
+      int[] words = node.bestHyperedge.getRule().getEnglish();
+      if (start + words.length > target.length)
+        continue;
+      int k = 0;
+      while (k < words.length && words[k] == target[start + k])
+        k++;
+      if (k == words.length)
+        matching.add(node);
+    }
+    return matching;
+  }
+
 }
@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.phrase;
+
+/**
+ * Finds the hypotheses of a {@link Stack} that a new hypothesis recombines with, that is, the
+ * hypothesis with the same coverage vector, last source word and dynamic programming states (see
+ * {@link Hypothesis#equals(Object)}).
+ * 
+ * This is an open-addressing table with linear probing. It stores each hypothesis's hash code next
+ * to it, so that probing compares hypotheses only when their hash codes match, and it allocates
+ * nothing per entry. Hypotheses are never removed; the table is emptied once the stack is
+ * finished.
+ */
+final class RecombinationTable {
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  private int[] hashes = new int[INITIAL_CAPACITY];
+  private Hypothesis[] hypotheses = new Hypothesis[INITIAL_CAPACITY];
+  private int size = 0;
+
+  /**
+   * Adds a hypothesis unless an equivalent one is already in the table.
+   * 
+   * @param hyp the hypothesis
+   * @return the equivalent hypothesis already in the table, or null if hyp was added
+   */
+  Hypothesis putIfAbsent(Hypothesis hyp) {
+    final int hash = hyp.hashCode();
+    final int mask = hypotheses.length - 1;
+    int slot = mix(hash) & mask;
+    while (hypotheses[slot] != null) {
+      if (hashes[slot] == hash && hypotheses[slot].equals(hyp))
+        return hypotheses[slot];
+      slot = (slot + 1) & mask;
+    }
+
+    hashes[slot] = hash;
+    hypotheses[slot] = hyp;
+    if (++size > hypotheses.length / 2)
+      grow();
+    return null;
+  }
+
+  private void grow() {
+    final int[] oldHashes = hashes;
+    final Hypothesis[] oldHypotheses = hypotheses;
+    hashes = new int[2 * oldHashes.length];
+    hypotheses = new Hypothesis[2 * oldHypotheses.length];
+    final int mask = hypotheses.length - 1;
+    for (int i = 0; i < oldHypotheses.length; i++) {
+      if (oldHypotheses[i] != null) {
+        int slot = mix(oldHashes[i]) & mask;
+        while (hypotheses[slot] != null)
+          slot = (slot + 1) & mask;
+        hashes[slot] = oldHashes[i];
+        hypotheses[slot] = oldHypotheses[i];
+      }
+    }
+  }
+
+  private static int mix(int hash) {
+    hash *= 0x9E3779B1;
+    return hash ^ (hash >>> 16);
+  }
+
+  /**
+   * @return the number of hypotheses in the table
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Empties the table, releasing its storage.
+   */
+  void clear() {
+    if (size > 0) {
+      hashes = new int[INITIAL_CAPACITY];
+      hypotheses = new Hypothesis[INITIAL_CAPACITY];
+      size = 0;
+    }
+  }
+}
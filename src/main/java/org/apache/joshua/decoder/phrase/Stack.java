@@ -26,7 +26,7 @@ import java.util.PriorityQueue;
 import java.util.Set;
 
 import org.apache.joshua.decoder.JoshuaConfiguration;
-import org.apache.joshua.decoder.ff.tm.Rule;
+import org.apache.joshua.decoder.ff.ScoringBatch;
 import org.apache.joshua.decoder.segment_file.Sentence;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,6 +34,10 @@ import org.slf4j.LoggerFactory;
 /**
  * Organizes all hypotheses containing the same number of source words. 
  *
+ * The memory used by a stack's search is bounded by the pop limit. The priority queue of
+ * candidates is cut back to the candidates that can still be popped, and candidates that fall
+ * more than stack_beam below the best one are discarded. Once the search is finished, the
+ * structures it used are released, and only the hypotheses are kept.
  */
 public class Stack extends ArrayList<Hypothesis> {
 
@@ -46,14 +50,31 @@ public class Stack extends ArrayList<Hypothesis> {
   private Sentence sentence;
   private JoshuaConfiguration config;
 
-  /* The list of states we've already visited. */
+  /*
+   * The candidates already added, so that cube pruning adds each at most once. This holds the
+   * seed candidates of the stack plus at most two neighbors per pop, so at most the number of
+   * seeds plus 2 * pop_limit.
+   */
   private final HashSet<Candidate> visitedStates;
   
   /* A list of candidates sorted for consideration for entry to the chart (for cube pruning) */
   private final PriorityQueue<Candidate> candidates;
+
+  /* Candidates waiting to be scored together before they are added to the priority queue */
+  private final ArrayList<Candidate> pending;
+  private final ScoringBatch batch;
   
   /* Short-circuits adding a cube-prune state more than once */
-  private final HashMap<Hypothesis, Hypothesis> deduper;
+  private final RecombinationTable deduper;
+
+  /* The number of candidates that can still be popped */
+  private int toPop = 0;
+
+  /* Reused by prune() to find the score of the last candidate that can be popped */
+  private float[] scores = new float[0];
+
+  /* The score of the best candidate added so far */
+  private float bestScore = Float.NEGATIVE_INFINITY;
   
   /**
    * Create a new stack. Stacks are organized one for each number of source words that are covered.
@@ -68,7 +89,9 @@ public class Stack extends ArrayList<Hypothesis> {
     this.candidates = new PriorityQueue<Candidate>(1);
     this.coverages = new HashMap<Coverage, ArrayList<Hypothesis>>();
     this.visitedStates = new HashSet<Candidate>();
-    this.deduper = new HashMap<Hypothesis,Hypothesis>();
+    this.deduper = new RecombinationTable();
+    this.pending = new ArrayList<>();
+    this.batch = new ScoringBatch();
   }
 
   /**
@@ -130,10 +153,11 @@ public class Stack extends ArrayList<Hypothesis> {
    * respect it is like {@link org.apache.joshua.decoder.chart_parser.CubePruneState} (it could make use of that class with
    * a little generalization of spans / coverage).
    * 
-   * This function is also used to (fairly concisely) implement constrained decoding. Before
-   * adding a candidate, we ensure that the sequence of English words match the sentence. If not,
-   * the code extends the dot in the cube-pruning chart to the next phrase, since that one might
-   * be a match.
+   * Under constrained decoding, the cubes only pair hypotheses with phrases that continue their
+   * target prefix (see {@link Stacks}), so every candidate added here matches the target.
+   * 
+   * Candidates are scored in batches: they are held back until the next round of
+   * {@link #search()}, which scores all the candidates added since the previous round together.
    * @param cand a partially-initialized translation {@link org.apache.joshua.decoder.phrase.Candidate}
    */
   public void addCandidate(Candidate cand) {
@@ -141,33 +165,86 @@ public class Stack extends ArrayList<Hypothesis> {
       return;
     
     visitedStates.add(cand);
+    pending.add(cand);
+  }
 
-    // Constrained decoding
-    if (sentence.target() != null) {
-
-      /* Get the rule. If if it's a swap or monolingual rule, find the right backpointer */
-      Rule rule = cand.getHypothesis().getRule();
-      if (rule == Hypothesis.INORDER_RULE)
-        rule = cand.getHypothesis().bestHyperedge.getTailNodes().get(1).bestHyperedge.getRule();
-      else if (rule == Hypothesis.INVERTED_RULE)
-        rule = cand.getHypothesis().bestHyperedge.getTailNodes().get(0).bestHyperedge.getRule();
-      String oldWords = rule.getEnglishWords();
-
-      String newWords = cand.getPhraseRule().getEnglishWords();
-          
-      boolean allowed = sentence.fullTarget().contains(oldWords + " " + newWords);
-      
-      // If the string is not found in the target sentence, explore the cube neighbors
-      if (! allowed) {
-        Candidate next = cand.extendPhrase();
-        if (next != null)
-          addCandidate(next); 
-        
-        return;
+  /**
+   * Scores the pending candidates together and adds them to the priority queue.
+   */
+  private void addPendingCandidates() {
+    Candidate.computeAll(pending, batch);
+    for (Candidate cand : pending)
+      bestScore = Math.max(bestScore, cand.score());
+    final float beamThreshold = beamThreshold();
+    for (Candidate cand : pending)
+      if (cand.score() >= beamThreshold)
+        candidates.add(cand);
+    pending.clear();
+
+    if (config.prune_stack_queues && toPop > 0 && candidates.size() > 2 * toPop + 16)
+      prune();
+  }
+
+  /**
+   * @return the score below which candidates fall out of the beam
+   */
+  private float beamThreshold() {
+    return (config.stack_beam > 0) ? bestScore - config.stack_beam : Float.NEGATIVE_INFINITY;
+  }
+
+  /**
+   * Removes the candidates that can no longer be popped: those below the beam, and those worse than
+   * the best {@link #toPop} candidates. Each pop removes one candidate and adds only its neighbors,
+   * so a candidate that is worse than toPop others is never popped. Candidates tied with the last
+   * of those are kept.
+   * 
+   * The queue has grown to more than twice toPop since it was last pruned, and this takes time
+   * linear in its size, so the cost per added candidate is constant.
+   */
+  private void prune() {
+    if (scores.length < candidates.size())
+      scores = new float[2 * candidates.size()];
+    int size = 0;
+    for (Candidate cand : candidates)
+      scores[size++] = cand.score();
+    final float threshold = Math.max(select(scores, size, size - toPop), beamThreshold());
+    candidates.removeIf(cand -> cand.score() < threshold);
+  }
+
+  /**
+   * Finds the k-th smallest of the first n values by quickselect, in expected linear time. The
+   * values are reordered.
+   * 
+   * @param values the values
+   * @param n the number of values to consider
+   * @param k the zero-based rank of the value to find
+   * @return the value of rank k
+   */
+  static float select(float[] values, int n, int k) {
+    int lo = 0, hi = n - 1;
+    while (lo < hi) {
+      final float pivot = values[(lo + hi) >>> 1];
+      int i = lo, j = hi;
+      while (i <= j) {
+        while (values[i] < pivot)
+          i++;
+        while (values[j] > pivot)
+          j--;
+        if (i <= j) {
+          final float tmp = values[i];
+          values[i++] = values[j];
+          values[j--] = tmp;
+        }
       }
+      // values[lo..j] <= pivot <= values[i..hi], and anything in between equals the pivot
+      if (k <= j)
+        hi = j;
+      else if (k >= i)
+        lo = i;
+      else
+        return values[k];
     }
-
-    candidates.add(cand);
+    return values[k];
   }
   
   /**
@@ -176,25 +253,37 @@ public class Stack extends ArrayList<Hypothesis> {
    * candidate.
    */
   public void search() {
-    int to_pop = config.pop_limit;
+    toPop = config.pop_limit;
+    addPendingCandidates();
     
     if (LOG.isDebugEnabled()) {
-      LOG.debug("Stack::search(): pop: {} size: {}", to_pop, candidates.size());
+      LOG.debug("Stack::search(): pop: {} size: {}", toPop, candidates.size());
       for (Candidate c: candidates)
         LOG.debug("{}", c);
     }
-    while (to_pop > 0 && !candidates.isEmpty()) {
+    while (toPop > 0 && !candidates.isEmpty()) {
       Candidate got = candidates.poll();
-      if (got != null) {
-        addHypothesis(got);
-        --to_pop;
-        
-        for (Candidate c : got.extend())
-          if (c != null) {
-            addCandidate(c);
-          }
-      }
+      // All remaining candidates are worse than one that fell out of the beam
+      if (got.score() < beamThreshold())
+        break;
+
+      addHypothesis(got);
+      --toPop;
+
+      for (Candidate c : got.extend())
+        if (c != null) {
+          addCandidate(c);
+        }
+      addPendingCandidates();
     }
+
+    // The stack is finished, so the search structures are no longer needed
+    candidates.clear();
+    visitedStates.clear();
+    deduper.clear();
+    pending.clear();
+    batch.clear();
+    scores = new float[0];
   }
 
   /**
@@ -208,14 +297,13 @@ public class Stack extends ArrayList<Hypothesis> {
     Hypothesis added = new Hypothesis(complete);
 
     String taskName;
-    if (deduper.containsKey(added)) {
+    Hypothesis existing = deduper.putIfAbsent(added);
+    if (existing != null) {
       taskName = "recombining hypothesis";
-      Hypothesis existing = deduper.get(added);
       existing.absorb(added);
     } else {
       taskName = "creating new hypothesis";
       add(added);
-      deduper.put(added, added);
     }
 
     if (LOG.isDebugEnabled()) {
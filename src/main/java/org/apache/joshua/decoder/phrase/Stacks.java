@@ -38,17 +38,26 @@ package org.apache.joshua.decoder.phrase;
 import static org.apache.joshua.decoder.ff.tm.OwnerMap.UNKNOWN_OWNER;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
 
 import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.apache.joshua.decoder.chart_parser.Chart;
 import org.apache.joshua.decoder.chart_parser.ComputeNodeResult;
 import org.apache.joshua.decoder.ff.FeatureFunction;
+import org.apache.joshua.decoder.ff.ScoringBatch;
 import org.apache.joshua.decoder.ff.tm.AbstractGrammar;
 import org.apache.joshua.decoder.ff.tm.Grammar;
 import org.apache.joshua.decoder.hypergraph.HGNode;
 import org.apache.joshua.decoder.hypergraph.HyperEdge;
 import org.apache.joshua.decoder.hypergraph.HyperGraph;
 import org.apache.joshua.decoder.segment_file.Sentence;
+import org.apache.joshua.util.Tasks;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -66,10 +75,20 @@ public class Stacks {
 
   private final Sentence sentence;
 
+  /* The word IDs of the target sentence under constrained decoding, or null */
+  private final int[] target;
+
   private final JoshuaConfiguration config;
 
   /* Contains all the phrase tables */
   private final PhraseChart chart;
+
+  /*
+   * The candidates extending the hypotheses of different coverage vectors are independent, so
+   * with several span threads they are built and scored concurrently for each stack by this
+   * pool; null if there is a single span thread.
+   */
+  private final ForkJoinPool spanPool;
   
   /**
    * Entry point. Initialize everything. Create pass-through (OOV) phrase table and glue phrase
@@ -78,14 +97,17 @@ public class Stacks {
    * @param sentence input to {@link org.apache.joshua.lattice.Lattice}
    * @param featureFunctions {@link java.util.List} of {@link org.apache.joshua.decoder.ff.FeatureFunction}'s
    * @param grammars an array of {@link org.apache.joshua.decoder.ff.tm.Grammar}'s
+   * @param spanPool the pool working on the spans in parallel, or null to do it sequentially
    * @param config a populated {@link org.apache.joshua.decoder.JoshuaConfiguration}
    */
   public Stacks(Sentence sentence, List<FeatureFunction> featureFunctions, Grammar[] grammars, 
-      JoshuaConfiguration config) {
+      ForkJoinPool spanPool, JoshuaConfiguration config) {
 
     this.sentence = sentence;
+    this.target = (sentence.target() != null) ? sentence.fullTargetIDs() : null;
     this.featureFunctions = featureFunctions;
     this.config = config;
+    this.spanPool = spanPool;
     
     int num_phrase_tables = 0;
     for (Grammar grammar : grammars)
@@ -98,12 +120,13 @@ public class Stacks {
         phraseTables[j++] = (PhraseTable) grammars[i];
     
     phraseTables[phraseTables.length - 2] = new PhraseTable(UNKNOWN_OWNER, config);
-    phraseTables[phraseTables.length - 2].addRule(Hypothesis.END_RULE);
+    phraseTables[phraseTables.length - 2].addRule(Hypothesis.endRule());
     
     phraseTables[phraseTables.length - 1] = new PhraseTable("oov", config);
     AbstractGrammar.addOOVRules(phraseTables[phraseTables.length - 1], sentence.getLattice(), featureFunctions, config.true_oovs_only);
     
-    this.chart = new PhraseChart(phraseTables, featureFunctions, sentence, config.num_translation_options);
+    this.chart = new PhraseChart(phraseTables, featureFunctions, sentence,
+        config.num_translation_options, spanPool);
   }
   
   
@@ -123,7 +146,7 @@ public class Stacks {
     stacks.add(null);
 
     // Initialize root hypothesis with <s> context and future cost for everything.
-    ComputeNodeResult result = new ComputeNodeResult(this.featureFunctions, Hypothesis.BEGIN_RULE,
+    ComputeNodeResult result = new ComputeNodeResult(this.featureFunctions, Hypothesis.beginRule(),
         null, -1, 1, null, this.sentence);
     Stack firstStack = new Stack(sentence, config);
     firstStack.add(new Hypothesis(result.getDPStates(), future.Full()));
@@ -131,69 +154,31 @@ public class Stacks {
     
     // Decode with increasing numbers of source words. 
     for (int source_words = 2; source_words <= sentence.length(); ++source_words) {
+      sentence.checkCancelled();
       Stack targetStack = new Stack(sentence, config);
       stacks.add(targetStack);
 
-      // Iterate over stacks to continue from.
-      for (int phrase_length = 1; phrase_length <= Math.min(source_words - 1, chart.MaxSourcePhraseLength());
-          phrase_length++) {
-        int from_stack = source_words - phrase_length;
-        Stack tailStack = stacks.get(from_stack);
-
-        LOG.debug("WORDS {} MAX {} (STACK {} phrase_length {})", source_words,
-            chart.MaxSourcePhraseLength(), from_stack, phrase_length);
-        
-        /* Each from stack groups together lots of different coverage vectors that all cover the
-         * same number of words. We have the number of covered words from from_stack, and the length
-         * of the phrases we are going to add from (source_words - from_stack). We now iterate over
-         * all coverage vectors, finding the set of phrases that can extend each of them, given
-         * the two constraints: the phrase length, and the current coverage vector. These will all
-         * be grouped under the same target stack.
-         */
-        for (Coverage coverage: tailStack.getCoverages()) {
-          ArrayList<Hypothesis> hypotheses = tailStack.get(coverage); 
-          
-          // the index of the starting point of the first possible phrase
-          int begin = coverage.firstZero();
-          
-          // the absolute position of the ending spot of the last possible phrase
-          int last_end = Math.min(coverage.firstZero() + config.reordering_limit, chart.SentenceLength());
-          int last_begin = (last_end > phrase_length) ? (last_end - phrase_length) : 0;
-
-          for (begin = coverage.firstZero(); begin <= last_begin; begin++) {
-            if (!coverage.compatible(begin, begin + phrase_length) ||
-                ! permissible(coverage, begin, begin + phrase_length)) {
-              continue;
-            }
-
-            // Don't append </s> until the end
-            if (begin == sentence.length() - 1 && source_words != sentence.length()) 
-              continue;            
-
-            /* We have found a permissible phrase start point and length for the current coverage
-             * vector. Find all the phrases over that span.
-             */
-            PhraseNodes phrases = chart.getRange(begin, begin + phrase_length);
-            if (phrases == null)
-              continue;
-
-            LOG.debug("Applying {} target phrases over [{}, {}]",
-                phrases.size(), begin, begin + phrase_length);
-            
-            // TODO: could also compute some number of features here (e.g., non-LM ones)
-            // float score_delta = context.GetScorer().transition(ant, phrases, begin, begin + phrase_length);
-            
-            // Future costs: remove span to be filled.
-            float future_delta = future.Change(coverage, begin, begin + phrase_length);
-            
-            /* This associates with each span a set of hypotheses that can be extended by
-             * phrases from that span. The hypotheses are wrapped in HypoState objects, which
-             * augment the hypothesis score with a future cost.
-             */
-            Candidate cand = new Candidate(featureFunctions, sentence, hypotheses, phrases, future_delta, new int[] {0, 0});
-            targetStack.addCandidate(cand);
-          }
+      /* Each from stack groups together lots of different coverage vectors that all cover the
+       * same number of words. We have the number of covered words from from_stack, and the length
+       * of the phrases we are going to add from (source_words - from_stack). We now iterate over
+       * all coverage vectors, finding the set of phrases that can extend each of them, given
+       * the two constraints: the phrase length, and the current coverage vector. These will all
+       * be grouped under the same target stack.
+       */
+      if (spanPool == null) {
+        List<Candidate> seeds = new ArrayList<>();
+        for (int phrase_length = 1; phrase_length <= Math.min(source_words - 1, chart.MaxSourcePhraseLength());
+            phrase_length++) {
+          Stack tailStack = stacks.get(source_words - phrase_length);
+          LOG.debug("WORDS {} MAX {} (STACK {} phrase_length {})", source_words,
+              chart.MaxSourcePhraseLength(), source_words - phrase_length, phrase_length);
+          for (Coverage coverage: tailStack.getCoverages())
+            seedCandidates(tailStack, coverage, source_words, phrase_length, future, seeds);
         }
+        for (Candidate cand: seeds)
+          targetStack.addCandidate(cand);
+      } else {
+        seedCandidatesInParallel(spanPool, targetStack, source_words, future);
       }
 
       /* At this point, every vertex contains a list of all existing hypotheses that the target
@@ -215,6 +200,126 @@ public class Stacks {
     return createGoalNode();
   }
     
+  /**
+   * Builds the first candidates (the corners of the cubes) that extend the hypotheses of a
+   * coverage vector of a tail stack with phrases of the given length.
+   * 
+   * Under constrained decoding, a hypothesis can only be extended by the phrases that continue the
+   * target right after the prefix it produced. The hypotheses are grouped by the length of that
+   * prefix, and each group gets a cube of its own, over the phrases that match the target at that
+   * position; every cell of such a cube matches, so cube pruning never visits one that does not.
+   * 
+   * @param tailStack the stack the hypotheses are taken from
+   * @param coverage the coverage vector of the hypotheses
+   * @param source_words the number of source words covered by the target stack
+   * @param phrase_length the length of the phrases
+   * @param future the future cost estimates
+   * @param seeds the list the candidates are added to
+   */
+  private void seedCandidates(Stack tailStack, Coverage coverage, int source_words,
+      int phrase_length, Future future, List<Candidate> seeds) {
+    ArrayList<Hypothesis> hypotheses = tailStack.get(coverage); 
+
+    // Constrained decoding: the hypotheses, still sorted, by the length of their target prefix
+    Map<Integer, List<Hypothesis>> byTargetLength = null;
+    if (target != null) {
+      byTargetLength = new LinkedHashMap<>();
+      for (Hypothesis hyp : hypotheses)
+        byTargetLength.computeIfAbsent(hyp.getTargetLength(), k -> new ArrayList<>()).add(hyp);
+    }
+
+    // the absolute position of the ending spot of the last possible phrase
+    int last_end = Math.min(coverage.firstZero() + config.reordering_limit, chart.SentenceLength());
+    int last_begin = (last_end > phrase_length) ? (last_end - phrase_length) : 0;
+
+    // the index of the starting point of the first possible phrase
+    for (int begin = coverage.firstZero(); begin <= last_begin; begin++) {
+      if (!coverage.compatible(begin, begin + phrase_length) ||
+          ! permissible(coverage, begin, begin + phrase_length)) {
+        continue;
+      }
+
+      // Don't append </s> until the end
+      if (begin == sentence.length() - 1 && source_words != sentence.length()) 
+        continue;            
+
+      /* We have found a permissible phrase start point and length for the current coverage
+       * vector. Find all the phrases over that span.
+       */
+      PhraseNodes phrases = chart.getRange(begin, begin + phrase_length);
+      if (phrases == null)
+        continue;
+
+      LOG.debug("Applying {} target phrases over [{}, {}]",
+          phrases.size(), begin, begin + phrase_length);
+
+      // Future costs: remove span to be filled.
+      float future_delta = future.Change(coverage, begin, begin + phrase_length);
+
+      /* This associates with each span a set of hypotheses that can be extended by
+       * phrases from that span. The hypotheses are wrapped in HypoState objects, which
+       * augment the hypothesis score with a future cost.
+       */
+      if (byTargetLength == null) {
+        seeds.add(new Candidate(featureFunctions, sentence, hypotheses, phrases, future_delta, new int[] {0, 0}));
+        continue;
+      }
+      for (Map.Entry<Integer, List<Hypothesis>> group : byTargetLength.entrySet()) {
+        PhraseNodes matching = phrases.matching(target, group.getKey());
+        if (! matching.isEmpty())
+          seeds.add(new Candidate(featureFunctions, sentence, group.getValue(), matching, future_delta, new int[] {0, 0}));
+      }
+    }
+  }
+
+  /**
+   * Seeds a target stack with one task per coverage vector of each tail stack. Each task also
+   * scores its candidates, which is the bulk of the work.
+   * 
+   * The candidates are added to the target stack by the calling thread. With
+   * deterministic_stacks, they are added in the order of sequential search, so that candidates
+   * of equal score are popped in the same order and the search result does not depend on the
+   * number of threads. Otherwise each task's candidates are added as soon as it completes.
+   */
+  private void seedCandidatesInParallel(ForkJoinPool pool, Stack targetStack, int source_words,
+      Future future) {
+    CompletionService<List<Candidate>> completed = new ExecutorCompletionService<>(pool);
+    List<java.util.concurrent.Future<List<Candidate>>> tasks = new ArrayList<>();
+    for (int phrase_length = 1; phrase_length <= Math.min(source_words - 1, chart.MaxSourcePhraseLength());
+        phrase_length++) {
+      final Stack tailStack = stacks.get(source_words - phrase_length);
+      final int length = phrase_length;
+      for (final Coverage coverage: tailStack.getCoverages()) {
+        tasks.add(completed.submit(() -> {
+          List<Candidate> seeds = new ArrayList<>();
+          seedCandidates(tailStack, coverage, source_words, length, future, seeds);
+          Candidate.computeAll(seeds, new ScoringBatch());
+          return seeds;
+        }));
+      }
+    }
+
+    try {
+      for (int i = 0; i < tasks.size(); i++) {
+        List<Candidate> seeds = config.deterministic_stacks
+            ? tasks.get(i).get() : completed.take().get();
+        for (Candidate cand: seeds)
+          targetStack.addCandidate(cand);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException)
+        throw (RuntimeException) e.getCause();
+      throw new RuntimeException(e.getCause());
+    } finally {
+      // After a failure the other tasks may still be scoring with the sentence's LM state, which
+      // the caller releases once the failure reaches it
+      Tasks.awaitAll(tasks);
+    }
+  }
+
   /**
    * Enforces reordering constraints. Our version of Moses' ReorderingConstraint::Check() and
    * SearchCubePruning::CheckDistortion(). 
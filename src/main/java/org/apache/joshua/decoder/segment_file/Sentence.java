@@ -26,6 +26,8 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.StringTokenizer;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -67,6 +69,7 @@ public class Sentence {
   
   protected String target = null;
   protected String fullTarget = null;
+  protected int[] fullTargetIDs = null;
   protected String[] references = null;
 
   /* Lattice representation of the source sentence. */
@@ -74,6 +77,9 @@ public class Sentence {
 
   /* List of constraints */
   private final List<ConstraintSpan> constraints;
+
+  /* Tells whether the request this sentence belongs to has been abandoned */
+  private BooleanSupplier cancellation = () -> false;
   
   public JoshuaConfiguration config = null;
 
@@ -355,6 +361,20 @@ public class Sentence {
     return fullTarget; 
   }
 
+  /**
+   * Returns the word IDs of the target side with the start and stop symbols added, computing them
+   * on first use. Constrained phrase-based decoding matches target phrases against them by
+   * position. The returned array must not be modified.
+   * 
+   * @return the word IDs of {@link #fullTarget()}
+   */
+  public int[] fullTargetIDs() {
+    if (fullTargetIDs == null) {
+      fullTargetIDs = Vocabulary.addAll(fullTarget());
+    }
+    return fullTargetIDs;
+  }
+
   public String source(int i, int j) {
     StringTokenizer st = new StringTokenizer(fullSource());
     int index = 0;
@@ -370,6 +390,34 @@ public class Sentence {
     return substring.toString().trim();
   }
 
+  /**
+   * Sets the test for whether the request this sentence belongs to has been abandoned (for example
+   * because its client timed out). The decoder checks it regularly and stops translating the
+   * sentence once it holds.
+   * 
+   * @param cancellation tells whether the sentence's request has been cancelled
+   */
+  public void setCancellation(BooleanSupplier cancellation) {
+    this.cancellation = cancellation;
+  }
+
+  /**
+   * @return true if the request this sentence belongs to has been cancelled
+   */
+  public boolean isCancelled() {
+    return cancellation.getAsBoolean();
+  }
+
+  /**
+   * Stops the translation of this sentence if its request has been cancelled.
+   * 
+   * @throws CancellationException if the sentence's request has been cancelled
+   */
+  public void checkCancelled() {
+    if (isCancelled())
+      throw new CancellationException(String.format("Input %d: translation cancelled", id));
+  }
+
   public String[] references() {
     return references;
   }
@@ -0,0 +1,170 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs client requests for the TCP and HTTP servers on a bounded pool of worker threads.
+ *
+ * At most server_threads requests are handled at once, and at most server_queue_size more wait
+ * for a free worker. Further requests are rejected right away with a
+ * {@link RejectedExecutionException}, so that clients see backpressure instead of an ever-growing
+ * backlog. Every accepted request must complete within translation_thread_timeout milliseconds
+ * (counted from submission); otherwise its future fails with a {@link TimeoutException} and the
+ * worker is interrupted.
+ *
+ * The timer thread only fails and cancels late requests. The futures returned by
+ * {@link #submit(Callable)} are completed on a separate pool of responder threads, so that the
+ * actions that write responses to clients, which may block, run there rather than on the timer or
+ * on a worker. Responses that do not belong to an accepted request, such as those to rejected
+ * ones, can be handed to the same threads with {@link #respond(Runnable)}.
+ */
+public class ServerEngine {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ServerEngine.class);
+
+  private final ThreadPoolExecutor workers;
+  private final ScheduledExecutorService timer;
+  private final ThreadPoolExecutor responders;
+  private final long timeout;
+
+  public ServerEngine(JoshuaConfiguration joshuaConfiguration) {
+    this(joshuaConfiguration.server_threads > 0
+        ? joshuaConfiguration.server_threads : joshuaConfiguration.num_parallel_decoders,
+        joshuaConfiguration.server_queue_size,
+        joshuaConfiguration.translation_thread_timeout);
+  }
+
+  /**
+   * @param numThreads the number of requests handled concurrently
+   * @param queueSize the number of requests that may wait for a worker
+   * @param timeout the per-request deadline in milliseconds, or 0 for none
+   */
+  public ServerEngine(int numThreads, int queueSize, long timeout) {
+    if (numThreads <= 0)
+      throw new IllegalArgumentException("Must specify a positive number of server threads");
+
+    this.workers = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+        queueSize > 0 ? new ArrayBlockingQueue<>(queueSize) : new SynchronousQueue<>(),
+        new ThreadFactoryBuilder().setNameFormat("ServerWorker-%d").setDaemon(true).build());
+    this.timer = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("ServerTimer-%d").setDaemon(true).build());
+    // Once the engine is shut down, the responses of the requests it still completes are written
+    // by the threads completing them
+    this.responders = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<>(),
+        new ThreadFactoryBuilder().setNameFormat("ServerResponder-%d").setDaemon(true).build(),
+        (response, executor) -> response.run());
+    this.timeout = timeout;
+
+    LOG.info("Server engine: {} worker threads, queue size {}, timeout {} ms", numThreads,
+        queueSize, timeout);
+  }
+
+  /**
+   * Queues a request for execution.
+   *
+   * @param task the work to do for the request
+   * @param <T> the result type of the request
+   * @return a future completed on a responder thread with the result of the task, or
+   *         exceptionally if the task fails or times out
+   * @throws RejectedExecutionException if all workers are busy and the queue is full
+   */
+  public <T> CompletableFuture<T> submit(Callable<T> task) {
+    final CompletableFuture<T> result = new CompletableFuture<>();
+
+    final Future<?> work = workers.submit(() -> {
+      try {
+        result.complete(task.call());
+      } catch (Throwable e) {
+        result.completeExceptionally(e);
+      }
+    });
+
+    if (timeout > 0) {
+      ScheduledFuture<?> alarm = timer.schedule(() -> {
+        if (result.completeExceptionally(new TimeoutException(
+            String.format("Request did not complete within %d ms", timeout))))
+          work.cancel(true);
+      }, timeout, TimeUnit.MILLISECONDS);
+      result.whenComplete((value, error) -> alarm.cancel(false));
+    }
+
+    final CompletableFuture<T> response = new CompletableFuture<>();
+    result.whenCompleteAsync((value, error) -> {
+      if (error == null)
+        response.complete(value);
+      else
+        response.completeExceptionally(error);
+    }, responders);
+    return response;
+  }
+
+  /**
+   * Writes a response on a responder thread, e.g. to a request that was rejected, so that the
+   * calling thread does not block on the client.
+   *
+   * @param response the action writing the response
+   */
+  public void respond(Runnable response) {
+    responders.execute(response);
+  }
+
+  /**
+   * @return the number of requests currently being handled
+   */
+  public int getActiveCount() {
+    return workers.getActiveCount();
+  }
+
+  /**
+   * @return the number of requests waiting for a worker
+   */
+  public int getQueuedCount() {
+    return workers.getQueue().size();
+  }
+
+  /**
+   * Stops accepting requests. Requests already accepted are still completed.
+   */
+  public void shutdown() {
+    workers.shutdown();
+    timer.shutdown();
+    responders.shutdown();
+  }
+}
@@ -31,6 +31,8 @@ import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
 
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
@@ -51,6 +53,10 @@ import org.slf4j.LoggerFactory;
  * This class handles a concurrent request for translations from a newly opened socket, for
  * both raw TCP/IP connections and for HTTP connections.
  * 
+ * HTTP requests are not translated on the server's dispatch thread; they are handed to a
+ * {@link ServerEngine}, which bounds the number of requests in flight. Requests are answered with
+ * 503 when the engine is saturated and with 504 when they exceed the configured timeout. All
+ * responses are written by the engine's responder threads.
  */
 public class ServerThread extends Thread implements HttpHandler {
 
@@ -60,6 +66,10 @@ public class ServerThread extends Thread implements HttpHandler {
   private final JoshuaConfiguration joshuaConfiguration;
   private Socket socket = null;
   private final Decoder decoder;
+  private ServerEngine engine = null;
+
+  /* Metadata commands change the weights and the custom grammar, so they are run one at a time */
+  private static final Object METADATA_LOCK = new Object();
 
   /**
    * Creates a new TcpServerThread that can run a set of translations.
@@ -74,6 +84,19 @@ public class ServerThread extends Thread implements HttpHandler {
     this.decoder = decoder;
   }
 
+  /**
+   * Creates a new HTTP handler that runs translation requests on the given engine.
+   * 
+   * @param engine the {@link ServerEngine} that runs requests
+   * @param decoder the configured decoder that handles performing translations
+   * @param joshuaConfiguration a populated {@link org.apache.joshua.decoder.JoshuaConfiguration}
+   */
+  public ServerThread(ServerEngine engine, Decoder decoder, JoshuaConfiguration joshuaConfiguration) {
+    this.joshuaConfiguration = joshuaConfiguration;
+    this.decoder = decoder;
+    this.engine = engine;
+  }
+
   /**
    * Reads the input from the socket, submits the input to the decoder, transforms the resulting
    * translations into the required output format, writes out the formatted output, then closes the
@@ -122,63 +145,84 @@ public class ServerThread extends Thread implements HttpHandler {
     return result;
   } 
 
-  private class HttpWriter extends OutputStream {
-
-    private HttpExchange client = null;
-    private OutputStream out = null;
-    
-    public HttpWriter(HttpExchange client) {
-      this.client = client;
-      client.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
-    }
-    
-    @Override
-    public void write(byte[] response) throws IOException {
-      client.sendResponseHeaders(200, response.length);
-      out = client.getResponseBody();
-      out.write(response);
-      out.close();
-    }
-
-    @Override
-    public void write(int b) throws IOException {
-      out.write(b);
-    }
-  }
-
   /**
    * Called to handle an HTTP connection. This looks for metadata in the URL string, which is processed
-   * if present. It also then handles returning a JSON-formatted object to the caller. 
+   * if present. It also then handles returning a JSON-formatted object to the caller. The translation
+   * itself runs on the {@link ServerEngine}, so this returns as soon as the request is queued.
    * 
    * @param client the client connection
    */
   @Override
-  public synchronized void handle(HttpExchange client) throws IOException {
+  public void handle(HttpExchange client) throws IOException {
 
     HashMap<String, String> params = queryToMap(client.getRequestURI().getQuery());
     String query = params.get("q");
     String meta = params.get("meta");
-    
+
+    try {
+      engine.submit(() -> translate(query, meta)).whenComplete((response, error) -> {
+        try {
+          if (error == null) {
+            respond(client, 200, response);
+          } else if (error instanceof TimeoutException) {
+            LOG.warn("HTTP request timed out: {}", error.getMessage());
+            respond(client, 504, error.getMessage());
+          } else {
+            LOG.error("HTTP request failed", error);
+            respond(client, 500, String.valueOf(error.getMessage()));
+          }
+        } catch (IOException e) {
+          LOG.error(e.getMessage(), e);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      LOG.warn("Rejecting HTTP request: {} requests running, {} queued", engine.getActiveCount(),
+          engine.getQueuedCount());
+      engine.respond(() -> {
+        try {
+          respond(client, 503, "Server busy");
+        } catch (IOException ioe) {
+          LOG.error(ioe.getMessage(), ioe);
+        }
+      });
+    }
+  }
+
+  /**
+   * Translates the sentences of an HTTP request.
+   * 
+   * @return the JSON-formatted response
+   */
+  private String translate(String query, String meta) throws IOException {
     BufferedReader reader = new BufferedReader(new StringReader(query));
     TranslationRequestStream request = new TranslationRequestStream(reader, joshuaConfiguration);
     
     TranslationResponseStream translationResponseStream = decoder.decodeAll(request);
     JSONMessage message = new JSONMessage();
-    if (meta != null && ! meta.isEmpty())
-      handleMetadata(meta, message);
+    if (meta != null && ! meta.isEmpty()) {
+      synchronized (METADATA_LOCK) {
+        handleMetadata(meta, message);
+      }
+    }
 
     for (Translation translation: translationResponseStream) {
       LOG.info("TRANSLATION: '{}' with {} k-best items", translation, translation.getStructuredTranslations().size());
       message.addTranslation(translation);
     }
+    reader.close();
 
-    OutputStream out = new HttpWriter(client);
-    out.write(message.toString().getBytes());
     if (LOG.isDebugEnabled())
       LOG.debug(message.toString());
-    out.close();
-    
-    reader.close();
+    return message.toString();
+  }
+
+  private static void respond(HttpExchange client, int status, String body) throws IOException {
+    byte[] response = body.getBytes(FILE_ENCODING);
+    client.getResponseHeaders().add("Access-Control-Allow-Origin", "*");
+    client.sendResponseHeaders(status, response.length);
+    try (OutputStream out = client.getResponseBody()) {
+      out.write(response);
+    }
   }
   
   /**
@@ -20,6 +20,8 @@ package org.apache.joshua.server;
 
 import java.io.IOException;
 import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.joshua.decoder.Decoder;
 import org.apache.joshua.decoder.JoshuaConfiguration;
@@ -43,23 +45,53 @@ public class TcpServer {
   }
   
   /**
-   * Listens on a port for new socket connections. Concurrently handles multiple socket connections.
+   * Listens on a port for new socket connections. Concurrently handles multiple socket connections
+   * on a {@link ServerEngine}; connections that arrive while it is saturated are closed right away,
+   * and connections that exceed the request timeout are closed by the engine.
    */
   public void start() {
 
+    ServerEngine engine = new ServerEngine(joshuaConfiguration);
     try {
       ServerSocket serverSocket = new ServerSocket(joshuaConfiguration.server_port);
       LOG.info("** TCP Server running and listening on port {}.", port);
 
       boolean listening = true;
-      while (listening)
-        new ServerThread(serverSocket.accept(), decoder, joshuaConfiguration).start();
+      while (listening) {
+        final Socket socket = serverSocket.accept();
+        final ServerThread worker = new ServerThread(socket, decoder, joshuaConfiguration);
+        try {
+          engine.submit(() -> {
+            worker.run();
+            return null;
+          }).whenComplete((result, error) -> {
+            if (error != null) {
+              LOG.warn("Closing connection: {}", error.getMessage());
+              close(socket);
+            }
+          });
+        } catch (RejectedExecutionException e) {
+          LOG.warn("Rejecting connection: {} requests running, {} queued",
+              engine.getActiveCount(), engine.getQueuedCount());
+          engine.respond(() -> close(socket));
+        }
+      }
 
       serverSocket.close();
 
     } catch (IOException e) {
       throw new RuntimeException(String.format("Could not listen on port: %d.",
           joshuaConfiguration.server_port));
+    } finally {
+      engine.shutdown();
+    }
+  }
+
+  private static void close(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      LOG.error(e.getMessage(), e);
     }
   }
 }
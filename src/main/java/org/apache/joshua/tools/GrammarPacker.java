@@ -18,6 +18,7 @@
  */
 package org.apache.joshua.tools;
 
+import static org.apache.joshua.decoder.ff.tm.packed.PackedGrammar.PRESORT_WEIGHTS_FILENAME;
 import static org.apache.joshua.decoder.ff.tm.packed.PackedGrammar.VOCABULARY_FILENAME;
 
 import java.io.BufferedOutputStream;
@@ -29,8 +30,10 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
 import java.util.TreeMap;
 
@@ -70,6 +73,10 @@ public class GrammarPacker {
    * the need for special handling of phrase grammars (except for having to add a LHS), and lets
    * phrase grammars be used in both hierarchical and phrase-based decoding without conversion.
    *
+   * Grammars packed with pre-sorting weights are still version 4; they are marked with
+   * "presorted = true" in the config and carry an additional .estimates file per slice, holding
+   * the weighted grammar cost of each rule, which older decoders simply ignore.
+   *
    */
   public static final int VERSION = 4;
 
@@ -110,10 +117,34 @@ public class GrammarPacker {
 
   private int max_source_len;
 
+  /*
+   * If set, rules are sorted at packing time by their cost under these weights, and the costs are
+   * stored with the grammar, so that the decoder does not need to sort at runtime. Unlabeled
+   * features are weighted by the tm_OWNER_INDEX weights of presortOwner.
+   */
+  private Map<String, Float> presortWeights = null;
+  private String presortOwner;
+
   public GrammarPacker(String grammar_filename, String config_filename, String output_filename,
       String alignments_filename, String featuredump_filename, boolean grammar_alignments,
       int approximateMaximumSliceSize)
       throws IOException {
+    this(grammar_filename, config_filename, output_filename, alignments_filename,
+        featuredump_filename, grammar_alignments, approximateMaximumSliceSize, null, null);
+  }
+
+  /**
+   * Creates a packer that optionally pre-sorts the rules of each trie node.
+   *
+   * @param weights_filename a weights file ("name value" per line) used to sort the rules, or null
+   *          to leave sorting to the decoder
+   * @param presort_owner the owner the grammar will be loaded with; determines the names of the
+   *          weights (tm_OWNER_INDEX) for unlabeled features
+   */
+  public GrammarPacker(String grammar_filename, String config_filename, String output_filename,
+      String alignments_filename, String featuredump_filename, boolean grammar_alignments,
+      int approximateMaximumSliceSize, String weights_filename, String presort_owner)
+      throws IOException {
     this.labeled = true;
     this.grammar = grammar_filename;
     this.output = output_filename;
@@ -133,6 +164,13 @@ public class GrammarPacker {
       throw new RuntimeException("Alignments file does not exist: " + alignments);
     }
 
+    if (weights_filename != null) {
+      this.presortWeights = readWeights(weights_filename);
+      this.presortOwner = (presort_owner != null) ? presort_owner : "pt";
+      LOG.info("Pre-sorting rules with {} weights from {} (owner '{}')", presortWeights.size(),
+          weights_filename, presortOwner);
+    }
+
     if (config_filename != null) {
       readConfig(config_filename);
       types.readConfig(config_filename);
@@ -170,6 +208,38 @@ public class GrammarPacker {
     }
   }
 
+  private static Map<String, Float> readWeights(String weights_filename) throws IOException {
+    Map<String, Float> weights = new HashMap<>();
+    try (LineReader reader = new LineReader(weights_filename)) {
+      for (String line : reader) {
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#") || line.startsWith("//"))
+          continue;
+        String[] fields = line.split("\\s+");
+        if (fields.length != 2)
+          throw new RuntimeException("Invalid line in weights file: " + line);
+        weights.put(fields[0], Float.parseFloat(fields[1]));
+      }
+    }
+    return weights;
+  }
+
+  /**
+   * Returns the contribution of a single rule feature to the rule's cost under the pre-sorting
+   * weights. This mirrors what the decoder computes for the grammar's features: unlabeled (dense)
+   * feature values are negated when loaded, and are weighted by tm_OWNER_INDEX.
+   */
+  private float presortCost(String name, float value) {
+    try {
+      int index = Integer.parseInt(name);
+      Float weight = presortWeights.get(String.format("tm_%s_%d", presortOwner, index));
+      return (weight == null) ? 0.0f : -weight * value;
+    } catch (NumberFormatException e) {
+      Float weight = presortWeights.get(name);
+      return (weight == null) ? 0.0f : weight * value;
+    }
+  }
+
   /**
    * Executes the packing.
    *
@@ -207,8 +277,19 @@ public class GrammarPacker {
     FileWriter config = new FileWriter(configFile);
     config.write(String.format("version = %d\n", VERSION));
     config.write(String.format("max-source-len = %d\n", max_source_len));
+    if (presortWeights != null) {
+      config.write("presorted = true\n");
+      config.write(String.format("presort-owner = %s\n", presortOwner));
+    }
     config.close();
 
+    if (presortWeights != null) {
+      try (PrintWriter weights_writer = new PrintWriter(output + File.separator + PRESORT_WEIGHTS_FILENAME)) {
+        for (Map.Entry<String, Float> weight : presortWeights.entrySet())
+          weights_writer.println(weight.getKey() + " " + weight.getValue());
+      }
+    }
+
     // Read previously written encoder configuration to match up to changed
     // vocabulary id's.
     LOG.info("Reading encoding.");
@@ -383,22 +464,26 @@ public class GrammarPacker {
       // to pass on to the source trie node.
       features.clear();
       int feature_count = 0;
+      float cost = 0.0f;
       for (int f = 0; f < feature_entries.length; ++f) {
         String feature_entry = feature_entries[f];
-        int feature_id;
+        String feature_name;
         float feature_value;
         if (feature_entry.contains("=")) {
           String[] parts = feature_entry.split("=");
           if (parts[0].equals("Alignment"))
             continue;
-          feature_id = Vocabulary.id(parts[0]);
+          feature_name = parts[0];
           feature_value = Float.parseFloat(parts[1]);
         } else {
-          feature_id = Vocabulary.id(String.valueOf(feature_count++));
+          feature_name = String.valueOf(feature_count++);
           feature_value = Float.parseFloat(feature_entry);
         }
-        if (feature_value != 0)
-          features.put(encoderConfig.innerId(feature_id), feature_value);
+        if (feature_value != 0) {
+          features.put(encoderConfig.innerId(Vocabulary.id(feature_name)), feature_value);
+          if (presortWeights != null)
+            cost += presortCost(feature_name, feature_value);
+        }
       }
       int features_index = feature_buffer.add(features);
 
@@ -411,6 +496,7 @@ public class GrammarPacker {
 
       // Process source side.
       SourceValue sv = new SourceValue(Vocabulary.id(lhs_word), features_index);
+      sv.cost = cost;
       int[] source = new int[source_words.length];
       for (int i = 0; i < source_words.length; i++) {
         if (FormatUtils.isNonterminal(source_words[i]))
@@ -461,6 +547,9 @@ public class GrammarPacker {
     DataOutputStream target_lookup_stream = slice.getTargetLookupOutput();
     DataOutputStream feature_stream = slice.getFeatureOutput();
     DataOutputStream alignment_stream = slice.getAlignmentOutput();
+    DataOutputStream estimate_stream = slice.getEstimateOutput();
+    // The cost of each data block, in the order the blocks are written
+    List<Float> block_costs = new ArrayList<>();
 
     Queue<PackingTrie<TargetValue>> target_queue;
     Queue<PackingTrie<SourceValue>> source_queue;
@@ -547,6 +636,9 @@ public class GrammarPacker {
         source_stream.writeInt(k);
         source_stream.writeInt(child.address);
       }
+      // Best rules first, as the decoder would sort them (ties keep the grammar's order)
+      if (presortWeights != null)
+        node.values.sort((a, b) -> Float.compare(b.cost, a.cost));
       // Write number of data items.
       source_stream.writeInt(node.values.size());
       // Write lhs and links to target and data.
@@ -563,8 +655,16 @@ public class GrammarPacker {
         source_stream.writeInt(sv.lhs);
         source_stream.writeInt(sv.target);
         source_stream.writeInt(feature_block_index);
+        block_costs.add(sv.cost);
       }
     }
+    // The precomputable cost of each rule: its (weighted) grammar cost
+    if (estimate_stream != null) {
+      estimate_stream.writeInt(block_costs.size());
+      for (float cost : block_costs)
+        estimate_stream.writeFloat(cost);
+      estimate_stream.close();
+    }
     // Flush the data stream.
     feature_buffer.flush(feature_stream);
     if (packAlignments)
@@ -676,6 +776,8 @@ public class GrammarPacker {
     int lhs;
     int data;
     int target;
+    // The rule's cost under the pre-sorting weights (not written to the source trie)
+    float cost;
 
     public SourceValue() {
     }
@@ -910,6 +1012,7 @@ public class GrammarPacker {
 
     private File featureFile;
     private File alignmentFile;
+    private File estimateFile;
 
     PackingFileTuple(String prefix) {
       sourceFile = new File(output + File.separator + prefix + ".source");
@@ -921,6 +1024,10 @@ public class GrammarPacker {
       if (packAlignments)
         alignmentFile = new File(output + File.separator + prefix + ".alignments");
 
+      estimateFile = null;
+      if (presortWeights != null)
+        estimateFile = new File(output + File.separator + prefix + ".estimates");
+
       LOG.info("Allocated slice: {}", sourceFile.getAbsolutePath());
     }
 
@@ -946,6 +1053,12 @@ public class GrammarPacker {
       return null;
     }
 
+    DataOutputStream getEstimateOutput() throws IOException {
+      if (estimateFile != null)
+        return getOutput(estimateFile);
+      return null;
+    }
+
     private DataOutputStream getOutput(File file) throws IOException {
       if (file.createNewFile()) {
         return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
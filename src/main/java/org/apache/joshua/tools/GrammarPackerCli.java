@@ -58,6 +58,12 @@ public class GrammarPackerCli {
   
   @Option(name = "--slice_size", aliases = {"-s"}, required = false, usage = "approximate slice size in # of rules (default=1000000)")
   private int slice_size = 1000000;
+
+  @Option(name = "--presort_weights", aliases = {"-w"}, required = false, usage = "(optional) weights file; rules are sorted by their cost under these weights at packing time")
+  private String presort_weights_filename;
+
+  @Option(name = "--presort_owner", required = false, usage = "owner the grammar will be loaded with, naming its dense weights tm_OWNER_i (default=pt)")
+  private String presort_owner = "pt";
   
   
   private void run() throws IOException {
@@ -76,6 +82,10 @@ public class GrammarPackerCli {
       throw new IOException("Config file not found: " + config_filename);
     }
 
+    if (presort_weights_filename != null && !new File(presort_weights_filename).exists()) {
+      throw new IOException("Weights file not found: " + presort_weights_filename);
+    }
+
     if (!outputs.isEmpty()) {
       if (outputs.size() != grammars.size()) {
         throw new IOException("Must provide an output directory for each grammar");
@@ -121,7 +131,9 @@ public class GrammarPackerCli {
           alignment_filename,
           featuredump_filename,
           grammar_alignments,
-          slice_size);
+          slice_size,
+          presort_weights_filename,
+          presort_owner);
       packers.add(packer);
     }
     
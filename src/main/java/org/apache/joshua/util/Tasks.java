@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.util;
+
+import java.util.Collection;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Waits for tasks that a sentence's decoding split over a thread pool. A failed task must not end
+ * the wait early: the others are still running and using the sentence's state (such as its KenLM
+ * pools), which the caller releases as soon as the failure reaches it.
+ */
+public final class Tasks {
+
+  private Tasks() {
+  }
+
+  /**
+   * Waits until all of the tasks have finished, then rethrows the first failure, if any. Later
+   * failures are added to it as suppressed exceptions.
+   *
+   * @param tasks the tasks to wait for
+   * @throws RuntimeException the first task failure (wrapped if it was a checked exception)
+   */
+  public static void joinAll(Collection<? extends Future<?>> tasks) {
+    Throwable failure = null;
+    for (Future<?> task : tasks) {
+      Throwable cause = await(task);
+      if (cause == null)
+        continue;
+      if (failure == null)
+        failure = cause;
+      else if (failure != cause)
+        failure.addSuppressed(cause);
+    }
+
+    if (failure instanceof RuntimeException)
+      throw (RuntimeException) failure;
+    if (failure instanceof Error)
+      throw (Error) failure;
+    if (failure != null)
+      throw new RuntimeException(failure);
+  }
+
+  /**
+   * Waits until all of the tasks have finished, ignoring how. Used when the caller is already
+   * propagating a failure.
+   *
+   * @param tasks the tasks to wait for
+   */
+  public static void awaitAll(Collection<? extends Future<?>> tasks) {
+    for (Future<?> task : tasks)
+      await(task);
+  }
+
+  /* Waits for a task, returning why it failed or null if it succeeded */
+  private static Throwable await(Future<?> task) {
+    try {
+      Uninterruptibles.getUninterruptibly(task);
+      return null;
+    } catch (ExecutionException e) {
+      return e.getCause();
+    } catch (CancellationException e) {
+      return e;
+    }
+  }
+}
@@ -55,6 +55,13 @@ public class EncoderConfiguration {
   public int getNumFeatures() {
     return encoders.length;
   }
+
+  /**
+   * @return the number of distinct feature (inner) ids known to this encoding
+   */
+  public int getNumFeatureIds() {
+    return innerToOuter.length;
+  }
   
   public void load(String file_name) throws IOException {
     File encoding_file = new File(file_name);
@@ -29,6 +29,11 @@ import static org.testng.AssertJUnit.assertFalse;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class VocabularyTest {
   private static final String WORD1 = "word1";
@@ -67,6 +72,16 @@ public class VocabularyTest {
     assertEquals(2, Vocabulary.size());
   }
 
+  @Test
+  public void givenVocabulary_whenGetIdOfNewWord_thenNotRegistered() {
+    assertEquals(Vocabulary.NO_ID, Vocabulary.getId(WORD1));
+    assertEquals(1, Vocabulary.size());
+
+    final int id = Vocabulary.id(WORD1);
+    assertEquals(id, Vocabulary.getId(WORD1));
+    assertEquals(Vocabulary.UNKNOWN_ID, Vocabulary.getId(Vocabulary.UNKNOWN_WORD));
+  }
+
   @Test
   public void givenVocabulary_whenCheckingStringInBracketsOrNegativeNumber_thenIsNonTerminal() {
     //non-terminals
@@ -130,4 +145,33 @@ public class VocabularyTest {
     assertEquals(id2, Vocabulary.id(NON_TERMINAL));
     assertEquals(id3, Vocabulary.id(WORD2));
   }
+
+  @Test
+  public void givenManyThreads_whenAddingOverlappingWords_thenEachWordGetsOneId() throws Exception {
+    final int numWords = 5000;
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<int[]>> results = new ArrayList<>();
+      for (int t = 0; t < 8; t++) {
+        results.add(executor.submit(() -> {
+          int[] ids = new int[numWords];
+          for (int i = 0; i < numWords; i++)
+            ids[i] = Vocabulary.id("w" + i);
+          return ids;
+        }));
+      }
+
+      int[] expected = results.get(0).get();
+      for (Future<int[]> result : results) {
+        int[] ids = result.get();
+        for (int i = 0; i < numWords; i++) {
+          assertEquals(expected[i], ids[i]);
+          assertEquals("w" + i, Vocabulary.word(ids[i]));
+        }
+      }
+      assertEquals(numWords + 1, Vocabulary.size());
+    } finally {
+      executor.shutdown();
+    }
+  }
 }
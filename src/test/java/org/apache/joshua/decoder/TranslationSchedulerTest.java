@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.joshua.decoder.segment_file.Sentence;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+public class TranslationSchedulerTest {
+
+  private static final String SHORT = "a b c";
+  private static final String LONG = "a b c d e f g h i j k l m n o p q r s t u v w x y z";
+
+  @AfterMethod
+  public void tearDown() {
+    Decoder.resetGlobalState();
+  }
+
+  @Test
+  public void givenQueuedSentences_whenWorkerFrees_thenShorterBucketsRunFirstInArrivalOrder()
+      throws Exception {
+    JoshuaConfiguration config = new JoshuaConfiguration();
+    TranslationScheduler scheduler = new TranslationScheduler(1);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(4);
+    List<String> order = new CopyOnWriteArrayList<>();
+
+    try {
+      /* Occupy the only worker so that the following sentences queue up */
+      scheduler.submit(new Sentence(SHORT, 0, config), () -> {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      });
+
+      scheduler.submit(new Sentence(LONG, 1, config), () -> { order.add("long-1"); done.countDown(); });
+      scheduler.submit(new Sentence(SHORT, 2, config), () -> { order.add("short-2"); done.countDown(); });
+      scheduler.submit(new Sentence(LONG, 3, config), () -> { order.add("long-3"); done.countDown(); });
+      scheduler.submit(new Sentence(SHORT, 4, config), () -> { order.add("short-4"); done.countDown(); });
+
+      release.countDown();
+      done.await(10, TimeUnit.SECONDS);
+      assertEquals(order, Arrays.asList("short-2", "short-4", "long-1", "long-3"));
+    } finally {
+      release.countDown();
+      scheduler.shutdown();
+    }
+  }
+
+  @Test
+  public void givenLongSentenceWaitingPastItsDelay_whenWorkerFrees_thenItRunsBeforeLaterShortOnes()
+      throws Exception {
+    JoshuaConfiguration config = new JoshuaConfiguration();
+    TranslationScheduler scheduler = new TranslationScheduler(1, 50);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(2);
+    List<String> order = new CopyOnWriteArrayList<>();
+
+    try {
+      scheduler.submit(new Sentence(SHORT, 0, config), () -> {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      });
+
+      /* The long sentence's deadline is 100 ms after its arrival */
+      scheduler.submit(new Sentence(LONG, 1, config), () -> { order.add("long-1"); done.countDown(); });
+      Thread.sleep(300);
+      scheduler.submit(new Sentence(SHORT, 2, config), () -> { order.add("short-2"); done.countDown(); });
+
+      release.countDown();
+      done.await(10, TimeUnit.SECONDS);
+      assertEquals(order, Arrays.asList("long-1", "short-2"));
+    } finally {
+      release.countDown();
+      scheduler.shutdown();
+    }
+  }
+
+  @Test
+  public void givenRunningJob_whenShutdown_thenWaitsForItToFinish() {
+    TranslationScheduler scheduler = new TranslationScheduler(1);
+    AtomicBoolean finished = new AtomicBoolean(false);
+
+    scheduler.submit(new Sentence(SHORT, 0, new JoshuaConfiguration()), () -> {
+      try {
+        Thread.sleep(200);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      finished.set(true);
+    });
+    scheduler.shutdown();
+
+    assertTrue(finished.get());
+  }
+}
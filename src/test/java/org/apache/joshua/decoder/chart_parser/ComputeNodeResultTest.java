@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.chart_parser;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.joshua.corpus.Vocabulary;
+import org.apache.joshua.decoder.Decoder;
+import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.apache.joshua.decoder.ff.FeatureFunction;
+import org.apache.joshua.decoder.ff.FeatureVector;
+import org.apache.joshua.decoder.ff.StatefulFF;
+import org.apache.joshua.decoder.ff.StatelessFF;
+import org.apache.joshua.decoder.ff.state_maintenance.DPState;
+import org.apache.joshua.decoder.ff.state_maintenance.KenLMState;
+import org.apache.joshua.decoder.ff.tm.Rule;
+import org.apache.joshua.decoder.hypergraph.HGNode;
+import org.apache.joshua.decoder.segment_file.Sentence;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class ComputeNodeResultTest {
+
+  /* Fires 1 on each edge, and 5 on the final transition */
+  private static class Constant extends StatelessFF {
+    Constant(FeatureVector weights, String name, JoshuaConfiguration config) {
+      super(weights, name, new String[] { name }, config);
+    }
+
+    @Override
+    public DPState compute(Rule rule, List<HGNode> tailNodes, int i, int j, SourcePath sourcePath,
+        Sentence sentence, Accumulator acc) {
+      acc.add(denseFeatureIndex, 1.0f);
+      return null;
+    }
+
+    @Override
+    public DPState computeFinal(HGNode tailNode, int i, int j, SourcePath sourcePath,
+        Sentence sentence, Accumulator acc) {
+      acc.add(denseFeatureIndex, 5.0f);
+      return null;
+    }
+
+    @Override
+    public ArrayList<String> reportDenseFeatures(int index) {
+      denseFeatureIndex = index;
+      ArrayList<String> names = new ArrayList<>(1);
+      names.add(name);
+      return names;
+    }
+  }
+
+  /* Like Constant, but asks another feature for its final cost in the middle of scoring an edge */
+  private static class Nesting extends Constant {
+    private final FeatureFunction inner;
+
+    Nesting(FeatureVector weights, FeatureFunction inner, JoshuaConfiguration config) {
+      super(weights, "Nesting", config);
+      this.inner = inner;
+    }
+
+    @Override
+    public DPState compute(Rule rule, List<HGNode> tailNodes, int i, int j, SourcePath sourcePath,
+        Sentence sentence, Accumulator acc) {
+      acc.add(denseFeatureIndex, 1.0f);
+      inner.computeFinalCost(null, i, j, sourcePath, sentence);
+      acc.add(denseFeatureIndex, 1.0f);
+      return null;
+    }
+  }
+
+  /* Contributes a state */
+  private static class Stateful extends StatefulFF {
+    Stateful(FeatureVector weights, JoshuaConfiguration config) {
+      super(weights, "Stateful", new String[] { "Stateful" }, config);
+    }
+
+    @Override
+    public DPState compute(Rule rule, List<HGNode> tailNodes, int i, int j, SourcePath sourcePath,
+        Sentence sentence, Accumulator acc) {
+      return new KenLMState(1);
+    }
+
+    @Override
+    public DPState computeFinal(HGNode tailNode, int i, int j, SourcePath sourcePath,
+        Sentence sentence, Accumulator acc) {
+      return null;
+    }
+
+    @Override
+    public float estimateCost(Rule rule, Sentence sentence) {
+      return 0.0f;
+    }
+
+    @Override
+    public float estimateFutureCost(Rule rule, DPState state, Sentence sentence) {
+      return 0.0f;
+    }
+  }
+
+  private JoshuaConfiguration config;
+  private FeatureVector weights;
+  private Rule rule;
+  private Sentence sentence;
+
+  @BeforeMethod
+  public void setUp() {
+    Decoder.resetGlobalState();
+    config = new JoshuaConfiguration();
+    weights = new FeatureVector();
+    weights.set("Nesting", 2.0f);
+    weights.set("Inner", 3.0f);
+    rule = new Rule(Vocabulary.id("[X]"), Vocabulary.addAll("a"), Vocabulary.addAll("A"), "", 0);
+    sentence = new Sentence("a", 0, config);
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    Decoder.resetGlobalState();
+  }
+
+  @Test
+  public void givenFeatureComputingFinalCostOfAnother_whenEdgeScored_thenItsScoreIsKept() {
+    Constant inner = new Constant(weights, "Inner", config);
+    ArrayList<FeatureFunction> features = new ArrayList<>();
+    features.add(new Nesting(weights, inner, config));
+    features.add(inner);
+    weights.registerDenseFeatures(features);
+
+    ComputeNodeResult result = new ComputeNodeResult(features, rule, null, 0, 1, null, sentence);
+    assertEquals(result.getTransitionCost(), 2 * 2.0f + 3.0f, 0.0f);
+    assertEquals(inner.computeFinalCost(null, 0, 1, null, sentence), 5 * 3.0f, 0.0f);
+  }
+
+  @Test
+  public void givenRecordedStatefulFeatures_whenNodeScored_thenOneStatePerStatefulFeature() {
+    ArrayList<FeatureFunction> features = new ArrayList<>();
+    features.add(new Constant(weights, "Inner", config));
+    features.add(new Stateful(weights, config));
+    weights.registerDenseFeatures(features);
+
+    assertEquals(StatefulFF.getNumStatefulFeatures(new ArrayList<>()), 0);
+    StatefulFF.recordStatefulFeatures(features);
+    assertEquals(StatefulFF.getNumStatefulFeatures(new ArrayList<>()), 1);
+
+    ComputeNodeResult result = new ComputeNodeResult(features, rule, null, 0, 1, null, sentence);
+    assertEquals(result.getDPStates().size(), 1);
+    assertEquals(result.getDPStates().get(0), new KenLMState(1));
+
+    Decoder.resetGlobalState();
+    assertEquals(StatefulFF.getNumStatefulFeatures(features), 1);
+    assertEquals(StatefulFF.getNumStatefulFeatures(new ArrayList<>()), 0);
+  }
+}
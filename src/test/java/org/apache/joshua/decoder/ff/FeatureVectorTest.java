@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.apache.joshua.decoder.Decoder;
+import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class FeatureVectorTest {
+
+  @BeforeMethod
+  public void setUp() {
+    Decoder.resetGlobalState();
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    Decoder.resetGlobalState();
+  }
+
+  @Test
+  public void givenFeatureString_whenParsed_thenDenseAndSparseFeaturesAreSplit() {
+    FeatureVector features = new FeatureVector("1.5 tm_pt_3=2.0 foo=0.5", "tm_pt_");
+
+    assertEquals(features.getDense(0), -1.5f);
+    assertEquals(features.getDense(3), 2.0f);
+    assertEquals(features.getNumDense(), 4);
+    assertEquals(features.getSparse("foo"), 0.5f);
+    assertEquals(features.getNumSparse(), 1);
+    assertEquals(features.getSparse("bar"), 0.0f);
+  }
+
+  @Test
+  public void givenSparseFeaturesInAnyOrder_whenAdded_thenValuesAreMerged() {
+    FeatureVector a = new FeatureVector();
+    a.increment("c", 1.0f);
+    a.increment("a", 2.0f);
+
+    FeatureVector b = new FeatureVector();
+    b.increment("b", 3.0f);
+    b.increment("a", 4.0f);
+    b.increment(1, 5.0f);
+
+    a.add(b);
+
+    assertEquals(a.getSparse("a"), 6.0f);
+    assertEquals(a.getSparse("b"), 3.0f);
+    assertEquals(a.getSparse("c"), 1.0f);
+    assertEquals(a.getNumSparse(), 3);
+    assertEquals(a.getDense(1), 5.0f);
+    for (int i = 1; i < a.getNumSparse(); i++)
+      assertTrue(a.getSparseIdAt(i - 1) < a.getSparseIdAt(i));
+
+    a.subtract(b);
+    assertEquals(a.getSparse("a"), 2.0f);
+    assertEquals(a.getSparse("b"), 0.0f);
+  }
+
+  @Test
+  public void givenTwoVectors_whenInnerProduct_thenOnlySharedFeaturesContribute() {
+    FeatureVector weights = new FeatureVector();
+    weights.set(0, 2.0f);
+    weights.set("x", 3.0f);
+    weights.set("y", 5.0f);
+
+    FeatureVector features = new FeatureVector();
+    features.set(0, 1.0f);
+    features.set(1, 7.0f);
+    features.increment("y", 2.0f);
+    features.increment("z", 11.0f);
+
+    assertEquals(weights.innerProduct(features), 2.0f + 10.0f);
+    assertEquals(features.innerProduct(weights), 2.0f + 10.0f);
+  }
+
+  @Test
+  public void givenSparseWeights_whenDenseFeaturesRegistered_thenWeightsMoveToDense() {
+    FeatureVector weights = new FeatureVector();
+    weights.set("WordPenalty", -1.0f);
+    weights.set("other", 1.0f);
+    assertEquals(weights.getNumDense(), 0);
+    assertEquals(weights.getNumSparse(), 2);
+
+    JoshuaConfiguration config = new JoshuaConfiguration();
+    ArrayList<FeatureFunction> features = new ArrayList<>();
+    features.add(new WordPenalty(weights, new String[0], config));
+    features.add(new PhrasePenalty(weights, new String[0], config));
+    weights.registerDenseFeatures(features);
+
+    assertEquals(FeatureVector.DENSE_FEATURE_NAMES, Arrays.asList("WordPenalty", "PhrasePenalty"));
+    assertEquals(weights.getNumDense(), 2);
+    // The weight moved out of the sparse features, and the unweighted feature has a dense slot
+    assertEquals(weights.getDense(0), -1.0f);
+    assertEquals(weights.getDense(1), 0.0f);
+    assertEquals(weights.getSparse("WordPenalty"), 0.0f);
+    assertEquals(weights.getNumSparse(), 1);
+
+    assertEquals(weights.getWeight("WordPenalty"), -1.0f);
+    assertEquals(weights.getWeight("PhrasePenalty"), 0.0f);
+    assertTrue(weights.hasValue("other"));
+    assertFalse(weights.hasValue("missing"));
+    assertEquals(weights.getMap().get("other"), 1.0f);
+  }
+
+  @Test
+  public void givenVector_whenCloned_thenCopyIsIndependent() {
+    FeatureVector a = new FeatureVector();
+    a.set(0, 1.0f);
+    a.increment("s", 1.0f);
+
+    FeatureVector b = a.clone();
+    b.set(0, 2.0f);
+    b.increment("s", 1.0f);
+    b.increment("t", 1.0f);
+
+    assertEquals(a.getDense(0), 1.0f);
+    assertEquals(a.getSparse("s"), 1.0f);
+    assertEquals(a.getNumSparse(), 1);
+    assertEquals(b.getSparse("s"), 2.0f);
+  }
+}
@@ -22,10 +22,13 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 
 import org.apache.joshua.corpus.Vocabulary;
+import org.apache.joshua.decoder.Decoder;
 import org.apache.joshua.decoder.ff.lm.buildin_lm.TrieLM;
 import org.testng.Assert;
 import org.testng.annotations.Test;
@@ -161,4 +164,118 @@ public class ArpaFileTest {
     TrieLM lm = new TrieLM(arpaFile);
     Assert.assertNotSame(lm.getChildren().size(), 0);
   }
+
+  @Test
+  public void testParallelIterationReturnsNgramsInFileOrder() throws FileNotFoundException {
+    String lm = "src/test/resources/kbest_extraction/lm.gz";
+    ArpaFile arpaFile = new ArpaFile(lm, vocab, 1);
+    Assert.assertEquals(arpaFile.getNgramCounts(), new long[] { 22968, 147032, 43751, 26915, 18863 });
+
+    Iterator<ArpaNgram> parallel = new ArpaFile(lm, vocab, 4).iterator();
+    int count = 0;
+    for (ArpaNgram ngram : arpaFile) {
+      Assert.assertTrue(parallel.hasNext());
+      ArpaNgram other = parallel.next();
+      Assert.assertEquals(other.getWord(), ngram.getWord());
+      Assert.assertTrue(Arrays.equals(other.getContext(), ngram.getContext()));
+      Assert.assertEquals(other.getValue(), ngram.getValue());
+      Assert.assertEquals(other.getBackoff(), ngram.getBackoff());
+      count++;
+    }
+    Assert.assertFalse(parallel.hasNext());
+    Assert.assertEquals(count, 22968 + 147032 + 43751 + 26915 + 18863);
+  }
+
+  private static String[] wordsAfterIterating(String lm, int numThreads) {
+    Decoder.resetGlobalState();
+    for (ArpaNgram ngram : new ArpaFile(lm, null, numThreads))
+      Assert.assertNotNull(ngram);
+    String[] words = new String[Vocabulary.size()];
+    for (int i = 0; i < words.length; i++)
+      words[i] = Vocabulary.word(i);
+    Decoder.resetGlobalState();
+    return words;
+  }
+
+  @Test
+  public void testParallelIterationRegistersWordsInFileOrder() {
+    String lm = "src/test/resources/kbest_extraction/lm.gz";
+    String[] sequential = wordsAfterIterating(lm, 1);
+    Assert.assertEquals(sequential.length, 22968); // <unk> is among the unigrams
+    Assert.assertEquals(wordsAfterIterating(lm, 4), sequential);
+  }
+
+  @Test
+  public void testAbandonedIterationsShareParserThreads() {
+    String lm = "src/test/resources/kbest_extraction/lm.gz";
+    for (int i = 0; i < 20; i++) {
+      Iterator<ArpaNgram> ngrams = new ArpaFile(lm, vocab, 4).iterator();
+      Assert.assertTrue(ngrams.hasNext());
+      ngrams.next();
+    }
+
+    int parsers = 0;
+    for (Thread thread : Thread.getAllStackTraces().keySet())
+      if (thread.getName().startsWith("ArpaParser-"))
+        parsers++;
+    Assert.assertTrue(parsers <= Runtime.getRuntime().availableProcessors());
+  }
+
+  @Test(dependsOnMethods = { "setup", "testIteration" })
+  public void testSnapshot() throws IOException {
+    TrieLM lm = new TrieLM(new ArpaFile(arpaFileName, vocab));
+
+    File snapshot = File.createTempFile("testLM", "snapshot");
+    try {
+      lm.writeSnapshot(snapshot.getPath());
+      TrieLM loaded = TrieLM.load(snapshot.getPath());
+      Assert.assertEquals(loaded.getOrder(), 3);
+      Assert.assertEquals(loaded.getChildren(), lm.getChildren());
+      for (int i = 0; i < Vocabulary.size(); i++)
+        for (int j = 0; j < Vocabulary.size(); j++)
+          Assert.assertEquals(loaded.rightContextLength(new int[] { i, j }, 0, 2),
+              lm.rightContextLength(new int[] { i, j }, 0, 2));
+    } finally {
+      snapshot.delete();
+    }
+  }
+
+  @Test(dependsOnMethods = { "setup", "testIteration" })
+  public void testSnapshotLoadedIntoAnotherVocabulary() throws IOException {
+    TrieLM lm = new TrieLM(new ArpaFile(arpaFileName, vocab));
+    String[] words = { "a", "because", "of", "resumption", "the", "potato", "unseen" };
+    int[] expected = contextLengths(lm, words);
+
+    File snapshot = File.createTempFile("testLM", "snapshot");
+    File copy = File.createTempFile("testLM", "snapshot");
+    try {
+      lm.writeSnapshot(snapshot.getPath());
+      Decoder.resetGlobalState();
+      // Numbers the words differently than the vocabulary the snapshot was written with
+      Vocabulary.id("unseen");
+      Vocabulary.id("the");
+
+      TrieLM loaded = TrieLM.load(snapshot.getPath());
+      Assert.assertEquals(contextLengths(loaded, words), expected);
+
+      loaded.writeSnapshot(copy.getPath());
+      TrieLM reloaded = TrieLM.load(copy.getPath());
+      Assert.assertEquals(reloaded.getChildren(), loaded.getChildren());
+      Assert.assertEquals(contextLengths(reloaded, words), expected);
+    } finally {
+      snapshot.delete();
+      copy.delete();
+      Decoder.resetGlobalState();
+    }
+  }
+
+  /* The right context length of every two-word context, looking the words up in the vocabulary */
+  private static int[] contextLengths(TrieLM lm, String[] words) {
+    int[] lengths = new int[words.length * words.length];
+    for (int i = 0; i < words.length; i++)
+      for (int j = 0; j < words.length; j++)
+        lengths[i * words.length + j] = lm.rightContextLength(
+            new int[] { Vocabulary.id(words[i]), Vocabulary.id(words[j]) }, 0, 2);
+    return lengths;
+  }
 }
@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.lm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.joshua.corpus.Vocabulary;
+import org.apache.joshua.decoder.Decoder;
+import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.apache.joshua.decoder.ff.lm.berkeley_lm.LMGrammarBerkeley;
+import org.apache.joshua.decoder.segment_file.Sentence;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class CachingLanguageModelTest {
+
+  private static final String LM = "src/test/resources/lm/berkeley/lm";
+
+  private LMGrammarBerkeley berkeley;
+  private int[] sentence;
+
+  @BeforeMethod
+  public void setUp() {
+    Decoder.resetGlobalState();
+    berkeley = new LMGrammarBerkeley(2, LM);
+    Vocabulary.registerLanguageModel(berkeley);
+    sentence = Vocabulary.addAll("<s> the chat-rooms the chat-rooms </s>");
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    Decoder.resetGlobalState();
+  }
+
+  @Test
+  public void givenCache_whenNgramsQueriedTwice_thenSecondLookupsHit() {
+    CachingLanguageModel cache = new CachingLanguageModel(berkeley, 1024);
+
+    for (int round = 0; round < 2; round++) {
+      for (int i = 0; i + 2 <= sentence.length; i++) {
+        int[] ngram = { sentence[i], sentence[i + 1] };
+        assertEquals(cache.ngramLogProbability(ngram, 2), berkeley.ngramLogProbability(ngram, 2));
+      }
+    }
+
+    // 5 bigrams, of which "the chat-rooms" repeats within the first round
+    assertEquals(cache.getMissCount(), 4);
+    assertEquals(cache.getHitCount(), 6);
+  }
+
+  @Test
+  public void givenCache_whenSentenceLogProbability_thenSameAsLanguageModel() {
+    CachingLanguageModel cache = new CachingLanguageModel(berkeley, 1024);
+
+    for (int startIndex = 1; startIndex <= 2; startIndex++)
+      assertEquals(cache.sentenceLogProbability(sentence, 2, startIndex),
+          berkeley.sentenceLogProbability(sentence, 2, startIndex));
+  }
+
+  @Test
+  public void givenPartOfAnArray_whenScoredInPlace_thenSameAsScoringACopy() {
+    CachingLanguageModel cache = new CachingLanguageModel(berkeley, 1024);
+
+    for (int start = 0; start < sentence.length; start++) {
+      for (int length = 0; start + length <= sentence.length; length++) {
+        int[] copy = Arrays.copyOfRange(sentence, start, start + length);
+        for (int startIndex = 1; startIndex <= 2; startIndex++)
+          assertEquals(cache.sentenceLogProbability(sentence, start, length, 2, startIndex),
+              berkeley.sentenceLogProbability(copy, 2, startIndex));
+        if (length > 0 && length <= 2)
+          assertEquals(cache.ngramLogProbability(sentence, start, length, length),
+              berkeley.ngramLogProbability(copy, length));
+      }
+    }
+  }
+
+  @Test
+  public void givenFullCache_whenNewSentence_thenOlderEntriesAreReplacedAndResultsStayExact() {
+    // The smallest cache has 8 entries, fewer than there are n-grams below
+    CachingLanguageModel cache = new CachingLanguageModel(berkeley, 1);
+
+    int[] words = Vocabulary.addAll("the chat-rooms <s> </s> the");
+    for (int sentenceId = 0; sentenceId < 3; sentenceId++) {
+      cache.beginSentence(new Sentence("the chat-rooms", sentenceId, new JoshuaConfiguration()));
+      for (int a : words)
+        for (int b : words) {
+          int[] ngram = { a, b };
+          assertEquals(cache.ngramLogProbability(ngram, 2), berkeley.ngramLogProbability(ngram, 2));
+        }
+    }
+  }
+
+  @Test
+  public void givenSentencesWithTheSameId_whenBegun_thenCacheIsAgedForEach() {
+    CachingLanguageModel cache = new CachingLanguageModel(berkeley, 1024);
+    JoshuaConfiguration config = new JoshuaConfiguration();
+    // Each request to the server numbers its sentences from 0
+    Sentence first = new Sentence("the chat-rooms", 0, config);
+    Sentence second = new Sentence("the chat-rooms", 0, config);
+
+    cache.beginSentence(first);
+    cache.beginSentence(first);
+    assertEquals(cache.getGeneration(), 1);
+
+    cache.beginSentence(second);
+    assertEquals(cache.getGeneration(), 2);
+  }
+
+  @Test
+  public void givenLookupsOnOtherThreads_whenThreadsHaveEnded_thenTheirLookupsAreCounted()
+      throws InterruptedException {
+    CachingLanguageModel cache = new CachingLanguageModel(berkeley, 1024);
+    int[] ngram = { sentence[1], sentence[2] };
+
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread(() -> {
+        for (int i = 0; i < 3; i++)
+          cache.ngramLogProbability(ngram, 2);
+      });
+      threads[t].start();
+    }
+    for (Thread thread : threads)
+      thread.join();
+
+    assertEquals(cache.getMissCount(), 4);
+    assertEquals(cache.getHitCount(), 8);
+  }
+
+  /* Uses a new cache on the executor's thread and forgets it */
+  private WeakReference<CachingLanguageModel> useCache(ExecutorService executor) throws Exception {
+    CachingLanguageModel cache = new CachingLanguageModel(berkeley, 1024);
+    int[] ngram = { sentence[1], sentence[2] };
+    executor.submit(() -> cache.ngramLogProbability(ngram, 2)).get();
+    return new WeakReference<>(cache);
+  }
+
+  @Test
+  public void givenUnusedCache_whenItsThreadLivesOn_thenCacheCanBeCollected() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      WeakReference<CachingLanguageModel> reference = useCache(executor);
+      for (int i = 0; i < 20 && reference.get() != null; i++) {
+        System.gc();
+        Thread.sleep(10);
+      }
+      assertNull(reference.get());
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,204 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.lm;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.joshua.corpus.Vocabulary;
+import org.apache.joshua.decoder.Decoder;
+import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.apache.joshua.decoder.ff.FeatureFunction;
+import org.apache.joshua.decoder.ff.FeatureVector;
+import org.apache.joshua.decoder.ff.ScoringBatch;
+import org.apache.joshua.decoder.ff.StatefulFF;
+import org.apache.joshua.decoder.ff.state_maintenance.DPState;
+import org.apache.joshua.decoder.ff.state_maintenance.FusedNgramDPState;
+import org.apache.joshua.decoder.ff.state_maintenance.NgramDPState;
+import org.apache.joshua.decoder.ff.tm.Rule;
+import org.apache.joshua.decoder.hypergraph.HGNode;
+import org.apache.joshua.decoder.segment_file.Sentence;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class FusedLanguageModelFFTest {
+
+  private static final String LM = "./src/test/resources/lm/berkeley/lm";
+
+  private FusedLanguageModelFF ff;
+
+  @BeforeMethod
+  public void setUp() {
+    Decoder.resetGlobalState();
+
+    FeatureVector weights = new FeatureVector();
+    weights.set("lm_0", 0.5f);
+    weights.set("lm_1", 0.25f);
+    String[] args = { "FusedLanguageModel", "-lm_type", "berkeleylm", "-lm_order", "3", "-lm_file", LM,
+        "|||", "-lm_type", "berkeleylm", "-lm_order", "3", "-lm_file", LM, "-oov_feature" };
+
+    ff = new FusedLanguageModelFF(weights, args, new JoshuaConfiguration());
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    Decoder.resetGlobalState();
+  }
+
+  @Test
+  public void givenTwoLanguageModels_whenReportDenseFeatures_thenOneFeaturePerModel() {
+    assertEquals(ff.reportDenseFeatures(0), Arrays.asList("lm_0", "lm_1", "lm_1_oov"));
+  }
+
+  @Test
+  public void givenStartAndOneMoreSymbol_whenEstimateFutureCost_thenWeightedSumOfModels() {
+    int startSymbolId = Vocabulary.id(Vocabulary.START_SYM);
+    int[] left = { startSymbolId, 3 };
+    // One vocabulary, whose left and right contexts (of the trigram models) are both <s> 3
+    FusedNgramDPState state = new FusedNgramDPState(1, new int[] { 2, 2, startSymbolId, 3, startSymbolId, 3 });
+
+    float score = ff.getLMs().get("lm_0").sentenceLogProbability(left, 3, 2);
+    assertEquals(ff.getLMs().get("lm_1").sentenceLogProbability(left, 3, 2), score, 0.0f);
+
+    float cost = ff.estimateFutureCost(null, state, null);
+    assertEquals(cost, score * 0.5f + score * 0.25f, 1e-4f);
+  }
+
+  @Test
+  public void givenEqualContexts_whenStatesCompared_thenEqual() {
+    FusedNgramDPState a = new FusedNgramDPState(1, new int[] { 1, 1, 3, 4 });
+    FusedNgramDPState b = new FusedNgramDPState(1, new int[] { 1, 1, 3, 4 });
+    FusedNgramDPState c = new FusedNgramDPState(1, new int[] { 1, 1, 3, 5 });
+
+    assertEquals(a, b);
+    assertEquals(a.hashCode(), b.hashCode());
+    assertEquals(a.equals(c), false);
+    assertEquals(a.getLeftLMStateWord(0, 0), 3);
+    assertEquals(a.getRightLMStateWord(0, 0), 4);
+  }
+
+  @Test
+  public void givenMinimizedRightContexts_whenStatesCompared_thenOnlyComparedWordsCount() {
+    FusedNgramDPState a = new FusedNgramDPState(1, new int[] { 2, 1, 3, 4, 5, 6 });
+    FusedNgramDPState b = new FusedNgramDPState(1, new int[] { 2, 1, 3, 4, 7, 6 });
+    FusedNgramDPState c = new FusedNgramDPState(1, new int[] { 2, 2, 3, 4, 7, 6 });
+
+    assertEquals(a, b);
+    assertEquals(a.hashCode(), b.hashCode());
+    assertEquals(b.equals(c), false);
+    assertEquals(b.getRightLMStateWord(0, 0), 7);
+  }
+
+  @Test
+  public void givenModelsOfDifferentOrders_whenCompute_thenSameAsSeparateModels() {
+    Decoder.resetGlobalState();
+
+    final String lm = "./src/test/resources/lattice-short/test.lm";
+    FeatureVector weights = new FeatureVector();
+    weights.set("lm_0", 0.5f);
+    weights.set("lm_1", 0.25f);
+    weights.set("lm_2", 0.5f);
+    weights.set("lm_3", 0.25f);
+    JoshuaConfiguration config = new JoshuaConfiguration();
+
+    // lm_0 and lm_1: a trigram and a bigram model fused into one feature
+    FusedLanguageModelFF fused = new FusedLanguageModelFF(weights, new String[] {
+        "FusedLanguageModel", "-lm_type", "berkeleylm", "-lm_order", "3", "-lm_file", lm,
+        "|||", "-lm_type", "berkeleylm", "-lm_order", "2", "-lm_file", lm }, config);
+    // lm_2 and lm_3: the same models as separate features
+    LanguageModelFF trigram = new LanguageModelFF(weights,
+        new String[] { "-lm_type", "berkeleylm", "-lm_order", "3", "-lm_file", lm }, config);
+    LanguageModelFF bigram = new LanguageModelFF(weights,
+        new String[] { "-lm_type", "berkeleylm", "-lm_order", "2", "-lm_file", lm }, config);
+    List<FeatureFunction> features = Arrays.asList(fused, trigram, bigram);
+    weights.registerDenseFeatures(new ArrayList<>(features));
+
+    final int x = Vocabulary.id("[X]");
+    Sentence sentence = new Sentence("the house is small", 0, config);
+    // Tails of three words, so that the bigram model scores fewer words of their left contexts
+    List<HGNode> tails = Arrays.asList(
+        tail(features, rule(x, words("A small house")), sentence),
+        tail(features, rule(x, words("is A yellow")), sentence));
+
+    ScoringBatch batch = new ScoringBatch();
+    batch.add(rule(x, words("the house is small")), null, 0, 4, null);
+    batch.add(rule(x, -1, Vocabulary.id("is"), -2), tails, 0, 7, null);
+    batch.add(rule(x, -2, -1), tails, 0, 6, null);
+    batch.add(rule(x, Vocabulary.id(Vocabulary.START_SYM), -1, Vocabulary.id(Vocabulary.STOP_SYM)),
+        tails, 0, 3, null);
+    batch.add(rule(x, Vocabulary.id("there"), -2, Vocabulary.id("mouse")), tails, 3, 6, null);
+
+    DPState[] states = new DPState[batch.size()];
+    fused.computeAll(batch.reset(fused), sentence, states);
+
+    for (int k = 0; k < batch.size(); k++) {
+      float fusedScore = score(fused, batch, k, sentence);
+      float separateScore = score(trigram, batch, k, sentence) + score(bigram, batch, k, sentence);
+      assertEquals(fusedScore, separateScore, 1e-4f);
+      assertEquals(batch.getAccumulator(k).getScore(), fusedScore, 1e-4f);
+    }
+
+    for (HGNode tail : tails) {
+      FusedNgramDPState state = (FusedNgramDPState) tail.getDPState(fused.getStateIndex());
+      assertEquals(state.getLeftLMStateWords(0, 2),
+          ((NgramDPState) tail.getDPState(trigram.getStateIndex())).getLeftLMStateWords());
+      assertEquals(fused.computeFinalCost(tail, 0, 3, null, sentence),
+          trigram.computeFinalCost(tail, 0, 3, null, sentence)
+          + bigram.computeFinalCost(tail, 0, 3, null, sentence), 1e-4f);
+    }
+  }
+
+  /* Scores edge k of the batch on its own, returning the weighted score */
+  private static float score(StatefulFF ff, ScoringBatch batch, int k, Sentence sentence) {
+    ScoringBatch single = new ScoringBatch();
+    single.add(batch.getRule(k), batch.getTailNodes(k), batch.getI(k), batch.getJ(k), null);
+    ff.compute(batch.getRule(k), batch.getTailNodes(k), batch.getI(k), batch.getJ(k), null,
+        sentence, single.reset(ff).getAccumulator(0));
+    return single.getAccumulator(0).getScore();
+  }
+
+  /* A node built by a terminal rule, holding the state of each feature at its state index */
+  private static HGNode tail(List<FeatureFunction> features, Rule rule, Sentence sentence) {
+    DPState[] states = new DPState[features.size()];
+    for (FeatureFunction feature : features) {
+      StatefulFF ff = (StatefulFF) feature;
+      ScoringBatch single = new ScoringBatch();
+      single.add(rule, null, 0, 3, null);
+      states[ff.getStateIndex()] = ff.compute(rule, null, 0, 3, null, sentence,
+          single.reset(ff).getAccumulator(0));
+    }
+    return new HGNode(0, 3, rule.getLHS(), null, null, Arrays.asList(states));
+  }
+
+  private static int[] words(String words) {
+    return Vocabulary.addAll(words);
+  }
+
+  private static Rule rule(int lhs, int... target) {
+    int arity = 0;
+    for (int id : target)
+      if (id < 0)
+        arity++;
+    return new Rule(lhs, target, target, "", arity);
+  }
+}
@@ -0,0 +1,203 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.lm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.apache.joshua.decoder.segment_file.Sentence;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the leasing and recycling of KenLM pools, with the native pools replaced by counters.
+ */
+public class KenLMPoolManagerTest {
+
+  /* Native pools whose memory is set by the test */
+  private static class FakePools implements KenLMPoolManager.NativePools {
+    private long next = 1;
+    final Set<Long> live = new HashSet<>();
+    final Set<Long> reset = new HashSet<>();
+    final Map<Long, Long> memory = new HashMap<>();
+
+    @Override
+    public synchronized long create() {
+      live.add(next);
+      memory.put(next, 0L);
+      return next++;
+    }
+
+    @Override
+    public synchronized void reset(long pool) {
+      assertTrue(live.contains(pool));
+      reset.add(pool);
+    }
+
+    @Override
+    public synchronized void destroy(long pool) {
+      assertTrue(live.remove(pool), "pool destroyed twice");
+    }
+
+    @Override
+    public synchronized long memory(long pool) {
+      assertTrue(live.contains(pool), "pool used after it was destroyed");
+      return memory.get(pool);
+    }
+  }
+
+  private FakePools natives;
+  private JoshuaConfiguration config;
+
+  @BeforeMethod
+  public void setUp() {
+    natives = new FakePools();
+    config = new JoshuaConfiguration();
+  }
+
+  private Sentence sentence(int id) {
+    return new Sentence("a b c", id, config);
+  }
+
+  @Test
+  public void givenSentence_whenAcquiredTwiceOnSameThread_thenSamePoolIsLeased() {
+    KenLMPoolManager pools = new KenLMPoolManager(natives, 1024, 0);
+    Sentence sentence = sentence(0);
+
+    long pool = pools.acquire(sentence);
+    assertEquals(pools.acquire(sentence), pool);
+    assertEquals(pools.getLeasedCount(), 1);
+    assertEquals(natives.live.size(), 1);
+  }
+
+  @Test
+  public void givenReleasedSentence_whenNextSentenceAcquires_thenPoolIsResetAndReused() {
+    KenLMPoolManager pools = new KenLMPoolManager(natives, 1024, 0);
+
+    long pool = pools.acquire(sentence(0));
+    natives.memory.put(pool, 100L);
+    pools.release(sentence(0)); // a different sentence object: nothing to release
+    assertEquals(pools.getLeasedCount(), 1);
+
+    Sentence first = sentence(1);
+    pool = pools.acquire(first);
+    natives.memory.put(pool, 100L);
+    pools.release(first);
+    assertEquals(pools.getLeasedCount(), 1);
+    assertTrue(natives.reset.contains(pool));
+    assertEquals(pools.getIdleBytes(), 100L);
+
+    assertEquals(pools.acquire(sentence(2)), pool);
+    assertEquals(pools.getIdleBytes(), 0L);
+    assertEquals(pools.getLeasedBytes(), 100L);
+  }
+
+  @Test
+  public void givenSentencesWithSameId_whenOneIsReleased_thenOtherKeepsItsPool() throws Exception {
+    KenLMPoolManager pools = new KenLMPoolManager(natives, 1024, 0);
+    Sentence first = sentence(0);
+    Sentence second = sentence(0);
+
+    long firstPool = pools.acquire(first);
+    // Server requests number their sentences from 0, so another request's sentence 0 is
+    // translated concurrently on another thread
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<Long> secondPool = executor.submit(() -> pools.acquire(second));
+      assertNotEquals(secondPool.get().longValue(), firstPool);
+
+      pools.release(first);
+      assertEquals(pools.getLeasedCount(), 1);
+      assertTrue(natives.live.contains(secondPool.get()));
+      assertFalse(natives.reset.contains(secondPool.get()));
+      assertEquals(executor.submit(() -> pools.acquire(second)).get(), secondPool.get());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void givenIdleMemoryLimit_whenReleasedPoolsExceedIt_thenTheyAreDestroyed()
+      throws Exception {
+    KenLMPoolManager pools = new KenLMPoolManager(natives, 150, 0);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    Sentence sentence = sentence(0);
+    try {
+      // Two threads work on the sentence, so it leases two pools
+      pools.acquire(sentence);
+      executor.submit(() -> pools.acquire(sentence)).get();
+      assertEquals(pools.getLeasedCount(), 2);
+      for (long pool : natives.memory.keySet())
+        natives.memory.put(pool, 100L);
+
+      pools.release(sentence);
+      assertEquals(pools.getLeasedCount(), 0);
+      assertEquals(natives.live.size(), 1);
+      assertEquals(pools.getIdleBytes(), 100L);
+
+      pools.clear();
+      assertEquals(natives.live.size(), 0);
+      assertEquals(pools.getIdleBytes(), 0L);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void givenLeasedMemoryLimit_whenLeasedPoolGrowsBeyondIt_thenSentenceFails() {
+    KenLMPoolManager pools = new KenLMPoolManager(natives, 4096, 1000);
+    Sentence sentence = sentence(0);
+
+    long pool = pools.acquire(sentence);
+    natives.memory.put(pool, 2000L);
+    try {
+      for (int i = 0; i < KenLMPoolManager.MEASURE_INTERVAL; i++)
+        pools.acquire(sentence);
+      fail("leased memory limit not enforced");
+    } catch (KenLMPoolManager.PoolLimitException e) {
+      assertEquals(pools.getLeasedBytes(), 2000L);
+    }
+
+    // No further pools are leased while the limit is exceeded
+    try {
+      pools.acquire(sentence(1));
+      fail("leased memory limit not enforced");
+    } catch (KenLMPoolManager.PoolLimitException e) {
+      assertEquals(pools.getLeasedCount(), 1);
+    }
+
+    // Releasing the failed sentence makes its pool available again
+    pools.release(sentence);
+    assertEquals(pools.getLeasedBytes(), 0L);
+    assertEquals(pools.getIdleBytes(), 2000L);
+    assertEquals(pools.acquire(sentence(2)), pool);
+  }
+}
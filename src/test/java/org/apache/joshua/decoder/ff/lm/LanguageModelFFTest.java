@@ -22,12 +22,26 @@ package org.apache.joshua.decoder.ff.lm;
 import static org.hamcrest.CoreMatchers.*;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import org.apache.joshua.corpus.Vocabulary;
 import org.apache.joshua.decoder.Decoder;
 import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.apache.joshua.decoder.ff.FeatureFunction;
 import org.apache.joshua.decoder.ff.FeatureVector;
+import org.apache.joshua.decoder.ff.ScoringBatch;
+import org.apache.joshua.decoder.ff.state_maintenance.DPState;
 import org.apache.joshua.decoder.ff.state_maintenance.NgramDPState;
+import org.apache.joshua.decoder.ff.tm.Rule;
+import org.apache.joshua.decoder.hypergraph.HGNode;
+import org.apache.joshua.decoder.segment_file.Sentence;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
@@ -93,4 +107,98 @@ public class LanguageModelFFTest {
     float cost = ff.estimateFutureCost(null, currentState, null);
     assertEquals(cost, score * WEIGHT, 0.0f);
   }
+
+  @Test
+  public void givenDefaultConfiguration_whenLanguageModelLoaded_thenItIsNotCached() {
+    assertThat(ff.getLM(), not(instanceOf(CachingLanguageModel.class)));
+  }
+
+  @Test
+  public void givenBatchOfEdges_whenComputeAll_thenSameAsComputingEachEdge() {
+    // Without the n-gram cache, the batch reaches DefaultNGramLanguageModel.ngramLogProbabilities
+    for (int cacheSize : new int[] { 0, 1 << 16 }) {
+      Decoder.resetGlobalState();
+      FeatureVector weights = new FeatureVector();
+      weights.set("lm_0", WEIGHT);
+      String[] args = {"-lm_type", "berkeleylm", "-lm_order", "2", "-lm_file", "./src/test/resources/lm/berkeley/lm"};
+      JoshuaConfiguration config = new JoshuaConfiguration();
+      config.lm_cache_size = cacheSize;
+      LanguageModelFF lm = new LanguageModelFF(weights, args, config);
+      ArrayList<FeatureFunction> features = new ArrayList<>();
+      features.add(lm);
+      weights.registerDenseFeatures(features);
+
+      assertBatchMatchesEachEdge(lm, config);
+    }
+  }
+
+  @Test
+  public void givenAnnotatedSource_whenGetTags_thenAlignedWordsAreReplacedByTheirClass() {
+    JoshuaConfiguration config = new JoshuaConfiguration();
+    final int x = Vocabulary.id("[X]");
+    final int[] target = { Vocabulary.id("house"), Vocabulary.id("small") };
+    Rule rule = new Rule(x, target, target, "", 0, "0-0");
+
+    // The rule starts at "casa" (lattice position 2, after <s> and "a"), whose class annotation
+    // replaces "house"
+    Sentence annotated = new Sentence("a casa[class=NOUN] pequena", 0, config);
+    int[] tags = ff.getTags(rule, 2, 4, annotated);
+    assertEquals(tags, new int[] { Vocabulary.id("NOUN"), Vocabulary.id("small") });
+    assertEquals(rule.getEnglish(), new int[] { Vocabulary.id("house"), Vocabulary.id("small") });
+
+    // Without annotations (or an alignment) the rule's own target side is returned uncopied
+    assertSame(ff.getTags(rule, 2, 4, new Sentence("a casa pequena", 0, config)), rule.getEnglish());
+    Rule unaligned = new Rule(x, target, target, "", 0);
+    assertSame(ff.getTags(unaligned, 2, 4, annotated), target);
+  }
+
+  private static void assertBatchMatchesEachEdge(LanguageModelFF ff, JoshuaConfiguration config) {
+    final int x = Vocabulary.id("[X]");
+    final int the = Vocabulary.id("the");
+    final int chatRooms = Vocabulary.id("chat-rooms");
+    final int end = Vocabulary.id(Vocabulary.STOP_SYM);
+    // Tail nodes covering "<s> the" and "chat-rooms"
+    List<HGNode> tails = Arrays.asList(tail(0, 2, Vocabulary.id(Vocabulary.START_SYM), the),
+        tail(2, 3, chatRooms, chatRooms));
+
+    ScoringBatch batch = new ScoringBatch();
+    batch.add(rule(x, the, chatRooms), null, 1, 3, null);
+    batch.add(rule(x, -1, chatRooms, end), tails, 0, 4, null);
+    batch.add(rule(x, -1, -2, end), tails, 0, 4, null);
+    batch.add(rule(x, the, Vocabulary.id("unseen"), the), null, 1, 4, null);
+    batch.add(null, null, 0, 0, null);
+    batch.add(rule(x, -2, the), tails, 2, 4, null);
+
+    Sentence sentence = new Sentence("the chat-rooms", 0, config);
+    DPState[] states = new DPState[batch.size()];
+    ff.computeAll(batch.reset(ff), sentence, states);
+
+    for (int k = 0; k < batch.size(); k++) {
+      ScoringBatch single = new ScoringBatch();
+      single.add(batch.getRule(k), batch.getTailNodes(k), batch.getI(k), batch.getJ(k), null);
+      DPState state = ff.compute(batch.getRule(k), batch.getTailNodes(k), batch.getI(k),
+          batch.getJ(k), null, sentence, single.reset(ff).getAccumulator(0));
+
+      assertEquals(states[k], state);
+      assertEquals(batch.getAccumulator(k).getScore(), single.getAccumulator(0).getScore(), 0.0f);
+      if (batch.getRule(k) == null)
+        assertNull(state);
+      else
+        assertNotEquals(batch.getAccumulator(k).getScore(), 0.0f);
+    }
+  }
+
+  private static Rule rule(int lhs, int... target) {
+    int arity = 0;
+    for (int id : target)
+      if (id < 0)
+        arity++;
+    return new Rule(lhs, target, target, "", arity);
+  }
+
+  private static HGNode tail(int i, int j, int left, int right) {
+    List<DPState> states = Collections.singletonList(
+        new NgramDPState(new int[] { left }, new int[] { right }));
+    return new HGNode(i, j, Vocabulary.id("[X]"), null, null, states);
+  }
 }
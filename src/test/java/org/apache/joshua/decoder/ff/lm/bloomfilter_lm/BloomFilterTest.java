@@ -0,0 +1,170 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.lm.bloomfilter_lm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import org.apache.joshua.corpus.Vocabulary;
+import org.apache.joshua.decoder.Decoder;
+import org.apache.joshua.decoder.ff.lm.LMSnapshot;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class BloomFilterTest {
+
+  private static final int OBJECTS = 10000;
+
+  private File file;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    Decoder.resetGlobalState();
+    file = File.createTempFile("bloom", ".lm");
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    file.delete();
+    Decoder.resetGlobalState();
+  }
+
+  private static BloomFilter filledFilter() {
+    BloomFilter bf = new BloomFilter(16 * OBJECTS, OBJECTS);
+    for (int i = 0; i < OBJECTS; i++)
+      bf.add(BloomFilterLanguageModel.hashNgram(new int[] { i, 2 * i }, 0, 2) * 31);
+    return bf;
+  }
+
+  private static int countFalsePositives(BloomFilter bf) {
+    int falsePositives = 0;
+    for (int i = OBJECTS; i < 2 * OBJECTS; i++)
+      if (bf.query(BloomFilterLanguageModel.hashNgram(new int[] { i, 2 * i }, 0, 2) * 31))
+        falsePositives++;
+    return falsePositives;
+  }
+
+  @Test
+  public void givenAddedObjects_whenQueried_thenAllArePresent() {
+    BloomFilter bf = filledFilter();
+    for (int i = 0; i < OBJECTS; i++)
+      assertTrue(bf.query(BloomFilterLanguageModel.hashNgram(new int[] { i, 2 * i }, 0, 2) * 31));
+
+    // 16 bits per object give a false-positive rate well below 1% with blocked filters
+    assertTrue(countFalsePositives(bf) < OBJECTS / 100);
+  }
+
+  @Test
+  public void givenSnapshot_whenMapped_thenSameMembership() throws IOException {
+    BloomFilter bf = filledFilter();
+    try (DataOutputStream out = LMSnapshot.create(file.getPath(), 1, 1)) {
+      out.writeByte(42); // misaligns the filter, which must be padded
+      bf.writeSnapshot(out);
+    }
+
+    ByteBuffer in = LMSnapshot.map(file.getPath(), 1, 1);
+    assertEquals(in.get(), 42);
+    BloomFilter mapped = BloomFilter.readSnapshot(in);
+    assertFalse(in.hasRemaining());
+    assertEquals(mapped.size(), bf.size());
+    assertEquals(mapped.numHashFunctions, bf.numHashFunctions);
+    for (int i = 0; i < OBJECTS; i++)
+      assertTrue(mapped.query(BloomFilterLanguageModel.hashNgram(new int[] { i, 2 * i }, 0, 2) * 31));
+    assertEquals(countFalsePositives(mapped), countFalsePositives(bf));
+  }
+
+  @Test
+  public void givenSuffixHashes_whenComparedToNgramHashes_thenEqual() {
+    int[] ngram = { 5, 3, 8, 1 };
+    long[] hashes = BloomFilterLanguageModel.suffixHashes(ngram, 4);
+    for (int n = 1; n <= 4; n++)
+      assertEquals(hashes[n], BloomFilterLanguageModel.hashNgram(ngram, 4 - n, 4));
+  }
+
+  /**
+   * Builds a bigram model from statistics into the snapshot file, and loads it into an empty
+   * vocabulary.
+   */
+  private BloomFilterLanguageModel buildModel(String... statisticsLines) throws IOException {
+    File statistics = File.createTempFile("bloom", ".counts");
+    try (PrintWriter out = new PrintWriter(statistics)) {
+      for (String line : statisticsLines)
+        out.println(line);
+    }
+    try {
+      BloomFilterLanguageModel.main(new String[] { statistics.getPath(), "2", "1", "2",
+          file.getPath() });
+    } finally {
+      statistics.delete();
+    }
+
+    Decoder.resetGlobalState();
+    return new BloomFilterLanguageModel(2, file.getPath());
+  }
+
+  @Test
+  public void givenBuiltModel_whenLoaded_thenWordsAreFoundWithTheirCounts() throws IOException {
+    BloomFilterLanguageModel lm = buildModel("the 10", "cat 3", "dog 2", "sat 4", "the cat 3",
+        "cat sat 3", "the dog 2");
+    int the = Vocabulary.id("the"), cat = Vocabulary.id("cat");
+    assertFalse(lm.isOov(cat));
+    assertTrue(lm.isOov(Vocabulary.id("unseen")));
+    assertTrue(lm.ngramLogProbability(new int[] { cat }, 2)
+        > lm.ngramLogProbability(new int[] { Vocabulary.id("unseen") }, 2));
+    assertTrue(lm.ngramLogProbability(new int[] { the }, 2)
+        > lm.ngramLogProbability(new int[] { cat }, 2));
+  }
+
+  @Test
+  public void givenLoadedSnapshot_whenWrittenAgain_thenSameBytes() throws IOException {
+    BloomFilterLanguageModel lm = buildModel("the 10", "cat 3", "sat 4", "the cat 3", "cat sat 3");
+
+    File copy = File.createTempFile("bloom", ".lm");
+    try {
+      lm.writeSnapshot(copy.getPath());
+      assertEquals(Files.readAllBytes(copy.toPath()), Files.readAllBytes(file.toPath()));
+    } finally {
+      copy.delete();
+    }
+  }
+
+  @Test
+  public void givenMalformedCount_whenBuilt_thenStatisticsAreReadUpToIt() throws IOException {
+    BloomFilterLanguageModel lm = buildModel("the 10", "cat 3", "sat many", "dog 2");
+    assertFalse(lm.isOov(Vocabulary.id("cat")));
+    assertTrue(lm.isOov(Vocabulary.id("dog")));
+  }
+
+  @Test(expectedExceptions = IOException.class)
+  public void givenFileThatIsNotASnapshot_whenLoaded_thenIOException() throws IOException {
+    try (PrintWriter out = new PrintWriter(file)) {
+      out.println("the 10");
+    }
+    new BloomFilterLanguageModel(2, file.getPath());
+  }
+}
@@ -19,10 +19,19 @@
 package org.apache.joshua.decoder.ff.lm.class_lm;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
 
 import org.apache.joshua.corpus.Vocabulary;
 import org.apache.joshua.decoder.Decoder;
 import org.apache.joshua.decoder.ff.lm.ClassMap;
+import org.apache.joshua.decoder.ff.tm.Rule;
 import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
@@ -64,4 +73,63 @@ public class ClassMapTest {
       "0");
   }
 
+  @Test
+  public void givenWordsWithoutClass_whenClassLookedUp_thenUnknownWord() {
+    final ClassMap classMap = new ClassMap("./src/test/resources/lm/class_lm/class.map");
+
+    // Added to the vocabulary after the map was read, so beyond the end of its array
+    final int newWord = Vocabulary.id("a-word-the-class-map-has-never-seen");
+    assertEquals(classMap.getClassID(newWord), Vocabulary.getUnknownId());
+    assertEquals(classMap.getClassID(-1), Vocabulary.getUnknownId());
+    assertEquals(classMap.getClassID(Integer.MAX_VALUE), Vocabulary.getUnknownId());
+  }
+
+  @Test
+  public void givenWordListedTwice_whenClassMapRead_thenLastClassIsKeptAndCountedOnce()
+      throws IOException {
+    final ClassMap classMap = new ClassMap(write("a X", "b Y", "a Z"));
+
+    assertEquals(classMap.size(), 2);
+    assertEquals(Vocabulary.word(classMap.getClassID(Vocabulary.id("a"))), "Z");
+    assertEquals(Vocabulary.word(classMap.getClassID(Vocabulary.id("b"))), "Y");
+  }
+
+  @Test
+  public void givenTargetSide_whenProjected_thenWordsAreReplacedAndNonterminalsKept() {
+    final ClassMap classMap = new ClassMap("./src/test/resources/lm/class_lm/class.map");
+    final int[] target = { Vocabulary.id("professionalism"), -1, Vocabulary.id("convenience") };
+
+    assertEquals(classMap.project(target), new int[] { Vocabulary.id("13"), -1, Vocabulary.id("0") });
+    assertEquals(target[0], Vocabulary.id("professionalism"));
+  }
+
+  @Test
+  public void givenTwoClassMaps_whenRuleClassesRequested_thenOneProjectionIsCachedPerMap()
+      throws IOException {
+    final ClassMap first = new ClassMap("./src/test/resources/lm/class_lm/class.map");
+    final ClassMap second = new ClassMap(write("professionalism 7", "convenience 8"));
+    final int[] target = { Vocabulary.id("professionalism"), -1, Vocabulary.id("convenience") };
+    final Rule rule = new Rule(Vocabulary.id("[X]"), target, target, "", 1);
+
+    final int[] firstClasses = rule.getEnglishClasses(first);
+    final int[] secondClasses = rule.getEnglishClasses(second);
+    assertEquals(firstClasses, new int[] { Vocabulary.id("13"), -1, Vocabulary.id("0") });
+    assertEquals(secondClasses, new int[] { Vocabulary.id("7"), -1, Vocabulary.id("8") });
+
+    // Alternating between the maps does not recompute either projection
+    assertSame(rule.getEnglishClasses(first), firstClasses);
+    assertSame(rule.getEnglishClasses(second), secondClasses);
+
+    // A new target side drops the cached projections
+    rule.setEnglish(Arrays.copyOf(target, 1));
+    assertNotSame(rule.getEnglishClasses(first), firstClasses);
+    assertEquals(rule.getEnglishClasses(first), new int[] { Vocabulary.id("13") });
+  }
+
+  private static String write(String... lines) throws IOException {
+    File file = File.createTempFile("class", ".map");
+    file.deleteOnExit();
+    Files.write(file.toPath(), Arrays.asList(lines), StandardCharsets.UTF_8);
+    return file.getPath();
+  }
 }
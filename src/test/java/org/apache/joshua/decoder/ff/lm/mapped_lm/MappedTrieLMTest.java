@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.lm.mapped_lm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import org.apache.joshua.corpus.Vocabulary;
+import org.apache.joshua.decoder.Decoder;
+import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.apache.joshua.decoder.ff.lm.ArpaFile;
+import org.apache.joshua.decoder.ff.lm.berkeley_lm.LMGrammarBerkeley;
+import org.apache.joshua.decoder.ff.lm.buildin_lm.TrieLM;
+import org.apache.joshua.decoder.segment_file.Sentence;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class MappedTrieLMTest {
+
+  private static final String SMALL_LM = "src/test/resources/berkeley_lm/lm";
+  private static final String LM = "src/test/resources/kbest_extraction/lm.gz";
+
+  private File binary;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    binary = File.createTempFile("mapped-lm", ".bin");
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    binary.delete();
+    Decoder.resetGlobalState();
+  }
+
+  @Test
+  public void givenConvertedLm_whenDecode_thenSameScoreAsArpaLm() throws IOException {
+    convert(SMALL_LM);
+    Decoder.resetGlobalState();
+
+    JoshuaConfiguration joshuaConfig = new JoshuaConfiguration();
+    joshuaConfig.processCommandLineOptions("-v 0 -output-format %f".split(" "));
+    joshuaConfig.features.add("LanguageModel -lm_type mapped -lm_order 2 -lm_file " + binary.getPath());
+    Decoder decoder = new Decoder(joshuaConfig, null);
+    try {
+      String translation = decoder.decode(new Sentence("the chat-rooms", 0, joshuaConfig)).toString();
+      assertEquals(translation, "tm_glue_0=2.000 lm_0=-7.153\n");
+    } finally {
+      decoder.cleanUp();
+    }
+  }
+
+  @Test
+  public void givenConvertedLm_whenQueryNgrams_thenProbabilitiesMatchBerkeleyLm() throws IOException {
+    convert(LM);
+
+    MappedTrieLM mapped = new MappedTrieLM(5, binary.getPath());
+    LMGrammarBerkeley berkeley = new LMGrammarBerkeley(5, LM);
+    Vocabulary.registerLanguageModel(mapped);
+    Vocabulary.registerLanguageModel(berkeley);
+
+    String[] sentence = "<s> the president of the united states said that he had not seen it . </s>"
+        .split(" ");
+    int[] ids = new int[sentence.length];
+    for (int i = 0; i < sentence.length; i++)
+      ids[i] = Vocabulary.id(sentence[i]);
+
+    for (int end = 1; end <= ids.length; end++) {
+      for (int length = 1; length <= 5 && length <= end; length++) {
+        int[] ngram = new int[length];
+        System.arraycopy(ids, end - length, ngram, 0, length);
+        assertEquals(mapped.ngramLogProbability(ngram, 5), berkeley.ngramLogProbability(ngram, 5),
+            1e-4, Vocabulary.getWords(ngram));
+      }
+    }
+
+    assertFalse(mapped.isOov(Vocabulary.id("president")));
+    assertTrue(mapped.isOov(Vocabulary.id("notaword-xyz")));
+  }
+
+  @Test
+  public void givenMinimizedContext_whenQueryNextWords_thenSameProbabilities() throws IOException {
+    convert(LM);
+
+    MappedTrieLM mapped = new MappedTrieLM(5, binary.getPath());
+    Vocabulary.registerLanguageModel(mapped);
+
+    int[] ids = Vocabulary.addAll(
+        "<s> the president of the united states said that he had not seen it . </s> zzz-unknown");
+
+    int minimized = 0;
+    for (int end = 4; end <= ids.length; end++) {
+      int length = mapped.rightContextLength(ids, end - 4, 4);
+      if (length < 4)
+        minimized++;
+      for (int next : ids) {
+        int[] full = { ids[end - 4], ids[end - 3], ids[end - 2], ids[end - 1], next };
+        int[] minimal = Arrays.copyOfRange(full, 4 - length, 5);
+        assertEquals(mapped.ngramLogProbability(minimal, 5), mapped.ngramLogProbability(full, 5),
+            1e-6, Vocabulary.getWords(full));
+      }
+    }
+    assertTrue(minimized > 0);
+  }
+
+  @Test
+  public void givenSameArpaLm_whenMinimizeContext_thenTrieLmAgreesWithMappedLm() throws IOException {
+    convert(LM);
+
+    MappedTrieLM mapped = new MappedTrieLM(5, binary.getPath());
+    TrieLM trie = new TrieLM(new ArpaFile(LM, new Vocabulary()));
+    Vocabulary.registerLanguageModel(mapped);
+
+    int[] ids = Vocabulary.addAll(
+        "<s> the president of the united states said that he had not seen it . </s> zzz-unknown");
+
+    int minimized = 0;
+    for (int end = 1; end <= ids.length; end++) {
+      for (int length = 0; length <= 5 && length <= end; length++) {
+        int expected = mapped.rightContextLength(ids, end - length, length);
+        assertEquals(trie.rightContextLength(ids, end - length, length), expected,
+            Vocabulary.getWords(Arrays.copyOfRange(ids, end - length, end)));
+        if (expected < length)
+          minimized++;
+      }
+    }
+    assertTrue(minimized > 0);
+  }
+
+  @Test
+  public void givenLowerOrder_whenQueryLongerNgram_thenOnlyLastWordsAreUsed() throws IOException {
+    convert(LM);
+
+    MappedTrieLM mapped = new MappedTrieLM(5, binary.getPath());
+    Vocabulary.registerLanguageModel(mapped);
+
+    int[] ngram = Vocabulary.addAll("president of the united states");
+    for (int order = 1; order <= 5; order++) {
+      int[] suffix = Arrays.copyOfRange(ngram, 5 - order, 5);
+      assertEquals(mapped.ngramLogProbability_helper(ngram, order),
+          mapped.ngramLogProbability(suffix, order), 1e-6, Integer.toString(order));
+    }
+    assertTrue(mapped.ngramLogProbability_helper(ngram, 2)
+        != mapped.ngramLogProbability_helper(ngram, 5));
+  }
+
+  @Test(expectedExceptions = RuntimeException.class,
+      expectedExceptionsMessageRegExp = ".* has version 1, but version 2 is required")
+  public void givenVersion1File_whenLoaded_thenRejected() throws IOException {
+    convert(SMALL_LM);
+    try (RandomAccessFile file = new RandomAccessFile(binary, "rw")) {
+      file.seek(4);
+      file.writeInt(1);
+    }
+
+    new MappedTrieLM(2, binary.getPath());
+  }
+
+  private void convert(String arpa) throws IOException {
+    MappedTrieLMWriter writer = new MappedTrieLMWriter();
+    writer.addAll(new ArpaFile(arpa, new Vocabulary()));
+    writer.write(binary.getPath());
+  }
+}
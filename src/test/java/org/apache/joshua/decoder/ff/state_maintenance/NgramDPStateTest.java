@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.state_maintenance;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+
+import org.testng.annotations.Test;
+
+/*
+ * The words are arbitrary ids, not in the vocabulary, so the states are compared with equals()
+ * rather than with assertions that would print them.
+ */
+public class NgramDPStateTest {
+
+  @Test
+  public void givenEqualContexts_whenStatesCompared_thenEqualWithEqualHashes() {
+    NgramDPState a = new NgramDPState(new int[] { 3, 4 }, new int[] { 5, 6 });
+    NgramDPState b = new NgramDPState(new int[] { 3, 4 }, new int[] { 5, 6 });
+
+    assertEquals(a, b);
+    assertEquals(a.hashCode(), b.hashCode());
+  }
+
+  @Test
+  public void givenDifferentContexts_whenStatesCompared_thenNotEqual() {
+    NgramDPState a = new NgramDPState(new int[] { 3, 4 }, new int[] { 5, 6 });
+
+    assertFalse(a.equals(new NgramDPState(new int[] { 3, 7 }, new int[] { 5, 6 })));
+    assertFalse(a.equals(new NgramDPState(new int[] { 3, 4 }, new int[] { 7, 6 })));
+    // The same words, with the contexts swapped
+    assertFalse(a.equals(new NgramDPState(new int[] { 5, 6 }, new int[] { 3, 4 })));
+    assertFalse(a.equals(new NgramDPState(new int[] { 3 }, new int[] { 6 })));
+  }
+
+  @Test
+  public void givenMinimizedRightContexts_whenStatesCompared_thenOnlyRecentWordsCount() {
+    NgramDPState a = new NgramDPState(new int[] { 3, 4 }, new int[] { 5, 6 }, 1);
+    NgramDPState b = new NgramDPState(new int[] { 3, 4 }, new int[] { 7, 6 }, 1);
+
+    assertEquals(a, b);
+    assertEquals(a.hashCode(), b.hashCode());
+    // The ignored word is still stored, for scoring later n-grams
+    assertEquals(b.getRightLMStateWord(0), 7);
+    // A state that compares its whole right context does not recombine with a minimized one
+    assertFalse(a.equals(new NgramDPState(new int[] { 3, 4 }, new int[] { 5, 6 })));
+  }
+
+  @Test
+  public void givenPackedState_whenContextsRead_thenOffsetsMatchCopies() {
+    NgramDPState state = new NgramDPState(new int[] { 3, 4 }, new int[] { 5, 6 });
+    final int[] words = state.getWords();
+
+    assertSame(state.getWords(), words);
+    assertEquals(state.getContextLength(), 2);
+    for (int k = 0; k < state.getContextLength(); k++) {
+      assertEquals(words[state.getLeftOffset() + k], state.getLeftLMStateWords()[k]);
+      assertEquals(words[state.getRightOffset() + k], state.getRightLMStateWords()[k]);
+      assertEquals(state.getLeftLMStateWord(k), state.getLeftLMStateWords()[k]);
+      assertEquals(state.getRightLMStateWord(k), state.getRightLMStateWords()[k]);
+    }
+  }
+
+  @Test
+  public void givenNewContext_whenSet_thenStateIsRepackedAndRehashed() {
+    NgramDPState state = new NgramDPState(new int[] { 3, 4 }, new int[] { 5, 6 });
+    state.setLeftLMStateWords(new int[] { 8, 9 });
+
+    NgramDPState expected = new NgramDPState(new int[] { 8, 9 }, new int[] { 5, 6 });
+    assertEquals(state, expected);
+    assertEquals(state.hashCode(), expected.hashCode());
+
+    state.setRightLMStateWords(new int[] { 1, 2 });
+    expected = new NgramDPState(new int[] { 8, 9 }, new int[] { 1, 2 });
+    assertEquals(state, expected);
+    assertEquals(state.hashCode(), expected.hashCode());
+  }
+}
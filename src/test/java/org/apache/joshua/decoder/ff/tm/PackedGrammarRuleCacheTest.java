@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.tm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.joshua.decoder.Decoder;
+import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.apache.joshua.decoder.ff.tm.packed.PackedGrammar;
+import org.apache.joshua.decoder.ff.tm.packed.PackedGrammar.PackedSlice.PackedTrie.PackedRule;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.cache.CacheStats;
+
+public class PackedGrammarRuleCacheTest {
+
+  private static final String GRAMMAR = "src/test/resources/wa_grammar.packed";
+
+  @AfterMethod
+  public void tearDown() {
+    Decoder.resetGlobalState();
+  }
+
+  @Test
+  public void givenRuleCache_whenRulesRequestedTwice_thenSecondRequestHits() throws IOException {
+    PackedGrammar grammar = load("entries", 0);
+    Trie node = firstNodeWithRules(grammar.getTrieRoot());
+
+    List<Rule> rules = node.getRuleCollection().getRules();
+    assertSame(node.getRuleCollection().getRules(), rules);
+
+    CacheStats stats = grammar.getRuleCacheStats();
+    assertEquals(stats.missCount(), 1);
+    assertEquals(stats.hitCount(), 1);
+  }
+
+  @Test
+  public void givenTooSmallByteBudget_whenRulesRequestedTwice_thenListIsNotRetained() throws IOException {
+    PackedGrammar grammar = load("bytes", 1);
+    Trie node = firstNodeWithRules(grammar.getTrieRoot());
+
+    List<Rule> rules = node.getRuleCollection().getRules();
+    assertEquals(node.getRuleCollection().getRules().toString(), rules.toString());
+
+    CacheStats stats = grammar.getRuleCacheStats();
+    assertEquals(stats.missCount(), 2);
+    assertEquals(stats.hitCount(), 0);
+  }
+
+  @Test
+  public void givenRuleListRebuilt_whenDecoded_thenViewsShareTheSliceDecodedValues() throws IOException {
+    PackedGrammar grammar = load("bytes", 1);
+    Trie node = firstNodeWithRules(grammar.getTrieRoot());
+
+    Rule rule = node.getRuleCollection().getRules().get(0);
+    Rule view = node.getRuleCollection().getRules().get(0);
+    assertNotSame(view, rule);
+
+    assertSame(view.getEnglish(), rule.getEnglish());
+    assertSame(view.getFeatureVector(), rule.getFeatureVector());
+    assertSame(view.getAlignment(), rule.getAlignment());
+  }
+
+  @Test
+  public void givenPackedRule_thenViewHoldsNothingButItsAddress() {
+    List<String> fields = new ArrayList<>();
+    for (Field field : PackedRule.class.getDeclaredFields())
+      if (!field.isSynthetic() && !Modifier.isStatic(field.getModifiers()))
+        fields.add(field.getName());
+
+    assertEquals(fields, Collections.singletonList("address"));
+  }
+
+  private PackedGrammar load(String eviction, long bytes) throws IOException {
+    JoshuaConfiguration config = new JoshuaConfiguration();
+    config.search_algorithm = "cky";
+    config.rule_cache_eviction = eviction;
+    config.rule_cache_bytes = bytes;
+    return new PackedGrammar(GRAMMAR, 20, "pt", "thrax", config);
+  }
+
+  private Trie firstNodeWithRules(Trie root) {
+    Trie node = findNodeWithRules(root);
+    if (node == null)
+      fail("no trie node with rules");
+    return node;
+  }
+
+  private Trie findNodeWithRules(Trie root) {
+    for (Trie child : root.getExtensions())
+      if (child.hasRules())
+        return child;
+    for (Trie child : root.getExtensions()) {
+      Trie node = findNodeWithRules(child);
+      if (node != null)
+        return node;
+    }
+    return null;
+  }
+}
@@ -0,0 +1,224 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.ff.tm;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.joshua.corpus.Vocabulary;
+import org.apache.joshua.decoder.Decoder;
+import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.apache.joshua.decoder.chart_parser.SourcePath;
+import org.apache.joshua.decoder.ff.FeatureFunction;
+import org.apache.joshua.decoder.ff.FeatureVector;
+import org.apache.joshua.decoder.ff.PhraseModel;
+import org.apache.joshua.decoder.ff.StatelessFF;
+import org.apache.joshua.decoder.ff.state_maintenance.DPState;
+import org.apache.joshua.decoder.ff.tm.packed.PackedGrammar;
+import org.apache.joshua.decoder.hypergraph.HGNode;
+import org.apache.joshua.decoder.segment_file.Sentence;
+import org.apache.joshua.tools.GrammarPacker;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Checks that a grammar sorted at packing time decodes like the same grammar sorted by the decoder
+ * (as long as the other features' estimates do not reorder its rules), and that the decoder uses
+ * the packer's order without scoring rules when trie nodes are first touched.
+ */
+public class PresortedPackedGrammarTest {
+
+  private static final String GRAMMAR = "src/test/resources/kbest_extraction/grammar";
+  private static final String GLUE = "src/test/resources/kbest_extraction/glue-grammar";
+  private static final String INPUT = "a b c d e";
+
+  private File tmpDir;
+
+  @BeforeMethod
+  public void setUp() throws IOException {
+    tmpDir = Files.createTempDirectory("presorted").toFile();
+  }
+
+  @AfterMethod
+  public void tearDown() throws IOException {
+    Files.walk(tmpDir.toPath()).sorted(Comparator.reverseOrder()).map(p -> p.toFile())
+        .forEach(File::delete);
+    Decoder.resetGlobalState();
+  }
+
+  @Test
+  public void givenPresortedGrammar_whenDecode_thenKbestListMatchesRuntimeSorting() throws Exception {
+    File weights = new File(tmpDir, "weights");
+    try (PrintWriter out = new PrintWriter(weights)) {
+      out.println("tm_pt_0 1");
+    }
+
+    final String runtimeSorted = decode(pack(GRAMMAR, "runtime", null), -1, 100);
+    final String presorted = decode(pack(GRAMMAR, "presorted", weights.getPath()), -1, 100);
+
+    assertTrue(runtimeSorted.split("\n").length > 1);
+    assertEquals(presorted, runtimeSorted);
+  }
+
+  @Test
+  public void givenFeatureEstimatesThatReorderRules_whenDecodeWithSmallPopLimit_thenPackersOrderIsKept()
+      throws Exception {
+    File weights = writeWeights();
+    File grammar = writeReorderedGrammar();
+
+    // With a single pop, the rule explored first decides the result. The runtime sort puts the
+    // short translation first, the packer (not knowing the word penalty) the long one.
+    final String runtimeSorted = decode(pack(grammar.getPath(), "runtime", null), 5, 1);
+    final String presorted = decode(pack(grammar.getPath(), "presorted", weights.getPath()), 5, 1);
+
+    assertTrue(runtimeSorted.contains("A F"), runtimeSorted);
+    assertTrue(presorted.contains("B C D E F"), presorted);
+  }
+
+  @Test
+  public void givenPresortedGrammar_whenRulesSorted_thenNothingIsEstimatedUntilAskedFor()
+      throws Exception {
+    final String packed = pack(writeReorderedGrammar().getPath(), "presorted",
+        writeWeights().getPath());
+
+    Decoder.resetGlobalState();
+    JoshuaConfiguration config = new JoshuaConfiguration();
+    config.search_algorithm = "cky";
+    Decoder.weights = new FeatureVector();
+    Decoder.weights.set("tm_pt_0", 1.0f);
+    Decoder.weights.set("WordPenalty", 5.0f);
+    PackedGrammar grammar = new PackedGrammar(packed, 12, "pt", "thrax", config);
+
+    CountingEstimate counting = new CountingEstimate(config);
+    ArrayList<FeatureFunction> features = new ArrayList<>();
+    features.add(new PhraseModel(Decoder.weights, new String[] { "-owner", "pt" }, config, grammar));
+    features.add(counting);
+    Decoder.weights.registerDenseFeatures(features);
+
+    // The node of "a [X,1]"
+    Trie node = grammar.getTrieRoot().match(Vocabulary.id("a")).getExtensions().iterator().next();
+    List<Rule> rules = node.getRuleCollection().getSortedRules(features);
+
+    // The packer's order is used as is, and its grammar costs were read from disk
+    assertEquals(counting.calls, 0);
+    assertEquals(rules.get(0).getEnglishWords(), "B C D E [X,1]");
+    final float grammarCost = rules.get(0).getPrecomputableCost();
+    assertTrue(grammarCost > Float.NEGATIVE_INFINITY);
+
+    // The other features' estimates are added once the estimate is asked for
+    final float estimate = rules.get(0).getEstimatedCost();
+    assertEquals(counting.calls, 1);
+    assertEquals(rules.get(0).getEstimatedCost(), estimate);
+    assertEquals(counting.calls, 1);
+    assertEquals(estimate, grammarCost + CountingEstimate.ESTIMATE, 1e-5f);
+  }
+
+  /* A feature that counts how often it is asked for an estimate */
+  private static class CountingEstimate extends StatelessFF {
+    static final float ESTIMATE = -2.0f;
+    int calls = 0;
+
+    CountingEstimate(JoshuaConfiguration config) {
+      super(Decoder.weights, "CountingEstimate", new String[0], config);
+    }
+
+    @Override
+    public float estimateCost(Rule rule, Sentence sentence) {
+      calls++;
+      return ESTIMATE;
+    }
+
+    @Override
+    public DPState compute(Rule rule, List<HGNode> tailNodes, int i, int j, SourcePath sourcePath,
+        Sentence sentence, Accumulator acc) {
+      return null;
+    }
+
+    @Override
+    public ArrayList<String> reportDenseFeatures(int index) {
+      return new ArrayList<>();
+    }
+  }
+
+  private File writeWeights() throws IOException {
+    File weights = new File(tmpDir, "weights");
+    try (PrintWriter out = new PrintWriter(weights)) {
+      out.println("tm_pt_0 1");
+    }
+    return weights;
+  }
+
+  /* The longer translations have the better grammar cost, but the word penalty, whose estimate the
+   * packer does not know, makes them worse */
+  private File writeReorderedGrammar() throws IOException {
+    File grammar = new File(tmpDir, "grammar");
+    try (PrintWriter out = new PrintWriter(grammar)) {
+      out.println("[X] ||| a [X,1] ||| A [X,1] ||| 1");
+      out.println("[X] ||| a [X,1] ||| B C D E [X,1] ||| 0");
+      out.println("[X] ||| b ||| F ||| 0");
+    }
+    return grammar;
+  }
+
+  private String pack(String grammar, String name, String weightsFile) throws IOException {
+    Decoder.resetGlobalState();
+    String output = new File(tmpDir, name).getPath();
+    GrammarPacker packer = new GrammarPacker(grammar, null, output, null, null, false, 1000000,
+        weightsFile, "pt");
+    packer.pack();
+    return output;
+  }
+
+  private String decode(String grammar, float wordPenalty, int popLimit) throws Exception {
+    Decoder.resetGlobalState();
+    JoshuaConfiguration joshuaConfig = new JoshuaConfiguration();
+    joshuaConfig.search_algorithm = "cky";
+    joshuaConfig.mark_oovs = false;
+    joshuaConfig.use_unique_nbest = true;
+    joshuaConfig.topN = 20;
+    joshuaConfig.pop_limit = popLimit;
+    joshuaConfig.outputFormat = "%i ||| %s ||| %f ||| %c";
+    joshuaConfig.tms.add("thrax -owner pt -maxspan 12 -path " + grammar);
+    joshuaConfig.tms.add("thrax -owner glue -maxspan -1 -path " + GLUE);
+    joshuaConfig.goal_symbol = "[GOAL]";
+    joshuaConfig.default_non_terminal = "[X]";
+    joshuaConfig.features.add("WordPenalty");
+    joshuaConfig.features.add("OOVPenalty");
+    joshuaConfig.weights.add("tm_pt_0 1");
+    joshuaConfig.weights.add("tm_glue_0 1");
+    joshuaConfig.weights.add("WordPenalty " + wordPenalty);
+    joshuaConfig.weights.add("OOVPenalty 1");
+
+    Decoder decoder = new Decoder(joshuaConfig, "");
+    try {
+      return decoder.decode(new Sentence(INPUT, 0, joshuaConfig)).toString();
+    } finally {
+      decoder.cleanUp();
+    }
+  }
+}
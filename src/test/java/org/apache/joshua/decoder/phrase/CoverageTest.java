@@ -139,4 +139,50 @@ public class CoverageTest {
     cov.set(44, 49);
     assertEquals(cov.toString(), "40 ....xxxxx.");
   }
+
+  @Test
+  public void testLongSentences() {
+    Coverage cov = new Coverage();
+    cov.set(1, 2);
+    cov.set(100, 130);
+    cov.set(200, 201);
+    assertEquals(cov.firstZero(), 0);
+    assertTrue(cov.compatible(2, 100));
+    assertFalse(cov.compatible(60, 101));
+    assertFalse(cov.compatible(129, 131));
+    assertTrue(cov.compatible(130, 200));
+    assertFalse(cov.compatible(199, 201));
+    assertEquals(cov.leftOpening(199), 130);
+    assertEquals(cov.leftOpening(99), 2);
+
+    Coverage copy = new Coverage(cov);
+    copy.set(0, 1);
+    assertEquals(copy.firstZero(), 2);
+    copy.set(2, 100);
+    assertEquals(copy.firstZero(), 130);
+    assertTrue(copy.compatible(131, 200));
+    assertFalse(copy.compatible(131, 201));
+    copy.set(130, 200);
+    assertEquals(copy.firstZero(), 201);
+    assertEquals(copy.toString(), "201 ..........");
+
+    Coverage other = new Coverage(201);
+    assertEquals(copy, other);
+    assertEquals(copy.hashCode(), other.hashCode());
+    assertEquals(cov.firstZero(), 0);
+  }
+
+  @Test
+  public void testHashCodeMatchesBitSet() {
+    Coverage cov = new Coverage(3);
+    cov.set(5, 9);
+    cov.set(70, 72);
+    cov.set(150, 151);
+    BitSet bits = new BitSet();
+    bits.set(2, 6);
+    bits.set(67, 69);
+    bits.set(147);
+    assertEquals(cov.getCoverage(), bits);
+    assertEquals(cov.hashCode(), bits.hashCode() * 3);
+  }
 }
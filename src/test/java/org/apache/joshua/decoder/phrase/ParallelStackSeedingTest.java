@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.phrase;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import org.apache.joshua.decoder.Decoder;
+import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.apache.joshua.decoder.segment_file.Sentence;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Checks that seeding the phrase-based stacks in parallel with deterministic_stacks produces
+ * exactly the same k-best list as sequential decoding.
+ */
+public class ParallelStackSeedingTest {
+
+  private static final String CONFIG = "src/test/resources/phrase_decoder/berkeleylm.config";
+  private static final String INPUT = "la reelección de Obama para una estrategia republicana";
+
+  private JoshuaConfiguration joshuaConfig;
+  private Decoder decoder;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    Decoder.resetGlobalState();
+    joshuaConfig = new JoshuaConfiguration();
+    joshuaConfig.readConfigFile(CONFIG);
+    joshuaConfig.deterministic_stacks = true;
+    decoder = new Decoder(joshuaConfig, "");
+  }
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    decoder.cleanUp();
+    decoder = null;
+    Decoder.resetGlobalState();
+  }
+
+  @Test
+  public void givenDeterministicStacks_whenDecode_thenKbestListMatchesSequentialDecoding() {
+    final String sequential = decode(1);
+    final String parallel = decode(4);
+
+    assertTrue(sequential.split("\n").length > 1);
+    assertEquals(parallel, sequential);
+  }
+
+  private String decode(int spanThreads) {
+    joshuaConfig.num_span_threads = spanThreads;
+    return decoder.decode(new Sentence(INPUT, 0, joshuaConfig)).toString();
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.phrase;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.joshua.corpus.Vocabulary;
+import org.apache.joshua.decoder.Decoder;
+import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.apache.joshua.decoder.ff.FeatureFunction;
+import org.apache.joshua.decoder.ff.tm.Rule;
+import org.apache.joshua.decoder.segment_file.Sentence;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class PhraseChartTest {
+
+  private JoshuaConfiguration config;
+  private PhraseTable[] tables;
+  private final List<FeatureFunction> features = new ArrayList<>();
+
+  @BeforeMethod
+  public void setUp() {
+    Decoder.resetGlobalState();
+    config = new JoshuaConfiguration();
+    PhraseTable first = new PhraseTable("pt", config);
+    addRule(first, "a", "A");
+    addRule(first, "a b", "AB");
+    addRule(first, "a b c", "ABC");
+    addRule(first, "c d", "CD");
+    PhraseTable second = new PhraseTable("pt2", config);
+    addRule(second, "a b", "AB2");
+    addRule(second, "b", "B");
+    addRule(second, "b c d e", "BCDE");
+    tables = new PhraseTable[] { first, second };
+  }
+
+  @AfterMethod
+  public void tearDown() {
+    Decoder.resetGlobalState();
+  }
+
+  private static void addRule(PhraseTable table, String source, String target) {
+    table.addRule(new Rule(Vocabulary.id("[X]"), Vocabulary.addAll(source),
+        Vocabulary.addAll(target), "", 0, "0-0"));
+  }
+
+  @Test
+  public void givenTables_whenChartBuilt_thenSpansHaveThePhrasesOfAllTables() {
+    ForkJoinPool parallel = new ForkJoinPool(4);
+    try {
+      for (ForkJoinPool pool : new ForkJoinPool[] { null, parallel }) {
+        // Positions are shifted by one by <s>
+        PhraseChart chart = new PhraseChart(tables, features,
+            new Sentence("a b c d a", 0, config), 20, pool);
+        assertEquals(chart.getRange(1, 2).size(), 1);
+        assertEquals(chart.getRange(1, 3).size(), 2);
+        assertEquals(chart.getRange(1, 4).size(), 1);
+        assertEquals(chart.getRange(2, 3).size(), 1);
+        assertEquals(chart.getRange(3, 5).size(), 1);
+        assertEquals(chart.getRange(5, 6).size(), 1);
+        assertNull(chart.getRange(1, 5));
+        assertNull(chart.getRange(2, 6));
+        assertNull(chart.getRange(4, 5));
+        assertNull(chart.getRange(5, 7));
+      }
+    } finally {
+      parallel.shutdown();
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.phrase;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.joshua.decoder.Decoder;
+import org.apache.joshua.decoder.ff.state_maintenance.KenLMState;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+public class RecombinationTableTest {
+
+  @AfterMethod
+  public void tearDown() {
+    Decoder.resetGlobalState();
+  }
+
+  /* Hypotheses over the same coverage that are equal if their states are */
+  private static Hypothesis hypothesis(long state) {
+    return new Hypothesis(Collections.singletonList(new KenLMState(state)), 0.0f);
+  }
+
+  @Test
+  public void givenEquivalentHypothesis_whenPut_thenFirstOneIsReturned() {
+    RecombinationTable table = new RecombinationTable();
+    Hypothesis first = hypothesis(1);
+    assertNull(table.putIfAbsent(first));
+    assertNull(table.putIfAbsent(hypothesis(2)));
+
+    assertSame(table.putIfAbsent(hypothesis(1)), first);
+    assertEquals(table.size(), 2);
+  }
+
+  @Test
+  public void givenHypothesesWithSameHashCode_whenPut_thenBothAreKept() {
+    RecombinationTable table = new RecombinationTable();
+    Hypothesis first = hypothesis(5);
+    Hypothesis second = hypothesis((1L << 32) | 4);
+    assertEquals(second.hashCode(), first.hashCode());
+
+    assertNull(table.putIfAbsent(first));
+    assertNull(table.putIfAbsent(second));
+    assertSame(table.putIfAbsent(hypothesis(5)), first);
+    assertSame(table.putIfAbsent(hypothesis((1L << 32) | 4)), second);
+    assertEquals(table.size(), 2);
+  }
+
+  @Test
+  public void givenManyHypotheses_whenTableGrows_thenAllAreStillFound() {
+    RecombinationTable table = new RecombinationTable();
+    List<Hypothesis> added = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      // Every second one has the same hash code as the previous one
+      Hypothesis hyp = hypothesis((i % 2 == 0) ? i : ((1L << 32) | i));
+      assertNull(table.putIfAbsent(hyp));
+      added.add(hyp);
+    }
+    assertEquals(table.size(), 1000);
+
+    for (Hypothesis hyp : added)
+      assertSame(table.putIfAbsent(hypothesis(((KenLMState) hyp.getDPState(0)).getState())), hyp);
+    assertEquals(table.size(), 1000);
+
+    table.clear();
+    assertEquals(table.size(), 0);
+    assertNull(table.putIfAbsent(hypothesis(0)));
+  }
+}
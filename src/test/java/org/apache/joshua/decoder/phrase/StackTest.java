@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.phrase;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.joshua.decoder.Decoder;
+import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.apache.joshua.decoder.segment_file.Sentence;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Checks that cutting back the candidate queue of a stack to the candidates that can still be
+ * popped does not change the search, and that the stack beam discards candidates.
+ */
+public class StackTest {
+
+  private static final String CONFIG = "src/test/resources/phrase_decoder/berkeleylm.config";
+  private static final String INPUT =
+      "una estrategia republicana para obstaculizar la reelección de Obama en los Estados Unidos";
+
+  private JoshuaConfiguration joshuaConfig;
+  private Decoder decoder;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    Decoder.resetGlobalState();
+    joshuaConfig = new JoshuaConfiguration();
+    joshuaConfig.readConfigFile(CONFIG);
+    // Small enough that the queues grow beyond twice the pop limit and are cut back
+    joshuaConfig.pop_limit = 5;
+    joshuaConfig.topN = 20;
+    decoder = new Decoder(joshuaConfig, "");
+  }
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    decoder.cleanUp();
+    decoder = null;
+    Decoder.resetGlobalState();
+  }
+
+  @Test
+  public void givenSmallPopLimit_whenDecodeWithQueuePruning_thenKbestListMatchesUnprunedSearch() {
+    joshuaConfig.prune_stack_queues = false;
+    final String unpruned = decode();
+    joshuaConfig.prune_stack_queues = true;
+    final String pruned = decode();
+
+    assertTrue(unpruned.split("\n").length > 1);
+    assertEquals(pruned, unpruned);
+  }
+
+  @Test
+  public void givenWideStackBeam_whenDecode_thenKbestListMatchesSearchWithoutBeam() {
+    final String unbounded = decode();
+    joshuaConfig.processCommandLineOptions(new String[] { "-stack-beam", "1000" });
+    assertEquals(joshuaConfig.stack_beam, 1000.0f);
+
+    assertEquals(decode(), unbounded);
+  }
+
+  @Test
+  public void givenNarrowStackBeam_whenDecode_thenFewerTranslations() {
+    joshuaConfig.pop_limit = 50;
+    final int unbounded = decode().split("\n").length;
+    joshuaConfig.processCommandLineOptions(new String[] { "-stack-beam", "0.5" });
+    final int beamed = decode().split("\n").length;
+
+    assertEquals(unbounded, 20);
+    assertTrue(beamed >= 1 && beamed < unbounded, Integer.toString(beamed));
+  }
+
+  @Test
+  public void givenDecoderAfterGlobalReset_whenDecode_thenSameKbestList() throws Exception {
+    // Registers the words of another sentence first, so that the new vocabulary numbers them differently
+    decoder.decode(new Sentence("la reelección de Obama para una estrategia republicana", 0, joshuaConfig));
+    final String expected = decode();
+
+    decoder.cleanUp();
+    Decoder.resetGlobalState();
+    joshuaConfig = new JoshuaConfiguration();
+    joshuaConfig.readConfigFile(CONFIG);
+    joshuaConfig.pop_limit = 5;
+    joshuaConfig.topN = 20;
+    decoder = new Decoder(joshuaConfig, "");
+
+    assertEquals(decode(), expected);
+  }
+
+  @Test
+  public void givenValuesWithTies_whenSelect_thenSameAsSorting() {
+    Random random = new Random(7);
+    for (int round = 0; round < 100; round++) {
+      int n = 1 + random.nextInt(50);
+      float[] values = new float[n];
+      for (int i = 0; i < n; i++)
+        values[i] = random.nextInt(10) - 5;
+      float[] sorted = values.clone();
+      Arrays.sort(sorted);
+      for (int k = 0; k < n; k++)
+        assertEquals(Stack.select(values.clone(), n, k), sorted[k]);
+    }
+  }
+
+  private String decode() {
+    return decoder.decode(new Sentence(INPUT, 0, joshuaConfig)).toString();
+  }
+}
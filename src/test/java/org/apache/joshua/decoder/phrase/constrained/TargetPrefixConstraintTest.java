@@ -0,0 +1,108 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.decoder.phrase.constrained;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import org.apache.joshua.corpus.Vocabulary;
+import org.apache.joshua.decoder.Decoder;
+import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.apache.joshua.decoder.ff.tm.Rule;
+import org.apache.joshua.decoder.hypergraph.HGNode;
+import org.apache.joshua.decoder.hypergraph.HyperEdge;
+import org.apache.joshua.decoder.phrase.PhraseNodes;
+import org.apache.joshua.decoder.segment_file.Sentence;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Checks that constrained phrase-based decoding only produces the target sentence, and that it
+ * finds it when it is reachable.
+ */
+public class TargetPrefixConstraintTest {
+
+  private static final String CONFIG = "src/test/resources/phrase_decoder/berkeleylm.config";
+  private static final String SOURCE = "la reelección de Obama para una estrategia republicana";
+  private static final String TARGET = "the re @-@ election of Obama for a Republican strategy";
+
+  private JoshuaConfiguration joshuaConfig;
+  private Decoder decoder;
+
+  @BeforeMethod
+  public void setUp() throws Exception {
+    Decoder.resetGlobalState();
+    joshuaConfig = new JoshuaConfiguration();
+    joshuaConfig.readConfigFile(CONFIG);
+    decoder = new Decoder(joshuaConfig, "");
+  }
+
+  @AfterMethod
+  public void tearDown() throws Exception {
+    decoder.cleanUp();
+    decoder = null;
+    Decoder.resetGlobalState();
+  }
+
+  @Test
+  public void givenReachableTarget_whenConstrainedDecoding_thenAllTranslationsAreTheTarget() {
+    final String[] lines = decode(SOURCE + " ||| " + TARGET).split("\n");
+
+    assertTrue(lines.length > 0);
+    for (String line : lines)
+      assertEquals(line.split(" \\|\\|\\| ")[1], TARGET);
+  }
+
+  @Test
+  public void givenUnreachableTarget_whenConstrainedDecoding_thenNoTranslation() {
+    assertEquals(decode(SOURCE + " ||| the the the").trim(), "");
+  }
+
+  @Test
+  public void givenPhrases_whenMatchedAtTargetPosition_thenOnlyPhrasesContinuingTheTargetAreKept() {
+    final int[] target = Vocabulary.addAll("<s> the re @-@ election of Obama </s>");
+    PhraseNodes phrases = new PhraseNodes(2, 4, 4);
+    phrases.add(phrase("the re"));
+    phrases.add(phrase("re @-@"));
+    phrases.add(phrase("re @-@ election"));
+    phrases.add(phrase("Obama </s> </s>"));
+
+    PhraseNodes matching = phrases.matching(target, 2);
+    assertEquals(matching.size(), 2);
+    assertSame(matching.get(0), phrases.get(1));
+    assertSame(matching.get(1), phrases.get(2));
+    assertEquals(matching.i, 2);
+    assertEquals(matching.j, 4);
+
+    assertSame(phrases.matching(target, 1).get(0), phrases.get(0));
+    assertTrue(phrases.matching(target, 6).isEmpty());
+  }
+
+  private static HGNode phrase(String words) {
+    int[] english = Vocabulary.addAll(words);
+    Rule rule = new Rule(Vocabulary.id("[X]"), english, english, "", 0);
+    return new HGNode(2, 4, rule.getLHS(), null, new HyperEdge(rule, 0.0f, 0.0f, null, null), 0.0f);
+  }
+
+  private String decode(String input) {
+    return decoder.decode(new Sentence(input, 0, joshuaConfig)).toString();
+  }
+}
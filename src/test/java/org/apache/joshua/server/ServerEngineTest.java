@@ -0,0 +1,174 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.server;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.joshua.decoder.Decoder;
+import org.apache.joshua.decoder.JoshuaConfiguration;
+import org.apache.joshua.decoder.Translation;
+import org.apache.joshua.decoder.TranslationResponseStream;
+import org.apache.joshua.decoder.TranslationScheduler;
+import org.apache.joshua.decoder.io.TranslationRequestStream;
+import org.apache.joshua.decoder.segment_file.Sentence;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+public class ServerEngineTest {
+
+  @AfterMethod
+  public void tearDown() {
+    Decoder.resetGlobalState();
+  }
+
+  @Test
+  public void givenSaturatedEngine_whenSubmit_thenRequestIsRejected() throws Exception {
+    ServerEngine engine = new ServerEngine(1, 1, 0);
+    CountDownLatch release = new CountDownLatch(1);
+    try {
+      CompletableFuture<String> running = engine.submit(() -> {
+        release.await();
+        return "first";
+      });
+      CompletableFuture<String> queued = engine.submit(() -> "second");
+
+      try {
+        engine.submit(() -> "third");
+        fail("expected the third request to be rejected");
+      } catch (RejectedExecutionException e) {
+        // expected
+      }
+
+      release.countDown();
+      assertEquals(running.get(), "first");
+      assertEquals(queued.get(), "second");
+    } finally {
+      release.countDown();
+      engine.shutdown();
+    }
+  }
+
+  @Test
+  public void givenSlowRequest_whenTimeoutExpires_thenFutureFailsWithTimeout() throws Exception {
+    ServerEngine engine = new ServerEngine(1, 1, 50);
+    try {
+      CompletableFuture<String> slow = engine.submit(() -> {
+        Thread.sleep(10_000);
+        return "too late";
+      });
+      slow.get();
+      fail("expected the request to time out");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof TimeoutException);
+    } finally {
+      engine.shutdown();
+    }
+  }
+
+  @Test
+  public void givenTimedOutRequest_whenFutureFails_thenDependentsRunOnResponderThread()
+      throws Exception {
+    ServerEngine engine = new ServerEngine(1, 1, 50);
+    try {
+      CompletableFuture<String> slow = engine.submit(() -> {
+        Thread.sleep(10_000);
+        return "too late";
+      });
+      CompletableFuture<String> responder = slow.handle((value, error) -> {
+        assertTrue(error instanceof TimeoutException);
+        return Thread.currentThread().getName();
+      });
+      assertTrue(responder.get(5, TimeUnit.SECONDS).startsWith("ServerResponder-"));
+    } finally {
+      engine.shutdown();
+    }
+  }
+
+  @Test
+  public void givenRejectedRequest_whenRespond_thenResponseIsWrittenOnResponderThread()
+      throws Exception {
+    ServerEngine engine = new ServerEngine(1, 0, 0);
+    CompletableFuture<String> responder = new CompletableFuture<>();
+    try {
+      engine.respond(() -> responder.complete(Thread.currentThread().getName()));
+      assertTrue(responder.get(5, TimeUnit.SECONDS).startsWith("ServerResponder-"));
+    } finally {
+      engine.shutdown();
+    }
+  }
+
+  @Test
+  public void givenTimedOutRequest_whenSentenceIsBeingTranslated_thenTranslationStopsAndWorkerIsFreed()
+      throws Exception {
+    JoshuaConfiguration config = new JoshuaConfiguration();
+    TranslationRequestStream request = new TranslationRequestStream(
+        new BufferedReader(new StringReader("a b c\n")), config);
+    TranslationResponseStream responses = new TranslationResponseStream(request);
+    TranslationScheduler scheduler = new TranslationScheduler(1);
+    ServerEngine engine = new ServerEngine(1, 1, 100);
+    CountDownLatch translationStopped = new CountDownLatch(1);
+
+    try {
+      /* A translation that only ends when its request is cancelled, as Stacks and Chart do */
+      Sentence sentence = request.next();
+      sentence.setCancellation(responses::isCancelled);
+      scheduler.submit(sentence, () -> {
+        try {
+          while (true) {
+            sentence.checkCancelled();
+            Thread.sleep(5);
+          }
+        } catch (CancellationException | InterruptedException e) {
+          translationStopped.countDown();
+        }
+      });
+
+      CompletableFuture<Void> slow = engine.submit(() -> {
+        for (Translation translation : responses)
+          assertTrue(translation != null);
+        return null;
+      });
+      try {
+        slow.get();
+        fail("expected the request to time out");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof TimeoutException);
+      }
+
+      assertTrue(translationStopped.await(5, TimeUnit.SECONDS));
+      assertTrue(responses.isCancelled());
+      assertEquals(engine.submit(() -> "next").get(5, TimeUnit.SECONDS), "next");
+    } finally {
+      engine.shutdown();
+      scheduler.shutdown();
+    }
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.joshua.util;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.testng.annotations.Test;
+
+public class TasksTest {
+
+  @Test
+  public void givenFailingTask_whenJoinAll_thenOtherTasksFinishBeforeFailureIsThrown()
+      throws Exception {
+    ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      CountDownLatch failed = new CountDownLatch(1);
+      AtomicBoolean finished = new AtomicBoolean(false);
+      IllegalStateException failure = new IllegalStateException("cell failed");
+
+      List<Future<?>> tasks = Arrays.asList(
+          pool.submit(() -> {
+            failed.countDown();
+            throw failure;
+          }),
+          pool.submit(() -> {
+            // Still running well after the other task has failed
+            try {
+              failed.await();
+              Thread.sleep(200);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            finished.set(true);
+          }));
+
+      try {
+        Tasks.joinAll(tasks);
+        fail("task failure not propagated");
+      } catch (IllegalStateException e) {
+        // A fork/join pool rethrows a copy of the exception that wraps the original
+        assertTrue(e == failure || e.getCause() == failure);
+        assertTrue(finished.get());
+      }
+    } finally {
+      pool.shutdown();
+      pool.awaitTermination(10, TimeUnit.SECONDS);
+    }
+  }
+
+  @Test
+  public void givenSeveralFailingTasks_whenJoinAll_thenFirstIsThrownWithOthersSuppressed() {
+    ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      List<Future<?>> tasks = Arrays.asList(
+          pool.submit(() -> { throw new IllegalStateException("first"); }),
+          pool.submit(() -> { throw new IllegalArgumentException("second"); }));
+
+      try {
+        Tasks.joinAll(tasks);
+        fail("task failure not propagated");
+      } catch (IllegalStateException e) {
+        assertTrue(e.getMessage().endsWith("first"));
+        assertEquals(e.getSuppressed().length, 1);
+        assertTrue(e.getSuppressed()[0] instanceof IllegalArgumentException);
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+}